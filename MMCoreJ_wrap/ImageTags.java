@@ -0,0 +1,631 @@
+package mmcorej;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Compact per-image metadata, usable anywhere a JSONObject is expected.
+ *
+ * Keys are interned, so the few hundred property names shared by all images
+ * of an acquisition are stored once, and int, long, double and boolean
+ * values are kept unboxed. The JSON text is built once and cached until the
+ * tags change. Changing a nested JSONObject or JSONArray in place is not a
+ * change to the tags: put() it again so the cached text is rebuilt.
+ *
+ * Tags can also be created from a binary encoding (see toBytes()) or from
+ * JSON text, in which case they are only decoded or parsed when first
+ * accessed. Code that just passes tags along, e.g. from a file reader to a
+ * file writer, then never parses them.
+ *
+ * Like JSONObject, this class is not safe for concurrent modification, but
+ * may be read from several threads.
+ */
+public class ImageTags extends JSONObject {
+   private static final byte STRING = 0;
+   private static final byte INT = 1;
+   private static final byte LONG = 2;
+   private static final byte DOUBLE = 3;
+   private static final byte BOOLEAN = 4;
+   private static final byte OBJECT = 5;
+
+   // Interned keys. Ids are only valid within this JVM, so toBytes() is not
+   // a file format. Beyond MAX_INTERNED_KEYS, keys are encoded by name.
+   private static final int MAX_INTERNED_KEYS = 1 << 16;
+   private static final ConcurrentHashMap<String, Integer> keyIds_ =
+         new ConcurrentHashMap<String, Integer>();
+   private static final ConcurrentHashMap<String, String> canonicalKeys_ =
+         new ConcurrentHashMap<String, String>();
+   private static volatile String[] keyNames_ = new String[256];
+   private static int numKeys_ = 0;
+
+   private int size_ = 0;
+   private String[] keys_;
+   private byte[] types_;
+   private long[] bits_;
+   private Object[] refs_;
+   // Open addressing table of entry index + 1 (0 is empty)
+   private int[] slots_;
+
+   // Cached encodings, valid until the tags are modified. While pending_,
+   // the entries have yet to be decoded from one of them.
+   private volatile String json_;
+   private volatile byte[] encoded_;
+   private volatile boolean pending_ = false;
+
+   public ImageTags() {
+      this(16);
+   }
+
+   public ImageTags(int expectedSize) {
+      allocate(Math.max(4, expectedSize));
+   }
+
+   /**
+    * Copy of another JSONObject. Nested objects and arrays are shared.
+    */
+   public ImageTags(JSONObject tags) {
+      this(tags.length());
+      copyFrom(tags);
+   }
+
+   /**
+    * Tags that will be parsed from this JSON text when first accessed.
+    */
+   public static ImageTags fromJSON(String json) {
+      ImageTags tags = new ImageTags(4);
+      tags.json_ = json;
+      tags.pending_ = true;
+      return tags;
+   }
+
+   /**
+    * Tags that will be decoded from the output of toBytes() when first
+    * accessed. The array must not be modified afterwards.
+    */
+   public static ImageTags fromBytes(byte[] encoded) {
+      ImageTags tags = new ImageTags(4);
+      tags.encoded_ = encoded;
+      tags.pending_ = true;
+      return tags;
+   }
+
+   /**
+    * @return tags as ImageTags, without copying them if they already are
+    */
+   public static ImageTags of(JSONObject tags) {
+      return tags instanceof ImageTags ? (ImageTags) tags : new ImageTags(tags);
+   }
+
+   private void allocate(int capacity) {
+      keys_ = new String[capacity];
+      types_ = new byte[capacity];
+      bits_ = new long[capacity];
+      refs_ = new Object[capacity];
+      int tableSize = 8;
+      while (tableSize < 2 * capacity) {
+         tableSize <<= 1;
+      }
+      slots_ = new int[tableSize];
+   }
+
+   private void copyFrom(JSONObject tags) {
+      Iterator<String> keys = tags.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         setRaw(key, tags.opt(key));
+      }
+   }
+
+   /*
+    * Decodes or parses pending contents. Synchronized because readers on
+    * other threads may get here at the same time.
+    */
+   private void ensureDecoded() {
+      if (!pending_) {
+         return;
+      }
+      synchronized (this) {
+         if (!pending_) {
+            return;
+         }
+         try {
+            if (encoded_ != null) {
+               decode(encoded_);
+            } else {
+               copyFrom(new JSONObject(json_));
+            }
+         } catch (JSONException e) {
+            throw new IllegalStateException("Invalid image tags: " + e.getMessage());
+         }
+         pending_ = false;
+      }
+   }
+
+   private static String internKey(String key) {
+      String canonical = canonicalKeys_.get(key);
+      if (canonical != null) {
+         return canonical;
+      }
+      if (canonicalKeys_.size() >= MAX_INTERNED_KEYS) {
+         return key;
+      }
+      canonical = canonicalKeys_.putIfAbsent(key, key);
+      return canonical == null ? key : canonical;
+   }
+
+   private static int keyId(String key) {
+      Integer id = keyIds_.get(key);
+      if (id != null) {
+         return id;
+      }
+      synchronized (keyIds_) {
+         id = keyIds_.get(key);
+         if (id != null) {
+            return id;
+         }
+         if (numKeys_ >= MAX_INTERNED_KEYS) {
+            return -1;
+         }
+         String[] names = keyNames_;
+         if (numKeys_ == names.length) {
+            String[] grown = new String[2 * names.length];
+            System.arraycopy(names, 0, grown, 0, names.length);
+            names = grown;
+         }
+         names[numKeys_] = internKey(key);
+         keyNames_ = names;
+         keyIds_.put(key, numKeys_);
+         return numKeys_++;
+      }
+   }
+
+   private int find(String key) {
+      int mask = slots_.length - 1;
+      int i = key.hashCode() & mask;
+      while (slots_[i] != 0) {
+         int entry = slots_[i] - 1;
+         String k = keys_[entry];
+         if (k == key || k.equals(key)) {
+            return entry;
+         }
+         i = (i + 1) & mask;
+      }
+      return -1;
+   }
+
+   /*
+    * Returns the entry for key, adding it if needed.
+    */
+   private int entry(String key) {
+      int found = find(key);
+      if (found >= 0) {
+         return found;
+      }
+      if (size_ == keys_.length) {
+         grow();
+      }
+      int entry = size_++;
+      keys_[entry] = internKey(key);
+      insertSlot(entry);
+      return entry;
+   }
+
+   private void insertSlot(int entry) {
+      int mask = slots_.length - 1;
+      int i = keys_[entry].hashCode() & mask;
+      while (slots_[i] != 0) {
+         i = (i + 1) & mask;
+      }
+      slots_[i] = entry + 1;
+   }
+
+   private void grow() {
+      String[] keys = keys_;
+      byte[] types = types_;
+      long[] bits = bits_;
+      Object[] refs = refs_;
+      allocate(2 * keys.length);
+      System.arraycopy(keys, 0, keys_, 0, size_);
+      System.arraycopy(types, 0, types_, 0, size_);
+      System.arraycopy(bits, 0, bits_, 0, size_);
+      System.arraycopy(refs, 0, refs_, 0, size_);
+      for (int entry = 0; entry < size_; entry++) {
+         insertSlot(entry);
+      }
+   }
+
+   private void setRaw(String key, Object value) {
+      if (value instanceof Integer) {
+         setBits(key, INT, (Integer) value);
+      } else if (value instanceof Long) {
+         setBits(key, LONG, (Long) value);
+      } else if (value instanceof Double) {
+         setBits(key, DOUBLE, Double.doubleToRawLongBits((Double) value));
+      } else if (value instanceof Boolean) {
+         setBits(key, BOOLEAN, ((Boolean) value) ? 1 : 0);
+      } else {
+         int entry = entry(key);
+         types_[entry] = value instanceof String ? STRING : OBJECT;
+         refs_[entry] = value;
+      }
+   }
+
+   private void setBits(String key, byte type, long bits) {
+      int entry = entry(key);
+      types_[entry] = type;
+      bits_[entry] = bits;
+      refs_[entry] = null;
+   }
+
+   private Object value(int entry) {
+      switch (types_[entry]) {
+         case INT:
+            return Integer.valueOf((int) bits_[entry]);
+         case LONG:
+            return Long.valueOf(bits_[entry]);
+         case DOUBLE:
+            return Double.valueOf(Double.longBitsToDouble(bits_[entry]));
+         case BOOLEAN:
+            return bits_[entry] != 0 ? Boolean.TRUE : Boolean.FALSE;
+         default:
+            return refs_[entry];
+      }
+   }
+
+   private boolean isNumber(int entry) {
+      byte type = types_[entry];
+      return type == INT || type == LONG || type == DOUBLE;
+   }
+
+   private double doubleValue(int entry) {
+      return types_[entry] == DOUBLE ? Double.longBitsToDouble(bits_[entry])
+            : (double) bits_[entry];
+   }
+
+   private JSONException notFound(String key) {
+      return new JSONException("JSONObject[" + quote(key) + "] not found.");
+   }
+
+   @Override
+   public boolean has(String key) {
+      ensureDecoded();
+      return key != null && find(key) >= 0;
+   }
+
+   @Override
+   public Object opt(String key) {
+      ensureDecoded();
+      if (key == null) {
+         return null;
+      }
+      int entry = find(key);
+      return entry < 0 ? null : value(entry);
+   }
+
+   @Override
+   public int getInt(String key) throws JSONException {
+      ensureDecoded();
+      int entry = key == null ? -1 : find(key);
+      if (entry < 0) {
+         throw notFound(key);
+      }
+      if (types_[entry] == INT || types_[entry] == LONG) {
+         return (int) bits_[entry];
+      }
+      return super.getInt(key);
+   }
+
+   @Override
+   public long getLong(String key) throws JSONException {
+      ensureDecoded();
+      int entry = key == null ? -1 : find(key);
+      if (entry < 0) {
+         throw notFound(key);
+      }
+      if (types_[entry] == INT || types_[entry] == LONG) {
+         return bits_[entry];
+      }
+      return super.getLong(key);
+   }
+
+   @Override
+   public double getDouble(String key) throws JSONException {
+      ensureDecoded();
+      int entry = key == null ? -1 : find(key);
+      if (entry < 0) {
+         throw notFound(key);
+      }
+      if (isNumber(entry)) {
+         return doubleValue(entry);
+      }
+      return super.getDouble(key);
+   }
+
+   @Override
+   public String getString(String key) throws JSONException {
+      ensureDecoded();
+      int entry = key == null ? -1 : find(key);
+      if (entry < 0) {
+         throw notFound(key);
+      }
+      if (types_[entry] == STRING) {
+         return (String) refs_[entry];
+      }
+      return value(entry).toString();
+   }
+
+   @Override
+   public int optInt(String key, int defaultValue) {
+      try {
+         return getInt(key);
+      } catch (Exception e) {
+         return defaultValue;
+      }
+   }
+
+   @Override
+   public double optDouble(String key, double defaultValue) {
+      try {
+         return getDouble(key);
+      } catch (Exception e) {
+         return defaultValue;
+      }
+   }
+
+   @Override
+   public Iterator<String> keys() {
+      ensureDecoded();
+      final String[] keys = new String[size_];
+      System.arraycopy(keys_, 0, keys, 0, size_);
+      return new Iterator<String>() {
+         private int next_ = 0;
+
+         @Override
+         public boolean hasNext() {
+            return next_ < keys.length;
+         }
+
+         @Override
+         public String next() {
+            if (next_ >= keys.length) {
+               throw new NoSuchElementException();
+            }
+            return keys[next_++];
+         }
+
+         @Override
+         public void remove() {
+            if (next_ == 0) {
+               throw new IllegalStateException();
+            }
+            ImageTags.this.remove(keys[next_ - 1]);
+         }
+      };
+   }
+
+   @Override
+   public int length() {
+      ensureDecoded();
+      return size_;
+   }
+
+   @Override
+   public JSONObject put(String key, Object value) throws JSONException {
+      if (key == null) {
+         throw new JSONException("Null key.");
+      }
+      if (value == null) {
+         remove(key);
+         return this;
+      }
+      if (value instanceof Double) {
+         checkFinite((Double) value);
+      } else if (value instanceof Float) {
+         checkFinite((Float) value);
+         value = Double.valueOf((Float) value);
+      }
+      ensureDecoded();
+      setRaw(key, value);
+      modified();
+      return this;
+   }
+
+   @Override
+   public JSONObject put(String key, int value) throws JSONException {
+      return putBits(key, INT, value);
+   }
+
+   @Override
+   public JSONObject put(String key, long value) throws JSONException {
+      return putBits(key, LONG, value);
+   }
+
+   @Override
+   public JSONObject put(String key, double value) throws JSONException {
+      checkFinite(value);
+      return putBits(key, DOUBLE, Double.doubleToRawLongBits(value));
+   }
+
+   @Override
+   public JSONObject put(String key, boolean value) throws JSONException {
+      return putBits(key, BOOLEAN, value ? 1 : 0);
+   }
+
+   private JSONObject putBits(String key, byte type, long bits) throws JSONException {
+      if (key == null) {
+         throw new JSONException("Null key.");
+      }
+      ensureDecoded();
+      setBits(key, type, bits);
+      modified();
+      return this;
+   }
+
+   private static void checkFinite(double value) throws JSONException {
+      if (Double.isInfinite(value) || Double.isNaN(value)) {
+         throw new JSONException("JSON does not allow non-finite numbers.");
+      }
+   }
+
+   private void modified() {
+      json_ = null;
+      encoded_ = null;
+   }
+
+   @Override
+   public Object remove(String key) {
+      ensureDecoded();
+      int entry = key == null ? -1 : find(key);
+      if (entry < 0) {
+         return null;
+      }
+      Object previous = value(entry);
+      int last = size_ - 1;
+      keys_[entry] = keys_[last];
+      types_[entry] = types_[last];
+      bits_[entry] = bits_[last];
+      refs_[entry] = refs_[last];
+      keys_[last] = null;
+      refs_[last] = null;
+      size_--;
+      Arrays.fill(slots_, 0);
+      for (int i = 0; i < size_; i++) {
+         insertSlot(i);
+      }
+      modified();
+      return previous;
+   }
+
+   /**
+    * The JSON text of the tags. Built on the first call and cached until the
+    * tags are modified; tags created from JSON text return it unchanged.
+    */
+   @Override
+   public String toString() {
+      String json = json_;
+      if (json == null) {
+         ensureDecoded();
+         json = super.toString();
+         json_ = json;
+      }
+      return json;
+   }
+
+   /**
+    * Binary encoding of the tags, for keeping them compactly within this
+    * JVM (keys are encoded as ids into a process-wide table). Other values,
+    * such as nested objects and arrays, are encoded as JSON text, so they
+    * decode the way toString() would parse back (a Short as an Integer, a
+    * Character as a String). Like toString(), it is built once and cached
+    * until the tags are modified; the array must not be modified.
+    */
+   public byte[] toBytes() {
+      byte[] encoded = encoded_;
+      if (encoded != null) {
+         return encoded;
+      }
+      ensureDecoded();
+      try {
+         int numBytes = 4;
+         byte[][] strings = new byte[size_][];
+         int[] ids = new int[size_];
+         byte[][] names = new byte[size_][];
+         for (int i = 0; i < size_; i++) {
+            ids[i] = keyId(keys_[i]);
+            numBytes += 5;
+            if (ids[i] < 0) {
+               names[i] = keys_[i].getBytes("UTF-8");
+               numBytes += 4 + names[i].length;
+            }
+            if (types_[i] == STRING || types_[i] == OBJECT) {
+               strings[i] = (types_[i] == STRING ? (String) refs_[i]
+                     : valueToJSON(refs_[i])).getBytes("UTF-8");
+               numBytes += 4 + strings[i].length;
+            } else {
+               numBytes += 8;
+            }
+         }
+         ByteBuffer buffer = ByteBuffer.allocate(numBytes);
+         buffer.putInt(size_);
+         for (int i = 0; i < size_; i++) {
+            buffer.putInt(ids[i]);
+            if (ids[i] < 0) {
+               buffer.putInt(names[i].length).put(names[i]);
+            }
+            buffer.put(types_[i]);
+            if (strings[i] != null) {
+               buffer.putInt(strings[i].length).put(strings[i]);
+            } else {
+               buffer.putLong(bits_[i]);
+            }
+         }
+         encoded = buffer.array();
+         encoded_ = encoded;
+         return encoded;
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e.getMessage());
+      } catch (JSONException e) {
+         throw new IllegalStateException("Invalid image tags: " + e.getMessage());
+      }
+   }
+
+   // JSON text of a value, as JSONObject.toString() writes it
+   private static String valueToJSON(Object value) throws JSONException {
+      if (value.equals(null)) {
+         return "null";
+      }
+      if (value instanceof Number) {
+         return numberToString((Number) value);
+      }
+      if (value instanceof Boolean || value instanceof JSONObject
+            || value instanceof JSONArray) {
+         return value.toString();
+      }
+      return quote(value.toString());
+   }
+
+   private void decode(byte[] encoded) throws JSONException {
+      try {
+         ByteBuffer buffer = ByteBuffer.wrap(encoded);
+         int size = buffer.getInt();
+         if (size > keys_.length) {
+            allocate(size);
+         }
+         String[] names = keyNames_;
+         for (int i = 0; i < size; i++) {
+            int id = buffer.getInt();
+            String key;
+            if (id >= 0) {
+               key = names[id];
+            } else {
+               key = readString(buffer);
+            }
+            byte type = buffer.get();
+            if (type == STRING) {
+               setRaw(key, readString(buffer));
+            } else if (type == OBJECT) {
+               setRaw(key, new JSONTokener(readString(buffer)).nextValue());
+            } else {
+               setBits(key, type, buffer.getLong());
+            }
+         }
+      } catch (UnsupportedEncodingException e) {
+         throw new JSONException(e);
+      }
+   }
+
+   private static String readString(ByteBuffer buffer) throws UnsupportedEncodingException {
+      int length = buffer.getInt();
+      String s = new String(buffer.array(), buffer.position(), length, "UTF-8");
+      buffer.position(buffer.position() + length);
+      return s;
+   }
+}
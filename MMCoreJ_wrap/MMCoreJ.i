@@ -634,13 +634,17 @@
    import java.awt.geom.Point2D;
    import java.awt.Rectangle;
    import java.util.ArrayList;
+   import java.util.Iterator;
    import java.util.List;
+   import java.util.concurrent.locks.LockSupport;
 %}
 
 %typemap(javacode) CMMCore %{
    private JSONObject metadataToMap(Metadata md) {
-      JSONObject tags = new JSONObject();
-      for (String key:md.GetKeys()) {
+      StrVector keys = md.GetKeys();
+      // Room for the system state and the tags added by createTaggedImage
+      JSONObject tags = new ImageTags((int) keys.size() + 256);
+      for (String key:keys) {
          try {
             tags.put(key, md.GetSingleTag(key).GetValue());
          } catch (Exception e) {} 
@@ -700,8 +704,11 @@
 
    private TaggedImage createTaggedImage(Object pixels, Metadata md, int cameraChannelIndex) throws java.lang.Exception {
       TaggedImage image = createTaggedImage(pixels, md);
-      JSONObject tags = image.tags;
-      
+      addCameraChannelTags(image.tags, cameraChannelIndex);
+      return image;
+   }
+
+   private void addCameraChannelTags(JSONObject tags, int cameraChannelIndex) throws java.lang.Exception {
       if (!tags.has("CameraChannelIndex")) {
          tags.put("CameraChannelIndex", cameraChannelIndex);
          tags.put("ChannelIndex", cameraChannelIndex);
@@ -713,11 +720,15 @@
             tags.put("Channel",physicalCamera);
          }
       }
-      return image;
    }
 
    private TaggedImage createTaggedImage(Object pixels, Metadata md) throws java.lang.Exception {
       JSONObject tags = metadataToMap(md);
+      addStateTags(tags);
+      return new TaggedImage(pixels, tags);
+   }
+
+   private void addStateTags(JSONObject tags) throws java.lang.Exception {
       PropertySetting setting;
       Configuration config = getSystemStateCache();
       for (int i = 0; i < config.size(); ++i) {
@@ -749,8 +760,6 @@
       try {
          tags.put("Binning", getProperty(getCameraDevice(), "Binning"));
       } catch (Exception ex) {}
-      
-      return new TaggedImage(pixels, tags);	
    }
 
    public TaggedImage getTaggedImage(int cameraChannelIndex) throws java.lang.Exception {
@@ -789,6 +798,106 @@
       return popNextTaggedImage(0);
    }
 
+   /**
+    * Pops up to images.length images from the circular buffer, waiting up
+    * to timeoutMs for the first one if the buffer is empty. The wait ends
+    * early if the sequence acquisition stops.
+    *
+    * The images are tagged as by popNextTaggedImage(), except that the
+    * system state is read once for all of them, so this is much faster
+    * when many images are waiting.
+    *
+    * @param images receives the images, starting at index 0. It can be
+    * reused between calls.
+    * @return the number of images popped, 0 if the wait timed out
+    */
+   public int popNextTaggedImages(TaggedImage[] images, long timeoutMs) throws java.lang.Exception {
+      if (images.length == 0 || !waitForImages(timeoutMs)) {
+         return 0;
+      }
+      int count = (int) Math.min(images.length, getRemainingImageCount());
+      JSONObject stateTags = getStateTags();
+      Metadata md = new Metadata();
+      for (int i = 0; i < count; ++i) {
+         Object pixels = popNextImageMD(0, 0, md);
+         images[i] = createTaggedImage(pixels, md, 0, stateTags);
+      }
+      return count;
+   }
+
+   /**
+    * Returns the tags describing the current system state that tagged
+    * images carry, for use with createTaggedImage(Object, Metadata, int,
+    * JSONObject).
+    */
+   public JSONObject getStateTags() throws java.lang.Exception {
+      JSONObject stateTags = new ImageTags();
+      addStateTags(stateTags);
+      return stateTags;
+   }
+
+   /**
+    * Tags an image obtained with popNextImageMD(), getLastImageMD() or a
+    * similar call like the corresponding TaggedImage methods do, but copies
+    * the system state from stateTags rather than reading it again. This
+    * lets callers that handle many images read the state once, and skip
+    * tagging the images they drop.
+    */
+   public TaggedImage createTaggedImage(Object pixels, Metadata md,
+         int cameraChannelIndex, JSONObject stateTags) throws java.lang.Exception {
+      JSONObject tags = metadataToMap(md);
+      Iterator<String> keys = stateTags.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         tags.put(key, stateTags.opt(key));
+      }
+      addCameraChannelTags(tags, cameraChannelIndex);
+      return new TaggedImage(pixels, tags);
+   }
+
+   /**
+    * Pops up to max images from the circular buffer. See
+    * popNextTaggedImages(TaggedImage[], long).
+    *
+    * @return the images, none if the wait timed out
+    */
+   public List<TaggedImage> popNextTaggedImages(int max, long timeoutMs) throws java.lang.Exception {
+      TaggedImage[] images = new TaggedImage[Math.max(0, max)];
+      int count = popNextTaggedImages(images, timeoutMs);
+      List<TaggedImage> result = new ArrayList<TaggedImage>(count);
+      for (int i = 0; i < count; ++i) {
+         result.add(images[i]);
+      }
+      return result;
+   }
+
+   /**
+    * Waits up to timeoutMs for an image to arrive in the circular buffer.
+    * The wait ends early if the sequence acquisition stops. The core has no
+    * way to signal new images, so this polls, with pauses growing from
+    * 10 us to 1 ms so that fast cameras are served promptly without busy
+    * waiting.
+    *
+    * @return true if an image is waiting
+    */
+   public boolean waitForImages(long timeoutMs) {
+      long deadline = System.nanoTime() + timeoutMs * 1000000L;
+      long pauseNs = 10000;
+      while (getRemainingImageCount() == 0) {
+         if (!isSequenceRunning()) {
+            // The last image may have arrived just before the sequence ended
+            return getRemainingImageCount() > 0;
+         }
+         long remainingNs = deadline - System.nanoTime();
+         if (remainingNs <= 0 || Thread.currentThread().isInterrupted()) {
+            return false;
+         }
+         LockSupport.parkNanos(Math.min(pauseNs, remainingNs));
+         pauseNs = Math.min(2 * pauseNs, 1000000);
+      }
+      return true;
+   }
+
    // convenience functions follow
    
    /*
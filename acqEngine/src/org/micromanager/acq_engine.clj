@@ -31,7 +31,7 @@
     [ij ImagePlus]
     [java.io EOFException] ; abused to indicate canceled burst image collection
     [java.net InetAddress UnknownHostException]
-    [java.util Date UUID]
+    [java.util ArrayDeque Date UUID]
     [java.util.concurrent CountDownLatch LinkedBlockingQueue TimeUnit]
     [mmcorej Configuration Metadata TaggedImage]
     [org.json JSONArray JSONObject]
@@ -381,6 +381,34 @@
   [timeout-ms]
   (unwrap-tagged-image (pop-tagged-image-timeout timeout-ms)))
 
+(defn pop-tagged-images-timeout
+  "Pops up to max-count images at once, waiting up to timeout-ms
+   for the first one."
+  [max-count timeout-ms]
+  (log "waiting for burst images with timeout" timeout-ms "ms")
+  (let [deadline (+ (System/currentTimeMillis) timeout-ms)]
+    (loop []
+      (when (@state :stop)
+        (log "halting image collection due to engine stop")
+        (throw (EOFException. "(Aborted)")))
+      ; The core waits in short slices so that engine stops are noticed
+      (let [images (try (. mmc popNextTaggedImages (int max-count) (long 10))
+                        (catch Exception e nil))]
+        (if (seq images)
+          images
+          (if (< deadline (System/currentTimeMillis))
+            (do
+              (log "halting image collection due to timeout")
+              (throw-exception "Timed out waiting for image to arrive from camera."))
+            (do
+              (when (. mmc isBufferOverflowed)
+                (log "halting image collection due to circular buffer overflow")
+                (throw-exception "Circular buffer overflowed."))
+              ; The core returns at once if the sequence has already stopped
+              (when-not (. mmc isSequenceRunning)
+                (Thread/sleep 1))
+              (recur))))))))
+
 (defn queuify
   "Runs zero-arg function n times on a new thread. Returns
    a queue that will eventually receive n return values.
@@ -403,9 +431,21 @@
               (catch Throwable t nil)))
     queue))
 
+; Images are popped from the circular buffer this many at most at a time,
+; so that a slow pipeline still blocks the popping thread
+(def burst-pop-batch-size 16)
+
 (defn pop-burst-images
   [n timeout-ms]
-  (queuify n 10 #(pop-burst-image timeout-ms)))
+  (let [popped (ArrayDeque.)
+        remaining (atom n)]
+    (queuify n 10
+             #(do (when (.isEmpty popped)
+                    (let [images (pop-tagged-images-timeout
+                                   (min @remaining burst-pop-batch-size) timeout-ms)]
+                      (swap! remaining - (count images))
+                      (.addAll popped images)))
+                  (unwrap-tagged-image (.poll popped))))))
 
 (defn make-multicamera-channel [raw-channel-index camera-channel num-camera-channels]
   (+ camera-channel (* num-camera-channels (or raw-channel-index 0))))
@@ -15,6 +15,7 @@ import mmcorej.StrVector;
 import org.micromanager.api.Autofocus;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.utils.AutofocusBase;
+import org.micromanager.utils.FocusMetrics;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.PropertyItem;
 
@@ -72,6 +73,7 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
     *  Description of the Field
     */
    public double CROP_SIZE = 0.2;
+   private final FocusMetrics focusMetrics_ = new FocusMetrics();
    /**
     *  Description of the Field
     */
@@ -434,6 +436,13 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
        */
       //tPrev = System.currentTimeMillis();
 
+      // Median filter and edges of the central crop, straight from the pixels
+      Object pixels = impro.getPixels();
+      if (FocusMetrics.isSupported(pixels)) {
+         return focusMetrics_.computeEdgeSum(pixels, impro.getWidth(),
+               impro.getHeight(), new Rectangle(sx, sy, width, height), true);
+      }
+
       impro.setRoi(new Rectangle(sx, sy, width, height));
       impro.crop();
       impro.medianFilter();
@@ -32,11 +32,21 @@ import ij.gui.OvalRoi;
 
 import java.awt.Rectangle;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.SwingUtilities;
 
 import mmcorej.CMMCore;
 import mmcorej.Configuration;
+import mmcorej.DoubleVector;
 import mmcorej.TaggedImage;
 
 import org.apache.commons.math.FunctionEvaluationException;
@@ -46,6 +56,7 @@ import org.apache.commons.math.optimization.univariate.BrentOptimizer;
 import org.json.JSONException;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.utils.AutofocusBase;
+import org.micromanager.utils.FocusMetrics;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
@@ -66,11 +77,15 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private static final String EXPOSURE = "Exposure";
    private static final String SHOW_IMAGES = "ShowImages";
    private static final String SCORING_METHOD = "Maximize";
+   private static final String SEARCH_METHOD = "SearchMethod";
    private static final String[] SHOWVALUES = {"Yes", "No"};
    private final static String[] SCORINGMETHODS = {"Edges", "StdDev", "Mean", 
       "NormalizedVariance", "SharpEdges", "Redondo", "Volath", "Volath5", 
       "MedianEdges", "Tenengrad", "FFTBandpass"
    };
+   private final static String[] SEARCHMETHODS = {"Brent", "Sweep"};
+   // Coarse steps on either side of the start position in a sweep
+   private final static int SWEEP_COARSE_STEPS = 5;
    private final static String FFT_UPPER_CUTOFF = "FFTUpperCutoff(%)";
    private final static String FFT_LOWER_CUTOFF = "FFTLowerCutoff(%)";
    private double searchRange = 10;
@@ -80,6 +95,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private double exposure = 100;
    private String show = "No";
    private String scoringMethod = "Edges";
+   private String searchMethod = "Brent";
    private double fft_upper_cutoff = 14;
    private double fft_lower_cutoff = 2.5;
    private int imageCount_;
@@ -87,6 +103,19 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private double startZUm_;
    private boolean liveModeOn_;
    private boolean settingsLoaded_ = false;
+   private final FocusMetrics focusMetrics_ = new FocusMetrics();
+   private String lastTiming_ = "";
+
+   // Scores image N of a sweep while image N + 1 is being acquired
+   private static final ExecutorService scorer_ =
+         Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "OughtaFocus scoring");
+               t.setDaemon(true);
+               return t;
+            }
+         });
 
    public OughtaFocus() {
       super();
@@ -98,6 +127,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       super.createProperty(FFT_UPPER_CUTOFF, NumberUtils.doubleToDisplayString(fft_upper_cutoff));
       super.createProperty(SHOW_IMAGES, show, SHOWVALUES);
       super.createProperty(SCORING_METHOD, scoringMethod, SCORINGMETHODS);
+      super.createProperty(SEARCH_METHOD, searchMethod, SEARCHMETHODS);
       imageCount_ = 0;
    }
 
@@ -116,6 +146,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          fft_upper_cutoff = MathFunctions.clip(0.0, fft_upper_cutoff, 100.0);
          show = getPropertyValue(SHOW_IMAGES);
          scoringMethod = getPropertyValue(SCORING_METHOD);
+         searchMethod = getPropertyValue(SEARCH_METHOD);
 
       } catch (MMException ex) {
          ReportingUtils.logError(ex);
@@ -131,8 +162,24 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
 
    @Override
    public double fullFocus() throws MMException {
+      return runFocus(null);
+   }
+
+   /**
+    * Focuses with the current settings (ROI crop, channel, exposure) and
+    * moves to the best position.
+    * @param sweep the sweep to do, or null for the search method set in
+    * the properties
+    */
+   private double runFocus(SweepParameters sweep) throws MMException {
       startTimeMs_ = System.currentTimeMillis();
       applySettings();
+      if (sweep == null && searchMethod.contentEquals("Sweep")) {
+         double coarseStep = searchRange / (2 * SWEEP_COARSE_STEPS);
+         int numFine = tolerance > 0 ? (int) Math.ceil(coarseStep / tolerance) : 0;
+         sweep = new SweepParameters(coarseStep, SWEEP_COARSE_STEPS, tolerance,
+               numFine);
+      }
       try {
          Rectangle oldROI = app_.getROI();
          CMMCore core = app_.getMMCore();
@@ -160,7 +207,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          double oldExposure = core.getExposure();
          core.setExposure(exposure);
 
-         double z = runAutofocusAlgorithm();
+         double z = sweep == null ? runAutofocusAlgorithm() : runSweep(sweep);
 
          if (cropFactor < 1.0) {
             app_.setROI(oldROI);
@@ -205,6 +252,195 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       return zResult;
    }
 
+   private static class SweepParameters {
+      final double coarseStep;
+      final int numCoarse;
+      final double fineStep;
+      final int numFine;
+
+      SweepParameters(double coarseStep, int numCoarse, double fineStep, int numFine) {
+         this.coarseStep = coarseStep;
+         this.numCoarse = numCoarse;
+         this.fineStep = fineStep;
+         this.numFine = numFine;
+      }
+   }
+
+   /**
+    * Where the time of a sweep goes. Scoring runs in parallel with moving
+    * and acquiring; waiting is the time spent on scores after the last
+    * image was acquired.
+    */
+   private static class SweepTiming {
+      int images;
+      int sequencedImages;
+      long moveNs;
+      long acquireNs;
+      final AtomicLong scoreNs = new AtomicLong();
+      long waitNs;
+
+      @Override
+      public String toString() {
+         return images + " images (" + sequencedImages + " stage sequenced)"
+               + ", move=" + moveNs / 1000000
+               + ", acquire=" + acquireNs / 1000000
+               + ", score=" + scoreNs.get() / 1000000
+               + ", wait for scores=" + waitNs / 1000000 + " ms";
+      }
+   }
+
+   private double runSweep(SweepParameters sweep) throws Exception {
+      CMMCore core = app_.getMMCore();
+      imageCount_ = 0;
+      startZUm_ = core.getPosition(core.getFocusDevice());
+      SweepTiming timing = new SweepTiming();
+      double z = sweep(sweepPositions(startZUm_, sweep.coarseStep, sweep.numCoarse), timing);
+      if (sweep.numFine > 0 && sweep.fineStep > 0) {
+         z = sweep(sweepPositions(z, sweep.fineStep, sweep.numFine), timing);
+      }
+      lastTiming_ = timing.toString();
+      ReportingUtils.logMessage("OughtaFocus sweep: z=" + TextUtils.FMT2.format(z)
+              + ", dz=" + TextUtils.FMT2.format(z - startZUm_)
+              + ", t=" + (System.currentTimeMillis() - startTimeMs_)
+              + ", " + lastTiming_);
+      return z;
+   }
+
+   private static double[] sweepPositions(double center, double step, int numSteps) {
+      double[] positions = new double[2 * numSteps + 1];
+      for (int i = 0; i < positions.length; i++) {
+         positions[i] = center + (i - numSteps) * step;
+      }
+      return positions;
+   }
+
+   /**
+    * Acquires an image at each position and scores it on the scoring thread
+    * while the next one is acquired. Uses a stage sequence, triggered by the
+    * camera, when the focus stage supports one that long.
+    * @return the position with the highest score
+    */
+   private double sweep(double[] positions, SweepTiming timing) throws Exception {
+      CMMCore core = app_.getMMCore();
+      String focusDevice = core.getFocusDevice();
+      List<Future<Double>> scores = new ArrayList<Future<Double>>();
+      try {
+         if (!liveModeOn_ && isSequenceable(core, focusDevice, positions.length)) {
+            acquireSequence(positions, scores, timing);
+         } else {
+            for (double z : positions) {
+               long start = System.nanoTime();
+               setZPosition(z);
+               long moved = System.nanoTime();
+               timing.moveNs += moved - start;
+               scores.add(scorer_.submit(scoreTask(acquireImage(core), timing)));
+               timing.acquireNs += System.nanoTime() - moved;
+               timing.images++;
+            }
+         }
+
+         long waitStart = System.nanoTime();
+         int best = 0;
+         double bestScore = Double.NEGATIVE_INFINITY;
+         for (int i = 0; i < positions.length; i++) {
+            double score = scores.get(i).get();
+            ReportingUtils.logMessage("OughtaFocus: image=" + imageCount_++
+                    + ", z=" + TextUtils.FMT2.format(positions[i])
+                    + ", score=" + TextUtils.FMT2.format(score));
+            if (score > bestScore) {
+               bestScore = score;
+               best = i;
+            }
+         }
+         timing.waitNs += System.nanoTime() - waitStart;
+         return positions[best];
+      } catch (ExecutionException e) {
+         throw new MMException("Unable to compute focus score: " + e.getCause());
+      } finally {
+         for (Future<Double> score : scores) {
+            score.cancel(false);
+         }
+      }
+   }
+
+   private static boolean isSequenceable(CMMCore core, String focusDevice, int length) {
+      try {
+         return core.isStageSequenceable(focusDevice)
+               && length <= core.getStageSequenceMaxLength(focusDevice);
+      } catch (Exception e) {
+         ReportingUtils.logError(e);
+         return false;
+      }
+   }
+
+   private void acquireSequence(double[] positions, List<Future<Double>> scores,
+         SweepTiming timing) throws Exception {
+      CMMCore core = app_.getMMCore();
+      String focusDevice = core.getFocusDevice();
+      long start = System.nanoTime();
+      setZPosition(positions[0]);
+      DoubleVector sequence = new DoubleVector();
+      for (double z : positions) {
+         sequence.add(z);
+      }
+      core.loadStageSequence(focusDevice, sequence);
+      core.startStageSequence(focusDevice);
+      long started = System.nanoTime();
+      timing.moveNs += started - start;
+      try {
+         core.startSequenceAcquisition(positions.length, 0, true);
+         long timeoutMs = (long) core.getExposure() + 10000;
+         for (int i = 0; i < positions.length; i++) {
+            if (!core.waitForImages(timeoutMs)) {
+               throw new MMException("Camera did not send image " + (i + 1)
+                     + " of the stage sequence within " + timeoutMs + "ms");
+            }
+            scores.add(scorer_.submit(scoreTask(core.popNextTaggedImage(), timing)));
+            timing.images++;
+            timing.sequencedImages++;
+         }
+      } finally {
+         if (core.isSequenceRunning()) {
+            core.stopSequenceAcquisition();
+         }
+         core.stopStageSequence(focusDevice);
+         timing.acquireNs += System.nanoTime() - started;
+      }
+   }
+
+   private TaggedImage acquireImage(CMMCore core) throws Exception {
+      if (liveModeOn_) {
+         return core.getLastTaggedImage();
+      }
+      core.waitForDevice(core.getCameraDevice());
+      core.snapImage();
+      final TaggedImage img = core.getTaggedImage();
+      if (show.contentEquals("Yes")) {
+         SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+               app_.displayImage(img);
+            }
+         });
+      }
+      return img;
+   }
+
+   private Callable<Double> scoreTask(final TaggedImage img, final SweepTiming timing) {
+      return new Callable<Double>() {
+         @Override
+         public Double call() throws Exception {
+            long start = System.nanoTime();
+            ImageProcessor proc = makeMonochromeProcessor(app_.getMMCore(),
+                  getMonochromePixels(img));
+            double score = computeScore(proc);
+            timing.scoreNs.addAndGet(System.nanoTime() - start);
+            return score;
+         }
+      };
+   }
+
    private void setZPosition(double z) throws Exception {
       CMMCore core = app_.getMMCore();
       String focusDevice = core.getFocusDevice();
@@ -255,24 +491,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          setZPosition(z);
          long tZ = System.currentTimeMillis() - start;
 
-         TaggedImage img;
-         if (liveModeOn_) {
-            img = core.getLastTaggedImage();
-         } else {
-            core.waitForDevice(core.getCameraDevice());
-            core.snapImage();
-            final TaggedImage img1 = core.getTaggedImage();
-            img = img1;
-            if (show.contentEquals("Yes")) {
-               SwingUtilities.invokeLater(new Runnable() {
-
-                  @Override
-                  public void run() {
-                     app_.displayImage(img1);
-                  }
-               });
-            }
-         }
+         TaggedImage img = acquireImage(core);
          long tI = System.currentTimeMillis() - start - tZ;
          ImageProcessor proc = makeMonochromeProcessor(core, getMonochromePixels(img));
          double score = computeScore(proc);
@@ -299,9 +518,12 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       return imageCount_;
    }
 
+   /**
+    * @return where the time of the last sweep went
+    */
    @Override
    public String getVerboseStatus() {
-      throw new UnsupportedOperationException("Not supported yet.");
+      return lastTiming_;
    }
 
    @Override
@@ -326,9 +548,14 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       return score;
    }
 
+   /**
+    * Sweeps numCoarse steps of coarseStep on either side of the current
+    * position, then numFine steps of fineStep around the best of those, and
+    * moves to the best position found.
+    */
    @Override
    public void focus(double coarseStep, int numCoarse, double fineStep, int numFine) throws MMException {
-      throw new UnsupportedOperationException("Not supported yet.");
+      runFocus(new SweepParameters(coarseStep, numCoarse, fineStep, numFine));
    }
 
    private double computeEdges(ImageProcessor proc) {
@@ -537,8 +764,64 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       }
    }
 
+   /**
+    * Computes the score directly on byte or short pixels with FocusMetrics.
+    * Statistics are taken over the processor's ROI, as getStatistics() does.
+    * @return the score, or null if the scoring method needs ImageJ, which is
+    * also the case for statistics over a non-rectangular ROI
+    */
+   private Double computePixelScore(ImageProcessor proc) {
+      Object pixels = proc.getPixels();
+      int w = proc.getWidth();
+      int h = proc.getHeight();
+      Rectangle roi = proc.getRoi();
+      boolean masked = proc.getMask() != null;
+      if (masked && (scoringMethod.contentEquals("Mean")
+            || scoringMethod.contentEquals("StdDev")
+            || scoringMethod.contentEquals("NormalizedVariance")
+            || scoringMethod.contentEquals("Edges")
+            || scoringMethod.contentEquals("Volath5"))) {
+         return null;
+      }
+      if (scoringMethod.contentEquals("Mean")) {
+         return focusMetrics_.computeMean(pixels, w, h, roi);
+      } else if (scoringMethod.contentEquals("StdDev")) {
+         return focusMetrics_.computeStdDev(pixels, w, h, roi)
+               / focusMetrics_.computeMean(pixels, w, h, roi);
+      } else if (scoringMethod.contentEquals("NormalizedVariance")) {
+         double stdDev = focusMetrics_.computeStdDev(pixels, w, h, roi);
+         return stdDev * stdDev / focusMetrics_.computeMean(pixels, w, h, roi);
+      } else if (scoringMethod.contentEquals("Edges")) {
+         // the edges of the whole image, over the mean of the ROI
+         double meanEdge = focusMetrics_.computeEdgeSum(pixels, w, h, null, false)
+               / ((double) w * h);
+         return meanEdge / focusMetrics_.computeMean(pixels, w, h, roi);
+      } else if (scoringMethod.contentEquals("Redondo")) {
+         return focusMetrics_.computeRedondo(pixels, w, h, null);
+      } else if (scoringMethod.contentEquals("Volath")) {
+         return focusMetrics_.computeVolath(pixels, w, h, null);
+      } else if (scoringMethod.contentEquals("Volath5")) {
+         // the correlation of the whole image, less the mean of the ROI
+         if (!roi.equals(new Rectangle(0, 0, w, h))) {
+            return null;
+         }
+         return focusMetrics_.computeVolath5(pixels, w, h, null);
+      } else if (scoringMethod.contentEquals("MedianEdges")) {
+         return focusMetrics_.computeMedianEdges(pixels, w, h, null);
+      } else if (scoringMethod.contentEquals("Tenengrad")) {
+         return focusMetrics_.computeTenengrad(pixels, w, h, null);
+      }
+      return null;
+   }
+
    @Override
    public double computeScore(final ImageProcessor proc) {
+      if (FocusMetrics.isSupported(proc.getPixels())) {
+         Double score = computePixelScore(proc);
+         if (score != null) {
+            return score;
+         }
+      }
       if (scoringMethod.contentEquals("Mean")) {
          return computeMean(proc);
       } else if (scoringMethod.contentEquals("StdDev")) {
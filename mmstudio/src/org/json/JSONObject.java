@@ -932,7 +932,7 @@ public class JSONObject {
                 Object o = keys.next();
                 sb.append(quote(o.toString()));
                 sb.append(':');
-                sb.append(valueToString(this.myHashMap.get(o)));
+                sb.append(valueToString(this.opt(o.toString())));
             }
             sb.append('}');
             return sb.toString();
@@ -986,7 +986,7 @@ public class JSONObject {
             o = keys.next();
             sb.append(quote(o.toString()));
             sb.append(": ");
-            sb.append(valueToString(this.myHashMap.get(o), indentFactor,
+            sb.append(valueToString(this.opt(o.toString()), indentFactor,
                     indent));
         } else {
             while (keys.hasNext()) {
@@ -1001,7 +1001,7 @@ public class JSONObject {
                 }
                 sb.append(quote(o.toString()));
                 sb.append(": ");
-                sb.append(valueToString(this.myHashMap.get(o), indentFactor,
+                sb.append(valueToString(this.opt(o.toString()), indentFactor,
                         newindent));
             }
             if (sb.length() > 1) {
@@ -1099,7 +1099,7 @@ public class JSONObject {
                 Object k = keys.next();
                 writer.write(quote(k.toString()));
                 writer.write(':');
-                Object v = this.myHashMap.get(k);
+                Object v = this.opt(k.toString());
                 if (v instanceof JSONObject) {
                     ((JSONObject)v).write(writer);
                 } else if (v instanceof JSONArray) {
@@ -25,6 +25,8 @@ package org.micromanager;
 
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
+import org.micromanager.acquisition.ProcessorStack;
+import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
 
 /**
  * Options data for MMStudio.
@@ -35,12 +37,18 @@ public class MMOptions {
    private static final String CLOSE_ON_EXIT = "CloseOnExit";
    private static final String SKIP_CONFIG = "SkipSplashScreen";
    private static final String BUFFSIZE_MB = "bufsize_mb";
+   private static final String RAM_STORAGE_BUDGET_MB = "RamStorageBudgetMB";
+   private static final String PROCESSOR_QUEUE_DEPTH = "ProcessorQueueDepth";
+   private static final String PROCESSOR_THREADS = "ProcessorThreads";
+   private static final String DISPLAY_FPS = "DisplayFPS";
    private static final String DISPLAY_BACKGROUND = "displayBackground";
    private static final String STARTUP_SCRIPT_FILE = "startupScript";
    private static final String AUTORELOAD_DEVICES = "autoreloadDevices"; // No longer used but should not be reused
    private static final String PREF_WINDOW_MAG = "windowMag";
    private static final String MPTIFF_METADATA_FILE = "MakeMetadataFileWithMultipageTiff";
    private static final String MPTIFF_SEPARATE_FILES_FOR_POSITIONS = "SplitXYPostionsInFilesMPTiff";
+   private static final String MPTIFF_WRITING_THREADS = "WritingThreadsMPTiff";
+   private static final String MPTIFF_MEMORY_MAPPED_READING = "MemoryMappedReadingMPTiff";
    private static final String SYNCEXPOSUREMAINANDMDA = "SyncExposureBetweenMainAndMDAWindows";
    private static final String HIDE_MDA_DISPLAY = "HideMDADisplay";
    private static final String FAST_STORAGE = "FastStorage"; // No longer used but should not be reused
@@ -52,11 +60,17 @@ public class MMOptions {
    public boolean doNotAskForConfigFile_;
    public boolean closeOnExit_;
    public int circularBufferSizeMB_;
+   public int ramStorageBudgetMB_;
+   public int processorQueueDepth_;
+   public int processorThreads_;
+   public double displayFPS_;
    public String displayBackground_;
    public String startupScript_;
    public double windowMag_;
    public boolean mpTiffMetadataFile_;
    public boolean mpTiffSeparateFilesForPositions_;
+   public int mpTiffWritingThreads_;
+   public boolean mpTiffMemoryMappedReading_;
    public boolean syncExposureMainAndMDA_;
    public boolean hideMDADisplay_;
    public boolean deleteOldCoreLogs_;
@@ -73,11 +87,17 @@ public class MMOptions {
       boolean is64BitJVM =
          System.getProperty("sun.arch.data.model", "32").equals("64");
       circularBufferSizeMB_ = is64BitJVM ? 250 : 25;
+      ramStorageBudgetMB_ = 0;
+      processorQueueDepth_ = ProcessorStack.DEFAULT_QUEUE_DEPTH;
+      processorThreads_ = 0;
+      displayFPS_ = VirtualAcquisitionDisplay.DEFAULT_DISPLAY_FPS;
       displayBackground_ = "Day";
       startupScript_ = "MMStartup.bsh";
       windowMag_ = 1.0;
       mpTiffMetadataFile_ = false;
       mpTiffSeparateFilesForPositions_ = true;
+      mpTiffWritingThreads_ = 1;
+      mpTiffMemoryMappedReading_ = false;
       syncExposureMainAndMDA_ = false;
       hideMDADisplay_ = false;
       deleteOldCoreLogs_ = false;
@@ -97,11 +117,17 @@ public class MMOptions {
       prefs.putBoolean(SKIP_CONFIG, doNotAskForConfigFile_);
       prefs.putBoolean(CLOSE_ON_EXIT, closeOnExit_);
       prefs.putInt(BUFFSIZE_MB, circularBufferSizeMB_);
+      prefs.putInt(RAM_STORAGE_BUDGET_MB, ramStorageBudgetMB_);
+      prefs.putInt(PROCESSOR_QUEUE_DEPTH, processorQueueDepth_);
+      prefs.putInt(PROCESSOR_THREADS, processorThreads_);
+      prefs.putDouble(DISPLAY_FPS, displayFPS_);
       prefs.put(DISPLAY_BACKGROUND, displayBackground_);
       prefs.put(STARTUP_SCRIPT_FILE, startupScript_);
       prefs.putDouble(PREF_WINDOW_MAG, windowMag_);
       prefs.putBoolean(MPTIFF_METADATA_FILE, mpTiffMetadataFile_);
       prefs.putBoolean(MPTIFF_SEPARATE_FILES_FOR_POSITIONS, mpTiffSeparateFilesForPositions_);
+      prefs.putInt(MPTIFF_WRITING_THREADS, mpTiffWritingThreads_);
+      prefs.putBoolean(MPTIFF_MEMORY_MAPPED_READING, mpTiffMemoryMappedReading_);
       prefs.putBoolean(SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
       prefs.putBoolean(HIDE_MDA_DISPLAY, hideMDADisplay_);
       prefs.putBoolean(DELETE_OLD_CORELOGS, deleteOldCoreLogs_);
@@ -115,11 +141,17 @@ public class MMOptions {
       doNotAskForConfigFile_ = prefs.getBoolean(SKIP_CONFIG, doNotAskForConfigFile_);
       closeOnExit_ = prefs.getBoolean(CLOSE_ON_EXIT, closeOnExit_);
       circularBufferSizeMB_ = prefs.getInt(BUFFSIZE_MB, circularBufferSizeMB_);
+      ramStorageBudgetMB_ = prefs.getInt(RAM_STORAGE_BUDGET_MB, ramStorageBudgetMB_);
+      processorQueueDepth_ = prefs.getInt(PROCESSOR_QUEUE_DEPTH, processorQueueDepth_);
+      processorThreads_ = prefs.getInt(PROCESSOR_THREADS, processorThreads_);
+      displayFPS_ = prefs.getDouble(DISPLAY_FPS, displayFPS_);
       displayBackground_ = prefs.get(DISPLAY_BACKGROUND, displayBackground_);
       startupScript_ = prefs.get(STARTUP_SCRIPT_FILE, startupScript_);
       windowMag_ = prefs.getDouble(PREF_WINDOW_MAG, windowMag_);
       mpTiffMetadataFile_ = prefs.getBoolean(MPTIFF_METADATA_FILE, mpTiffMetadataFile_);
       mpTiffSeparateFilesForPositions_ = prefs.getBoolean(MPTIFF_SEPARATE_FILES_FOR_POSITIONS, mpTiffSeparateFilesForPositions_);
+      mpTiffWritingThreads_ = prefs.getInt(MPTIFF_WRITING_THREADS, mpTiffWritingThreads_);
+      mpTiffMemoryMappedReading_ = prefs.getBoolean(MPTIFF_MEMORY_MAPPED_READING, mpTiffMemoryMappedReading_);
       syncExposureMainAndMDA_ = prefs.getBoolean(SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
       hideMDADisplay_ = prefs.getBoolean(HIDE_MDA_DISPLAY, hideMDADisplay_);
       deleteOldCoreLogs_ =
@@ -730,6 +730,41 @@ public class MMStudio implements ScriptInterface {
    public boolean getSeparateFilesForPositionsMPTiff() {
       return options_.mpTiffSeparateFilesForPositions_;
    }
+
+   public int getMultipageTiffWritingThreads() {
+      return options_.mpTiffWritingThreads_;
+   }
+
+   public boolean getMemoryMappedReadingMPTiff() {
+      return options_.mpTiffMemoryMappedReading_;
+   }
+
+   /**
+    * @return the RAM storage budget in MB, or 0 to choose it automatically
+    */
+   public int getRamStorageBudgetMB() {
+      return options_.ramStorageBudgetMB_;
+   }
+
+   public int getProcessorQueueDepth() {
+      return options_.processorQueueDepth_;
+   }
+
+   /**
+    * @return the number of threads for each stateless image processor, or 0
+    * for one per processor core
+    */
+   public int getProcessorThreads() {
+      return options_.processorThreads_;
+   }
+
+   /**
+    * @return the highest rate at which image windows are redrawn, or 0 for
+    * as fast as they can be painted
+    */
+   public double getTargetDisplayFPS() {
+      return options_.displayFPS_;
+   }
    
    @Override
    public boolean getHideMDADisplayOption() {
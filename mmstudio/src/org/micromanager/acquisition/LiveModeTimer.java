@@ -24,14 +24,16 @@ package org.micromanager.acquisition;
 import ij.gui.ImageWindow;
 
 import java.text.NumberFormat;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import javax.swing.SwingUtilities;
 import mmcorej.CMMCore;
+import mmcorej.Metadata;
 import mmcorej.TaggedImage;
+import org.json.JSONObject;
 import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
 import org.micromanager.MMStudio;
 import org.micromanager.SnapLiveManager;
@@ -41,12 +43,19 @@ import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
 /**
- * This class extends the java swing timer.  It periodically retrieves images
- * from the core and displays them in the live window
+ * Runs live mode: a thread waits for new images in the core's circular
+ * buffer and passes the newest set of them (one image per camera channel)
+ * to the live window, at most at the display rate set in the options.
+ * Images that are superseded before they can be displayed are dropped
+ * without being tagged.
  * 
  * @author Henry Pinkard
  */
 public class LiveModeTimer {
+   // How long the live mode thread blocks on the core at a time, so that it
+   // notices a stop request or a closed window
+   private static final long WAIT_FOR_IMAGES_MS = 100;
+
    private VirtualAcquisitionDisplay win_;
    private CMMCore core_;
    private MMStudio studio_;
@@ -54,92 +63,36 @@ public class LiveModeTimer {
    private int multiChannelCameraNrCh_;
 
    private Thread displayThread_;
+   private Thread liveThread_;
+   private volatile boolean stopRequested_ = false;
 
    private long fpsTimer_; // Guarded by this
    private long fpsCounter_; // Guarded by this
    private long imageNumber_; // Guarded by this
    private long oldImageNumber_; // Guarded by this
+   private long imagesReceived_; // Guarded by this
+   private long imagesDisplayed_; // Guarded by this
+   private long imagesDropped_; // Guarded by this
+   private double latencyMsSum_; // Guarded by this
+   private double maxLatencyMs_; // Guarded by this
+   // Smallest difference seen between our clock and the core's elapsed
+   // time of an image, i.e. our estimate of when the sequence started
+   private double clockOffsetMs_; // Guarded by this
 
    private long fpsInterval_ = 5000;
    private final NumberFormat format_;
-   private boolean running_ = false;
-   private Runnable task_;
+   private volatile boolean running_ = false;
    private final MMStudio.DisplayImageRoutine displayImageRoutine_;
    private LinkedBlockingQueue<TaggedImage> imageQueue_;
    private static int mCamImageCounter_ = 0;
    private boolean multiCam_ = false;
 
-   // Helper class to start and stop timer task atomically.
-   private class TimerController {
-      private Timer timer_;
-      private final Object timerLock_ = new Object();
-      private boolean timerTaskShouldStop_ = true; // Guarded by timerLock_
-      private boolean timerTaskIsBusy_ = false; // Guarded by timerLock_
-      public void start(final Runnable task, long interval) {
-         synchronized (timerLock_) {
-            if (timer_ != null) {
-               return;
-            }
-            timer_ = new Timer("Live mode timer");
-            timerTaskShouldStop_ = false;
-            TimerTask timerTask = new TimerTask() {
-               @Override
-               public void run() {
-                  synchronized (timerLock_) {
-                     if (timerTaskShouldStop_) {
-                        return;
-                     }
-                     timerTaskIsBusy_ = true;
-                  }
-                  try {
-                     task.run();
-                  }
-                  finally {
-                     synchronized (timerLock_) {
-                        timerTaskIsBusy_ = false;
-                        timerLock_.notifyAll();
-                     }
-                  }
-               }
-            };
-            timer_.schedule(timerTask, 0, interval);
-         }
-      }
-
-      public void stop() {
-         synchronized (timerLock_) {
-            if (timer_ == null || timerTaskShouldStop_) {
-               return;
-            }
-
-            timerTaskShouldStop_ = true;
-            timer_.cancel();
-         }
-      }
-
-      public void waitForCompletion() {
-         synchronized (timerLock_) {
-            while (timerTaskIsBusy_) {
-               try {
-                  timerLock_.wait();
-               }
-               catch (InterruptedException e) {
-                  Thread.currentThread().interrupt();
-               }
-            }
-            timer_ = null;
-         }
-      }
-   }
-   private final TimerController timerController_ = new TimerController();
-
    /**
     * The LivemodeTimer constructor defines a DisplayImageRoutine that 
     * synchronizes image display with the "paint" function (currently execute
     * by the ImageCanvas of ImageJ).  
     * 
-    * The multiCamLiveTask needs extra synchronization at this point.
-    * The multiCamLiveTask generates tagged images in groups of
+    * The live mode thread generates tagged images in groups of
     * multiChannelCameraNrCh_, however, we only want to update
     * the display (which is costly) when we have the whole group.
     */
@@ -171,6 +124,7 @@ public class LiveModeTimer {
                   if (mCamImageCounter_ < multiChannelCameraNrCh_) {
                      studio_.normalizeTags(ti);
                      studio_.addImage(SnapLiveManager.SIMPLE_ACQ, ti, false, false);
+                     imageDisplayed(ti.tags);
                      return;
                   } else { // completes the set
                      mCamImageCounter_ = 0;
@@ -184,7 +138,10 @@ public class LiveModeTimer {
                   studio_.normalizeTags(ti);
                   studio_.addImage(SnapLiveManager.SIMPLE_ACQ, ti, true, true);
                   studio_.updateLineProfile();
+                  imageDisplayed(ti.tags);
                   updateFPS();
+               } else {
+                  imagesDropped(1);
                }
             } catch (MMScriptException e) {
                ReportingUtils.logError(e);
@@ -194,8 +151,8 @@ public class LiveModeTimer {
    }
 
    /**
-    * Determines the optimum interval for the live mode timer task to happen
-    * Also sets variable fpsInterval_
+    * Sets the interval between updates of the frame rates (fpsInterval_)
+    * @return the time it takes the camera to acquire an image
     */
    private long getInterval() {
       double interval = 20;
@@ -216,20 +173,13 @@ public class LiveModeTimer {
     */
    private void setType() {
       multiChannelCameraNrCh_ = (int) core_.getNumberOfCameraChannels();
-      if (multiChannelCameraNrCh_ == 1) {
-         task_ = singleCameraLiveTask();
-         multiCam_ = false;
-      } else {
-         task_ = multiCamLiveTask();
-         multiCam_ = true;
-      }
+      multiCam_ = multiChannelCameraNrCh_ > 1;
    }
 
    public boolean isRunning() {
       return running_;
    }
 
-   @SuppressWarnings("SleepWhileInLoop")
    public void begin() throws Exception {
       if(running_) {
          return;
@@ -247,15 +197,9 @@ public class LiveModeTimer {
       long period = getInterval();
 
       // Wait for first image to create ImageWindow, so that we can be sure about image size
-      long start = System.currentTimeMillis();
-      long now = start;
       // Give 10s extra for the camera to transfer the image to us.
       long timeout = period + 10000;
-      while (core_.getRemainingImageCount() == 0 && (now - start < timeout) ) {
-         now = System.currentTimeMillis();
-         Thread.sleep(5);
-      }
-      if (now - start >= timeout) {
+      if (!core_.waitForImages(timeout)) {
          throw new Exception("Camera did not send image within " + timeout + "ms");
       }
 
@@ -269,21 +213,27 @@ public class LiveModeTimer {
       synchronized (this) {
          fpsCounter_ = 0;
          fpsTimer_ = System.nanoTime();
-         imageNumber_ = firstImageSequenceNumber;
-         oldImageNumber_ = firstImageSequenceNumber;
+         // The first image is still in the buffer and will be shown again
+         imageNumber_ = firstImageSequenceNumber - 1;
+         oldImageNumber_ = imageNumber_;
+         imagesReceived_ = 0;
+         imagesDisplayed_ = 0;
+         imagesDropped_ = 0;
+         latencyMsSum_ = 0;
+         maxLatencyMs_ = 0;
+         clockOffsetMs_ = Double.MAX_VALUE;
       }
 
       imageQueue_ = new LinkedBlockingQueue<TaggedImage>(10);
-      // XXX The logic here is very weird. We add this first image only if we
-      // are using a single camera, because the single camera timer code checks
-      // and eliminates duplicates of the same frame. For multi camera, we do
-      // not add the image, since no checks for duplicates are performed
-      // (which is a bug that needs to be fixed).
-      if (!multiCam_) {
-         imageQueue_.put(timg);
-      }
-
-      timerController_.start(task_, period);
+      mCamImageCounter_ = 0;
+      stopRequested_ = false;
+      liveThread_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            runLiveMode();
+         }
+      }, "Live mode");
+      liveThread_.start();
 
       win_.getImagePlus().getWindow().toFront();
       running_ = true;
@@ -300,10 +250,10 @@ public class LiveModeTimer {
             (firstAttempt ? "first" : "second") + " attempt");
 
       // To safely shut down live mode, we need to stop (1) image acquisition,
-      // (2) transfer of images from the Core to image queue (live mode timer),
-      // and (3) transfer of images from the image processor output to the
-      // display (display thread). Furthermore, we need to wait for all of
-      // these to complete, so that whatever comes next (e.g. MDA) does not
+      // (2) transfer of images from the Core to image queue (live mode
+      // thread), and (3) transfer of images from the image processor output
+      // to the display (display thread). Furthermore, we need to wait for all
+      // of these to complete, so that whatever comes next (e.g. MDA) does not
       // see any resources in an inconsistent or busy state.
 
       // (1) Stop image acquisition (with up to one retry, FWIW)
@@ -329,16 +279,20 @@ public class LiveModeTimer {
       }
 
       // (2) Stop transfering images from Core to image queue
-      // Indicate end of image stream by sending POISON. Note that POISON might
-      // be enqueued before the final image (since we have not yet waited for
-      // the timer to finish), but that is not a problem because the queue
-      // simply gets discarded.
-      timerController_.stop();
-      // Note: This will block if downstream (image processors and display
-      // thread) do not consume images.
-      ReportingUtils.logMessage("Waiting for timer to stop");
-      timerController_.waitForCompletion();
-      ReportingUtils.logMessage("Finished waiting for timer to stop");
+      stopRequested_ = true;
+      if (liveThread_ != null) {
+         // Note: This will block if downstream (image processors and display
+         // thread) do not consume images.
+         ReportingUtils.logMessage("Waiting for live mode thread to stop");
+         try {
+            liveThread_.join();
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         ReportingUtils.logMessage("Finished waiting for live mode thread to stop");
+         liveThread_ = null;
+      }
 
       // Now nobody is enqueuing images to imageQueue_, so we can be sure
       // that the POISON we enqueue will not be followed by any images.
@@ -366,9 +320,168 @@ public class LiveModeTimer {
          }
          ReportingUtils.logMessage("Finished waiting for live mode display thread");
          displayThread_ = null;
+         ReportingUtils.logMessage("Live mode: " + getStatistics());
       }
    }
 
+   /**
+    * Body of the live mode thread. Blocks until the core has new images,
+    * waits until it is time for the next display update, and then copies
+    * only the newest waiting image of each camera channel out of the
+    * circular buffer and clears the rest. Those are tagged and sent to the
+    * display, as a complete set. Images that were never displayed are
+    * counted from the gaps in the camera's image numbers.
+    */
+   private void runLiveMode() {
+      final int numChannels = multiChannelCameraNrCh_;
+      final String camera = core_.getCameraDevice();
+      Object[] newestPixels = new Object[numChannels];
+      Metadata[] newestMetadata = new Metadata[numChannels];
+      for (int i = 0; i < numChannels; ++i) {
+         newestMetadata[i] = new Metadata();
+      }
+      Metadata md = new Metadata();
+      long[] lastImageNumbers = new long[numChannels];
+      Arrays.fill(lastImageNumbers, -1);
+      boolean[] found = new boolean[numChannels];
+      int numNewest = 0;
+      long nextDisplayNanos = System.nanoTime();
+
+      while (!stopRequested_) {
+         if (win_.windowClosed() ||
+               (multiCam_ && !studio_.acquisitionExists(SnapLiveManager.SIMPLE_ACQ))) {
+            //check is user closed window             
+            SwingUtilities.invokeLater(new Runnable() {
+               @Override public void run() { snapLiveManager_.setLiveMode(false); }
+            });
+            return;
+         }
+         try {
+            if (!core_.waitForImages(WAIT_FOR_IMAGES_MS)) {
+               if (!core_.isSequenceRunning()) {
+                  // Stopping; waitForImages() no longer blocks
+                  Thread.sleep(WAIT_FOR_IMAGES_MS);
+               }
+               continue;
+            }
+            // Images arriving until it is time to display supersede the
+            // ones that are waiting
+            long waitNanos = nextDisplayNanos - System.nanoTime();
+            if (waitNanos > 0) {
+               TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+
+            // Newest first, until every channel has an image
+            long remaining = core_.getRemainingImageCount();
+            Arrays.fill(found, false);
+            int numFound = 0;
+            long received = 0;
+            long dropped = 0;
+            for (long n = 0; n < remaining && numFound < numChannels; ++n) {
+               Object pixels = core_.getNBeforeLastImageMD(n, md);
+               int channel = getCameraChannelIndex(md, camera, numChannels);
+               if (found[channel]) {
+                  continue;
+               }
+               found[channel] = true;
+               numFound++;
+               long imageNumber = getLongTag(md, "ImageNumber", -1);
+               if (imageNumber >= 0 && lastImageNumbers[channel] >= 0 &&
+                     imageNumber > lastImageNumbers[channel]) {
+                  // Images since the last one we kept were superseded,
+                  // either in the buffer or before we got to them
+                  received += imageNumber - lastImageNumbers[channel];
+                  dropped += imageNumber - lastImageNumbers[channel] - 1;
+               } else {
+                  received++;
+               }
+               lastImageNumbers[channel] = imageNumber;
+               if (newestPixels[channel] != null) {
+                  dropped++;
+               } else {
+                  numNewest++;
+               }
+               newestPixels[channel] = pixels;
+               Metadata swap = newestMetadata[channel];
+               newestMetadata[channel] = md;
+               md = swap;
+            }
+            // Discards the older images without copying them
+            core_.clearCircularBuffer();
+            if (remaining > received) {
+               // Images without numbers (or the first ones) are counted
+               // from what was in the buffer
+               dropped += remaining - received;
+               received = remaining;
+            }
+            imagesReceived(received, dropped);
+            if (numNewest < numChannels) {
+               // Wait for the rest of the set
+               continue;
+            }
+
+            JSONObject stateTags = core_.getStateTags();
+            for (int channel = 0; channel < numChannels; ++channel) {
+               TaggedImage ti = core_.createTaggedImage(newestPixels[channel],
+                     newestMetadata[channel], channel, stateTags);
+               if (multiCam_ && ti.tags.has(camera + "-CameraChannelName")) {
+                  MDUtils.setChannelName(ti.tags,
+                        ti.tags.getString(camera + "-CameraChannelName"));
+                  MDUtils.setChannelIndex(ti.tags, channel);
+               }
+               if (channel == 0) {
+                  setImageNumber(MDUtils.getSequenceNumber(ti.tags));
+               }
+               updateClockOffset(ti.tags);
+               imageQueue_.put(ti);
+               newestPixels[channel] = null;
+            }
+            numNewest = 0;
+            nextDisplayNanos = System.nanoTime() + getDisplayPeriodNanos();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         } catch (final Exception ex) {
+            if (stopRequested_) {
+               return;
+            }
+            ReportingUtils.logMessage("Stopping live mode because of error...");
+            SwingUtilities.invokeLater(new Runnable() {
+               @Override public void run() {
+                  snapLiveManager_.setLiveMode(false);
+                  ReportingUtils.showError(ex);
+               }
+            });
+            return;
+         }
+      }
+   }
+
+   private long getDisplayPeriodNanos() {
+      double fps = studio_.getTargetDisplayFPS();
+      return fps > 0 ? (long) (1e9 / fps) : 0;
+   }
+
+   private static int getCameraChannelIndex(Metadata md, String camera,
+         int numChannels) {
+      long index = getLongTag(md, camera + "-CameraChannelIndex", -1);
+      if (index < 0) {
+         index = getLongTag(md, "CameraChannelIndex", 0);
+      }
+      return (int) Math.max(0, Math.min(numChannels - 1, index));
+   }
+
+   private static long getLongTag(Metadata md, String key, long defaultValue) {
+      try {
+         if (md.HasTag(key)) {
+            return Long.parseLong(md.GetSingleTag(key).GetValue().trim());
+         }
+      } catch (Exception e) {
+         // Missing or not a number
+      }
+      return defaultValue;
+   }
+
    /**
     * Keep track of the last imagenumber, added by the circular buffer
     * that we have seen here
@@ -385,6 +498,86 @@ public class LiveModeTimer {
       return false;
    }
 
+   private synchronized void imagesReceived(long count, long dropped) {
+      imagesReceived_ += count;
+      imagesDropped_ += dropped;
+   }
+
+   private synchronized void imagesDropped(long count) {
+      imagesDropped_ += count;
+   }
+
+   /**
+    * The core stamps images with the time since the sequence started; the
+    * smallest difference to our clock is our best estimate of that start.
+    */
+   private synchronized void updateClockOffset(JSONObject tags) {
+      if (MDUtils.hasElapsedTimeMs(tags)) {
+         try {
+            double offset = System.currentTimeMillis() - MDUtils.getElapsedTimeMs(tags);
+            clockOffsetMs_ = Math.min(clockOffsetMs_, offset);
+         } catch (Exception e) {
+            // No usable time stamp
+         }
+      }
+   }
+
+   /**
+    * Counts an image handed to the live window, and the time since the core
+    * received it.
+    */
+   private synchronized void imageDisplayed(JSONObject tags) {
+      imagesDisplayed_++;
+      if (clockOffsetMs_ != Double.MAX_VALUE && MDUtils.hasElapsedTimeMs(tags)) {
+         try {
+            double latency = System.currentTimeMillis() - clockOffsetMs_ -
+                  MDUtils.getElapsedTimeMs(tags);
+            latencyMsSum_ += latency;
+            maxLatencyMs_ = Math.max(maxLatencyMs_, latency);
+         } catch (Exception e) {
+            // No usable time stamp
+         }
+      }
+   }
+
+   /**
+    * @return the number of images taken from the core since live mode
+    * started
+    */
+   public synchronized long getImagesReceived() {
+      return imagesReceived_;
+   }
+
+   /**
+    * @return the number of images handed to the live window
+    */
+   public synchronized long getImagesDisplayed() {
+      return imagesDisplayed_;
+   }
+
+   /**
+    * @return the number of images that were not displayed because newer
+    * ones arrived first, including images the circular buffer overwrote
+    */
+   public synchronized long getImagesDropped() {
+      return imagesDropped_;
+   }
+
+   /**
+    * @return the mean time from an image entering the circular buffer until
+    * it is handed to the live window
+    */
+   public synchronized double getMeanLatencyMs() {
+      return imagesDisplayed_ == 0 ? 0 : latencyMsSum_ / imagesDisplayed_;
+   }
+
+   public synchronized String getStatistics() {
+      return imagesReceived_ + " images received, " + imagesDisplayed_ +
+            " displayed, " + imagesDropped_ + " dropped, " +
+            format_.format(getMeanLatencyMs()) + " ms mean latency (" +
+            format_.format(maxLatencyMs_) + " ms max)";
+   }
+
    /**
     * Updates the fps timer (how fast does the camera pump images into the 
     * circular buffer) and display fps (how fast do we display the images)
@@ -405,7 +598,9 @@ public class LiveModeTimer {
             double fps = fpsCounter_ / d;
             double dfps = (imageNumber_ - oldImageNumber_) / d;
             win_.displayStatusLine("fps: " + format_.format(dfps) +
-                    ", display fps: " + format_.format(fps));
+                    ", display fps: " + format_.format(fps) +
+                    ", dropped: " + imagesDropped_ +
+                    ", latency: " + format_.format(getMeanLatencyMs()) + " ms");
             fpsCounter_ = 0;
             fpsTimer_ = now;
             oldImageNumber_ = imageNumber_;
@@ -414,132 +609,4 @@ public class LiveModeTimer {
          ReportingUtils.logError(ex);
       }
    }
-
-   /**
-    * Task executed to display live images when using a single camera
-    * 
-    * @return 
-    */
-   private Runnable singleCameraLiveTask() {
-      return new Runnable() {
-         @Override
-         public void run() {
-            if (core_.getRemainingImageCount() == 0) {
-               return;
-            }
-            if (win_.windowClosed()) //check is user closed window             
-            {
-               SwingUtilities.invokeLater(new Runnable() {
-                  @Override public void run() { snapLiveManager_.setLiveMode(false); }
-               });
-            } else {
-               try {
-                  // Allow some time for circular buffer to have an image.
-                  TaggedImage ti = null;
-                  long start = System.currentTimeMillis();
-                  while (ti == null) {
-                     try {
-                        ti = core_.getLastTaggedImage();
-                     } catch (Exception e) {
-                        if (!e.getMessage().equals("Circular buffer is empty.")) {
-                           throw e;
-                        }
-                     }
-                     // if we time out, have the function throw the error so that we can exit
-                     if (System.currentTimeMillis() > 20 * fpsInterval_ + start) {
-                        ti = core_.getLastTaggedImage();
-                     }
-                  }
-
-                  // if we have already shown this image, do not do it again.
-                  long imageNumber = MDUtils.getSequenceNumber(ti.tags);
-                  if (setImageNumber(imageNumber)) {
-                     imageQueue_.put(ti);
-                  }
-               } catch (final Exception ex) {
-                  ReportingUtils.logMessage("Stopping live mode because of error...");
-                  SwingUtilities.invokeLater(new Runnable() {
-                     @Override public void run() {
-                        snapLiveManager_.setLiveMode(false);
-                        ReportingUtils.showError(ex);
-                     }
-                  });
-               }
-            }
-         }
-      };
-   }
-
-   
-   private Runnable multiCamLiveTask() {
-      return new Runnable() {
-         @Override
-         public void run() {
-            if (core_.getRemainingImageCount() == 0) {
-               return;
-            }
-            if (win_.windowClosed() || !studio_.acquisitionExists(SnapLiveManager.SIMPLE_ACQ)) {
-               SwingUtilities.invokeLater(new Runnable() {
-                  @Override public void run() { snapLiveManager_.setLiveMode(false); }
-               });
-            } else {
-               try {
-                  String camera = core_.getCameraDevice();
-                  Set<String> cameraChannelsAcquired = new HashSet<String>();
-                  for (int i = 0; i < 2 * multiChannelCameraNrCh_; ++i) {
-                     // Allow some time for circular buffer to have an image.
-                     TaggedImage ti = null;
-                     long start = System.currentTimeMillis();
-                     while (ti == null) {
-                        try {
-                           ti = core_.getNBeforeLastTaggedImage(i);
-                        } catch (Exception e) {
-                           if (!e.getMessage().equals("Circular buffer is empty.")) {
-                              throw e;
-                           }
-                        }
-                        // if we time out, have the function throw the error so that we can exit
-                        if (System.currentTimeMillis() > 20 * fpsInterval_ + start) {
-                           ti = core_.getNBeforeLastTaggedImage(i);
-                        }
-                     }
-
-                     String channelName;
-                     if (ti.tags.has(camera + "-CameraChannelName")) {
-                        channelName = ti.tags.getString(camera + "-CameraChannelName");
-                        if (!cameraChannelsAcquired.contains(channelName)) {
-                           MDUtils.setChannelName(ti.tags, channelName);
-                           int ccIndex = ti.tags.getInt(camera + "-CameraChannelIndex");
-                           MDUtils.setChannelIndex(ti.tags, ccIndex);
-                           if (ccIndex == 0) {
-                              // XXX We do keep track of the image number, but
-                              // we are currently ignoring the check for new
-                              // images here (see the single camera version).
-                              // When fixing this, make sure to handle the
-                              // first frames correctly, even for very slow
-                              // acquisitions (see begin()).
-                              setImageNumber(MDUtils.getSequenceNumber(ti.tags));
-                           }
-                           imageQueue_.put(ti);
-                           cameraChannelsAcquired.add(channelName);
-                        }
-                        if (cameraChannelsAcquired.size() == multiChannelCameraNrCh_) {
-                           break;
-                        }
-                     }
-                  }
-               } catch (final Exception exc) {
-                  ReportingUtils.logMessage("Stopping live mode because of error...");
-                  SwingUtilities.invokeLater(new Runnable() {
-                     @Override public void run() {
-                        snapLiveManager_.setLiveMode(false);
-                        ReportingUtils.showError(exc);
-                     }
-                  });
-               }
-            }
-         }
-      };
-   }
-
 }
@@ -250,7 +250,6 @@ public class MMImageCache implements ImageCache {
    }
 
    public JSONObject getImageTags(int channel, int slice, int frame, int position) {
-      String label = MDUtils.generateLabel(channel, slice, frame, position);
       JSONObject tags = null;
       if (tags == null) {
          tags = imageStorage_.getImageTags(channel, slice, frame, position);
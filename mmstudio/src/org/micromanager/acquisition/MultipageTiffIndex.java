@@ -0,0 +1,406 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MultipageTiffIndex.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import org.micromanager.api.ImageCoordinateIndex;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Binary sidecar index of a finished multipage TIFF dataset, written next to
+ * the .tif files when the dataset is finished.
+ *
+ * For every image it holds the (channel, slice, frame, position) coordinates
+ * and where the image lives: the file, the offsets of its IFD, pixels and
+ * metadata, and the pixel and metadata lengths. Entries are fixed size and
+ * sorted by coordinates, so the file is memory mapped on open and looked up
+ * by binary search; opening a dataset no longer needs to read the index map
+ * of every file, let alone walk the IFDs of a file whose index map is
+ * damaged.
+ *
+ * Layout (big endian):
+ * header: magic, version, number of files, number of entries, last frame
+ * file table: for each file, name length, UTF-8 name, file length
+ * entries (aligned to 8 bytes): channel, slice, frame, position, file id,
+ * metadata length, IFD offset, pixel offset, metadata offset, pixel length,
+ * padding
+ *
+ * The index is only trusted if every file it lists still has the recorded
+ * length, and no other .tif file is in the directory.
+ */
+final class MultipageTiffIndex {
+   public static final String FILE_NAME = "MMStack_index.bin";
+
+   private static final int MAGIC = 0x4d4d4958; // "MMIX"
+   private static final int VERSION = 1;
+   private static final int HEADER_SIZE = 20;
+   private static final int ENTRY_SIZE = 56;
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   private final String[] fileNames_;
+   private final ByteBuffer entries_;
+   private final int numEntries_;
+   private final int lastFrame_;
+
+   private MultipageTiffIndex(String[] fileNames, ByteBuffer entries,
+         int numEntries, int lastFrame) {
+      fileNames_ = fileNames;
+      entries_ = entries;
+      numEntries_ = numEntries;
+      lastFrame_ = lastFrame;
+   }
+
+   /**
+    * Map the index of the dataset in the given directory.
+    * @return null if there is no index, or if it doesn't match the files
+    * in the directory (e.g. a file was added, removed or modified)
+    */
+   public static MultipageTiffIndex open(File dir) {
+      File indexFile = new File(dir, FILE_NAME);
+      if (!indexFile.isFile()) {
+         return null;
+      }
+      RandomAccessFile raFile = null;
+      try {
+         raFile = new RandomAccessFile(indexFile, "r");
+         FileChannel channel = raFile.getChannel();
+         //The mapping remains valid once the channel is closed
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                 || buffer.getInt(4) != VERSION) {
+            ReportingUtils.logMessage("Ignoring unrecognized index file " + indexFile);
+            return null;
+         }
+         int numFiles = buffer.getInt(8);
+         int numEntries = buffer.getInt(12);
+         int lastFrame = buffer.getInt(16);
+
+         String[] fileNames = new String[numFiles];
+         Set<String> names = new HashSet<String>();
+         int position = HEADER_SIZE;
+         for (int i = 0; i < numFiles; i++) {
+            int nameLength = buffer.getInt(position);
+            byte[] name = new byte[nameLength];
+            buffer.position(position + 4);
+            buffer.get(name);
+            fileNames[i] = new String(name, "UTF-8");
+            long length = buffer.getLong(position + 4 + nameLength);
+            position += 4 + nameLength + 8;
+            if (new File(dir, fileNames[i]).length() != length) {
+               ReportingUtils.logMessage("Index file out of date: " + fileNames[i] + " has changed");
+               return null;
+            }
+            names.add(fileNames[i]);
+         }
+         for (File f : dir.listFiles()) {
+            String name = f.getName();
+            if ((name.endsWith(".tif") || name.endsWith(".TIF")) && !names.contains(name)) {
+               ReportingUtils.logMessage("Index file out of date: " + name + " is not in it");
+               return null;
+            }
+         }
+         position = align(position);
+         if (buffer.capacity() != position + (long) numEntries * ENTRY_SIZE) {
+            ReportingUtils.logMessage("Ignoring truncated index file " + indexFile);
+            return null;
+         }
+         buffer.position(position);
+         ByteBuffer entries = buffer.slice();
+         return new MultipageTiffIndex(fileNames, entries, numEntries, lastFrame);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't read index file " + indexFile);
+         return null;
+      } finally {
+         if (raFile != null) {
+            try {
+               raFile.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+         }
+      }
+   }
+
+   private static int align(int position) {
+      return (position + 7) & ~7;
+   }
+
+   public int getNumFiles() {
+      return fileNames_.length;
+   }
+
+   public String getFileName(int fileId) {
+      return fileNames_[fileId];
+   }
+
+   public int getNumEntries() {
+      return numEntries_;
+   }
+
+   public int getLastFrame() {
+      return lastFrame_;
+   }
+
+   /**
+    * @return the entry of the image with the given coordinates, or -1
+    */
+   public int find(int channel, int slice, int frame, int position) {
+      int low = 0;
+      int high = numEntries_ - 1;
+      while (low <= high) {
+         int mid = (low + high) >>> 1;
+         int cmp = compare(mid, channel, slice, frame, position);
+         if (cmp < 0) {
+            low = mid + 1;
+         } else if (cmp > 0) {
+            high = mid - 1;
+         } else {
+            return mid;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * @return the entry of the image with the given ImageCoordinateIndex key,
+    * or -1
+    */
+   public int find(long key) {
+      return find(ImageCoordinateIndex.getChannel(key), ImageCoordinateIndex.getSlice(key),
+              ImageCoordinateIndex.getFrame(key), ImageCoordinateIndex.getPosition(key));
+   }
+
+   //Entries are sorted by position, then frame, slice and channel
+   private int compare(int entry, int channel, int slice, int frame, int position) {
+      int base = entry * ENTRY_SIZE;
+      int cmp = compareInts(entries_.getInt(base + 12), position);
+      if (cmp == 0) {
+         cmp = compareInts(entries_.getInt(base + 8), frame);
+      }
+      if (cmp == 0) {
+         cmp = compareInts(entries_.getInt(base + 4), slice);
+      }
+      if (cmp == 0) {
+         cmp = compareInts(entries_.getInt(base), channel);
+      }
+      return cmp;
+   }
+
+   private static int compareInts(int a, int b) {
+      return a < b ? -1 : (a == b ? 0 : 1);
+   }
+
+   public int getChannel(int entry) {
+      return entries_.getInt(entry * ENTRY_SIZE);
+   }
+
+   public int getSlice(int entry) {
+      return entries_.getInt(entry * ENTRY_SIZE + 4);
+   }
+
+   public int getFrame(int entry) {
+      return entries_.getInt(entry * ENTRY_SIZE + 8);
+   }
+
+   public int getPosition(int entry) {
+      return entries_.getInt(entry * ENTRY_SIZE + 12);
+   }
+
+   /**
+    * @return the ImageCoordinateIndex key of an entry
+    */
+   public long getKey(int entry) {
+      return ImageCoordinateIndex.pack(getChannel(entry), getSlice(entry),
+              getFrame(entry), getPosition(entry));
+   }
+
+   public int getFileId(int entry) {
+      return entries_.getInt(entry * ENTRY_SIZE + 16);
+   }
+
+   public int getMetadataLength(int entry) {
+      return entries_.getInt(entry * ENTRY_SIZE + 20);
+   }
+
+   public long getIFDOffset(int entry) {
+      return entries_.getLong(entry * ENTRY_SIZE + 24);
+   }
+
+   public long getPixelOffset(int entry) {
+      return entries_.getLong(entry * ENTRY_SIZE + 32);
+   }
+
+   public long getMetadataOffset(int entry) {
+      return entries_.getLong(entry * ENTRY_SIZE + 40);
+   }
+
+   public int getPixelLength(int entry) {
+      return entries_.getInt(entry * ENTRY_SIZE + 48);
+   }
+
+   /**
+    * Accumulates the locations of the images as they are written, in
+    * primitive arrays. Entries for a label that was already added replace
+    * the earlier ones, as in the index map of the files.
+    */
+   static final class Builder {
+      private final HashMap<String, Integer> fileIds_ = new HashMap<String, Integer>();
+      private int[] ints_ = new int[7 * 1024];
+      private long[] longs_ = new long[3 * 1024];
+      private int size_ = 0;
+
+      public synchronized void add(String fileName, long key, long ifdOffset,
+              long pixelOffset, int pixelLength, long mdOffset, int mdLength) {
+         Integer fileId = fileIds_.get(fileName);
+         if (fileId == null) {
+            fileId = fileIds_.size();
+            fileIds_.put(fileName, fileId);
+         }
+         if (size_ * 7 == ints_.length) {
+            ints_ = Arrays.copyOf(ints_, ints_.length * 2);
+            longs_ = Arrays.copyOf(longs_, longs_.length * 2);
+         }
+         ints_[size_ * 7] = ImageCoordinateIndex.getChannel(key);
+         ints_[size_ * 7 + 1] = ImageCoordinateIndex.getSlice(key);
+         ints_[size_ * 7 + 2] = ImageCoordinateIndex.getFrame(key);
+         ints_[size_ * 7 + 3] = ImageCoordinateIndex.getPosition(key);
+         ints_[size_ * 7 + 4] = fileId;
+         ints_[size_ * 7 + 5] = mdLength;
+         ints_[size_ * 7 + 6] = pixelLength;
+         longs_[size_ * 3] = ifdOffset;
+         longs_[size_ * 3 + 1] = pixelOffset;
+         longs_[size_ * 3 + 2] = mdOffset;
+         size_++;
+      }
+
+      /**
+       * Write the index file. Must be called once all files of the dataset
+       * have been written and truncated to their final length.
+       */
+      public synchronized void write(File dir) throws IOException {
+         //Sort by coordinates, keeping the last entry for each (the sort is stable)
+         Integer[] order = new Integer[size_];
+         for (int i = 0; i < size_; i++) {
+            order[i] = i;
+         }
+         Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+               for (int i = 3; i >= 0; i--) {
+                  int cmp = compareInts(ints_[a * 7 + i], ints_[b * 7 + i]);
+                  if (cmp != 0) {
+                     return cmp;
+                  }
+               }
+               return 0;
+            }
+         });
+         int numUnique = 0;
+         for (int i = 0; i < size_; i++) {
+            if (i + 1 < size_ && sameCoordinates(order[i], order[i + 1])) {
+               order[i] = null;
+            } else {
+               numUnique++;
+            }
+         }
+
+         String[] fileNames = new String[fileIds_.size()];
+         for (String name : fileIds_.keySet()) {
+            fileNames[fileIds_.get(name)] = name;
+         }
+         byte[][] nameBytes = new byte[fileNames.length][];
+         int tableSize = 0;
+         for (int i = 0; i < fileNames.length; i++) {
+            nameBytes[i] = fileNames[i].getBytes(UTF_8.name());
+            tableSize += 4 + nameBytes[i].length + 8;
+         }
+         int entriesStart = align(HEADER_SIZE + tableSize);
+
+         int lastFrame = -1;
+         ByteBuffer buffer = ByteBuffer.allocate(entriesStart + numUnique * ENTRY_SIZE);
+         int position = HEADER_SIZE;
+         for (int i = 0; i < fileNames.length; i++) {
+            buffer.putInt(position, nameBytes[i].length);
+            buffer.position(position + 4);
+            buffer.put(nameBytes[i]);
+            buffer.putLong(position + 4 + nameBytes[i].length,
+                    new File(dir, fileNames[i]).length());
+            position += 4 + nameBytes[i].length + 8;
+         }
+         position = entriesStart;
+         for (Integer entry : order) {
+            if (entry == null) {
+               continue;
+            }
+            for (int i = 0; i < 6; i++) {
+               buffer.putInt(position + 4 * i, ints_[entry * 7 + i]);
+            }
+            buffer.putLong(position + 24, longs_[entry * 3]);
+            buffer.putLong(position + 32, longs_[entry * 3 + 1]);
+            buffer.putLong(position + 40, longs_[entry * 3 + 2]);
+            buffer.putInt(position + 48, ints_[entry * 7 + 6]);
+            lastFrame = Math.max(lastFrame, ints_[entry * 7 + 2]);
+            position += ENTRY_SIZE;
+         }
+         buffer.putInt(0, MAGIC);
+         buffer.putInt(4, VERSION);
+         buffer.putInt(8, fileNames.length);
+         buffer.putInt(12, numUnique);
+         buffer.putInt(16, lastFrame);
+
+         //Write to a temporary file first, so that an interrupted write
+         //never leaves a truncated index behind
+         File tempFile = new File(dir, FILE_NAME + ".tmp");
+         RandomAccessFile raFile = new RandomAccessFile(tempFile, "rw");
+         try {
+            raFile.setLength(0);
+            buffer.rewind();
+            raFile.getChannel().write(buffer);
+         } finally {
+            raFile.close();
+         }
+         File indexFile = new File(dir, FILE_NAME);
+         if ((indexFile.exists() && !indexFile.delete()) || !tempFile.renameTo(indexFile)) {
+            tempFile.delete();
+            throw new IOException("Couldn't create " + indexFile);
+         }
+      }
+
+      private boolean sameCoordinates(int a, int b) {
+         for (int i = 0; i < 4; i++) {
+            if (ints_[a * 7 + i] != ints_[b * 7 + i]) {
+               return false;
+            }
+         }
+         return true;
+      }
+   }
+}
@@ -28,16 +28,20 @@ import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
-import java.util.Set;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
+import mmcorej.ImageTags;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.micromanager.api.ImageCoordinateIndex;
 import org.micromanager.imagedisplay.DisplaySettings;
+import org.micromanager.utils.DirectBufferPool;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
@@ -48,6 +52,16 @@ import org.micromanager.utils.ReportingUtils;
 public class MultipageTiffReader {
       
    private static final long BIGGEST_INT_BIT = (long) Math.pow(2, 31);
+   
+   //Same pool as the writers, for the buffers read with every image
+   private static final DirectBufferPool BUFFER_POOL = DirectBufferPool.getSharedPool();
+   
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+   //In memory mapped mode, finished files are mapped in regions of this size
+   //that overlap by MAP_OVERLAP, so that any pixel or metadata block up to
+   //that size lies entirely within one region
+   private static final long MAP_CHUNK_SIZE = 256L << 20;
+   private static final long MAP_OVERLAP = 64L << 20;
 
    
    public static final char BITS_PER_SAMPLE = MultipageTiffWriter.BITS_PER_SAMPLE;
@@ -67,9 +81,16 @@ public class MultipageTiffReader {
    private JSONObject summaryMetadata_;
    private int byteDepth_ = 0;;
    private boolean rgb_;
-   private boolean writingFinished_;
+   private volatile boolean writingFinished_;
    
-   private HashMap<String,Long> indexMap_;
+   //IFD offset of each image, by ImageCoordinateIndex key
+   private ImageCoordinateIndex<Long> indexMap_;
+   //Used instead of indexMap_ when the dataset was opened from its index file
+   private MultipageTiffIndex datasetIndex_;
+   private int fileId_;
+   
+   private volatile boolean memoryMapped_ = false;
+   private MappedByteBuffer[] mappedRegions_;
    
    /**
     * This constructor is used for a file that is currently being written
@@ -83,7 +104,7 @@ public class MultipageTiffReader {
       writingFinished_ = false;
    }
    
-   public void setIndexMap(HashMap<String,Long> indexMap) {
+   public void setIndexMap(ImageCoordinateIndex<Long> indexMap) {
       indexMap_ = indexMap;
    }
    
@@ -127,6 +148,35 @@ public class MultipageTiffReader {
       }
    }
 
+   /**
+    * This constructor is used for opening files of a saved dataset that has
+    * an index file. The file's own index map isn't read; images are located
+    * through the dataset index instead.
+    * @param file File to be opened
+    * @param index index of the dataset the file belongs to
+    * @param fileId id of the file in the index
+    */
+   public MultipageTiffReader(File file, MultipageTiffIndex index, int fileId) throws IOException {
+      displayAndComments_ = new JSONObject();
+      file_ = file;
+      datasetIndex_ = index;
+      fileId_ = fileId;
+      createFileChannel(false);
+      writingFinished_ = true;
+      readHeader();
+      summaryMetadata_ = readSummaryMD();
+      try {
+         displayAndComments_.put("Channels", readDisplaySettings());
+         displayAndComments_.put("Comments", readComments());
+      } catch (Exception ex) {
+         ReportingUtils.logError("Problem with JSON Representation of DisplayAndComments");
+      }
+
+      if (summaryMetadata_ != null) {
+         getRGBAndByteDepth(summaryMetadata_);
+      }
+   }
+
    /**
     * HACK: this version is only used when fixing index maps. The boolean
     * parameter is used solely to differentiate it from the constructor that
@@ -205,6 +255,24 @@ public class MultipageTiffReader {
    public void finishedWriting() {
       writingFinished_ = true;
    }
+   
+   /**
+    * In memory mapped mode, finished files are read through read-only
+    * mappings of the file (created on first access) rather than FileChannel
+    * reads into new buffers, and readPixelBuffer() returns views of the
+    * mapping without copying. Files still being written are always read
+    * through the FileChannel.
+    */
+   public synchronized void setMemoryMapped(boolean memoryMapped) {
+      if (memoryMapped == memoryMapped_) {
+         return;
+      }
+      memoryMapped_ = memoryMapped;
+      if (!memoryMapped) {
+         //mapped regions are released when garbage collected
+         mappedRegions_ = null;
+      }
+   }
 
    private void getRGBAndByteDepth(JSONObject md) {
       try {
@@ -231,16 +299,18 @@ public class MultipageTiffReader {
       return displayAndComments_;
    }
    
-   public TaggedImage readImage(String label) {
-      if (indexMap_.containsKey(label)) {
+   /**
+    * @param key ImageCoordinateIndex key of the image
+    * @return null if the image is not in this file
+    */
+   public TaggedImage readImage(long key) {
+      if (hasImage(key)) {
          if (fileChannel_ == null) {
             ReportingUtils.logError("Attempted to read image on FileChannel that is null");
             return null;
          }
          try {
-            long byteOffset = indexMap_.get(label);
-            
-            IFDData data = readIFD(byteOffset);
+            IFDData data = getIFDData(key);
             return readTaggedImage(data);
          } catch (IOException ex) {
             ReportingUtils.logError(ex);
@@ -253,10 +323,103 @@ public class MultipageTiffReader {
       }
    }  
    
-   public Set<String> getIndexKeys() {
+   private boolean hasImage(long key) {
+      if (datasetIndex_ != null) {
+         int entry = datasetIndex_.find(key);
+         return entry >= 0 && datasetIndex_.getFileId(entry) == fileId_;
+      }
+      return indexMap_.containsKey(key);
+   }
+   
+   /*
+    * Location of an image in the file: from the dataset index if there is
+    * one, otherwise by reading its IFD. Returns null if the image isn't in
+    * this file.
+    */
+   private IFDData getIFDData(long key) throws IOException {
+      if (datasetIndex_ != null) {
+         int entry = datasetIndex_.find(key);
+         if (entry < 0 || datasetIndex_.getFileId(entry) != fileId_) {
+            return null;
+         }
+         IFDData data = new IFDData();
+         data.pixelOffset = datasetIndex_.getPixelOffset(entry);
+         data.bytesPerImage = datasetIndex_.getPixelLength(entry);
+         data.mdOffset = datasetIndex_.getMetadataOffset(entry);
+         data.mdLength = datasetIndex_.getMetadataLength(entry);
+         return data;
+      }
+      Long byteOffset = indexMap_.get(key);
+      if (byteOffset == null) {
+         return null;
+      }
+      return readIFD(byteOffset);
+   }
+   
+   /**
+    * Pixels of an image, without reading or parsing its metadata. In memory
+    * mapped mode this is a read-only view of the file (use asShortBuffer()
+    * for 16 bit images); otherwise it is a copy. RGB pixels are in the file's
+    * BGR layout.
+    * @return null if the image is not in this file
+    */
+   public ByteBuffer readPixelBuffer(long key) {
+      if (fileChannel_ == null) {
+         return null;
+      }
+      try {
+         IFDData data = getIFDData(key);
+         if (data == null) {
+            return null;
+         }
+         ByteBuffer pixels = mappedSlice(data.pixelOffset, (int) data.bytesPerImage);
+         if (pixels == null) {
+            pixels = readIntoBuffer(data.pixelOffset, (int) data.bytesPerImage);
+         }
+         return pixels;
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+   
+   /**
+    * Metadata of an image, without reading its pixels
+    * @return null if the image is not in this file
+    */
+   public JSONObject readImageTags(long key) {
+      if (fileChannel_ == null) {
+         return null;
+      }
+      try {
+         IFDData data = getIFDData(key);
+         if (data == null) {
+            return null;
+         }
+         return readMetadata(data);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+   
+   /**
+    * @return ImageCoordinateIndex keys of the images in this file
+    */
+   public long[] getIndexKeys() {
+      if (datasetIndex_ != null) {
+         long[] keys = new long[datasetIndex_.getNumEntries()];
+         int n = 0;
+         for (int entry = 0; entry < keys.length; entry++) {
+            if (datasetIndex_.getFileId(entry) == fileId_) {
+               keys[n++] = datasetIndex_.getKey(entry);
+            }
+         }
+         return Arrays.copyOf(keys, n);
+      }
       if (indexMap_ == null)
          return null;
-      return indexMap_.keySet();
+      return indexMap_.keys();
    }
 
    private JSONObject readSummaryMD() {
@@ -360,6 +523,7 @@ public class MultipageTiffReader {
    private ByteBuffer readIntoBuffer(long position, int length) throws IOException {
       ByteBuffer buffer = ByteBuffer.allocate(length).order(byteOrder_);
       fileChannel_.read(buffer, position);
+      buffer.rewind();
       return buffer;
    }
    
@@ -379,7 +543,7 @@ public class MultipageTiffReader {
          throw new InvalidIndexMapException();
       }
       int numMappings = header.getInt(4);
-      indexMap_ = new HashMap<String, Long>();
+      indexMap_ = new ImageCoordinateIndex<Long>(numMappings);
       ByteBuffer mapBuffer = readIntoBuffer(offset+8, 20*numMappings);     
       for (int i = 0; i < numMappings; i++) {
          int channel = mapBuffer.getInt(i*20);
@@ -392,15 +556,78 @@ public class MultipageTiffReader {
          }
          //If a duplicate label is read, forget about the previous one
          //if data has been intentionally overwritten, this gives the most current version
-         indexMap_.put(MDUtils.generateLabel(channel, slice, frame, position), imageOffset);
+         indexMap_.put(ImageCoordinateIndex.pack(channel, slice, frame, position), imageOffset);
       }
    }
 
+   /*
+    * Returns a view of the given region of the file if it can be memory
+    * mapped, or null if it must be read through the FileChannel. If mapping
+    * fails (e.g. out of address space on a 32 bit JVM), memory mapped mode
+    * is turned off for this file.
+    */
+   private ByteBuffer mappedSlice(long position, int length) throws IOException {
+      if (!memoryMapped_ || !writingFinished_ || length > MAP_OVERLAP) {
+         return null;
+      }
+      MappedByteBuffer region;
+      int regionIndex = (int) (position / MAP_CHUNK_SIZE);
+      long regionStart = regionIndex * MAP_CHUNK_SIZE;
+      synchronized (this) {
+         if (fileChannel_ == null) {
+            return null;
+         }
+         long fileSize = fileChannel_.size();
+         if (position + length > fileSize) {
+            return null;
+         }
+         if (mappedRegions_ == null) {
+            mappedRegions_ = new MappedByteBuffer[(int) (fileSize / MAP_CHUNK_SIZE) + 1];
+         }
+         if (regionIndex >= mappedRegions_.length) {
+            return null;
+         }
+         if (mappedRegions_[regionIndex] == null) {
+            long size = Math.min(MAP_CHUNK_SIZE + MAP_OVERLAP, fileSize - regionStart);
+            try {
+               mappedRegions_[regionIndex] = fileChannel_.map(
+                       FileChannel.MapMode.READ_ONLY, regionStart, size);
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex, "Couldn't memory map " + 
+                       (file_ != null ? file_.getName() : "file") + ", reading it normally");
+               memoryMapped_ = false;
+               mappedRegions_ = null;
+               return null;
+            }
+         }
+         region = mappedRegions_[regionIndex];
+      }
+      ByteBuffer view = region.duplicate();
+      int offset = (int) (position - regionStart);
+      view.limit(offset + length);
+      view.position(offset);
+      return view.slice().order(byteOrder_);
+   }
+   
+   private ByteBuffer readIntoPooledBuffer(long position, int length) throws IOException {
+      ByteBuffer buffer = BUFFER_POOL.acquire(length).order(byteOrder_);
+      fileChannel_.read(buffer, position);
+      buffer.rewind();
+      return buffer;
+   }
+   
    private IFDData readIFD(long byteOffset) throws IOException {
-      ByteBuffer buff = readIntoBuffer(byteOffset,2);
+      ByteBuffer buff = mappedSlice(byteOffset, 2);
+      if (buff == null) {
+         buff = readIntoPooledBuffer(byteOffset, 2);
+      }
       int numEntries = buff.getChar(0);
+      BUFFER_POOL.release(buff);
      
-      ByteBuffer entries = readIntoBuffer(byteOffset + 2, numEntries*12 + 4).order(byteOrder_);
+      ByteBuffer entries = mappedSlice(byteOffset + 2, numEntries*12 + 4);
+      if (entries == null) {
+         entries = readIntoPooledBuffer(byteOffset + 2, numEntries*12 + 4);
+      }
       IFDData data = new IFDData();
       for (int i = 0; i < numEntries; i++) {
          IFDEntry entry = readDirectoryEntry(i*12, entries);
@@ -415,6 +642,7 @@ public class MultipageTiffReader {
       }
       data.nextIFD = unsignInt(entries.getInt(numEntries*12));
       data.nextIFDOffsetLocation = byteOffset + 2 + numEntries*12;
+      BUFFER_POOL.release(entries);
       return data;
    }
 
@@ -427,66 +655,87 @@ public class MultipageTiffReader {
       }
    }
    
-   private TaggedImage readTaggedImage(IFDData data) throws IOException {
-      ByteBuffer pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage).order(byteOrder_);
-      ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
-      fileChannel_.read(pixelBuffer, data.pixelOffset);
-      fileChannel_.read(mdBuffer, data.mdOffset);
-      JSONObject md = new JSONObject();
-      try {
-         md = new JSONObject(getString(mdBuffer));
-      } catch (JSONException ex) {
+   private JSONObject readMetadata(IFDData data) throws IOException {
+      ByteBuffer mdBuffer = mappedSlice(data.mdOffset, (int) data.mdLength);
+      if (mdBuffer == null) {
+         mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
+         fileChannel_.read(mdBuffer, data.mdOffset);
+         mdBuffer.rewind();
+      }
+      //Parsed only when the tags are first accessed, so images that are
+      //just copied to another file are never parsed. trim() also drops the
+      //null terminator
+      String md = UTF_8.decode(mdBuffer).toString().trim();
+      if (!md.startsWith("{") || !md.endsWith("}")) {
          ReportingUtils.logError("Error reading image metadata from file");
+         return new JSONObject();
       }
+      return ImageTags.fromJSON(md);
+   }
+   
+   private TaggedImage readTaggedImage(IFDData data) throws IOException {
+      JSONObject md = readMetadata(data);
       
       if ( byteDepth_ == 0) {
          getRGBAndByteDepth(md);
       }
       
-      if (rgb_) {
+      if (!rgb_) {
+         //read into a mapped view or pooled direct buffer and bulk copy out
+         //of it. Displays need the pixels in an array, so this one copy is
+         //all they cost
+         ByteBuffer pixelBuffer = mappedSlice(data.pixelOffset, (int) data.bytesPerImage);
+         if (pixelBuffer == null) {
+            pixelBuffer = readIntoPooledBuffer(data.pixelOffset, (int) data.bytesPerImage);
+         }
+         Object pix;
          if (byteDepth_ == 1) {
-            // This gets a little unpleasant. Our source pixels array is in
-            // BGR format (see MultipageTiffWriter.getPixelBuffer()), and we
-            // need to transform it into RGBA format -- swapping the R and B
-            // components and inserting a blank alpha component.
-            byte[] pixels = new byte[(int) (4 * data.bytesPerImage / 3)];
-            byte[] source = pixelBuffer.array();
-            int numPixels = 0;
-            int numComponents = 0;
-            for (int i = 0; i < source.length; ++i) {
-               pixels[i + numPixels] = source[i - (2 * (i % 3)) + 2];
-               numComponents++;
-               if (numComponents == 3) {
-                  // Insert a blank alpha byte to cap off the pixel.
-                  pixels[i + numPixels + 1] = 0;
-                  numPixels++;
-                  numComponents = 0;
-               }
-            }
-            return new TaggedImage(pixels, md);
+            byte[] bytes = new byte[(int) data.bytesPerImage];
+            pixelBuffer.get(bytes);
+            pix = bytes;
          } else {
-             short[] pixels = new short[(int) (2 * (data.bytesPerImage/3))];
-            int i = 0;           
-            while ( i < pixels.length) {                
-               pixels[i] = pixelBuffer.getShort( 2*((i/4)*3 + (i%4)) );        
-               i++;
-               if ((i + 1) % 4 == 0) {
-                  pixels[i] = 0;
-                  i++;
-               }
+            short[] shorts = new short[(int) (data.bytesPerImage / 2)];
+            pixelBuffer.asShortBuffer().get(shorts);
+            pix = shorts;
+         }
+         BUFFER_POOL.release(pixelBuffer);
+         return new TaggedImage(pix, md);
+      }
+      
+      ByteBuffer pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage).order(byteOrder_);
+      fileChannel_.read(pixelBuffer, data.pixelOffset);
+      if (byteDepth_ == 1) {
+         // This gets a little unpleasant. Our source pixels array is in
+         // BGR format (see MultipageTiffWriter.getPixelBuffer()), and we
+         // need to transform it into RGBA format -- swapping the R and B
+         // components and inserting a blank alpha component.
+         byte[] pixels = new byte[(int) (4 * data.bytesPerImage / 3)];
+         byte[] source = pixelBuffer.array();
+         int numPixels = 0;
+         int numComponents = 0;
+         for (int i = 0; i < source.length; ++i) {
+            pixels[i + numPixels] = source[i - (2 * (i % 3)) + 2];
+            numComponents++;
+            if (numComponents == 3) {
+               // Insert a blank alpha byte to cap off the pixel.
+               pixels[i + numPixels + 1] = 0;
+               numPixels++;
+               numComponents = 0;
             }
-            return new TaggedImage(pixels, md);
          }
+         return new TaggedImage(pixels, md);
       } else {
-         if (byteDepth_ == 1) {
-            return new TaggedImage(pixelBuffer.array(), md);
-         } else {
-            short[] pix = new short[pixelBuffer.capacity()/2];
-            for (int i = 0; i < pix.length; i++ ) {
-               pix[i] = pixelBuffer.getShort(i*2);
+          short[] pixels = new short[(int) (2 * (data.bytesPerImage/3))];
+         int i = 0;           
+         while ( i < pixels.length) {                
+            pixels[i] = pixelBuffer.getShort( 2*((i/4)*3 + (i%4)) );        
+            i++;
+            if ((i + 1) % 4 == 0) {
+               pixels[i] = 0;
+               i++;
             }
-            return new TaggedImage(pix, md);
          }
+         return new TaggedImage(pixels, md);
       }
    }
 
@@ -538,6 +787,9 @@ public class MultipageTiffReader {
    }
    
    public void close() throws IOException {
+      synchronized (this) {
+         mappedRegions_ = null;
+      }
       if (fileChannel_ != null) {
          fileChannel_.close();
          fileChannel_ = null;
@@ -562,7 +814,7 @@ public class MultipageTiffReader {
    // the ImageDescription tag location 
    private void fixIndexMap(long firstIFD, String fileName) throws IOException {
       long filePosition = firstIFD;
-      indexMap_ = new HashMap<String, Long>();
+      indexMap_ = new ImageCoordinateIndex<Long>();
       long progBarMax = (fileChannel_.size() / 2L);
       final ProgressBar progressBar = new ProgressBar("Fixing " + fileName, 0, 
               progBarMax >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) progBarMax);
@@ -583,12 +835,13 @@ public class MultipageTiffReader {
                nextIFDOffsetLocation = data.nextIFDOffsetLocation;
                continue;
             }
-            String label;
-            label = MDUtils.getLabel(ti.tags);
-            if (label == null ) {
+            long key;
+            try {
+               key = MDUtils.getImageKey(ti.tags);
+            } catch (JSONException e) {
                break;
-            }          
-            indexMap_.put(label, filePosition);
+            }
+            indexMap_.put(key, filePosition);
             
             final int progress = (int) (filePosition/2L);
             SwingUtilities.invokeLater(new Runnable() {
@@ -656,14 +909,13 @@ public class MultipageTiffReader {
       buffer.putInt(0, MultipageTiffWriter.INDEX_MAP_HEADER);
       buffer.putInt(4, numMappings);
       int position = 2;
-      for (String label : indexMap_.keySet()) {
-         String[] indecies = label.split("_");
-         for (String index : indecies) {
-            buffer.putInt(4 * position, Integer.parseInt(index));
-            position++;
-         }
-         buffer.putInt(4 * position, indexMap_.get(label).intValue());
-         position++;
+      for (long key : indexMap_.keys()) {
+         buffer.putInt(4 * position, ImageCoordinateIndex.getChannel(key));
+         buffer.putInt(4 * position + 4, ImageCoordinateIndex.getSlice(key));
+         buffer.putInt(4 * position + 8, ImageCoordinateIndex.getFrame(key));
+         buffer.putInt(4 * position + 12, ImageCoordinateIndex.getPosition(key));
+         buffer.putInt(4 * position + 16, indexMap_.get(key).intValue());
+         position += 5;
       }
       fileChannel_.write(buffer, filePosition);
 
@@ -34,16 +34,19 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
+import org.micromanager.api.ImageCoordinateIndex;
+import org.micromanager.utils.DirectBufferPool;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
@@ -88,18 +91,47 @@ public class MultipageTiffWriter {
          
    public static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
    
+   //Index map entries are accumulated and written this many at a time, or
+   //at least this often
+   private static final int INDEX_MAP_BATCH_ENTRIES = 256;
+   private static final long INDEX_MAP_FLUSH_INTERVAL_MS = 1000;
+   //Flushes index map batches that are still partly filled after the interval,
+   //so they are written even if no more images arrive
+   private static final ScheduledExecutorService INDEX_MAP_FLUSHER =
+           Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "MPTiff index map flush");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+   
+   //Recycles the direct buffers used for every image
+   private static final DirectBufferPool BUFFER_POOL = DirectBufferPool.getSharedPool();
+   
    final private boolean omeTiff_;
    
    private TaggedImageStorageMultipageTiff masterMPTiffStorage_;
+   private final String filename_;
+   //Dataset-wide index of image locations, written as a sidecar file at the end
+   private final MultipageTiffIndex.Builder indexBuilder_;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_; 
-   private ThreadPoolExecutor writingExecutor_;
+   //Ordered lane on the storage's shared writing pool (null if not in fast storage mode)
+   private MultipageTiffWritingPool.Lane writingLane_;
+   private MultipageTiffWritingPool writingPool_;
    private long filePosition_ = 0;
    private long indexMapPosition_; //current position of the dynamically written index map
    private long indexMapFirstEntry_; // mark position of first entry so that number of entries can be written at end
+   private ByteBuffer indexMapBatch_; //index map entries not yet written
+   private long indexMapBatchPosition_; //file position of the first entry in indexMapBatch_
+   //guards the index map batch, which the flush timer also writes
+   private final Object indexMapLock_ = new Object();
    private int bufferPosition_;
    private int numChannels_ = 1, numFrames_ = 1, numSlices_ = 1;
-   private HashMap<String, Long> indexMap_;
+   //IFD offset of each image, by ImageCoordinateIndex key
+   private ImageCoordinateIndex<Long> indexMap_;
    private long nextIFDOffsetLocation_ = -1;
    private boolean rgb_ = false;
    private int byteDepth_, imageWidth_, imageHeight_, bytesPerImagePixels_;
@@ -121,6 +153,8 @@ public class MultipageTiffWriter {
            boolean fastStorageMode, boolean splitByPositions) throws IOException {
       fastStorageMode_ = fastStorageMode;
       masterMPTiffStorage_ = mpTiffStorage;
+      filename_ = filename;
+      indexBuilder_ = mpTiffStorage.getIndexBuilder();
       omeTiff_ = mpTiffStorage.omeTiff_;        
       reader_ = new MultipageTiffReader(summaryMD);
       File f = new File(directory + "/" + filename); 
@@ -153,8 +187,11 @@ public class MultipageTiffWriter {
              ReportingUtils.showError("Insufficent space on disk: no room to write data");
       }
       fileChannel_ = raFile_.getChannel();
-      writingExecutor_ = masterMPTiffStorage_.getWritingExecutor();
-      indexMap_ = new HashMap<String, Long>();
+      if (fastStorageMode_) {
+         writingPool_ = masterMPTiffStorage_.getWritingPool();
+         writingLane_ = writingPool_.newLane();
+      }
+      indexMap_ = new ImageCoordinateIndex<Long>();
       reader_.setFileChannel(fileChannel_);
       reader_.setIndexMap(indexMap_);
       buffers_ = new LinkedList<ByteBuffer>();
@@ -166,28 +203,18 @@ public class MultipageTiffWriter {
       return ByteBuffer.allocateDirect(capacity).order(BYTE_ORDER);
    }
    
-   private BlockingQueue<ByteBuffer> currentImageByteBuffers_ = new LinkedBlockingQueue<ByteBuffer>(10);
-   private int currentImageByteBufferCapacity_ = 0;
-           
-   private ByteBuffer allocateByteBufferMemo(int capacity) {
-       // HACK: if we are running on 32-bit mode, then we don't want to cache
-       // our direct buffers, due to increased memory constraints on 32-bit
-       // systems.
-       if (System.getProperty("sun.arch.data.model").equals("32")) {
-           return allocateByteBuffer(capacity);
-       }
-       if (capacity != currentImageByteBufferCapacity_) {
-           currentImageByteBuffers_.clear();
-           currentImageByteBufferCapacity_ = capacity;
-       }
-       
-       ByteBuffer cachedBuf = currentImageByteBuffers_.poll();
-       return (cachedBuf != null) ? cachedBuf : allocateByteBuffer(capacity);
+   /*
+    * Buffer from the shared pool, for the data written with every image. Its
+    * contents are undefined, so every byte must be written. It goes back to
+    * the pool once it has been written to the file.
+    */
+   private ByteBuffer acquireByteBuffer(int capacity) {
+      return BUFFER_POOL.acquire(capacity).order(BYTE_ORDER);
    }
    
    private void executeWritingTask(Runnable writingTask) {
-      if (fastStorageMode_) {
-         writingExecutor_.execute(writingTask);
+      if (writingLane_ != null) {
+         writingLane_.execute(writingTask);
       } else {
          writingTask.run();
       }
@@ -201,9 +228,7 @@ public class MultipageTiffWriter {
              try {
                 buffer.rewind();
                 fileChannel_.write(buffer, position);
-                if (buffer.limit() == currentImageByteBufferCapacity_) {
-                    currentImageByteBuffers_.offer(buffer);
-                }
+                BUFFER_POOL.release(buffer);
               } catch (IOException e) {
                 ReportingUtils.logError(e);
               }
@@ -219,9 +244,7 @@ public class MultipageTiffWriter {
              try {
                 fileChannel_.write(buffers);
                 for (ByteBuffer buffer:buffers) {
-                    if (buffer.limit() == currentImageByteBufferCapacity_) {
-                        currentImageByteBuffers_.offer(buffer);
-                    }
+                    BUFFER_POOL.release(buffer);
                 }
               } catch (IOException e) {
                 ReportingUtils.logError(e);
@@ -233,12 +256,20 @@ public class MultipageTiffWriter {
    public MultipageTiffReader getReader() {
       return reader_;
    }
+
+   /**
+    * @return the executor on which all writes to this file are performed in
+    * order, or null if writing is synchronous
+    */
+   public Executor getWritingLane() {
+      return writingLane_;
+   }
    
    public FileChannel getFileChannel() {
       return fileChannel_;
    }
    
-   public HashMap<String, Long> getIndexMap() {
+   public ImageCoordinateIndex<Long> getIndexMap() {
       return indexMap_;
    }
    
@@ -296,6 +327,7 @@ public class MultipageTiffWriter {
     * by a basic TIFF reader
     */
    public void finish() throws IOException {
+      flushIndexMap();
       writeNullOffsetAfterLastImage();
       //go back to the index map header and change the number of entries from the max
       //value allotted early to the actual number written
@@ -303,7 +335,7 @@ public class MultipageTiffWriter {
       //the end of the index map. It is added here for backwards compatibility of reading
       //using versions of MM before 6-6-2014. Without it, old versions wouldn't correctly read image 0_0_0_0
       int numImages = (int) ((indexMapPosition_ - indexMapFirstEntry_) / 20);
-      ByteBuffer indexMapNumEntries = allocateByteBuffer(4);
+      ByteBuffer indexMapNumEntries = acquireByteBuffer(4);
       indexMapNumEntries.putInt(0, numImages);
       fileChannelWrite(indexMapNumEntries, indexMapFirstEntry_ - 4);
    }
@@ -387,31 +419,58 @@ public class MultipageTiffWriter {
    }
    
    public void writeBlankImage(String label) throws IOException {
+      long offset = filePosition_;
       writeBlankIFD();
+      //blank pixels, then the resolution values and the metadata, as for images
+      long mdOffset = blankPixelsOffset_ + bytesPerImagePixels_ + 16;
+      indexBuilder_.add(filename_, ImageCoordinateIndex.fromLabel(label), offset,
+              blankPixelsOffset_, bytesPerImagePixels_, mdOffset, (int) (filePosition_ - mdOffset));
       writeBuffers();
    }
         
    public void writeImage(TaggedImage img) throws IOException {
-      if (writingExecutor_ != null) {
-         int queueSize = writingExecutor_.getQueue().size();
-         int attemptCount = 0;
-         while (queueSize > 20) {
-            if (attemptCount == 0) {
-               ReportingUtils.logMessage("Warning: writing queue behind by " + queueSize + " images.");
-            }
-            ++attemptCount;
-            try {
-               Thread.sleep(5);
-               queueSize = writingExecutor_.getQueue().size();
-            } catch (InterruptedException ex) {
-               ReportingUtils.logError(ex);
-            }
+      //Blocks while the writing queue holds too many bytes, so memory use is
+      //bounded when the disk is slower than the camera
+      long key;
+      try {
+         key = MDUtils.getImageKey(img.tags);
+      } catch (JSONException ex) {
+         throw new IOException("Image has no channel, slice, frame or position index");
+      }
+      byte[] mdBytes = getMetadataBytes(img);
+      final long imageBytes = bytesPerImagePixels_ + ENTRIES_PER_IFD * 12 + 4 + 16
+              + mdBytes.length;
+      final long queuedTime = writingLane_ == null ? 0 :
+              writingPool_.acquireCredits(imageBytes);
+      boolean queued = false;
+      try {
+         long offset = filePosition_;
+         int ifdBytes = 2 + (firstIFD_ ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD) * 12 + 4 + (rgb_ ? 6 : 0);
+         writeIFD(img, mdBytes);
+         addToIndexMap(key, offset);
+         //pixels follow the IFD, then the resolution values and the metadata
+         long pixelOffset = offset + ifdBytes;
+         long mdOffset = pixelOffset + bytesPerImagePixels_ + 16;
+         indexBuilder_.add(filename_, key, offset, pixelOffset, bytesPerImagePixels_,
+                 mdOffset, (int) (filePosition_ - mdOffset));
+         writeBuffers();
+         if (writingLane_ != null) {
+            //runs after this image's writes, since the lane is ordered
+            writingLane_.execute(new Runnable() {
+               @Override
+               public void run() {
+                  writingPool_.imageWritten(imageBytes, queuedTime);
+               }
+            });
+         }
+         queued = true;
+      } finally {
+         if (!queued && writingLane_ != null) {
+            //the image failed before its release was queued; give back its
+            //credits now, or later images would wait for them forever
+            writingPool_.releaseCredits(imageBytes);
          }
       }
-      long offset = filePosition_;
-      writeIFD(img);
-      addToIndexMap(MDUtils.getLabel(img.tags), offset);
-      writeBuffers();
       //wait until image has finished writing to return
 //      int size = writingExecutor_.getQueue().size();
 //      while (size > 0) {
@@ -419,18 +478,60 @@ public class MultipageTiffWriter {
 //      }
    }
    
-   private void addToIndexMap(String label, long offset) {
+   private void addToIndexMap(long key, long offset) {
       //If a duplicate label is received, forget about the previous one
       //this allows overwriting of images without loss of data
-      indexMap_.put(label, offset);
-      ByteBuffer buffer = allocateByteBuffer( 20 );
-      String[] indices = label.split("_");
-      for (int i = 0; i < 4; i++) {
-         buffer.putInt( 4*i , Integer.parseInt(indices[i]));
+      indexMap_.put(key, offset);
+      synchronized (indexMapLock_) {
+         if (indexMapBatch_ == null) {
+            indexMapBatch_ = acquireByteBuffer(20 * INDEX_MAP_BATCH_ENTRIES);
+            indexMapBatchPosition_ = indexMapPosition_;
+            scheduleIndexMapFlush(indexMapBatch_);
+         }
+         int entryPosition = (int) (indexMapPosition_ - indexMapBatchPosition_);
+         indexMapBatch_.putInt(entryPosition, ImageCoordinateIndex.getChannel(key));
+         indexMapBatch_.putInt(entryPosition + 4, ImageCoordinateIndex.getSlice(key));
+         indexMapBatch_.putInt(entryPosition + 8, ImageCoordinateIndex.getFrame(key));
+         indexMapBatch_.putInt(entryPosition + 12, ImageCoordinateIndex.getPosition(key));
+         indexMapBatch_.putInt(entryPosition + 16, new Long(offset).intValue());
+         indexMapPosition_ += 20;
+         if (entryPosition + 20 == indexMapBatch_.limit()) {
+            flushIndexMap();
+         }
+      }
+   }
+   
+   /*
+    * Writes the batch INDEX_MAP_FLUSH_INTERVAL_MS after its first entry, if
+    * it hasn't been filled and written by then
+    */
+   private void scheduleIndexMapFlush(final ByteBuffer batch) {
+      INDEX_MAP_FLUSHER.schedule(new Runnable() {
+         @Override
+         public void run() {
+            synchronized (indexMapLock_) {
+               if (indexMapBatch_ == batch && !isClosed()) {
+                  flushIndexMap();
+               }
+            }
+         }
+      }, INDEX_MAP_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+   }
+   
+   /*
+    * Write the index map entries accumulated since the last flush. Until then
+    * they are only in indexMap_, which is what the reader uses while the file
+    * is being written (an aborted file can be fixed with fixIndexMap)
+    */
+   private void flushIndexMap() {
+      synchronized (indexMapLock_) {
+         if (indexMapBatch_ == null) {
+            return;
+         }
+         indexMapBatch_.limit((int) (indexMapPosition_ - indexMapBatchPosition_));
+         fileChannelWrite(indexMapBatch_, indexMapBatchPosition_);
+         indexMapBatch_ = null;
       }
-      buffer.putInt(16, new Long(offset).intValue());
-      fileChannelWrite(buffer,indexMapPosition_);
-      indexMapPosition_ += 20;  
    }
    
    private void writeBuffers() throws IOException {
@@ -450,7 +551,7 @@ public class MultipageTiffWriter {
    }
    
    public void overwritePixels(Object pixels, int channel, int slice, int frame, int position) throws IOException {
-      long byteOffset = indexMap_.get(MDUtils.generateLabel(channel, slice, frame, position));      
+      long byteOffset = indexMap_.get(channel, slice, frame, position);      
       ByteBuffer buffer = ByteBuffer.allocate(2).order(BYTE_ORDER);
       fileChannel_.read(buffer, byteOffset);
       int numEntries = buffer.getChar(0);
@@ -484,13 +585,21 @@ public class MultipageTiffWriter {
       fileChannelWrite(pixBuff, pixelOffset); 
    }
 
-   private void writeIFD(TaggedImage img) throws IOException {
-      char numEntries = ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD));
+   /*
+    * The image's tags as written after its pixels, without the summary
+    * metadata
+    */
+   private byte[] getMetadataBytes(TaggedImage img) {
       if (img.tags.has("Summary")) {
          img.tags.remove("Summary");
       }
       byte[] mdBytes = getBytesFromString(img.tags.toString() + " ");
       mdBytes[mdBytes.length - 1] = 0; // null terminate TIFF ASCII string
+      return mdBytes;
+   }
+
+   private void writeIFD(TaggedImage img, byte[] mdBytes) throws IOException {
+      char numEntries = ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD));
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
      //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
@@ -498,7 +607,7 @@ public class MultipageTiffWriter {
      int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length + bytesPerImagePixels_;
      int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
      
-     ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
+     ByteBuffer ifdBuffer = acquireByteBuffer(IFDandBitDepthBytes);
      CharBuffer charView = ifdBuffer.asCharBuffer();
          
      long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
@@ -573,7 +682,7 @@ public class MultipageTiffWriter {
    }
 
    private ByteBuffer getResolutionValuesBuffer() throws IOException {
-      ByteBuffer buffer = allocateByteBuffer(16);
+      ByteBuffer buffer = acquireByteBuffer(16);
       buffer.putInt(0,(int)resNumerator_);
       buffer.putInt(4,(int)resDenomenator_);
       buffer.putInt(8,(int)resNumerator_);
@@ -623,7 +732,7 @@ public class MultipageTiffWriter {
                   count++;
                }
             }
-            ByteBuffer buffer = allocateByteBufferMemo(rgbaPix.length * 2);
+            ByteBuffer buffer = acquireByteBuffer(rgbaPix.length * 2);
             buffer.rewind();
             buffer.asShortBuffer().put(rgbaPix);
             return buffer;
@@ -633,7 +742,7 @@ public class MultipageTiffWriter {
             return ByteBuffer.wrap((byte[]) pixels);
          } else {
             short[] pix = (short[]) pixels;
-            ByteBuffer buffer = allocateByteBufferMemo(pix.length * 2);
+            ByteBuffer buffer = acquireByteBuffer(pix.length * 2);
             buffer.rewind();
             buffer.asShortBuffer().put(pix);
             return buffer;
@@ -885,7 +994,7 @@ public class MultipageTiffWriter {
    }
 
    private void writeNullOffsetAfterLastImage() throws IOException {
-      ByteBuffer buffer = allocateByteBuffer(4);
+      ByteBuffer buffer = acquireByteBuffer(4);
       buffer.putInt(0, 0);
       fileChannelWrite(buffer, nextIFDOffsetLocation_);
    }
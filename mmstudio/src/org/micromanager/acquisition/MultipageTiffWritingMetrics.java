@@ -0,0 +1,111 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MultipageTiffWritingMetrics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+/**
+ * Snapshot of the state of the writing pipeline of a
+ * TaggedImageStorageMultipageTiff in fast storage mode.
+ *
+ * Write latency is measured from the moment an image is handed to the writer
+ * until all of its bytes have been written to the file. Stall time is the time
+ * producers spent blocked because the queued bytes reached the limit. A
+ * growing stall time means the disk can't keep up; a low latency with no
+ * stalls means the writer is waiting on the camera.
+ */
+public final class MultipageTiffWritingMetrics {
+   private final long queuedBytes_;
+   private final long maxQueuedBytes_;
+   private final long imagesWritten_;
+   private final long bytesWritten_;
+   private final long stallCount_;
+   private final long stallTimeNs_;
+   private final long[] sortedLatenciesNs_;
+
+   MultipageTiffWritingMetrics(long queuedBytes, long maxQueuedBytes,
+         long imagesWritten, long bytesWritten, long stallCount,
+         long stallTimeNs, long[] sortedLatenciesNs) {
+      queuedBytes_ = queuedBytes;
+      maxQueuedBytes_ = maxQueuedBytes;
+      imagesWritten_ = imagesWritten;
+      bytesWritten_ = bytesWritten;
+      stallCount_ = stallCount;
+      stallTimeNs_ = stallTimeNs;
+      sortedLatenciesNs_ = sortedLatenciesNs;
+   }
+
+   /**
+    * @return bytes handed to the writer that haven't reached the file yet
+    */
+   public long getQueuedBytes() {
+      return queuedBytes_;
+   }
+
+   /**
+    * @return the limit above which producers block
+    */
+   public long getMaxQueuedBytes() {
+      return maxQueuedBytes_;
+   }
+
+   public long getImagesWritten() {
+      return imagesWritten_;
+   }
+
+   public long getBytesWritten() {
+      return bytesWritten_;
+   }
+
+   /**
+    * @return number of times a producer had to wait for queue space
+    */
+   public long getStallCount() {
+      return stallCount_;
+   }
+
+   /**
+    * @return total time producers spent waiting for queue space, in ms
+    */
+   public double getStallTimeMs() {
+      return stallTimeNs_ / 1e6;
+   }
+
+   /**
+    * Write latency percentile over the most recently written images.
+    * @param percentile between 0 and 100
+    * @return latency in ms, or 0 if no image has been written yet
+    */
+   public double getWriteLatencyMs(double percentile) {
+      if (sortedLatenciesNs_.length == 0) {
+         return 0;
+      }
+      int index = (int) Math.ceil(percentile / 100.0 * sortedLatenciesNs_.length) - 1;
+      index = Math.max(0, Math.min(sortedLatenciesNs_.length - 1, index));
+      return sortedLatenciesNs_[index] / 1e6;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("queued %.1f/%.1f MB, %d images written, "
+            + "latency p50 %.1f ms p99 %.1f ms max %.1f ms, %d stalls (%.1f ms)",
+            queuedBytes_ / 1048576.0, maxQueuedBytes_ / 1048576.0,
+            imagesWritten_, getWriteLatencyMs(50), getWriteLatencyMs(99),
+            getWriteLatencyMs(100), stallCount_, getStallTimeMs());
+   }
+}
@@ -0,0 +1,289 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MultipageTiffWritingPool.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Bounded pool of threads shared by all MultipageTiffWriters of one
+ * TaggedImageStorageMultipageTiff.
+ *
+ * Every file gets its own Lane. Tasks submitted to the same Lane run one at
+ * a time and in submission order (the writers rely on this, since they
+ * compute file offsets up front), while different Lanes are free to run
+ * concurrently on the pool threads. With a single thread, this reproduces
+ * the old behavior of funneling all writes through one background thread.
+ *
+ * The pool also provides backpressure: before handing an image to its lane,
+ * a writer acquires credits for the image's size in bytes, and blocks while
+ * the bytes queued on all lanes would exceed the limit. The credits are
+ * returned once the image has been written.
+ */
+final class MultipageTiffWritingPool {
+   // Number of tasks a lane runs before yielding its pool thread, so that a
+   // single busy file cannot starve the others
+   private static final int MAX_TASKS_PER_TURN = 32;
+   // Number of recent images over which write latency percentiles are computed
+   private static final int LATENCY_WINDOW = 1024;
+
+   private final ThreadPoolExecutor executor_;
+   private final int numThreads_;
+   private final Object idleLock_ = new Object();
+   private int pendingTasks_ = 0;
+
+   private final long maxQueuedBytes_;
+   private final ReentrantLock creditLock_ = new ReentrantLock();
+   private final Condition creditReturned_ = creditLock_.newCondition();
+   // All guarded by creditLock_
+   private long queuedBytes_ = 0;
+   private long imagesWritten_ = 0;
+   private long bytesWritten_ = 0;
+   private long stallCount_ = 0;
+   private long stallTimeNs_ = 0;
+   private final long[] latenciesNs_ = new long[LATENCY_WINDOW];
+
+   MultipageTiffWritingPool(int numThreads, long maxQueuedBytes) {
+      numThreads_ = Math.max(1, numThreads);
+      maxQueuedBytes_ = maxQueuedBytes;
+      final AtomicInteger threadCount = new AtomicInteger(0);
+      executor_ = new ThreadPoolExecutor(numThreads_, numThreads_, 0,
+            TimeUnit.NANOSECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "MPTiff writer " +
+                        threadCount.getAndIncrement());
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+   }
+
+   public int getNumThreads() {
+      return numThreads_;
+   }
+
+   /**
+    * Reserve space for an image of the given size, blocking while the queue
+    * is full. An image larger than the limit is let through once the queue
+    * is empty. If the calling thread is interrupted, it stops waiting and
+    * the space is taken anyway (the interrupt status is kept).
+    * @return the time at which the image entered the queue, to be passed
+    * to imageWritten()
+    */
+   public long acquireCredits(long numBytes) {
+      creditLock_.lock();
+      try {
+         if (!hasRoomFor(numBytes)) {
+            long stallStart = System.nanoTime();
+            stallCount_++;
+            try {
+               while (!hasRoomFor(numBytes)) {
+                  creditReturned_.await();
+               }
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            stallTimeNs_ += System.nanoTime() - stallStart;
+         }
+         queuedBytes_ += numBytes;
+      } finally {
+         creditLock_.unlock();
+      }
+      return System.nanoTime();
+   }
+
+   private boolean hasRoomFor(long numBytes) {
+      return queuedBytes_ == 0 || queuedBytes_ + numBytes <= maxQueuedBytes_;
+   }
+
+   /**
+    * Return the credits of an image once it has been written, and record its
+    * write latency.
+    */
+   public void imageWritten(long numBytes, long queuedTimeNs) {
+      long latency = System.nanoTime() - queuedTimeNs;
+      creditLock_.lock();
+      try {
+         queuedBytes_ -= numBytes;
+         latenciesNs_[(int) (imagesWritten_ % LATENCY_WINDOW)] = latency;
+         imagesWritten_++;
+         bytesWritten_ += numBytes;
+         creditReturned_.signalAll();
+      } finally {
+         creditLock_.unlock();
+      }
+   }
+
+   /**
+    * Return the credits of an image that failed before it could be queued
+    * for writing. It isn't counted as written.
+    */
+   public void releaseCredits(long numBytes) {
+      creditLock_.lock();
+      try {
+         queuedBytes_ -= numBytes;
+         creditReturned_.signalAll();
+      } finally {
+         creditLock_.unlock();
+      }
+   }
+
+   public MultipageTiffWritingMetrics getMetrics() {
+      creditLock_.lock();
+      try {
+         long[] latencies = Arrays.copyOf(latenciesNs_,
+               (int) Math.min(imagesWritten_, LATENCY_WINDOW));
+         Arrays.sort(latencies);
+         return new MultipageTiffWritingMetrics(queuedBytes_, maxQueuedBytes_,
+               imagesWritten_, bytesWritten_, stallCount_, stallTimeNs_,
+               latencies);
+      } finally {
+         creditLock_.unlock();
+      }
+   }
+
+   /**
+    * Create a new ordered lane of execution. Used once per file.
+    */
+   public Lane newLane() {
+      return new Lane();
+   }
+
+   /**
+    * @return the number of writing tasks submitted to any lane that have not
+    * finished yet
+    */
+   public int getPendingTaskCount() {
+      synchronized (idleLock_) {
+         return pendingTasks_;
+      }
+   }
+
+   /**
+    * Wait until every task submitted so far has completed.
+    * @return false if the timeout elapsed first
+    */
+   public boolean awaitIdle(long timeout, TimeUnit unit)
+         throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      synchronized (idleLock_) {
+         while (pendingTasks_ > 0) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(
+                  deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+               return false;
+            }
+            idleLock_.wait(remainingMs);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Stop the pool threads. Callers should call awaitIdle() first; lanes
+    * cannot be used after this.
+    */
+   public void shutdown() {
+      executor_.shutdown();
+   }
+
+   public boolean isShutdown() {
+      return executor_.isShutdown();
+   }
+
+   private void taskAdded() {
+      synchronized (idleLock_) {
+         pendingTasks_++;
+      }
+   }
+
+   private void taskDone() {
+      synchronized (idleLock_) {
+         pendingTasks_--;
+         if (pendingTasks_ == 0) {
+            idleLock_.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Serial executor running on the shared pool.
+    */
+   final class Lane implements Executor {
+      private final LinkedList<Runnable> tasks_ = new LinkedList<Runnable>();
+      private boolean scheduled_ = false;
+
+      private final Runnable drainer_ = new Runnable() {
+         @Override
+         public void run() {
+            drain();
+         }
+      };
+
+      @Override
+      public void execute(Runnable task) {
+         taskAdded();
+         boolean schedule;
+         synchronized (this) {
+            tasks_.add(task);
+            schedule = !scheduled_;
+            scheduled_ = true;
+         }
+         if (schedule) {
+            executor_.execute(drainer_);
+         }
+      }
+
+      private void drain() {
+         for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+            Runnable task;
+            synchronized (this) {
+               task = tasks_.poll();
+               if (task == null) {
+                  scheduled_ = false;
+                  return;
+               }
+            }
+            try {
+               task.run();
+            } catch (RuntimeException e) {
+               ReportingUtils.logError(e, "Error in image writing task");
+            } finally {
+               taskDone();
+            }
+         }
+         // Give the other lanes a turn; the remaining tasks of this lane go
+         // to the back of the pool's queue. The pool is only shut down once
+         // all lanes are idle, so this cannot be rejected.
+         executor_.execute(drainer_);
+      }
+   }
+}
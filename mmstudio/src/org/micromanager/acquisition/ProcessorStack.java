@@ -21,9 +21,10 @@
 package org.micromanager.acquisition;
 
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import mmcorej.TaggedImage;
+import org.micromanager.MMStudio;
 import org.micromanager.api.DataProcessor;
 import org.micromanager.utils.ReportingUtils;
 
@@ -34,6 +35,11 @@ import org.micromanager.utils.ReportingUtils;
  * DataProcessor will modify the image and pass it along to the next 
  * DataProcessor
  *
+ * Consecutive processors are linked by fixed-size array queues, which let
+ * each processor get ahead of the next by queueDepth objects without
+ * allocating anything per object. Stateless processors (see
+ * DataProcessor.isStateless()) run on numThreads threads.
+ *
  * @author arthur
  */
 public class ProcessorStack<E> {
@@ -41,8 +47,21 @@ public class ProcessorStack<E> {
    private final List<DataProcessor<E>> processors_;
    private final BlockingQueue<E> input_;
    private final BlockingQueue<E> output_;
+
+   public static final int DEFAULT_QUEUE_DEPTH = 4;
+
    public ProcessorStack(BlockingQueue<E> input,
            List<DataProcessor<E>> processors) {
+      this(input, processors, DEFAULT_QUEUE_DEPTH,
+              Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * @param queueDepth capacity of the queues between processors
+    * @param numThreads number of threads for each stateless processor
+    */
+   public ProcessorStack(BlockingQueue<E> input,
+           List<DataProcessor<E>> processors, int queueDepth, int numThreads) {
       processors_ = processors;
       input_ = input;
 
@@ -51,7 +70,9 @@ public class ProcessorStack<E> {
       if (processors_ != null) {
          for (DataProcessor<E> processor : processors_) {
             if (processor.getIsEnabled()) {
-               right = new LinkedBlockingQueue<E>(1);
+               right = new ArrayBlockingQueue<E>(Math.max(1, queueDepth));
+               processor.setNumThreads(numThreads);
+               processor.getStatistics().reset();
                processor.setInput(left);
                processor.setOutput(right);
                left = right;
@@ -79,6 +100,23 @@ public class ProcessorStack<E> {
       }
    }
 
+   /**
+    * @return the latency and throughput of each enabled processor, one per
+    * line
+    */
+   public String getStatistics() {
+      StringBuilder statistics = new StringBuilder();
+      if (processors_ != null) {
+         for (DataProcessor<E> processor : processors_) {
+            if (processor.getIsEnabled()) {
+               statistics.append(processor.getName()).append(": ")
+                       .append(processor.getStatistics()).append("\n");
+            }
+         }
+      }
+      return statistics.toString();
+   }
+
    private static Object processorInputOutputLock_ = new Object();
 
    /**
@@ -91,8 +129,19 @@ public class ProcessorStack<E> {
            BlockingQueue<TaggedImage> inputTaggedImageQueue, 
            List<DataProcessor<TaggedImage>> imageProcessors) {
       synchronized(processorInputOutputLock_) {
+         int queueDepth = DEFAULT_QUEUE_DEPTH;
+         int numThreads = 0;
+         MMStudio studio = MMStudio.getInstance();
+         if (studio != null) {
+            queueDepth = studio.getProcessorQueueDepth();
+            numThreads = studio.getProcessorThreads();
+         }
+         if (numThreads <= 0) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+         }
          ProcessorStack<TaggedImage> processorStack =
-              new ProcessorStack<TaggedImage>(inputTaggedImageQueue, imageProcessors);
+              new ProcessorStack<TaggedImage>(inputTaggedImageQueue,
+                      imageProcessors, queueDepth, numThreads);
          return processorStack.begin();
       }
    }
@@ -25,25 +25,25 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import javax.swing.JOptionPane;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
+import org.micromanager.api.ImageCoordinateIndex;
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.imagedisplay.DisplaySettings;
-import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.DirectBufferPool;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
@@ -55,6 +55,9 @@ import org.micromanager.utils.ReportingUtils;
 public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage {
    
    private static final int SPACE_FOR_PARTIAL_OME_MD = 2000; //this should be more than enough
+   //Image bytes allowed in the writing queue before putImage blocks
+   private static final long MAX_QUEUED_WRITING_BYTES =
+           Math.max(64L << 20, Runtime.getRuntime().maxMemory() / 8);
    
    private JSONObject summaryMetadata_;
    private String summaryMetadataString_ = null;
@@ -73,25 +76,39 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    private boolean fixIndexMap_ = false;
    private final boolean fastStorageMode_;
    private int lastAcquiredPosition_ = 0;
-   private ThreadPoolExecutor writingExecutor_;
+   private final int numWritingThreads_;
+   private MultipageTiffWritingPool writingPool_;
+   private volatile boolean memoryMappedReading_ = false;
 
    // Images currently being written (need to keep around so that they can be
    // returned upon request via getImage()). The data structure must be
    // synchronized because the write completion is detected on a background
    // thread.
-   private ConcurrentHashMap<String, TaggedImage> writePendingImages_ =
-      new ConcurrentHashMap<String, TaggedImage>();
+   private ConcurrentHashMap<Long, TaggedImage> writePendingImages_ =
+      new ConcurrentHashMap<Long, TaggedImage>();
 
    //map of position indices to objects associated with each
    private HashMap<Integer, FileSet> fileSets_;
    
-   //Map of image labels to file 
-   private TreeMap<String, MultipageTiffReader> tiffReadersByLabel_;
+   //Map of images (by ImageCoordinateIndex key) to file 
+   private ImageCoordinateIndex<MultipageTiffReader> tiffReadersByKey_;
+   //Order of imageKeys(), from the summary metadata
+   private boolean slicesFirst_ = false;
+   private boolean timeFirst_ = false;
+   
+   //Locations of the images written, saved as the dataset's index file when finished
+   private MultipageTiffIndex.Builder indexBuilder_;
+   //When a saved dataset is opened from its index file, images are looked up
+   //there and tiffReadersByKey_ is only filled in if imageKeys() is called
+   private MultipageTiffIndex openedIndex_;
+   private MultipageTiffReader[] indexedReaders_;
+   private boolean indexedKeysLoaded_ = false;
   
    public TaggedImageStorageMultipageTiff(String dir, Boolean newDataSet, JSONObject summaryMetadata) throws IOException {            
       this(dir, newDataSet, summaryMetadata, MMStudio.getInstance().getMetadataFileWithMultipageTiff(),
               MMStudio.getInstance().getSeparateFilesForPositionsMPTiff(),
-              true);
+              true, MMStudio.getInstance().getMultipageTiffWritingThreads());
+      setMemoryMappedReading(MMStudio.getInstance().getMemoryMappedReadingMPTiff());
    }
    
    /*
@@ -99,14 +116,28 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
     */
    public TaggedImageStorageMultipageTiff(String dir, boolean newDataSet, JSONObject summaryMetadata, 
          boolean separateMDFile, boolean separateFilesForPositions, boolean fastStorageMode) throws IOException {
+      this(dir, newDataSet, summaryMetadata, separateMDFile, separateFilesForPositions,
+              fastStorageMode, 1);
+   }
+
+   /*
+    * In fast storage mode, numWritingThreads is the size of the pool shared by
+    * all open files. Each file is written in order on its own lane of the pool,
+    * so with more than one thread independent files (e.g. one per XY position)
+    * are written in parallel.
+    */
+   public TaggedImageStorageMultipageTiff(String dir, boolean newDataSet, JSONObject summaryMetadata, 
+         boolean separateMDFile, boolean separateFilesForPositions, boolean fastStorageMode,
+         int numWritingThreads) throws IOException {
       fastStorageMode_ = fastStorageMode;
+      numWritingThreads_ = Math.max(1, numWritingThreads);
       omeTiff_ = true;
       separateMetadataFile_ = separateMDFile;
       splitByXYPosition_ = separateFilesForPositions;
 
       newDataSet_ = newDataSet;
       directory_ = dir;
-      tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator());
+      tiffReadersByKey_ = new ImageCoordinateIndex<MultipageTiffReader>();
       setSummaryMetadata(summaryMetadata);
 
       // TODO: throw error if no existing dataset
@@ -132,16 +163,53 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       }
    }
    
-   public ThreadPoolExecutor getWritingExecutor() {
-      return writingExecutor_;
+   /*
+    * Returns the pool on which all files are written, or null if images
+    * are written synchronously (i.e. not in fast storage mode)
+    */
+   MultipageTiffWritingPool getWritingPool() {
+      return writingPool_;
+   }
+
+   synchronized MultipageTiffIndex.Builder getIndexBuilder() {
+      if (indexBuilder_ == null) {
+         indexBuilder_ = new MultipageTiffIndex.Builder();
+      }
+      return indexBuilder_;
+   }
+
+   public int getNumWritingThreads() {
+      return numWritingThreads_;
+   }
+
+   /*
+    * Returns a snapshot of the writing queue state (queued bytes, write latency,
+    * time spent blocked waiting for the disk), or null if images are written
+    * synchronously or no image has been written yet
+    */
+   public MultipageTiffWritingMetrics getWritingMetrics() {
+      if (writingPool_ == null) {
+         return null;
+      }
+      return writingPool_.getMetrics();
+   }
+
+   /*
+    * Number of writing tasks queued on all files that haven't completed yet
+    */
+   public int getPendingWritingTaskCount() {
+      if (writingPool_ == null) {
+         return 0;
+      }
+      return writingPool_.getPendingTaskCount();
    }
    
    boolean slicesFirst() {
-      return ((ImageLabelComparator) tiffReadersByLabel_.comparator()).getSlicesFirst();
+      return slicesFirst_;
    }
    
    boolean timeFirst() {
-      return ((ImageLabelComparator) tiffReadersByLabel_.comparator()).getTimeFirst();
+      return timeFirst_;
    }
    
    public boolean getFixIndexMap() {
@@ -156,6 +224,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       //Need to throw error if file not found
       MultipageTiffReader reader = null;
       File dir = new File(directory_);
+      if (openIndexedDataSet(dir)) {
+         return;
+      }
 
       ProgressBar progressBar = new ProgressBar("Reading " + directory_, 0, dir.listFiles().length);
       int numRead = 0;
@@ -179,6 +250,63 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       progressBar.setVisible(false);
    }
 
+   /*
+    * Open the files listed in the dataset's index file, without reading their
+    * index maps. Returns false if there is no usable index file.
+    */
+   private boolean openIndexedDataSet(File dir) {
+      MultipageTiffIndex index = MultipageTiffIndex.open(dir);
+      if (index == null) {
+         return false;
+      }
+      MultipageTiffReader[] readers = new MultipageTiffReader[index.getNumFiles()];
+      try {
+         for (int i = 0; i < readers.length; i++) {
+            readers[i] = new MultipageTiffReader(new File(dir, index.getFileName(i)), index, i);
+            readers[i].setMemoryMapped(memoryMappedReading_);
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't open dataset from its index file, reading files instead");
+         for (MultipageTiffReader r : readers) {
+            if (r != null) {
+               try {
+                  r.close();
+               } catch (IOException e) {
+                  ReportingUtils.logError(e);
+               }
+            }
+         }
+         return false;
+      }
+      openedIndex_ = index;
+      indexedReaders_ = readers;
+      lastFrameOpenedDataSet_ = index.getLastFrame();
+      if (readers.length > 0) {
+         setSummaryMetadata(readers[readers.length - 1].getSummaryMetadata(), true);
+         displayAndComments_ = readers[readers.length - 1].getDisplayAndComments();
+      }
+      return true;
+   }
+
+   private MultipageTiffReader getReader(long key) {
+      MultipageTiffReader reader = tiffReadersByKey_.get(key);
+      if (reader == null && openedIndex_ != null) {
+         int entry = openedIndex_.find(key);
+         if (entry >= 0) {
+            reader = indexedReaders_[openedIndex_.getFileId(entry)];
+         }
+      }
+      return reader;
+   }
+
+   private Set<MultipageTiffReader> getAllReaders() {
+      Set<MultipageTiffReader> readers = new HashSet<MultipageTiffReader>(tiffReadersByKey_.values());
+      if (indexedReaders_ != null) {
+         readers.addAll(Arrays.asList(indexedReaders_));
+      }
+      return readers;
+   }
+
    private MultipageTiffReader loadFile(File f) {
       MultipageTiffReader reader = null;
       try {
@@ -203,11 +331,10 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             // Open the file normally.
             reader = new MultipageTiffReader(f);
          }
-         Set<String> labels = reader.getIndexKeys();
-         for (String label : labels) {
-            tiffReadersByLabel_.put(label, reader);
-            int frameIndex = Integer.parseInt(label.split("_")[2]);
-            lastFrameOpenedDataSet_ = Math.max(frameIndex, lastFrameOpenedDataSet_);
+         reader.setMemoryMapped(memoryMappedReading_);
+         for (long key : reader.getIndexKeys()) {
+            tiffReadersByKey_.put(key, reader);
+            lastFrameOpenedDataSet_ = Math.max(ImageCoordinateIndex.getFrame(key), lastFrameOpenedDataSet_);
          }
       } catch (IOException ex) {
          ReportingUtils.showError("Couldn't open file: " + f.toString());
@@ -217,27 +344,75 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
    @Override
    public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
-      String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex);
+      long key = ImageCoordinateIndex.pack(channelIndex, sliceIndex, frameIndex, positionIndex);
 
-      TaggedImage image = writePendingImages_.get(label);
+      TaggedImage image = writePendingImages_.get(key);
       if (image != null) {
          return image;
       }
 
-      MultipageTiffReader reader = tiffReadersByLabel_.get(label);
+      MultipageTiffReader reader = getReader(key);
       if (reader == null) {
          return null;
       }
-      return reader.readImage(label);
+      return reader.readImage(key);
    }
 
    @Override
    public JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
-      TaggedImage image = getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
-      if (image == null) {
+      long key = ImageCoordinateIndex.pack(channelIndex, sliceIndex, frameIndex, positionIndex);
+
+      TaggedImage image = writePendingImages_.get(key);
+      if (image != null) {
+         return image.tags;
+      }
+
+      MultipageTiffReader reader = getReader(key);
+      if (reader == null) {
          return null;
       }
-      return image.tags;
+      return reader.readImageTags(key);
+   }
+
+   /**
+    * Pixels of an image without its metadata. With memory mapped reading
+    * enabled, this is a read-only view of the file that doesn't copy the
+    * pixels (use asShortBuffer() for 16 bit images); otherwise it is a copy.
+    * Images that are still waiting to be written are returned as they are in
+    * memory.
+    * @return null if the image isn't in this dataset
+    */
+   public ByteBuffer getPixelBuffer(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
+      long key = ImageCoordinateIndex.pack(channelIndex, sliceIndex, frameIndex, positionIndex);
+
+      TaggedImage image = writePendingImages_.get(key);
+      if (image != null) {
+         if (image.pix instanceof short[]) {
+            short[] pix = (short[]) image.pix;
+            ByteBuffer buffer = ByteBuffer.allocate(2 * pix.length).order(MultipageTiffWriter.BYTE_ORDER);
+            buffer.asShortBuffer().put(pix);
+            return buffer;
+         }
+         return ByteBuffer.wrap((byte[]) image.pix).order(MultipageTiffWriter.BYTE_ORDER);
+      }
+
+      MultipageTiffReader reader = getReader(key);
+      if (reader == null) {
+         return null;
+      }
+      return reader.readPixelBuffer(key);
+   }
+
+   /**
+    * Read finished files through memory mappings rather than by copying into
+    * new buffers. Applies to the files already open and to those opened or
+    * written later.
+    */
+   public void setMemoryMappedReading(boolean memoryMapped) {
+      memoryMappedReading_ = memoryMapped;
+      for (MultipageTiffReader r : getAllReaders()) {
+         r.setMemoryMapped(memoryMapped);
+      }
    }
 
    /*
@@ -253,8 +428,17 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
    @Override
    public void putImage(TaggedImage taggedImage) throws MMException, IOException {
-      final String label = MDUtils.getLabel(taggedImage.tags);
-      startWritingTask(label, taggedImage);
+      final Long key;
+      try {
+         key = MDUtils.getImageKey(taggedImage.tags);
+      } catch (JSONException ex) {
+         throw new MMException("Image has no channel, slice, frame or position index");
+      }
+      Executor lane = startWritingTask(key, taggedImage);
+      if (lane == null) {
+         // Image was written synchronously
+         return;
+      }
 
       // Now, we must hold on to taggedImage, so that we can return it if
       // somebody calls getImage() before the writing is finished.
@@ -262,37 +446,37 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       // that would be a bad thing to do anyway (will break the writer) and is
       // considered forbidden.
 
-      // We are here depending on the fact that writingExecutor_ is a
-      // single-thread ThreadPoolExecutor, and that submitted tasks are
-      // executed in order. A better implementation might use Guava's
-      // ListenableFuture.
+      // We are here depending on the fact that tasks submitted to the
+      // writing lane of a file are executed in order, so the removal runs
+      // after the image's own writing tasks. A better implementation might
+      // use Guava's ListenableFuture.
       // Also note that the image will be dropped if the writing fails due to
       // any error. This is acceptable for disk-backed storage.
-      writePendingImages_.put(label, taggedImage);
-      writingExecutor_.submit(new Runnable() {
+      writePendingImages_.put(key, taggedImage);
+      lane.execute(new Runnable() {
          @Override public void run() {
-            writePendingImages_.remove(label);
+            writePendingImages_.remove(key);
          }
       });
    }
 
    /*
     * Sets up and kicks off the writing of a new image. This, in an indirect
-    * way, ends up submitting the writing task to writingExecutor_.
+    * way, ends up submitting the writing task to the writing lane of the
+    * file the image goes to. Returns that lane, or null if the image was
+    * written synchronously.
     */
-   private void startWritingTask(String label, TaggedImage taggedImage)
+   private Executor startWritingTask(long key, TaggedImage taggedImage)
       throws MMException, IOException
    {
       if (!newDataSet_) {
          ReportingUtils.showError("Tried to write image to a finished data set");
          throw new MMException("This ImageFileManager is read-only.");
       }
-      //initialize writing executor
-      if (fastStorageMode_ && writingExecutor_ == null) {
-         // Note: Code elsewhere assumes that the writing task is performed on
-         // a _single_ background thread.
-         writingExecutor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
-                 new LinkedBlockingQueue<java.lang.Runnable>());
+      //initialize writing pool
+      if (fastStorageMode_ && writingPool_ == null) {
+         writingPool_ = new MultipageTiffWritingPool(numWritingThreads_,
+                 MAX_QUEUED_WRITING_BYTES);
       }
       int fileSetIndex = 0;
       if (splitByXYPosition_) {
@@ -323,7 +507,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       FileSet set = fileSets_.get(fileSetIndex);
       try {
          set.writeImage(taggedImage);
-         tiffReadersByLabel_.put(label, set.getCurrentReader());
+         MultipageTiffReader reader = set.getCurrentReader();
+         reader.setMemoryMapped(memoryMappedReading_);
+         tiffReadersByKey_.put(key, reader);
       } catch (IOException ex) {
         ReportingUtils.showError("problem writing image to file");
       }
@@ -336,11 +522,25 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          frame = 0;
       }
       lastFrameOpenedDataSet_ = Math.max(frame, lastFrameOpenedDataSet_);
+      return set.getCurrentWritingLane();
    }
 
+   /**
+    * Labels of all images, in acquisition order. This is a snapshot built on
+    * each call; images are looked up internally by ImageCoordinateIndex key.
+    */
    @Override
    public Set<String> imageKeys() {
-      return tiffReadersByLabel_.keySet();
+      if (openedIndex_ != null && !indexedKeysLoaded_) {
+         //Only built when asked for: lookups go through the index
+         for (MultipageTiffReader reader : indexedReaders_) {
+            for (long key : reader.getIndexKeys()) {
+               tiffReadersByKey_.put(key, reader);
+            }
+         }
+         indexedKeysLoaded_ = true;
+      }
+      return tiffReadersByKey_.labels(slicesFirst_, timeFirst_);
    }
 
    /**
@@ -420,21 +620,30 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             count++;
             progressBar.setProgress(count);
          }            
-         //shut down writing executor--pause here until all tasks have finished writing
+         //shut down writing pool--pause here until all tasks have finished writing
          //so that no attempt is made to close the dataset (and thus the FileChannel)
          //before everything has finished writing
          //mkae sure all images have finished writing if they are on seperate thread 
-         if (writingExecutor_ != null && !writingExecutor_.isShutdown()) {
-            writingExecutor_.shutdown();
+         if (writingPool_ != null && !writingPool_.isShutdown()) {
             try {
-               //now that shutdown has been called, need to wait for tasks to finish
-               while (!writingExecutor_.awaitTermination(4, TimeUnit.SECONDS)) {
+               while (!writingPool_.awaitIdle(4, TimeUnit.SECONDS)) {
                   ReportingUtils.logMessage("Waiting for image stack file finishing to complete");
                }
             } catch (InterruptedException e) {
                ReportingUtils.logError("File finishing thread interrupted");
                Thread.interrupted();
             }
+            writingPool_.shutdown();
+            ReportingUtils.logMessage("Image stack file writing: " + writingPool_.getMetrics()
+                    + "; direct buffers: " + DirectBufferPool.getSharedPool());
+         }
+         //all files now have their final length
+         if (indexBuilder_ != null) {
+            try {
+               indexBuilder_.write(new File(directory_));
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex, "Couldn't write index file; the dataset will open more slowly");
+            }
          }
       } catch (IOException ex) {
          ReportingUtils.logError(ex);
@@ -450,7 +659,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
     */
    @Override
    public void close() {
-      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
+      for (MultipageTiffReader r : getAllReaders()) {
          try {
             r.close();
          } catch (IOException ex) {
@@ -474,24 +683,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       summaryMetadataString_ = null;
       if (summaryMetadata_ != null) {
          summaryMetadataString_ = md.toString();
-         boolean slicesFirst = summaryMetadata_.optBoolean("SlicesFirst", true);
-         boolean timeFirst = summaryMetadata_.optBoolean("TimeFirst", false);
-         TreeMap<String, MultipageTiffReader> oldImageMap = tiffReadersByLabel_;
-         tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator(slicesFirst, timeFirst));
-         if (showProgress) {
-            ProgressBar progressBar = new ProgressBar("Building image location map", 0, oldImageMap.keySet().size());
-            progressBar.setProgress(0);
-            progressBar.setVisible(true);
-            int i = 1;
-            for (String label : oldImageMap.keySet()) {
-               tiffReadersByLabel_.put(label, oldImageMap.get(label));
-               progressBar.setProgress(i);
-               i++;
-            }
-            progressBar.setVisible(false);
-         } else {
-            tiffReadersByLabel_.putAll(oldImageMap);
-         }
+         //Only affects the order of imageKeys(), which is sorted on demand
+         slicesFirst_ = summaryMetadata_.optBoolean("SlicesFirst", true);
+         timeFirst_ = summaryMetadata_.optBoolean("TimeFirst", false);
          if (summaryMetadata_ != null && summaryMetadata_.length() > 0) {
             processSummaryMD();
          }
@@ -519,7 +713,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
           
    @Override   
    public void writeDisplaySettings() {
-      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
+      for (MultipageTiffReader r : getAllReaders()) {
          try {
             r.rewriteDisplaySettings(displayAndComments_.getJSONArray("Channels"));
             r.rewriteComments(displayAndComments_.getJSONObject("Comments"));
@@ -644,10 +838,14 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       public MultipageTiffReader getCurrentReader() {
          return tiffWriters_.getLast().getReader();
       }
+
+      public Executor getCurrentWritingLane() {
+         return tiffWriters_.getLast().getWritingLane();
+      }
       
       public void overwritePixels(Object pixels, int channel, int slice, int frame, int position) throws IOException {
          for (MultipageTiffWriter w : tiffWriters_) {
-            if (w.getIndexMap().containsKey(MDUtils.generateLabel(channel, slice, frame, position))) {
+            if (w.getIndexMap().get(channel, slice, frame, position) != null) {
                w.overwritePixels(pixels, channel, slice, frame, position);
             }
          }
@@ -656,8 +854,19 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       public int getCurrentFrame() {
          return currentFrame_;
       }
+
+      private void addFileName(TaggedImage img) {
+         try {
+            img.tags.put("FileName", currentTiffFilename_);
+         } catch (JSONException ex) {
+            ReportingUtils.logError("Error adding filename to metadata");
+         }
+      }
       
       public void writeImage(TaggedImage img) throws IOException {
+         //Add filename to image tags before measuring them, so that the JSON
+         //text cached by ImageTags is reused when writing
+         addFileName(img);
          //check if current writer is out of space, if so, make a new one
          if (!tiffWriters_.getLast().hasSpaceToWrite(img, omeTiff_ ?  SPACE_FOR_PARTIAL_OME_MD : 0  )) {
             //write index map here but still need to call close() at end of acq
@@ -668,15 +877,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             ifdCount_ = 0;
             tiffWriters_.add(new MultipageTiffWriter(directory_ ,currentTiffFilename_, summaryMetadata_, mpTiff_,
                     fastStorageMode_, splitByXYPosition_));
+            addFileName(img);
          }      
 
-         //Add filename to image tags
-         try {
-            img.tags.put("FileName", currentTiffFilename_);
-         } catch (JSONException ex) {
-            ReportingUtils.logError("Error adding filename to metadata");
-         }
-
          //write image
          tiffWriters_.getLast().writeImage(img);  
                          
@@ -823,33 +1026,36 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          int numSlices = MDUtils.getNumSlices(summaryMetadata_);
          int numChannels = MDUtils.getNumChannels(summaryMetadata_);
          if (numFrames > frame + 1 ) {
-            TreeSet<String> writtenImages = new TreeSet<String>();
+            ImageCoordinateIndex<MultipageTiffWriter> writtenImages =
+                    new ImageCoordinateIndex<MultipageTiffWriter>();
             for (MultipageTiffWriter w : tiffWriters_) {
-               writtenImages.addAll(w.getIndexMap().keySet());
+               for (long key : w.getIndexMap().keys()) {
+                  writtenImages.put(key, w);
+               }
                w.setAbortedNumFrames(frame + 1);
             }
-            int positionIndex = MDUtils.getIndices(writtenImages.first())[3];
+            long[] writtenKeys = writtenImages.keys();
+            if (writtenKeys.length == 0) {
+               return;
+            }
+            int positionIndex = ImageCoordinateIndex.getPosition(writtenKeys[0]);
             if (omeTiff_) {
                omeMetadata_.setNumFrames(positionIndex, frame + 1);
             }
-            TreeSet<String> lastFrameLabels = new TreeSet<String>();
-            for (int c = 0; c < numChannels; c++) {
-               for (int z = 0; z < numSlices; z++) {
-                  lastFrameLabels.add(MDUtils.generateLabel(c, z, frame, positionIndex));
-               }
-            }
-            lastFrameLabels.removeAll(writtenImages);
             try {
-               for (String label : lastFrameLabels) {
-                  tiffWriters_.getLast().writeBlankImage(label);
-                  if (omeTiff_) {
-                     JSONObject dummyTags = new JSONObject();
-                     int channel = Integer.parseInt(label.split("_")[0]);
-                     int slice = Integer.parseInt(label.split("_")[1]);
-                     MDUtils.setChannelIndex(dummyTags, channel);
-                     MDUtils.setFrameIndex(dummyTags, frame);
-                     MDUtils.setSliceIndex(dummyTags, slice);
-                     omeMetadata_.addImageTagsToOME(dummyTags, ifdCount_, baseFilename_, currentTiffFilename_, currentTiffUUID_);
+               for (int c = 0; c < numChannels; c++) {
+                  for (int z = 0; z < numSlices; z++) {
+                     if (writtenImages.containsKey(ImageCoordinateIndex.pack(c, z, frame, positionIndex))) {
+                        continue;
+                     }
+                     tiffWriters_.getLast().writeBlankImage(MDUtils.generateLabel(c, z, frame, positionIndex));
+                     if (omeTiff_) {
+                        JSONObject dummyTags = new JSONObject();
+                        MDUtils.setChannelIndex(dummyTags, c);
+                        MDUtils.setFrameIndex(dummyTags, frame);
+                        MDUtils.setSliceIndex(dummyTags, z);
+                        omeMetadata_.addImageTagsToOME(dummyTags, ifdCount_, baseFilename_, currentTiffFilename_, currentTiffUUID_);
+                     }
                   }
                }
             } catch (IOException ex) {
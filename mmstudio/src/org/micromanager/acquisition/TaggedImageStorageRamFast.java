@@ -1,21 +1,24 @@
 
 package org.micromanager.acquisition;
 
-import java.nio.Buffer;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import mmcorej.ImageTags;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.micromanager.MMStudio;
+import org.micromanager.api.ImageCoordinateIndex;
 import org.micromanager.api.TaggedImageStorage;
-import org.micromanager.utils.DirectBuffers;
-import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.DirectSlabAllocator;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
-import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -23,22 +26,34 @@ import org.micromanager.utils.ReportingUtils;
  * @author arthur
  *
  * This class stores a collection of TaggedImages, all in ram.
+ *
+ * Pixels and metadata are copied into blocks of large off-heap slabs, within
+ * a byte budget. When the budget is nearly used up, the oldest frames are
+ * moved ("spilled") to a multipage TIFF dataset in a temporary directory by
+ * a background thread, and read back from there on request. putImage() only
+ * blocks if spilling can't keep up, and only fails (with an
+ * OutOfMemoryError, as before) if spilling isn't possible at all.
  */
 public class TaggedImageStorageRamFast implements TaggedImageStorage {
 
-   
-   private class DirectTaggedImage {
-       Buffer pixelBuffer;
-       ByteBuffer tagsBuffer;
+   //Spilling starts above the high water mark and continues down to the low
+   //water mark, as fractions of the budget
+   private static final double SPILL_HIGH_WATER = 0.9;
+   private static final double SPILL_LOW_WATER = 0.75;
+
+   private static class DirectTaggedImage {
+      DirectSlabAllocator.Block pixels;
+      DirectSlabAllocator.Block tags;
+      int bytesPerPixel;
    }
-   
+
    private class LRUCache<T,U> extends LinkedHashMap<T,U> {
       final long max_size_;
-      
+
       LRUCache(long max_size) {
          max_size_ = max_size;
       }
-      
+
       @Override
       protected boolean removeEldestEntry(Map.Entry eldest) {
          return super.size() > max_size_;
@@ -47,61 +62,214 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
 
    private boolean finished_ = false;
 
-   private TreeMap<String, DirectTaggedImage> imageMap_;
-   private LRUCache<String, TaggedImage> lruCache_;
+   private ImageCoordinateIndex<DirectTaggedImage> imageMap_;
+   private final Map<Long, TaggedImage> lruCache_;
+   private boolean slicesFirst_ = false;
+   private boolean timeFirst_ = false;
    private JSONObject summaryMetadata_;
    private JSONObject displaySettings_;
    private int lastFrame_ = -1;
 
    private String diskLocation_;
-   
+
+   private final DirectSlabAllocator slabs_;
+   //Held for reading while copying an image out of its blocks, and for
+   //writing while removing an image and freeing its blocks
+   private final ReentrantReadWriteLock blocksLock_ = new ReentrantReadWriteLock();
+
+   private final File spillDirectory_;
+   private final ImageCoordinateIndex<Boolean> spilledKeys_ =
+         new ImageCoordinateIndex<Boolean>();
+   private final Object spillLock_ = new Object();
+   private TaggedImageStorageMultipageTiff spillStorage_;
+   private Thread spillThread_;
+   private boolean spillRequested_ = false;
+   //Set while putImage() waits for space
+   private boolean allocationBlocked_ = false;
+   private boolean spillFailed_ = false;
+   private boolean closed_ = false;
+
+   /**
+    * Storage with the byte budget from the options (or an automatic one),
+    * spilling to a new directory under java.io.tmpdir.
+    */
    public TaggedImageStorageRamFast(JSONObject summaryMetadata) {
-      imageMap_ = new TreeMap<String, DirectTaggedImage>(new ImageLabelComparator());
+      this(summaryMetadata, getDefaultBudget(), null);
+   }
+
+   /**
+    * @param budget bytes of pixels and metadata kept in RAM
+    * @param spillDirectory where to write the frames that don't fit in the
+    * budget, or null for a new directory under java.io.tmpdir. It is
+    * deleted when the storage is closed.
+    */
+   public TaggedImageStorageRamFast(JSONObject summaryMetadata, long budget,
+         File spillDirectory) {
+      imageMap_ = new ImageCoordinateIndex<DirectTaggedImage>();
       setSummaryMetadata(summaryMetadata);
       displaySettings_ = new JSONObject();
-      lruCache_ = new LRUCache<String, TaggedImage>(10);
+      lruCache_ = Collections.synchronizedMap(new LRUCache<Long, TaggedImage>(10));
+      slabs_ = new DirectSlabAllocator(budget);
+      spillDirectory_ = spillDirectory;
    }
 
-   private ByteBuffer bufferFromJSON(JSONObject json) {
-      return DirectBuffers.bufferFromString(json.toString());
+   /**
+    * @return the RAM storage budget set in the options, or if that is 0,
+    * three quarters of the maximum heap size (which is also the JVM's default
+    * limit on direct memory)
+    */
+   public static long getDefaultBudget() {
+      MMStudio studio = MMStudio.getInstance();
+      long budgetMB = studio == null ? 0 : studio.getRamStorageBudgetMB();
+      if (budgetMB > 0) {
+         return budgetMB << 20;
+      }
+      return Runtime.getRuntime().maxMemory() / 4 * 3;
    }
-   
-   private JSONObject JSONFromBuffer(ByteBuffer byteBuffer) throws JSONException {
-      return new JSONObject(DirectBuffers.stringFromBuffer(byteBuffer));
+
+   private static int bytesPerPixel(Object pix) {
+      if (pix instanceof byte[]) {
+         return 1;
+      } else if (pix instanceof short[]) {
+         return 2;
+      } else if (pix instanceof int[]) {
+         return 4;
+      }
+      return 0;
+   }
+
+   private static int length(Object pix) {
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return ((short[]) pix).length;
+      }
+      return ((int[]) pix).length;
    }
-   
-   private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage) throws JSONException, MMScriptException{
+
+   /*
+    * Copies an image into slab blocks, waiting for the spilling thread to
+    * free space if needed. Returns null if the image has no pixel array.
+    */
+   private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage) {
+      int bytesPerPixel = bytesPerPixel(taggedImage.pix);
+      if (bytesPerPixel == 0) {
+         return null;
+      }
+      //Binary, so that reading the image back doesn't parse JSON
+      byte[] tagBytes = ImageTags.of(taggedImage.tags).toBytes();
       DirectTaggedImage direct = new DirectTaggedImage();
-      direct.tagsBuffer = bufferFromJSON(taggedImage.tags);
-      direct.pixelBuffer = DirectBuffers.bufferFromArray(taggedImage.pix);
+      direct.bytesPerPixel = bytesPerPixel;
+      direct.pixels = allocate(bytesPerPixel * length(taggedImage.pix));
+      try {
+         direct.tags = allocate(tagBytes.length);
+      } catch (OutOfMemoryError e) {
+         slabs_.free(direct.pixels);
+         throw e;
+      }
+
+      ByteBuffer pixels = direct.pixels.buffer();
+      if (bytesPerPixel == 1) {
+         pixels.put((byte[]) taggedImage.pix);
+      } else if (bytesPerPixel == 2) {
+         pixels.asShortBuffer().put((short[]) taggedImage.pix);
+      } else {
+         pixels.asIntBuffer().put((int[]) taggedImage.pix);
+      }
+      direct.tags.buffer().put(tagBytes);
       return direct;
    }
-   
+
    private TaggedImage directTaggedImageToTaggedImage(DirectTaggedImage directImage) {
-        if (directImage != null) {
+      ByteBuffer pixels = directImage.pixels.buffer();
+      Object pix;
+      if (directImage.bytesPerPixel == 1) {
+         byte[] bytes = new byte[pixels.capacity()];
+         pixels.get(bytes);
+         pix = bytes;
+      } else if (directImage.bytesPerPixel == 2) {
+         short[] shorts = new short[pixels.capacity() / 2];
+         pixels.asShortBuffer().get(shorts);
+         pix = shorts;
+      } else {
+         int[] ints = new int[pixels.capacity() / 4];
+         pixels.asIntBuffer().get(ints);
+         pix = ints;
+      }
+      return new TaggedImage(pix, tagsFromBlock(directImage.tags));
+   }
+
+   /*
+    * The tags are decoded when first accessed
+    */
+   private JSONObject tagsFromBlock(DirectSlabAllocator.Block block) {
+      ByteBuffer buffer = block.buffer();
+      byte[] bytes = new byte[buffer.capacity()];
+      buffer.get(bytes);
+      return ImageTags.fromBytes(bytes);
+   }
+
+   /*
+    * Allocates a block, asking the spilling thread for space and waiting
+    * for it when the budget is used up.
+    */
+   private DirectSlabAllocator.Block allocate(int numBytes) {
+      DirectSlabAllocator.Block block = slabs_.allocate(numBytes);
+      if (slabs_.getUsedBytes() > SPILL_HIGH_WATER * slabs_.getBudget()) {
+         requestSpill();
+      }
+      while (block == null) {
+         synchronized (spillLock_) {
+            //Nothing left to spill means the image is larger than the budget
+            if (spillFailed_ || closed_ || imageMap_.size() == 0) {
+               allocationBlocked_ = false;
+               throw new OutOfMemoryError("RAM storage budget of "
+                     + (slabs_.getBudget() >> 20) + " MB is used up");
+            }
+            allocationBlocked_ = true;
+            requestSpill();
             try {
-                return new TaggedImage(DirectBuffers.arrayFromBuffer(directImage.pixelBuffer),
-                                       JSONFromBuffer(directImage.tagsBuffer));
-            } catch (JSONException ex) {
-               ReportingUtils.logError(ex);
-               return null;
+               spillLock_.wait(100);
+            } catch (InterruptedException ex) {
+               allocationBlocked_ = false;
+               Thread.currentThread().interrupt();
+               throw new OutOfMemoryError("Interrupted while waiting for RAM storage space");
             }
-        } else {
-           return null;
-        } 
+         }
+         block = slabs_.allocate(numBytes);
+      }
+      synchronized (spillLock_) {
+         allocationBlocked_ = false;
+      }
+      return block;
    }
-   
+
    @Override
    public void putImage(final TaggedImage taggedImage) throws MMException {
-      String label = MDUtils.getLabel(taggedImage.tags);
       try {
+         long key = MDUtils.getImageKey(taggedImage.tags);
          // Allocate the direct tagged image before altering any data, in case
          // OutOfMemoryError is thrown.
          DirectTaggedImage directImage =
                taggedImageToDirectTaggedImage(taggedImage);
+         if (directImage == null) {
+            ReportingUtils.logError("Unsupported pixel array for RAM storage");
+            return;
+         }
 
-         lruCache_.put(label, taggedImage);
-         imageMap_.put(label, directImage);
+         lruCache_.put(key, taggedImage);
+         DirectTaggedImage previous;
+         blocksLock_.writeLock().lock();
+         try {
+            previous = imageMap_.put(key, directImage);
+            spilledKeys_.remove(key);
+            if (previous != null) {
+               slabs_.free(previous.pixels);
+               slabs_.free(previous.tags);
+            }
+         } finally {
+            blocksLock_.writeLock().unlock();
+         }
          lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImage.tags));
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
@@ -113,23 +281,225 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
         if (imageMap_ == null) {
             return null;
         }
-        String label = MDUtils.generateLabel(channel, slice, frame, position);
-        TaggedImage cachedImage = lruCache_.get(label);
+        long key = ImageCoordinateIndex.pack(channel, slice, frame, position);
+        TaggedImage cachedImage = lruCache_.get(key);
         if (cachedImage != null) {
            return cachedImage;
-        } else { // cache miss
-           return directTaggedImageToTaggedImage(imageMap_.get(label));
         }
+        blocksLock_.readLock().lock();
+        try {
+           DirectTaggedImage directImage = imageMap_.get(key);
+           if (directImage != null) {
+              return directTaggedImageToTaggedImage(directImage);
+           }
+        } finally {
+           blocksLock_.readLock().unlock();
+        }
+        TaggedImageStorage spillStorage = getSpillStorage(key);
+        return spillStorage == null ? null
+              : spillStorage.getImage(channel, slice, frame, position);
     }
 
    @Override
    public JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
-      return this.getImage(channelIndex, sliceIndex, frameIndex, positionIndex).tags;
+      long key = ImageCoordinateIndex.pack(channelIndex, sliceIndex, frameIndex, positionIndex);
+      TaggedImage cachedImage = lruCache_.get(key);
+      if (cachedImage != null) {
+         return cachedImage.tags;
+      }
+      blocksLock_.readLock().lock();
+      try {
+         DirectTaggedImage directImage = imageMap_.get(key);
+         if (directImage != null) {
+            return tagsFromBlock(directImage.tags);
+         }
+      } finally {
+         blocksLock_.readLock().unlock();
+      }
+      TaggedImageStorage spillStorage = getSpillStorage(key);
+      return spillStorage == null ? null
+            : spillStorage.getImageTags(channelIndex, sliceIndex, frameIndex, positionIndex);
+   }
+
+   private TaggedImageStorage getSpillStorage(long key) {
+      synchronized (spillLock_) {
+         return spilledKeys_.containsKey(key) ? spillStorage_ : null;
+      }
    }
 
    @Override
    public Set<String> imageKeys() {
-      return imageMap_.keySet();
+      blocksLock_.readLock().lock();
+      try {
+         if (spilledKeys_.size() == 0) {
+            return imageMap_.labels(slicesFirst_, timeFirst_);
+         }
+         ImageCoordinateIndex<Boolean> allKeys = new ImageCoordinateIndex<Boolean>(
+               imageMap_.size() + spilledKeys_.size());
+         for (long key : imageMap_.keys()) {
+            allKeys.put(key, Boolean.TRUE);
+         }
+         for (long key : spilledKeys_.keys()) {
+            allKeys.put(key, Boolean.TRUE);
+         }
+         return allKeys.labels(slicesFirst_, timeFirst_);
+      } finally {
+         blocksLock_.readLock().unlock();
+      }
+   }
+
+   private void requestSpill() {
+      synchronized (spillLock_) {
+         if (spillFailed_ || closed_) {
+            return;
+         }
+         spillRequested_ = true;
+         if (spillThread_ == null) {
+            spillThread_ = new Thread(new Runnable() {
+               @Override
+               public void run() {
+                  spillLoop();
+               }
+            }, "RAM storage spilling thread");
+            spillThread_.setDaemon(true);
+            spillThread_.start();
+         }
+         spillLock_.notifyAll();
+      }
+   }
+
+   private void spillLoop() {
+      while (true) {
+         synchronized (spillLock_) {
+            while (!spillRequested_ && !closed_) {
+               try {
+                  spillLock_.wait();
+               } catch (InterruptedException ex) {
+                  return;
+               }
+            }
+            if (closed_) {
+               return;
+            }
+            spillRequested_ = false;
+         }
+         try {
+            while (needsSpilling()) {
+               if (!spillOldestFrame()) {
+                  break;
+               }
+               synchronized (spillLock_) {
+                  spillLock_.notifyAll();
+               }
+            }
+         } catch (Exception ex) {
+            ReportingUtils.logError(ex, "Couldn't move images from RAM to disk");
+            synchronized (spillLock_) {
+               spillFailed_ = true;
+               spillLock_.notifyAll();
+            }
+            return;
+         }
+      }
+   }
+
+   /*
+    * Blocks are only reused once their whole slab is free, so a put can be
+    * blocked even below the low water mark; keep spilling until it isn't.
+    */
+   private boolean needsSpilling() {
+      synchronized (spillLock_) {
+         if (closed_) {
+            return false;
+         }
+         return allocationBlocked_
+               || slabs_.getUsedBytes() > SPILL_LOW_WATER * slabs_.getBudget();
+      }
+   }
+
+   /*
+    * Moves the images of the oldest frame (for one position, if positions
+    * are acquired first) to the spill storage. Returns false if there is
+    * nothing to spill.
+    */
+   private boolean spillOldestFrame() throws IOException, MMException {
+      long[] keys = imageMap_.sortedKeys(slicesFirst_, timeFirst_);
+      if (keys.length == 0) {
+         return false;
+      }
+      TaggedImageStorageMultipageTiff spillStorage = getOrCreateSpillStorage();
+      int frame = ImageCoordinateIndex.getFrame(keys[0]);
+      int position = ImageCoordinateIndex.getPosition(keys[0]);
+      for (long key : keys) {
+         if (ImageCoordinateIndex.getFrame(key) != frame
+               || ImageCoordinateIndex.getPosition(key) != position) {
+            break;
+         }
+         TaggedImage image;
+         blocksLock_.readLock().lock();
+         try {
+            DirectTaggedImage directImage = imageMap_.get(key);
+            if (directImage == null) {
+               continue;
+            }
+            image = directTaggedImageToTaggedImage(directImage);
+         } finally {
+            blocksLock_.readLock().unlock();
+         }
+         spillStorage.putImage(image);
+         blocksLock_.writeLock().lock();
+         try {
+            synchronized (spillLock_) {
+               spilledKeys_.put(key, Boolean.TRUE);
+            }
+            DirectTaggedImage directImage = imageMap_.remove(key);
+            if (directImage != null) {
+               slabs_.free(directImage.pixels);
+               slabs_.free(directImage.tags);
+            }
+         } finally {
+            blocksLock_.writeLock().unlock();
+         }
+         lruCache_.remove(key);
+      }
+      return true;
+   }
+
+   private TaggedImageStorageMultipageTiff getOrCreateSpillStorage() throws IOException {
+      if (spillStorage_ != null) {
+         return spillStorage_;
+      }
+      if (summaryMetadata_ == null) {
+         throw new IOException("No summary metadata to write images with");
+      }
+      File dir = spillDirectory_;
+      if (dir == null) {
+         dir = File.createTempFile("MMRamStorage", "");
+         if (!dir.delete()) {
+            throw new IOException("Couldn't create " + dir);
+         }
+      }
+      JSONObject summary;
+      try {
+         summary = new JSONObject(summaryMetadata_.toString());
+      } catch (JSONException ex) {
+         throw new IOException(ex.getMessage());
+      }
+      TaggedImageStorageMultipageTiff spillStorage = new TaggedImageStorageMultipageTiff(
+            dir.getAbsolutePath(), true, summary, false, false, true);
+      ReportingUtils.logMessage("RAM storage budget reached (" + slabs_
+            + "), moving oldest frames to " + dir);
+      synchronized (spillLock_) {
+         spillStorage_ = spillStorage;
+      }
+      return spillStorage;
+   }
+
+   /**
+    * @return the number of images moved out of RAM to the spill storage
+    */
+   public int getNumSpilledImages() {
+      return spilledKeys_.size();
    }
 
    @Override
@@ -147,15 +517,13 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
       summaryMetadata_ = md;
       if (summaryMetadata_ != null) {
          try {
-            boolean slicesFirst = summaryMetadata_.getBoolean("SlicesFirst");
-            boolean timeFirst = summaryMetadata_.getBoolean("TimeFirst");
-            TreeMap<String, DirectTaggedImage> oldImageMap = imageMap_;
-            imageMap_ = new TreeMap<String,DirectTaggedImage>(new ImageLabelComparator(slicesFirst,timeFirst));    
-            imageMap_.putAll(oldImageMap);
+            //only affects the order of imageKeys()
+            slicesFirst_ = summaryMetadata_.getBoolean("SlicesFirst");
+            timeFirst_ = summaryMetadata_.getBoolean("TimeFirst");
          } catch (JSONException ex) {
             ReportingUtils.logError("Couldn't find SlicesFirst or TimeFirst in summary metadata");
          }
-      }  
+      }
    }
 
    @Override
@@ -175,11 +543,43 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
 
    @Override
    public void close() {
-      imageMap_.clear();
+      Thread spillThread;
+      synchronized (spillLock_) {
+         closed_ = true;
+         spillThread = spillThread_;
+         spillLock_.notifyAll();
+      }
+      if (spillThread != null) {
+         try {
+            spillThread.join();
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      blocksLock_.writeLock().lock();
+      try {
+         imageMap_.clear();
+         slabs_.clear();
+      } finally {
+         blocksLock_.writeLock().unlock();
+      }
       lruCache_.clear();
+      if (spillStorage_ != null) {
+         spillStorage_.finished();
+         spillStorage_.close();
+         File dir = new File(spillStorage_.getDiskLocation());
+         File[] files = dir.listFiles();
+         if (files != null) {
+            for (File f : files) {
+               f.delete();
+            }
+         }
+         dir.delete();
+         spillStorage_ = null;
+      }
+      spilledKeys_.clear();
       summaryMetadata_ = null;
       displaySettings_ = null;
-      // do nothing for now.
    }
 
    /**
@@ -21,9 +21,13 @@
 
 package org.micromanager.api;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import mmcorej.TaggedImage;
 import org.micromanager.events.EventManager;
 import org.micromanager.events.ProcessorEnabledEvent;
 import org.micromanager.utils.ReportingUtils;
@@ -40,15 +44,42 @@ import org.micromanager.utils.ReportingUtils;
  * If you use your own constructor, make sure that it accepts no arguments.
  * If you need to initialize variables, do this in the makeConfigurationGUI 
  * method instead.  That method is the first to be called.
+ *
+ * Processors whose process() method handles each object on its own can
+ * override isStateless() to have process() run on several threads at once.
  */
 public abstract class DataProcessor<E> extends Thread {
    private BlockingQueue<E> input_;
-   private BlockingQueue<E> output_;
+   private volatile BlockingQueue<E> output_;
    private boolean stopRequested_ = false;
    private boolean started_ = false;
    // This boolean controls whether or not this DataProcessor will receive
    // images.
    private boolean isEnabled_ = true;
+   private int numThreads_ = 1;
+   private final ProcessorStatistics statistics_ = new ProcessorStatistics();
+   // When running on one thread, the time the object being processed was
+   // polled, or 0 if it is not timed
+   private long receivedNanos_ = 0;
+
+   // When running on several threads, each polled object takes the next slot
+   // of the ring, and results leave the ring in the same order, as soon as
+   // the results of all earlier objects have left. The slots and their
+   // result lists are reused, so reordering allocates nothing per object.
+   private Slot<E>[] ring_;
+   private long nextSeq_ = 0;
+   private long emitSeq_ = 0;
+   private final Object dispatchLock_ = new Object();
+   private final Object ringLock_ = new Object();
+   private final ReentrantLock emitLock_ = new ReentrantLock();
+   private final ThreadLocal<Slot<E>> currentSlot_ = new ThreadLocal<Slot<E>>();
+
+   private static final class Slot<E> {
+      long receivedNanos;
+      boolean done;
+      E result;
+      List<E> moreResults;
+   }
 
    /**
     * The scripting interface (commonly known as the "gui" object).
@@ -75,6 +106,18 @@ public abstract class DataProcessor<E> extends Thread {
     */
    protected abstract void process();
 
+   /**
+    * Override to return true if process() polls exactly one object per call
+    * and handles it independently of all other objects, keeping no state
+    * between calls other than settings. Such a processor may then run
+    * process() on several threads at once; whatever each call produces is
+    * passed on in the order in which the objects were polled. Stateless
+    * processors must not use drainTo().
+    */
+   public boolean isStateless() {
+      return false;
+   }
+
    /** 
     * Generate and show the GUI needed to configure the DataProcessor. 
     */
@@ -107,11 +150,70 @@ public abstract class DataProcessor<E> extends Thread {
    @Override
    public void run() {
       setStarted(true);
-      while (!stopRequested_) {
-         process();
+      int numThreads = getNumThreads();
+      if (isStateless() && numThreads > 1) {
+         startWorkers(numThreads - 1);
+      }
+      processLoop();
+   }
+
+   private void processLoop() {
+      while (!stopRequested()) {
+         try {
+            process();
+         } finally {
+            // Even if process() failed, so that the results of other threads
+            // are not held up behind this object
+            finishDatum();
+         }
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private void startWorkers(int numWorkers) {
+      ring_ = new Slot[Math.max(4, 2 * (numWorkers + 1))];
+      for (int i = 0; i < ring_.length; i++) {
+         ring_[i] = new Slot<E>();
+      }
+      for (int i = 0; i < numWorkers; i++) {
+         Thread worker = new Thread(getName() + " worker " + (i + 1)) {
+            @Override
+            public void run() {
+               processLoop();
+            }
+         };
+         worker.setDaemon(isDaemon());
+         worker.start();
       }
    }
 
+   /**
+    * Sets the number of threads running process() if the processor is
+    * stateless (see isStateless()). It has no effect once the processor has
+    * been started.
+    *
+    * Do not override this method. It is automatically called by the system
+    * to set up data processors.
+    */
+   public synchronized void setNumThreads(int numThreads) {
+      numThreads_ = Math.max(1, numThreads);
+   }
+
+   public synchronized int getNumThreads() {
+      return numThreads_;
+   }
+
+   /**
+    * Returns the latency and throughput of this processor. They are written
+    * to the log, and reset, whenever the end of an acquisition passes
+    * through the processor.
+    *
+    * Do not override this method (it should have been final).
+    */
+   public ProcessorStatistics getStatistics() {
+      return statistics_;
+   }
+
    /**
     * Request that the data processor stop processing. The current
     * processing event will continue, but no others will be started.
@@ -172,6 +274,7 @@ public abstract class DataProcessor<E> extends Thread {
     * Do not override this method (it should have been final).
     */
    protected E poll() {
+      finishDatum();
       while (!stopRequested()) {
          try {
             // Ensure that input_ doesn't change between checking nullness
@@ -181,7 +284,15 @@ public abstract class DataProcessor<E> extends Thread {
                tmpQueue = input_;
             }
             if (tmpQueue != null) {
-               E datum = tmpQueue.poll(100, TimeUnit.MILLISECONDS);
+               E datum;
+               if (ring_ == null) {
+                  datum = tmpQueue.poll(100, TimeUnit.MILLISECONDS);
+                  if (datum != null && !isEndOfStream(datum)) {
+                     receivedNanos_ = System.nanoTime();
+                  }
+               } else {
+                  datum = pollInOrder(tmpQueue);
+               }
                if (datum != null) {
                   return datum;
                }
@@ -197,6 +308,111 @@ public abstract class DataProcessor<E> extends Thread {
       return null;
    }
 
+   /*
+    * Polls the next object and assigns it the next slot of the ring, waiting
+    * while all slots hold results.
+    */
+   private E pollInOrder(BlockingQueue<E> queue) throws InterruptedException {
+      synchronized (dispatchLock_) {
+         Slot<E> slot;
+         synchronized (ringLock_) {
+            if (nextSeq_ - emitSeq_ >= ring_.length) {
+               ringLock_.wait(100);
+               return null;
+            }
+            slot = ring_[(int) (nextSeq_ % ring_.length)];
+         }
+         E datum = queue.poll(100, TimeUnit.MILLISECONDS);
+         if (datum != null) {
+            slot.receivedNanos = isEndOfStream(datum) ? 0 : System.nanoTime();
+            nextSeq_++;
+            currentSlot_.set(slot);
+         }
+         return datum;
+      }
+   }
+
+   /*
+    * Called when the current thread is done with the object it last polled.
+    */
+   private void finishDatum() {
+      if (ring_ == null) {
+         if (receivedNanos_ != 0) {
+            statistics_.record(receivedNanos_, System.nanoTime());
+            receivedNanos_ = 0;
+         }
+         return;
+      }
+      Slot<E> slot = currentSlot_.get();
+      if (slot == null) {
+         return;
+      }
+      currentSlot_.set(null);
+      if (slot.receivedNanos != 0) {
+         statistics_.record(slot.receivedNanos, System.nanoTime());
+      }
+      synchronized (ringLock_) {
+         slot.done = true;
+      }
+      emitInOrder();
+   }
+
+   /*
+    * Passes on the results of finished slots, in order. Only one thread
+    * does so at a time; the others leave their results to it.
+    */
+   private void emitInOrder() {
+      while (emitLock_.tryLock()) {
+         try {
+            while (true) {
+               Slot<E> slot;
+               synchronized (ringLock_) {
+                  slot = ring_[(int) (emitSeq_ % ring_.length)];
+                  if (!slot.done) {
+                     break;
+                  }
+               }
+               if (slot.result != null) {
+                  put(slot.result);
+                  slot.result = null;
+               }
+               if (slot.moreResults != null) {
+                  for (E result : slot.moreResults) {
+                     put(result);
+                  }
+                  slot.moreResults.clear();
+               }
+               synchronized (ringLock_) {
+                  slot.done = false;
+                  emitSeq_++;
+                  ringLock_.notifyAll();
+               }
+            }
+         } finally {
+            emitLock_.unlock();
+         }
+         // Another thread may have finished the next slot after we looked,
+         // and found the lock taken
+         synchronized (ringLock_) {
+            if (!ring_[(int) (emitSeq_ % ring_.length)].done) {
+               return;
+            }
+         }
+      }
+   }
+
+   /**
+    * The end of stream object (TaggedImageQueue.POISON) is an image without
+    * pixels or tags
+    */
+   private boolean isEndOfStream(E datum) {
+      if (!(datum instanceof TaggedImage)) {
+         return false;
+      }
+      TaggedImage image = (TaggedImage) datum;
+      return image.pix == null && image.tags == null;
+   }
+
    /**
     * A convenience method for draining all available data objects
     * on the input queue to a collection.
@@ -216,12 +432,30 @@ public abstract class DataProcessor<E> extends Thread {
     * Do not override this method (it should have been final).
     */
    protected void produce(E datum) {
+      Slot<E> slot = ring_ == null ? null : currentSlot_.get();
+      if (slot == null) {
+         put(datum);
+      } else if (slot.result == null) {
+         slot.result = datum;
+      } else {
+         if (slot.moreResults == null) {
+            slot.moreResults = new ArrayList<E>();
+         }
+         slot.moreResults.add(datum);
+      }
+   };
+
+   private void put(E datum) {
+      if (isEndOfStream(datum) && statistics_.getCount() > 0) {
+         ReportingUtils.logMessage("Processor " + getName() + ": " + statistics_);
+         statistics_.reset();
+      }
       try {
          output_.put(datum);
       } catch (InterruptedException ex) {
          ReportingUtils.logError(ex);
       }
-   };
+   }
 
    /**
     * Returns true if stop has been requested.
@@ -0,0 +1,483 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageCoordinateIndex.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Map from image coordinates (channel, slice, frame, position) to values,
+ * for storage classes that would otherwise key images by "c_z_t_p" label
+ * strings.
+ *
+ * Coordinates are packed into a single non-negative long (see pack()), and
+ * entries are kept in open-addressing primitive arrays, so put and get don't
+ * allocate. Labels are only produced on request, by labels(), for callers of
+ * TaggedImageStorage.imageKeys().
+ *
+ * Coordinates up to MAX_CHANNEL, MAX_SLICE, MAX_FRAME and MAX_POSITION are
+ * packed directly. Any other coordinates (larger, or negative) get a key from
+ * a process-wide overflow table instead, which works the same but costs a
+ * table lookup; keys are therefore only meaningful within one run and must
+ * not be saved. Values must not be null. All methods are synchronized, so an
+ * index can be shared by the thread writing images and the threads
+ * displaying them.
+ */
+public final class ImageCoordinateIndex<V> {
+   private static final int CHANNEL_BITS = 8;
+   private static final int SLICE_BITS = 14;
+   private static final int FRAME_BITS = 27;
+   private static final int POSITION_BITS = 14;
+   private static final int SLICE_SHIFT = CHANNEL_BITS;
+   private static final int FRAME_SHIFT = SLICE_SHIFT + SLICE_BITS;
+   private static final int POSITION_SHIFT = FRAME_SHIFT + FRAME_BITS;
+
+   //A channel field of all ones marks a key from the overflow table, with
+   //the table index in the remaining bits
+   private static final int OVERFLOW = (1 << CHANNEL_BITS) - 1;
+
+   public static final int MAX_CHANNEL = OVERFLOW - 1;
+   public static final int MAX_SLICE = (1 << SLICE_BITS) - 1;
+   public static final int MAX_FRAME = (1 << FRAME_BITS) - 1;
+   public static final int MAX_POSITION = (1 << POSITION_BITS) - 1;
+
+   //Packed keys only use the low 63 bits, so this can mark empty slots
+   private static final long EMPTY = -1L;
+
+   private static final Object overflowLock_ = new Object();
+   private static final HashMap<String, Long> overflowKeys_ = new HashMap<String, Long>();
+   private static final ArrayList<int[]> overflowCoordinates_ = new ArrayList<int[]>();
+
+   private long[] keys_;
+   private Object[] values_;
+   private int size_ = 0;
+
+   public ImageCoordinateIndex() {
+      this(64);
+   }
+
+   public ImageCoordinateIndex(int expectedSize) {
+      int capacity = 16;
+      while (capacity < 2 * expectedSize) {
+         capacity <<= 1;
+      }
+      allocate(capacity);
+   }
+
+   private void allocate(int capacity) {
+      keys_ = new long[capacity];
+      Arrays.fill(keys_, EMPTY);
+      values_ = new Object[capacity];
+   }
+
+   /**
+    * Pack image coordinates into a key. Coordinates that are not in range
+    * are added to the overflow table the first time they are seen.
+    */
+   public static long pack(int channel, int slice, int frame, int position) {
+      if (isInRange(channel, slice, frame, position)) {
+         return channel | ((long) slice << SLICE_SHIFT)
+               | ((long) frame << FRAME_SHIFT) | ((long) position << POSITION_SHIFT);
+      }
+      String label = channel + "_" + slice + "_" + frame + "_" + position;
+      synchronized (overflowLock_) {
+         Long key = overflowKeys_.get(label);
+         if (key == null) {
+            key = OVERFLOW | ((long) overflowCoordinates_.size() << SLICE_SHIFT);
+            overflowCoordinates_.add(new int[] {channel, slice, frame, position});
+            overflowKeys_.put(label, key);
+         }
+         return key;
+      }
+   }
+
+   //Like pack(), but doesn't add to the overflow table
+   private static long find(int channel, int slice, int frame, int position) {
+      if (isInRange(channel, slice, frame, position)) {
+         return pack(channel, slice, frame, position);
+      }
+      synchronized (overflowLock_) {
+         Long key = overflowKeys_.get(channel + "_" + slice + "_" + frame + "_" + position);
+         return key == null ? EMPTY : key;
+      }
+   }
+
+   private static boolean isOverflow(long key) {
+      return (key & OVERFLOW) == OVERFLOW;
+   }
+
+   private static int[] overflowCoordinates(long key) {
+      synchronized (overflowLock_) {
+         return overflowCoordinates_.get((int) (key >>> SLICE_SHIFT));
+      }
+   }
+
+   /**
+    * @return whether these coordinates are packed directly, without the
+    * overflow table
+    */
+   public static boolean isInRange(int channel, int slice, int frame, int position) {
+      return channel >= 0 && channel <= MAX_CHANNEL && slice >= 0 && slice <= MAX_SLICE
+            && frame >= 0 && frame <= MAX_FRAME && position >= 0 && position <= MAX_POSITION;
+   }
+
+   public static int getChannel(long key) {
+      if (isOverflow(key)) {
+         return overflowCoordinates(key)[0];
+      }
+      return (int) (key & OVERFLOW);
+   }
+
+   public static int getSlice(long key) {
+      if (isOverflow(key)) {
+         return overflowCoordinates(key)[1];
+      }
+      return (int) ((key >>> SLICE_SHIFT) & MAX_SLICE);
+   }
+
+   public static int getFrame(long key) {
+      if (isOverflow(key)) {
+         return overflowCoordinates(key)[2];
+      }
+      return (int) ((key >>> FRAME_SHIFT) & MAX_FRAME);
+   }
+
+   public static int getPosition(long key) {
+      if (isOverflow(key)) {
+         return overflowCoordinates(key)[3];
+      }
+      return (int) ((key >>> POSITION_SHIFT) & MAX_POSITION);
+   }
+
+   /**
+    * @return the key of a "channel_slice_frame_position" label, as generated
+    * by MDUtils.generateLabel()
+    * @throws IllegalArgumentException if the label isn't of that form
+    */
+   public static long fromLabel(String label) {
+      int[] indices = new int[4];
+      int field = 0;
+      int start = 0;
+      for (int i = 0; i <= label.length(); i++) {
+         if (i == label.length() || label.charAt(i) == '_') {
+            if (field == 4) {
+               throw new IllegalArgumentException("Invalid image label: " + label);
+            }
+            indices[field++] = parseIndex(label, start, i);
+            start = i + 1;
+         }
+      }
+      if (field != 4) {
+         throw new IllegalArgumentException("Invalid image label: " + label);
+      }
+      return pack(indices[0], indices[1], indices[2], indices[3]);
+   }
+
+   //Parses label.substring(start, end) without allocating it
+   private static int parseIndex(String label, int start, int end) {
+      boolean negative = start < end && label.charAt(start) == '-';
+      if (negative) {
+         start++;
+      }
+      if (start == end) {
+         throw new IllegalArgumentException("Invalid image label: " + label);
+      }
+      long value = 0;
+      for (int i = start; i < end; i++) {
+         char c = label.charAt(i);
+         if (c < '0' || c > '9' || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid image label: " + label);
+         }
+         value = value * 10 + (c - '0');
+      }
+      if (value > Integer.MAX_VALUE) {
+         throw new IllegalArgumentException("Invalid image label: " + label);
+      }
+      return (int) (negative ? -value : value);
+   }
+
+   /**
+    * @return the "channel_slice_frame_position" label of a key
+    */
+   public static String toLabel(long key) {
+      return getChannel(key) + "_" + getSlice(key) + "_" + getFrame(key)
+            + "_" + getPosition(key);
+   }
+
+   private int slot(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & (keys_.length - 1);
+   }
+
+   /**
+    * @return the previous value for this key, or null
+    */
+   @SuppressWarnings("unchecked")
+   public synchronized V put(long key, V value) {
+      if (value == null) {
+         throw new NullPointerException("Null values are not allowed");
+      }
+      int mask = keys_.length - 1;
+      int i = slot(key);
+      while (keys_[i] != EMPTY) {
+         if (keys_[i] == key) {
+            V previous = (V) values_[i];
+            values_[i] = value;
+            return previous;
+         }
+         i = (i + 1) & mask;
+      }
+      keys_[i] = key;
+      values_[i] = value;
+      size_++;
+      if (2 * size_ > keys_.length) {
+         rehash(2 * keys_.length);
+      }
+      return null;
+   }
+
+   public V put(int channel, int slice, int frame, int position, V value) {
+      return put(pack(channel, slice, frame, position), value);
+   }
+
+   @SuppressWarnings("unchecked")
+   public synchronized V get(long key) {
+      int mask = keys_.length - 1;
+      int i = slot(key);
+      while (keys_[i] != EMPTY) {
+         if (keys_[i] == key) {
+            return (V) values_[i];
+         }
+         i = (i + 1) & mask;
+      }
+      return null;
+   }
+
+   /**
+    * @return the value at these coordinates, or null
+    */
+   public V get(int channel, int slice, int frame, int position) {
+      long key = find(channel, slice, frame, position);
+      return key == EMPTY ? null : get(key);
+   }
+
+   public boolean containsKey(long key) {
+      return get(key) != null;
+   }
+
+   /**
+    * @return the removed value, or null
+    */
+   @SuppressWarnings("unchecked")
+   public synchronized V remove(long key) {
+      int mask = keys_.length - 1;
+      int i = slot(key);
+      while (keys_[i] != EMPTY) {
+         if (keys_[i] == key) {
+            V previous = (V) values_[i];
+            //Shift back the entries that follow in the same run, so that
+            //lookups never stop early at the freed slot
+            int hole = i;
+            int j = (i + 1) & mask;
+            while (keys_[j] != EMPTY) {
+               int home = slot(keys_[j]);
+               if (((j - home) & mask) >= ((j - hole) & mask)) {
+                  keys_[hole] = keys_[j];
+                  values_[hole] = values_[j];
+                  hole = j;
+               }
+               j = (j + 1) & mask;
+            }
+            keys_[hole] = EMPTY;
+            values_[hole] = null;
+            size_--;
+            return previous;
+         }
+         i = (i + 1) & mask;
+      }
+      return null;
+   }
+
+   private void rehash(int capacity) {
+      long[] oldKeys = keys_;
+      Object[] oldValues = values_;
+      allocate(capacity);
+      int mask = capacity - 1;
+      for (int j = 0; j < oldKeys.length; j++) {
+         if (oldKeys[j] != EMPTY) {
+            int i = slot(oldKeys[j]);
+            while (keys_[i] != EMPTY) {
+               i = (i + 1) & mask;
+            }
+            keys_[i] = oldKeys[j];
+            values_[i] = oldValues[j];
+         }
+      }
+   }
+
+   public synchronized int size() {
+      return size_;
+   }
+
+   public synchronized void clear() {
+      Arrays.fill(keys_, EMPTY);
+      Arrays.fill(values_, null);
+      size_ = 0;
+   }
+
+   /**
+    * @return a copy of all keys, in no particular order
+    */
+   public synchronized long[] keys() {
+      long[] keys = new long[size_];
+      int n = 0;
+      for (long key : keys_) {
+         if (key != EMPTY) {
+            keys[n++] = key;
+         }
+      }
+      return keys;
+   }
+
+   /**
+    * @return a copy of all values, in no particular order
+    */
+   @SuppressWarnings("unchecked")
+   public synchronized List<V> values() {
+      List<V> values = new ArrayList<V>(size_);
+      for (Object value : values_) {
+         if (value != null) {
+            values.add((V) value);
+         }
+      }
+      return values;
+   }
+
+   /**
+    * All keys, in acquisition order: by frame then position (by position
+    * then frame if timeFirst), then by slice and channel (by channel then
+    * slice if slicesFirst). This is the order of ImageLabelComparator.
+    */
+   public long[] sortedKeys(boolean slicesFirst, boolean timeFirst) {
+      long[] keys = keys();
+      for (long key : keys) {
+         if (isOverflow(key)) {
+            return sortByCoordinates(keys, slicesFirst, timeFirst);
+         }
+      }
+      for (int i = 0; i < keys.length; i++) {
+         keys[i] = toOrderKey(keys[i], slicesFirst, timeFirst);
+      }
+      Arrays.sort(keys);
+      for (int i = 0; i < keys.length; i++) {
+         keys[i] = fromOrderKey(keys[i], slicesFirst, timeFirst);
+      }
+      return keys;
+   }
+
+   /**
+    * Labels of all images, in the order of sortedKeys(). This is a snapshot,
+    * for implementations of TaggedImageStorage.imageKeys().
+    */
+   public Set<String> labels(boolean slicesFirst, boolean timeFirst) {
+      long[] keys = sortedKeys(slicesFirst, timeFirst);
+      Set<String> labels = new LinkedHashSet<String>(2 * keys.length);
+      for (long key : keys) {
+         labels.add(toLabel(key));
+      }
+      return Collections.unmodifiableSet(labels);
+   }
+
+   //Slow path of sortedKeys(), for keys that don't all have packed fields
+   private static long[] sortByCoordinates(long[] keys, final boolean slicesFirst,
+         final boolean timeFirst) {
+      Long[] sorted = new Long[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+         sorted[i] = keys[i];
+      }
+      Arrays.sort(sorted, new Comparator<Long>() {
+         @Override
+         public int compare(Long a, Long b) {
+            int[] fieldsA = orderFields(a, slicesFirst, timeFirst);
+            int[] fieldsB = orderFields(b, slicesFirst, timeFirst);
+            for (int i = 0; i < fieldsA.length; i++) {
+               if (fieldsA[i] != fieldsB[i]) {
+                  return fieldsA[i] < fieldsB[i] ? -1 : 1;
+               }
+            }
+            return 0;
+         }
+      });
+      for (int i = 0; i < keys.length; i++) {
+         keys[i] = sorted[i];
+      }
+      return keys;
+   }
+
+   private static int[] orderFields(long key, boolean slicesFirst, boolean timeFirst) {
+      int[] fields = new int[4];
+      fields[0] = timeFirst ? getPosition(key) : getFrame(key);
+      fields[1] = timeFirst ? getFrame(key) : getPosition(key);
+      fields[2] = slicesFirst ? getChannel(key) : getSlice(key);
+      fields[3] = slicesFirst ? getSlice(key) : getChannel(key);
+      return fields;
+   }
+
+   //Rearranges the fields of a key so that sorting order keys as numbers
+   //gives the acquisition order
+   private static final int MINOR_BITS = CHANNEL_BITS + SLICE_BITS;
+
+   private static long toOrderKey(long key, boolean slicesFirst, boolean timeFirst) {
+      long major = timeFirst
+            ? ((long) getPosition(key) << FRAME_BITS) | getFrame(key)
+            : ((long) getFrame(key) << POSITION_BITS) | getPosition(key);
+      long minor = slicesFirst
+            ? ((long) getChannel(key) << SLICE_BITS) | getSlice(key)
+            : ((long) getSlice(key) << CHANNEL_BITS) | getChannel(key);
+      return (major << MINOR_BITS) | minor;
+   }
+
+   private static long fromOrderKey(long orderKey, boolean slicesFirst, boolean timeFirst) {
+      long major = orderKey >>> MINOR_BITS;
+      long minor = orderKey & ((1L << MINOR_BITS) - 1);
+      int position, frame, channel, slice;
+      if (timeFirst) {
+         position = (int) (major >>> FRAME_BITS);
+         frame = (int) (major & MAX_FRAME);
+      } else {
+         frame = (int) (major >>> POSITION_BITS);
+         position = (int) (major & MAX_POSITION);
+      }
+      if (slicesFirst) {
+         channel = (int) (minor >>> SLICE_BITS);
+         slice = (int) (minor & MAX_SLICE);
+      } else {
+         slice = (int) (minor >>> CHANNEL_BITS);
+         channel = (int) (minor & OVERFLOW);
+      }
+      return pack(channel, slice, frame, position);
+   }
+}
@@ -0,0 +1,84 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ProcessorStatistics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.api;
+
+/**
+ * Latency and throughput of one DataProcessor stage.
+ *
+ * The latency of an object is the time from poll() returning it until
+ * process() is done with it, so it does not include time spent waiting in
+ * the queues between stages. Throughput is measured from the arrival of the
+ * first object to the completion of the last one.
+ */
+public final class ProcessorStatistics {
+   private long count_ = 0;
+   private long totalNanos_ = 0;
+   private long maxNanos_ = 0;
+   private long firstNanos_ = 0;
+   private long lastNanos_ = 0;
+
+   synchronized void record(long receivedNanos, long doneNanos) {
+      long latency = doneNanos - receivedNanos;
+      if (count_ == 0 || receivedNanos - firstNanos_ < 0) {
+         firstNanos_ = receivedNanos;
+      }
+      if (count_ == 0 || doneNanos - lastNanos_ > 0) {
+         lastNanos_ = doneNanos;
+      }
+      count_++;
+      totalNanos_ += latency;
+      maxNanos_ = Math.max(maxNanos_, latency);
+   }
+
+   public synchronized void reset() {
+      count_ = 0;
+      totalNanos_ = 0;
+      maxNanos_ = 0;
+   }
+
+   /**
+    * @return the number of objects processed since the last reset
+    */
+   public synchronized long getCount() {
+      return count_;
+   }
+
+   public synchronized double getMeanLatencyMs() {
+      return count_ == 0 ? 0 : totalNanos_ / (count_ * 1e6);
+   }
+
+   public synchronized double getMaxLatencyMs() {
+      return maxNanos_ / 1e6;
+   }
+
+   /**
+    * @return objects processed per second
+    */
+   public synchronized double getThroughput() {
+      long elapsed = lastNanos_ - firstNanos_;
+      return count_ == 0 || elapsed <= 0 ? 0 : count_ * 1e9 / elapsed;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return String.format("%d processed, %.2f ms mean latency (%.2f ms max), %.1f per second",
+            count_, getMeanLatencyMs(), getMaxLatencyMs(), getThroughput());
+   }
+}
@@ -61,7 +61,12 @@ public class OptionsDlg extends MMDialog {
 
    private final JTextField startupScriptFile_;
    private final JTextField bufSizeField_;
+   private final JTextField ramBudgetField_;
+   private final JTextField processorQueueDepthField_;
+   private final JTextField processorThreadsField_;
+   private final JTextField displayFPSField_;
    private JTextField logDeleteDaysField_;
+   private final JTextField writingThreadsField_;
    private final JComboBox comboDisplayBackground_;
 
    private MMOptions opts_;
@@ -204,6 +209,14 @@ public class OptionsDlg extends MMDialog {
       });
 
       bufSizeField_ = new JTextField(Integer.toString(opts_.circularBufferSizeMB_), 5);
+      ramBudgetField_ = new JTextField(Integer.toString(opts_.ramStorageBudgetMB_), 5);
+      ramBudgetField_.setToolTipText("Images acquired to RAM beyond this are moved to a temporary file on disk; 0 chooses it from the available memory");
+      processorQueueDepthField_ = new JTextField(Integer.toString(opts_.processorQueueDepth_), 2);
+      processorQueueDepthField_.setToolTipText("Number of images each image processor can get ahead of the next one");
+      processorThreadsField_ = new JTextField(Integer.toString(opts_.processorThreads_), 2);
+      processorThreadsField_.setToolTipText("Number of threads running each image processor that supports it; 0 uses one per processor core");
+      displayFPSField_ = new JTextField(NumberUtils.doubleToDisplayString(opts_.displayFPS_), 3);
+      displayFPSField_.setToolTipText("Image windows show the newest image at most this many times per second; 0 draws as fast as possible");
 
       comboDisplayBackground_ = new JComboBox(guiColors_.styleOptions);
       comboDisplayBackground_.setMaximumRowCount(2);
@@ -328,7 +341,22 @@ public class OptionsDlg extends MMDialog {
             opts_.mpTiffSeparateFilesForPositions_ = separateFilesForPositionsMPTiffCheckBox.isSelected();
          }
       });
+
+      final JCheckBox memoryMappedReadingMPTiffCheckBox = new JCheckBox();
+      memoryMappedReadingMPTiffCheckBox.setText("Memory-map Image Stack Files when reading");
+      memoryMappedReadingMPTiffCheckBox.setToolTipText("Faster browsing of large datasets; uses address space rather than memory");
+      memoryMappedReadingMPTiffCheckBox.setSelected(opts_.mpTiffMemoryMappedReading_);
+      memoryMappedReadingMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffMemoryMappedReading_ = memoryMappedReadingMPTiffCheckBox.isSelected();
+         }
+      });
   
+      writingThreadsField_ =
+         new JTextField(Integer.toString(opts_.mpTiffWritingThreads_), 2);
+      writingThreadsField_.setToolTipText("Number of threads writing Image Stack Files in parallel (one file per thread at most)");
+
       final JCheckBox syncExposureMainAndMDA = new JCheckBox();
       syncExposureMainAndMDA.setText("Sync exposure between Main and MDA windows");
       syncExposureMainAndMDA.setSelected(opts_.syncExposureMainAndMDA_);
@@ -370,16 +398,32 @@ public class OptionsDlg extends MMDialog {
             "split 2, gapright push");
       add(prefZoomCombo, "wrap");
 
+      add(new JLabel("Maximum Display Rate (0 = unlimited):"), "split 3, gapright push");
+      add(displayFPSField_, "gapright related");
+      add(new JLabel("fps"), "wrap");
+
       add(new JSeparator(), "wrap");
 
       add(new JLabel("Sequence Buffer Size:"), "split 3, gapright push");
       add(bufSizeField_, "gapright related");
       add(new JLabel("MB"), "wrap");
 
+      add(new JLabel("RAM Image Storage Budget (0 = auto):"), "split 3, gapright push");
+      add(ramBudgetField_, "gapright related");
+      add(new JLabel("MB"), "wrap");
+
+      add(new JLabel("Image Processor Queue Depth:"), "split 2, gapright push");
+      add(processorQueueDepthField_, "wrap");
+      add(new JLabel("Image Processor Threads (0 = auto):"), "split 2, gapright push");
+      add(processorThreadsField_, "wrap");
+
       add(new JSeparator(), "wrap");
 
       add(metadataFileWithMultipageTiffCheckBox, "wrap");
       add(separateFilesForPositionsMPTiffCheckBox, "wrap");
+      add(memoryMappedReadingMPTiffCheckBox, "wrap");
+      add(new JLabel("Image Stack File writing threads:"), "split 2, gapright push");
+      add(writingThreadsField_, "wrap");
 
       add(new JSeparator(), "wrap");
 
@@ -430,11 +474,26 @@ public class OptionsDlg extends MMDialog {
    private void closeRequested() {
       int seqBufSize;
       int deleteLogDays;
+      int writingThreads;
+      int ramBudget;
+      int processorQueueDepth;
+      int processorThreads;
+      double displayFPS;
       try {
          seqBufSize =
             NumberUtils.displayStringToInt(bufSizeField_.getText());
          deleteLogDays =
             NumberUtils.displayStringToInt(logDeleteDaysField_.getText());
+         writingThreads =
+            NumberUtils.displayStringToInt(writingThreadsField_.getText());
+         ramBudget =
+            NumberUtils.displayStringToInt(ramBudgetField_.getText());
+         processorQueueDepth =
+            NumberUtils.displayStringToInt(processorQueueDepthField_.getText());
+         processorThreads =
+            NumberUtils.displayStringToInt(processorThreadsField_.getText());
+         displayFPS =
+            NumberUtils.displayStringToDouble(displayFPSField_.getText());
       }
       catch (ParseException ex) {
          ReportingUtils.showError(ex);
@@ -444,6 +503,11 @@ public class OptionsDlg extends MMDialog {
       opts_.circularBufferSizeMB_ = seqBufSize;
       opts_.startupScript_ = startupScriptFile_.getText();
       opts_.deleteCoreLogAfterDays_ = deleteLogDays;
+      opts_.mpTiffWritingThreads_ = Math.max(1, writingThreads);
+      opts_.ramStorageBudgetMB_ = Math.max(0, ramBudget);
+      opts_.processorQueueDepth_ = Math.max(1, processorQueueDepth);
+      opts_.processorThreads_ = Math.max(0, processorThreads);
+      opts_.displayFPS_ = Math.max(0, displayFPS);
       opts_.saveSettings();
 
       parent_.makeActive();
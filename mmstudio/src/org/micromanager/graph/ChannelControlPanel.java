@@ -28,6 +28,14 @@ import ij.process.LUT;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.prefs.Preferences;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
@@ -46,11 +54,11 @@ import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
 import org.micromanager.imagedisplay.MMCompositeImage;
 import org.micromanager.api.ImageCache;
 import org.micromanager.graph.HistogramPanel.CursorListener;
-import org.micromanager.utils.HistogramUtils;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.PixelStatistics;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -66,6 +74,21 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
    public static final Dimension MINIMUM_SIZE = new Dimension(400,CONTROLS_SIZE.height);
    
    private static final int NUM_BINS = 256;
+   // Pixels of a channel sampled for its histogram while live mode is on
+   private static final int LIVE_MODE_SAMPLES = 512 * 512;
+   // Planes of a channel whose statistics are remembered
+   private static final int STATS_CACHE_SIZE = 32;
+   private static final ExecutorService statsExecutor_ =
+           Executors.newFixedThreadPool(
+           Math.min(4, Runtime.getRuntime().availableProcessors()),
+           new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                 Thread t = new Thread(r, "Histogram statistics");
+                 t.setDaemon(true);
+                 return t;
+              }
+           });
    private final int channelIndex_;
    private HistogramPanel hp_;
    private final MultiChannelHistograms mcHistograms_;
@@ -98,6 +121,68 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
    final private int bitDepth_;
    private Color color_;
    private final String name_;
+   private final Map<String, CachedStatistics> statsCache_ =
+           new LinkedHashMap<String, CachedStatistics>(16, 0.75f, true) {
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String, CachedStatistics> eldest) {
+                 return size() > STATS_CACHE_SIZE;
+              }
+           };
+   private final AtomicReference<StatisticsRequest> pendingStats_ =
+           new AtomicReference<StatisticsRequest>();
+   private final AtomicLong statsSequence_ = new AtomicLong();
+   // Only used on the EDT
+   private long shownStatsSequence_ = 0;
+
+   /**
+    * Statistics of one plane, valid as long as the plane's pixels and the
+    * ROI are the same; in live mode the label stays the same while the
+    * pixels change.
+    */
+   private static class CachedStatistics {
+      final WeakReference<Object> pixels_;
+      final Rectangle roi_;
+      final byte[] mask_;
+      final PixelStatistics stats_;
+
+      CachedStatistics(Object pixels, Rectangle roi, byte[] mask,
+              PixelStatistics stats) {
+         pixels_ = new WeakReference<Object>(pixels);
+         roi_ = roi;
+         mask_ = mask;
+         stats_ = stats;
+      }
+   }
+
+   /**
+    * What the worker thread needs to measure a plane, captured on the EDT.
+    */
+   private static class StatisticsRequest {
+      final long sequence_;
+      final String label_;
+      final ImageProcessor ip_;
+      final Object pixels_;
+      final int width_;
+      final int height_;
+      final Rectangle roi_;
+      final byte[] mask_;
+      final int stride_;
+      final boolean drawHist_;
+
+      StatisticsRequest(long sequence, String label, ImageProcessor ip,
+              int stride, boolean drawHist) {
+         sequence_ = sequence;
+         label_ = label;
+         ip_ = ip;
+         pixels_ = ip.getPixels();
+         width_ = ip.getWidth();
+         height_ = ip.getHeight();
+         roi_ = ip.getRoi();
+         mask_ = ip.getMask();
+         stride_ = stride;
+         drawHist_ = drawHist;
+      }
+   }
 
    public ChannelControlPanel(int channelIndex, MultiChannelHistograms mcHistograms, VirtualAcquisitionDisplay disp) {
       display_ = disp;
@@ -637,9 +722,101 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
     * 
     */
    public void calcAndDisplayHistAndStats(boolean drawHist) {
-      if (img_ == null || img_.getProcessor() == null) {
+      ImageProcessor ip = getChannelProcessor();
+      drawHist = updateChannelActive(drawHist);
+      if (ip == null) {
          return;
       }
+      String label = getChannelLabel();
+      PixelStatistics stats = getCachedStatistics(label, ip, 1);
+      if (stats == null) {
+         stats = PixelStatistics.compute(ip.getPixels(), ip.getWidth(),
+                 ip.getHeight(), ip.getRoi(), ip.getMask(), 1);
+         if (stats == null) {
+            stats = PixelStatistics.fromHistogram(ip.getHistogram());
+         }
+         putCachedStatistics(label, ip, stats);
+      }
+      displayStatistics(stats, drawHist);
+   }
+
+   /**
+    * Like calcAndDisplayHistAndStats(), but computes the statistics on a
+    * worker thread unless they are cached, subsampling large images while
+    * live mode is on. When fresh statistics arrive the histogram is redrawn
+    * and, if autostretch is on, the contrast is applied to the image; until
+    * then the previous statistics stay in effect.
+    */
+   public void calcAndDisplayHistAndStatsInBackground(boolean drawHist) {
+      ImageProcessor ip = getChannelProcessor();
+      drawHist = updateChannelActive(drawHist);
+      if (ip == null) {
+         return;
+      }
+      int stride = 1;
+      if (MMStudio.getInstance().isLiveModeOn()) {
+         stride = PixelStatistics.strideFor(ip.getWidth() * ip.getHeight(),
+                 LIVE_MODE_SAMPLES);
+      }
+      String label = getChannelLabel();
+      PixelStatistics stats = getCachedStatistics(label, ip, stride);
+      if (stats != null) {
+         displayStatistics(stats, drawHist);
+         return;
+      }
+      StatisticsRequest request = new StatisticsRequest(statsSequence_.incrementAndGet(),
+              label, ip, stride, drawHist);
+      // Only the most recent image of a channel is worth measuring; a task
+      // is queued only if none is waiting already
+      if (pendingStats_.getAndSet(request) == null) {
+         statsExecutor_.execute(new Runnable() {
+            @Override
+            public void run() {
+               computePendingStatistics();
+            }
+         });
+      }
+   }
+
+   private void computePendingStatistics() {
+      final StatisticsRequest request = pendingStats_.getAndSet(null);
+      if (request == null) {
+         return;
+      }
+      PixelStatistics stats = null;
+      try {
+         stats = PixelStatistics.compute(request.pixels_, request.width_,
+                 request.height_, request.roi_, request.mask_, request.stride_);
+      } catch (RuntimeException ex) {
+         ReportingUtils.logError(ex, "Failed to compute histogram");
+      }
+      if (stats == null) {
+         stats = PixelStatistics.fromHistogram(request.ip_.getHistogram());
+      }
+      final PixelStatistics result = stats;
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            // Results of an older image may arrive after those of a newer one
+            if (request.sequence_ <= shownStatsSequence_ || !cache_.getIsOpen()) {
+               return;
+            }
+            shownStatsSequence_ = request.sequence_;
+            putCachedStatistics(request.label_, request, result);
+            displayStatistics(result, request.drawHist_);
+            if (display_.getHistogramControlsState().autostretch) {
+               autostretch();
+               applyChannelLUTToImage();
+               display_.drawWithoutUpdate();
+            }
+         }
+      });
+   }
+
+   private ImageProcessor getChannelProcessor() {
+      if (img_ == null || img_.getProcessor() == null) {
+         return null;
+      }
       ImageProcessor ip;
       if (img_.getMode() == CompositeImage.COMPOSITE) {
          ip = img_.getProcessor(channelIndex_ + 1);
@@ -653,7 +830,17 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
          ip = img_.getStack().getProcessor(flatIndex);
 
       }
+      return ip;
+   }
 
+   /**
+    * Updates the channel checkbox, and returns whether the histogram of
+    * this channel should be drawn.
+    */
+   private boolean updateChannelActive(boolean drawHist) {
+      if (img_ == null || img_.getProcessor() == null) {
+         return drawHist;
+      }
       if (((MMCompositeImage) img_).getNChannelsUnverified() <= 7) {
          boolean active = img_.getActiveChannels()[channelIndex_];
          channelNameCheckbox_.setSelected(active);
@@ -666,71 +853,80 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
             drawHist = false;
          }
       }
-      
-      if (ip == null ) {
-         return;
+      return drawHist;
+   }
+
+   private String getChannelLabel() {
+      return MDUtils.generateLabel(channelIndex_, img_.getSlice() - 1,
+              img_.getFrame() - 1, display_.getCurrentPosition());
+   }
+
+   private PixelStatistics getCachedStatistics(String label, ImageProcessor ip,
+           int stride) {
+      synchronized (statsCache_) {
+         CachedStatistics cached = statsCache_.get(label);
+         if (cached != null && cached.pixels_.get() == ip.getPixels()
+                 && cached.roi_.equals(ip.getRoi()) && cached.mask_ == ip.getMask()
+                 && cached.stats_.getStride() <= stride) {
+            return cached.stats_;
+         }
+         return null;
       }
+   }
+
+   private void putCachedStatistics(String label, ImageProcessor ip,
+           PixelStatistics stats) {
+      synchronized (statsCache_) {
+         statsCache_.put(label, new CachedStatistics(ip.getPixels(),
+                 ip.getRoi(), ip.getMask(), stats));
+      }
+   }
 
-      int[] rawHistogram = ip.getHistogram();
+   private void putCachedStatistics(String label, StatisticsRequest request,
+           PixelStatistics stats) {
+      synchronized (statsCache_) {
+         statsCache_.put(label, new CachedStatistics(request.pixels_,
+                 request.roi_, request.mask_, stats));
+      }
+   }
+
+   private void displayStatistics(PixelStatistics stats, boolean drawHist) {
       int imgWidth = img_.getWidth();
       int imgHeight = img_.getHeight();
 
-      if (rawHistogram[0] == imgWidth * imgHeight) {
+      if (stats.getCount() > 0 && stats.getMax() == 0) {
          return;  //Blank pixels 
       }
       if (display_.getHistogramControlsState().ignoreOutliers) {
          // todo handle negative values
-         maxAfterRejectingOutliers_ = rawHistogram.length;
          // specified percent of pixels are ignored in the automatic contrast setting
-         int totalPoints = imgHeight * imgWidth;
-         HistogramUtils hu = new HistogramUtils(rawHistogram, totalPoints, 0.01*display_.getHistogramControlsState().percentToIgnore);
-         minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
-         maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
+         double fraction = 0.01 * display_.getHistogramControlsState().percentToIgnore;
+         minAfterRejectingOutliers_ = stats.getMinAfterRejectingOutliers(fraction);
+         maxAfterRejectingOutliers_ = stats.getMaxAfterRejectingOutliers(fraction);
       }
       GraphData histogramData = new GraphData();
 
-      pixelMin_ = -1;
-      pixelMax_ = 0;
+      pixelMin_ = stats.getMin();
+      pixelMax_ = stats.getMax();
 
-      int numBins = (int) Math.min(rawHistogram.length / binSize_, NUM_BINS);
-      int[] histogram = new int[NUM_BINS];
+      int numBins = (int) Math.min(stats.getNumValues() / binSize_, NUM_BINS);
+      int[] histogram = stats.getBinnedHistogram(NUM_BINS, binSize_);
       int total = 0;
       for (int i = 0; i < numBins; i++) {
-         histogram[i] = 0;
-         for (int j = 0; j < binSize_; j++) {
-            int rawHistIndex = (int) (i * binSize_ + j);
-            int rawHistVal = rawHistogram[rawHistIndex];
-            histogram[i] += rawHistVal;
-            if (rawHistVal > 0) {
-               pixelMax_ = rawHistIndex;
-               if (pixelMin_ == -1) {
-                  pixelMin_ = rawHistIndex;
-               }
-            }
-         }
          total += histogram[i];
          if (display_.getHistogramControlsState().logHist) {
             histogram[i] = histogram[i] > 0 ? (int) (1000 * Math.log(histogram[i])) : 0;
          }
       }
-      //Make sure max has correct value is hist display mode isnt auto
-      if (histRangeComboBox_.getSelectedIndex() != -1) {
-         pixelMin_ = rawHistogram.length-1;
-         for (int i = rawHistogram.length-1; i > 0; i--) {
-            if (rawHistogram[i] > 0 && i > pixelMax_ ) {
-               pixelMax_ = i;
-            }
-            if (rawHistogram[i] > 0 && i < pixelMin_ ) {
-               pixelMin_ = i;
-            }
-         }
+      for (int i = numBins; i < NUM_BINS; i++) {
+         histogram[i] = 0;
       }
 
       // work around what is apparently a bug in ImageJ
       if (total == 0) {
          if (img_.getProcessor().getMin() == 0) {
             histogram[0] = imgWidth * imgHeight;
-         } else {
+         } else if (numBins > 0) {
             histogram[numBins - 1] = imgWidth * imgHeight;
          }
       }
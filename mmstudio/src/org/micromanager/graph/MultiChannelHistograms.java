@@ -185,8 +185,9 @@ public final class MultiChannelHistograms extends JPanel implements Histograms {
    @Override
    public void imageChanged() {
      boolean update = true;
-        if (display_.acquisitionIsRunning() ||
-                (MMStudio.getInstance().isLiveModeOn())) {
+     boolean running = display_.acquisitionIsRunning() ||
+                (MMStudio.getInstance().isLiveModeOn());
+        if (running) {
             if (display_.getHistogramControlsState().slowHist) {
                 long time = System.currentTimeMillis();
                 if (time - lastUpdateTime_ < SLOW_HIST_UPDATE_INTERVAL_MS) {
@@ -201,7 +202,13 @@ public final class MultiChannelHistograms extends JPanel implements Histograms {
       
       if (update) {
          for (ChannelControlPanel c : ccpList_) {
-            c.calcAndDisplayHistAndStats(display_.isActiveDisplay());
+            // Keep measuring new images off the EDT while they stream in;
+            // autostretch uses the latest statistics until fresh ones arrive
+            if (running) {
+               c.calcAndDisplayHistAndStatsInBackground(display_.isActiveDisplay());
+            } else {
+               c.calcAndDisplayHistAndStats(display_.isActiveDisplay());
+            }
             
             if (display_.getHistogramControlsState().autostretch) {
                c.autostretch();
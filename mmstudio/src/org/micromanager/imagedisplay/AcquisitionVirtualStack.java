@@ -1,12 +1,20 @@
 
 package org.micromanager.imagedisplay;
 
+import com.google.common.eventbus.Subscribe;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
 import java.awt.image.ColorModel;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.micromanager.api.ImageCoordinateIndex;
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
@@ -16,8 +24,14 @@ import org.micromanager.utils.ReportingUtils;
 /**
  * This stack class provides the ImagePlus with images from the MMImageCache.
  * 
+ * Planes are kept in a PlaneCache, and when the user scrolls or animates
+ * along z or time, the next planes in that direction are read ahead on a
+ * background thread. Missing planes are filled in from the nearest
+ * existing ones, found in an in-memory index of the planes in the dataset.
  */
 public class AcquisitionVirtualStack extends ij.VirtualStack {
+   // Planes read ahead of the current one, along the axis being scrolled
+   private static final int PREFETCH_DEPTH = 4;
 
    final private TaggedImageStorage imageCache_;
    final private VirtualAcquisitionDisplay acq_;
@@ -25,6 +39,17 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
    private final int nSlices_;
    private int positionIndex_ = 0;
 
+   private final PlaneCache planeCache_ = new PlaneCache(
+           Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 8));
+   // Built from the dataset's keys when first needed
+   private ImageCoordinateIndex<Boolean> availablePlanes_;
+   private ExecutorService prefetcher_;
+   // Incremented whenever the displayed plane changes, making older
+   // read-ahead obsolete
+   private final AtomicInteger prefetchGeneration_ = new AtomicInteger(0);
+   private int lastSlice_ = -1;
+   private int lastFrame_ = -1;
+
    public AcquisitionVirtualStack(int width, int height, int type,
            ColorModel cm, TaggedImageStorage imageCache, int nSlices,
            VirtualAcquisitionDisplay acq) {
@@ -36,6 +61,9 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
 
       acq_ = acq;
       type_ = type;
+      if (acq_ != null && acq_.getEventBus() != null) {
+         acq_.getEventBus().register(this);
+      }
    }
 
    public void setPositionIndex(int pos) {
@@ -79,49 +107,201 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
       } else {
          nSlices = imagePlus.getNSlices();
       }
+      int position = positionIndex_;
       try {
-         TaggedImage img;
-         img = imageCache_.getImage(chanIndex, slice, frame, positionIndex_);
-         int backIndex = slice - 1, forwardIndex = slice + 1;
-         int frameSearchIndex = frame;
-         //If some but not all channels have z stacks, find the closest slice for the given
-         //channel that has an image.  Also if time point missing, go back until image is found
-         while (img == null) {
-            img = imageCache_.getImage(chanIndex, slice, frameSearchIndex, positionIndex_);
-            if (img != null) {
-               break;
+         TaggedImage img = readPlane(ImageCoordinateIndex.pack(chanIndex, slice, frame, position));
+         if (img == null) {
+            long key = findNearestPlane(chanIndex, slice, frame, position, nSlices);
+            if (key >= 0) {
+               img = readPlane(key);
             }
+         }
+         return img;
+      } catch (Exception e) {
+         ReportingUtils.logError(e);
+         return null;
+      }
+   }
+
+   private TaggedImage readPlane(long key) {
+      TaggedImage img = planeCache_.get(key);
+      if (img == null) {
+         img = imageCache_.getImage(ImageCoordinateIndex.getChannel(key),
+                 ImageCoordinateIndex.getSlice(key),
+                 ImageCoordinateIndex.getFrame(key),
+                 ImageCoordinateIndex.getPosition(key));
+         if (img != null) {
+            planeCache_.put(key, img);
+            getAvailablePlanes().put(key, Boolean.TRUE);
+         }
+      }
+      return img;
+   }
 
-            if (backIndex >= 0) {
-               img = imageCache_.getImage(chanIndex, backIndex, frameSearchIndex, positionIndex_);
-               if (img != null) {
-                  break;
+   /*
+    * If some but not all channels have z stacks, finds the closest slice for
+    * the given channel that has an image. Also if the time point is missing,
+    * goes back until an image is found.
+    * @return the key of the plane, or -1 if there is none
+    */
+   private long findNearestPlane(int chanIndex, int slice, int frame,
+           int position, int nSlices) {
+      ImageCoordinateIndex<Boolean> available = getAvailablePlanes();
+      for (int t = frame; t >= 0; t--) {
+         long key = ImageCoordinateIndex.pack(chanIndex, slice, t, position);
+         if (t != frame && available.containsKey(key)) {
+            return key;
+         }
+         for (int d = 1; slice - d >= 0 || slice + d < nSlices; d++) {
+            if (slice - d >= 0) {
+               key = ImageCoordinateIndex.pack(chanIndex, slice - d, t, position);
+               if (available.containsKey(key)) {
+                  return key;
                }
-               backIndex--;
             }
-            if (forwardIndex < nSlices) {
-               img = imageCache_.getImage(chanIndex, forwardIndex, frameSearchIndex, positionIndex_);
-               if (img != null) {
-                  break;
+            if (slice + d < nSlices) {
+               key = ImageCoordinateIndex.pack(chanIndex, slice + d, t, position);
+               if (available.containsKey(key)) {
+                  return key;
                }
-               forwardIndex++;
             }
+         }
+      }
+      return -1;
+   }
 
-            if (backIndex < 0 && forwardIndex >= nSlices) {
-               frameSearchIndex--;
-               backIndex = slice - 1;
-               forwardIndex = slice + 1;
-               if (frameSearchIndex < 0) {
-                  break;
+   private synchronized ImageCoordinateIndex<Boolean> getAvailablePlanes() {
+      if (availablePlanes_ == null) {
+         availablePlanes_ = new ImageCoordinateIndex<Boolean>();
+         try {
+            Set<String> labels = imageCache_.imageKeys();
+            if (labels != null) {
+               for (String label : labels) {
+                  availablePlanes_.put(ImageCoordinateIndex.fromLabel(label), Boolean.TRUE);
                }
             }
+         } catch (RuntimeException e) {
+            // Keys added while we read them, or a malformed label: planes
+            // missing from the index are still added as they are read
+            ReportingUtils.logError(e, "Incomplete index of available planes");
          }
+      }
+      return availablePlanes_;
+   }
 
-         return img;
+   /**
+    * Called when an image is added to the dataset, so that the plane is
+    * read again if it is already cached, as happens in live mode.
+    */
+   public void imageReceived(TaggedImage image) {
+      if (image == null || image.tags == null) {
+         return;
+      }
+      try {
+         long key = MDUtils.getImageKey(image.tags);
+         planeCache_.remove(key);
+         getAvailablePlanes().put(key, Boolean.TRUE);
       } catch (Exception e) {
-         ReportingUtils.logError(e);
-         return null;
+         // Can't tell which plane this is
+         planeCache_.clear();
+      }
+   }
+
+   /**
+    * Reads ahead along z or time when the user moves along one of them.
+    */
+   @Subscribe
+   public void onSetImage(ScrollerPanel.SetImageEvent event) {
+      final int slice = event.getPositionForAxis("z");
+      final int frame = event.getPositionForAxis("time");
+      final int position = event.getPositionForAxis("position");
+      int sliceStep = Integer.signum(slice - lastSlice_);
+      int frameStep = Integer.signum(frame - lastFrame_);
+      boolean isFirst = lastSlice_ < 0;
+      lastSlice_ = slice;
+      lastFrame_ = frame;
+      final int generation = prefetchGeneration_.incrementAndGet();
+      ImagePlus imagePlus = acq_.getImagePlus();
+      if (isFirst || imagePlus == null || (sliceStep != 0) == (frameStep != 0)) {
+         // Not moving along a single axis
+         return;
+      }
+      final boolean alongZ = sliceStep != 0;
+      final int step = alongZ ? sliceStep : frameStep;
+      final int length = alongZ ? imagePlus.getNSlices() : imagePlus.getNFrames();
+      final int[] channels = new int[imagePlus.getNChannels()];
+      for (int i = 0; i < channels.length; i++) {
+         channels[i] = acq_.grayToRGBChannel(i);
+      }
+      getPrefetcher().execute(new Runnable() {
+         @Override
+         public void run() {
+            for (int i = 1; i <= Math.min(PREFETCH_DEPTH, length - 1); i++) {
+               // Wrap around as animations do
+               int index = ((alongZ ? slice : frame) + i * step + length) % length;
+               for (int channel : channels) {
+                  if (prefetchGeneration_.get() != generation) {
+                     // The user has moved on
+                     return;
+                  }
+                  int s = alongZ ? index : slice;
+                  int t = alongZ ? frame : index;
+                  long key = ImageCoordinateIndex.pack(channel, s, t, position);
+                  if (!planeCache_.contains(key)
+                          && getAvailablePlanes().containsKey(key)) {
+                     try {
+                        readPlane(key);
+                     } catch (RuntimeException e) {
+                        ReportingUtils.logError(e, "Failed to read ahead");
+                     }
+                  }
+               }
+            }
+         }
+      });
+   }
+
+   private synchronized ExecutorService getPrefetcher() {
+      if (prefetcher_ == null) {
+         prefetcher_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Plane read-ahead");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return prefetcher_;
+   }
+
+   /**
+    * Stops reading ahead, and drops the cached planes. Must be called before
+    * the dataset is closed.
+    */
+   public void dispose() {
+      prefetchGeneration_.incrementAndGet();
+      ExecutorService prefetcher;
+      synchronized (this) {
+         prefetcher = prefetcher_;
+         prefetcher_ = null;
+      }
+      if (prefetcher != null) {
+         prefetcher.shutdown();
+         try {
+            prefetcher.awaitTermination(5, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            ReportingUtils.logError(e);
+         }
+      }
+      if (acq_ != null && acq_.getEventBus() != null) {
+         try {
+            acq_.getEventBus().unregister(this);
+         } catch (IllegalArgumentException e) {
+            // Already disposed
+         }
       }
+      planeCache_.clear();
    }
    
    //this method is available so that image tags can be synchrnized with the pixels displayed in the viewer,
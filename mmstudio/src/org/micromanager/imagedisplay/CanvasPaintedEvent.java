@@ -0,0 +1,7 @@
+package org.micromanager.imagedisplay;
+
+
+// This class is used to notify entities that the image canvas has finished
+// painting.
+public class CanvasPaintedEvent {
+}
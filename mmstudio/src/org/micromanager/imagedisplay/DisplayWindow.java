@@ -161,6 +161,7 @@ public final class DisplayWindow extends StackWindow  {
                   widthSlop, size.height);
             g.clearRect(0, heightSlop + drawnHeight + 1,
                   size.width, heightSlop);
+            bus_.post(new CanvasPaintedEvent());
          }
 
          /**
@@ -2,15 +2,22 @@ package org.micromanager.imagedisplay;
 
 /**
  * This class handles notifications of the current incoming image rate (data 
- * rate) and displayed image rate.
+ * rate) and displayed image rate, and of the display latency: the mean time
+ * from an image reaching the display until it is painted on screen.
  */
 class FPSEvent {
    private double dataFPS_;
    private double displayFPS_;
+   private double displayLatencyMs_;
 
    public FPSEvent(double dataFPS, double displayFPS) {
+      this(dataFPS, displayFPS, 0);
+   }
+
+   public FPSEvent(double dataFPS, double displayFPS, double displayLatencyMs) {
       dataFPS_ = dataFPS;
       displayFPS_ = displayFPS;
+      displayLatencyMs_ = displayLatencyMs;
    }
 
    public double getDataFPS() {
@@ -20,4 +27,8 @@ class FPSEvent {
    public double getDisplayFPS() {
       return displayFPS_;
    }
+
+   public double getDisplayLatencyMs() {
+      return displayLatencyMs_;
+   }
 }
@@ -695,7 +695,12 @@ public class HyperstackControls extends DisplayControls implements LiveModeListe
    public void onFPSUpdate(FPSEvent event) {
       // Default to assuming we'll be blanking the label.
       String newLabel = "";
-      if (event.getDataFPS() != 0) {
+      if (event.getDataFPS() != 0 && event.getDisplayLatencyMs() > 0) {
+         newLabel = String.format("FPS: %.1f (display %.1f, %.0f ms behind)", 
+               event.getDataFPS(), event.getDisplayFPS(),
+               event.getDisplayLatencyMs());
+      }
+      else if (event.getDataFPS() != 0) {
          newLabel = String.format("FPS: %.1f (display %.1f)", 
                event.getDataFPS(), event.getDisplayFPS());
       }
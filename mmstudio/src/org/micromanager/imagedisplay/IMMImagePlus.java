@@ -12,6 +12,16 @@ public interface IMMImagePlus {
    public void setNSlicesUnverified(int nSlices);
    public void setNFramesUnverified(int nFrames);
    public void drawWithoutUpdate();
+   /**
+    * Maps the current pixels through the LUTs into the image that the canvas
+    * paints, without painting it. Safe to call off the EDT.
+    */
+   public void renderImage();
+   /**
+    * Paints the image produced by the last renderImage(). Must be called on
+    * the EDT.
+    */
+   public void drawRenderedImage();
 
    public int[] getPixelIntensities(int x, int y);
 }
@@ -79,7 +79,8 @@ public class MMCompositeImage extends CompositeImage implements IMMImagePlus {
       super.nFrames = nFrames;
    }
 
-   private void superReset() {
+   // Synchronized with updateImage(), which the display thread calls
+   private synchronized void superReset() {
       super.reset();
    }
 
@@ -88,7 +89,7 @@ public class MMCompositeImage extends CompositeImage implements IMMImagePlus {
    @Override
    public void reset() {
       if (SwingUtilities.isEventDispatchThread()) {
-         super.reset();
+         superReset();
       } else {
          SwingUtilities.invokeLater(new Runnable() {
             @Override
@@ -228,6 +229,27 @@ public class MMCompositeImage extends CompositeImage implements IMMImagePlus {
       superDraw();
    }
 
+   @Override
+   public void renderImage() {
+      try {
+         updateImage();
+      } catch (ArrayIndexOutOfBoundsException aex) {
+         ReportingUtils.logError(aex);
+      }
+   }
+
+   @Override
+   public void drawRenderedImage() {
+      try {
+         JavaUtils.invokeRestrictedMethod(this, ImagePlus.class, "notifyListeners", 2);
+      } catch (NoSuchMethodException ex) {
+      } catch (IllegalAccessException ex) {
+      } catch (IllegalArgumentException ex) {
+      } catch (InvocationTargetException ex) {
+      }
+      superDraw();
+   }
+
    @Override
    public int[] getPixelIntensities(int x, int y) {
       return super.getPixel(x, y);
@@ -79,6 +79,22 @@ public class MMImagePlus extends ImagePlus implements IMMImagePlus {
       superDraw();
    }
 
+   // The display thread renders while the canvas may update the image
+   @Override
+   public synchronized void updateImage() {
+      super.updateImage();
+   }
+
+   @Override
+   public void renderImage() {
+      updateImage();
+   }
+
+   @Override
+   public void drawRenderedImage() {
+      superDraw();
+   }
+
    @Override
    public int[] getPixelIntensities(int x, int y) {
       return super.getPixel(x, y);
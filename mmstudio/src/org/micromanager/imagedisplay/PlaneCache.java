@@ -0,0 +1,107 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PlaneCache.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.imagedisplay;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import mmcorej.TaggedImage;
+
+/**
+ * Least recently used planes of a dataset, keyed by their
+ * ImageCoordinateIndex key, within a budget of pixel bytes.
+ */
+public final class PlaneCache {
+   // Rough allowance for the metadata of each plane
+   private static final int TAGS_BYTES = 4096;
+
+   private final long budget_;
+   private long bytes_ = 0;
+   private final LinkedHashMap<Long, TaggedImage> planes_ =
+         new LinkedHashMap<Long, TaggedImage>(64, 0.75f, true);
+
+   public PlaneCache(long budget) {
+      budget_ = budget;
+   }
+
+   public synchronized TaggedImage get(long key) {
+      return planes_.get(key);
+   }
+
+   public synchronized boolean contains(long key) {
+      return planes_.containsKey(key);
+   }
+
+   /**
+    * Adds a plane, evicting the least recently used ones beyond the budget.
+    * The plane itself is kept even if it is larger than the budget.
+    */
+   public synchronized void put(long key, TaggedImage image) {
+      TaggedImage previous = planes_.put(key, image);
+      if (previous != null) {
+         bytes_ -= sizeOf(previous);
+      }
+      bytes_ += sizeOf(image);
+      Iterator<Map.Entry<Long, TaggedImage>> eldest = planes_.entrySet().iterator();
+      while (bytes_ > budget_ && planes_.size() > 1) {
+         bytes_ -= sizeOf(eldest.next().getValue());
+         eldest.remove();
+      }
+   }
+
+   public synchronized void remove(long key) {
+      TaggedImage image = planes_.remove(key);
+      if (image != null) {
+         bytes_ -= sizeOf(image);
+      }
+   }
+
+   public synchronized void clear() {
+      planes_.clear();
+      bytes_ = 0;
+   }
+
+   public synchronized int size() {
+      return planes_.size();
+   }
+
+   public synchronized long getBytes() {
+      return bytes_;
+   }
+
+   public long getBudget() {
+      return budget_;
+   }
+
+   static long sizeOf(TaggedImage image) {
+      long size = TAGS_BYTES;
+      Object pix = image.pix;
+      if (pix instanceof byte[]) {
+         size += ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         size += 2L * ((short[]) pix).length;
+      } else if (pix instanceof int[]) {
+         size += 4L * ((int[]) pix).length;
+      } else if (pix instanceof float[]) {
+         size += 4L * ((float[]) pix).length;
+      }
+      return size;
+   }
+}
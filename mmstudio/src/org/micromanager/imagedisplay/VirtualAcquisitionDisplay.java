@@ -29,6 +29,7 @@ import ij.CompositeImage;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
+import ij.gui.ImageCanvas;
 import ij.gui.ImageWindow;
 import ij.io.FileInfo;
 import ij.measure.Calibration;
@@ -45,6 +46,7 @@ import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -114,8 +116,12 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    private String title_;
    private int numComponents_;
    private int pixelType_ = 0;
+   // Display rate used when there is no MMStudio to ask
+   public static final double DEFAULT_DISPLAY_FPS = 30;
+   // Longest we wait for the canvas to paint the previous image
+   private static final long MAX_PAINT_WAIT_MS = 1000;
    // This queue holds images waiting to be displayed.
-   private LinkedBlockingQueue<JSONObject> imageTagsQueue_;
+   private LinkedBlockingQueue<PendingImage> imageQueue_;
    // This thread consumes images from the above queue.
    private Thread displayThread_;
    // This boolean is used to tell the display thread to stop what it's doing.
@@ -142,6 +148,28 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    private final AtomicBoolean updatePixelSize_ = new AtomicBoolean(false);
    private final AtomicLong newPixelSize_ = new AtomicLong();
    private final Object imageReceivedObject_ = new Object();
+   // Notified whenever the canvas has painted
+   private final Object paintMonitor_ = new Object();
+   // The image rendered last, until it is on screen
+   private final AtomicReference<PendingImage> lastRenderedImage_ =
+         new AtomicReference<PendingImage>();
+   // Display latency since the last FPS update
+   private final Object latencyLock_ = new Object();
+   private long latencyNanos_ = 0;
+   private int latencyCount_ = 0;
+
+   /**
+    * An image waiting to be displayed, and when it reached us.
+    */
+   private static class PendingImage {
+      final JSONObject tags_;
+      final long receivedNanos_;
+
+      PendingImage(JSONObject tags) {
+         tags_ = tags;
+         receivedNanos_ = System.nanoTime();
+      }
+   }
 
    private EventBus bus_;
 
@@ -186,85 +214,152 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
 
    /**
     * Start the thread that will be used to update our display. This thread
-    * extracts the newest image from imageTagsQueue_, displays it, and waits for
-    * display to stop, then repeats (all other images in the queue are 
-    * discarded). 
+    * takes the newest image from imageQueue_ (all other images in the queue
+    * are discarded), waits until the previous one has been painted and it is
+    * time for the next frame at the target display rate, and renders it.
+    * Mapping the pixels through the LUTs happens on this thread, so the EDT
+    * only has to update the controls and blit the result.
     */
    private void setupDisplayThread() {
-      imageTagsQueue_ = new LinkedBlockingQueue<JSONObject>();
+      imageQueue_ = new LinkedBlockingQueue<PendingImage>();
       displayThread_ = new Thread(new Runnable() {
          @Override
          public void run() {
-            JSONObject tags = null;
+            long nextFrameNanos = System.nanoTime();
             while (!shouldStopDisplayThread_.get()) {
-               boolean haveValidImage = false;
-               // Extract images from the queue until we get to the end.
-               do {
-                  try {
-                     // This will block until an image is available or we need
-                     // to send a new FPS update.
-                     tags = imageTagsQueue_.poll(500, TimeUnit.MILLISECONDS);
-                     haveValidImage = (tags != null);
-                     if (tags == null) {
-                        try {
-                           // We still need to generate an FPS update at 
-                           // regular intervals; we just have to do it without
-                           // any image tags.
-                           sendFPSUpdate(null);
-                        }
-                        catch (Exception e) {
-                           // Can't get image tags, apparently; give up.
-                           break;
-                        }
-                        continue;
-                     }
+               try {
+                  // This will block until an image is available or we need
+                  // to send a new FPS update.
+                  PendingImage image = imageQueue_.poll(500, TimeUnit.MILLISECONDS);
+                  if (image == null) {
+                     // We still need to generate an FPS update at regular
+                     // intervals; we just have to do it without any image
+                     // tags.
+                     sendFPSUpdate(null);
+                     continue;
                   }
-                  catch (InterruptedException e) {
-                     // Interrupted while waiting for the queue to be 
-                     // populated. 
-                     if (shouldStopDisplayThread_.get()) {
-                        // Time to stop.
-                        return;
-                     }
+                  long now = System.nanoTime();
+                  if (nextFrameNanos - now > 0) {
+                     TimeUnit.NANOSECONDS.sleep(nextFrameNanos - now);
                   }
-               } while (imageTagsQueue_.peek() != null);
-
-               if (tags == null || !haveValidImage) {
-                  // Nothing to show. 
-                  continue;
+                  nextFrameNanos = System.nanoTime() + getFramePeriodNanos();
+                  waitForCanvas();
+                  // Images that arrived in the meantime make this one stale
+                  PendingImage newer;
+                  while ((newer = imageQueue_.poll()) != null) {
+                     image = newer;
+                  }
+                  renderImage(image);
+                  imagesDisplayed_++;
+                  sendFPSUpdate(image.tags_);
                }
-      
-               if (hyperImage_ != null && hyperImage_.getCanvas() != null) {
-                  // Wait for the canvas to be available. If we don't do this,
-                  // then our framerate tanks, possibly because of repaint
-                  // events piling up in the EDT. It's hard to tell. 
-                  while (CanvasPaintPending.isMyPaintPending(
-                        hyperImage_.getCanvas(), imageReceivedObject_)) {
-                     try {
-                        Thread.sleep(10);
-                     }
-                     catch (InterruptedException e) {
-                        if (shouldStopDisplayThread_.get()) {
-                           // Time to stop.
-                           return;
-                        }
-                     }
+               catch (InterruptedException e) {
+                  if (shouldStopDisplayThread_.get()) {
+                     // Time to stop.
+                     return;
                   }
-                  CanvasPaintPending.setPaintPending(
-                        hyperImage_.getCanvas(), imageReceivedObject_);
                }
-               showImage(tags, true);
-               imagesDisplayed_++;
-               sendFPSUpdate(tags);
             } // End while loop
          }
       }, "VirtualAcquisitionDisplay display thread");
       displayThread_.start();
    }
 
+   private long getFramePeriodNanos() {
+      MMStudio studio = MMStudio.getInstance();
+      double fps = studio == null ? DEFAULT_DISPLAY_FPS : studio.getTargetDisplayFPS();
+      return fps > 0 ? (long) (1e9 / fps) : 0;
+   }
+
+   /**
+    * Wait for the canvas to paint the previous image. If we don't do this,
+    * then our framerate tanks, possibly because of repaint events piling up
+    * in the EDT. A paint that never comes (e.g. while the window is hidden)
+    * only delays us by MAX_PAINT_WAIT_MS.
+    */
+   private void waitForCanvas() throws InterruptedException {
+      if (hyperImage_ == null || hyperImage_.getCanvas() == null) {
+         return;
+      }
+      ImageCanvas canvas = hyperImage_.getCanvas();
+      long deadline = System.currentTimeMillis() + MAX_PAINT_WAIT_MS;
+      synchronized (paintMonitor_) {
+         while (CanvasPaintPending.isMyPaintPending(canvas, imageReceivedObject_)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+               CanvasPaintPending.removePaintPending(canvas, imageReceivedObject_);
+               break;
+            }
+            // Woken up by onCanvasPainted()
+            paintMonitor_.wait(Math.min(remaining, 100));
+         }
+      }
+   }
+
+   /**
+    * Update the controls for the image on the EDT, map its pixels here, and
+    * have the EDT draw the result.
+    */
+   private void renderImage(final PendingImage image) throws InterruptedException {
+      final boolean[] shouldDraw = new boolean[1];
+      try {
+         GUIUtils.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+               if (amClosing_) {
+                  return;
+               }
+               doShowImage(image.tags_);
+               imageChangedUpdate();
+               shouldDraw[0] = hyperImage_ != null && hyperImage_.isVisible();
+            }
+         });
+      }
+      catch (InvocationTargetException e) {
+         ReportingUtils.logError(e.getCause(), "Failed to show image");
+         return;
+      }
+      if (!shouldDraw[0]) {
+         return;
+      }
+      final IMMImagePlus immi = (IMMImagePlus) hyperImage_;
+      if (hyperImage_.getCanvas() != null) {
+         CanvasPaintPending.setPaintPending(hyperImage_.getCanvas(),
+               imageReceivedObject_);
+      }
+      immi.renderImage();
+      lastRenderedImage_.set(image);
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            immi.drawRenderedImage();
+         }
+      });
+   }
+
+   /**
+    * The canvas finished painting; record the latency of the image we last
+    * rendered, and let the display thread go on.
+    */
+   @Subscribe
+   public void onCanvasPainted(CanvasPaintedEvent event) {
+      PendingImage image = lastRenderedImage_.getAndSet(null);
+      if (image != null) {
+         long latency = System.nanoTime() - image.receivedNanos_;
+         synchronized (latencyLock_) {
+            latencyNanos_ += latency;
+            latencyCount_++;
+         }
+      }
+      synchronized (paintMonitor_) {
+         paintMonitor_.notifyAll();
+      }
+   }
+
    /**
-    * Send an update on our FPS, both data rate and image display rate. Only
-    * if it has been at least 500ms since our last update.
+    * Send an update on our FPS, both data rate and image display rate, and
+    * the mean display latency. Only if it has been at least 500ms since our
+    * last update.
     */
    private void sendFPSUpdate(JSONObject tags) {
       long curTimestamp = System.currentTimeMillis();
@@ -280,13 +375,21 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       else if (curTimestamp - lastFPSUpdateTimestamp_ >= 500) {
          // More than 500ms since last update.
          double elapsedTime = (curTimestamp - lastFPSUpdateTimestamp_) / 1000.0;
+         double latencyMs = 0;
+         synchronized (latencyLock_) {
+            if (latencyCount_ > 0) {
+               latencyMs = latencyNanos_ / (latencyCount_ * 1e6);
+            }
+            latencyNanos_ = 0;
+            latencyCount_ = 0;
+         }
          try {
             long imageIndex = MDUtils.getSequenceNumber(tags);
             // HACK: Ignore the first FPS display event, to prevent us from
             // showing FPS for the Snap window.
             if (lastImageIndex_ != 0) {
                bus_.post(new FPSEvent((imageIndex - lastImageIndex_) / elapsedTime, 
-                        imagesDisplayed_ / elapsedTime));
+                        imagesDisplayed_ / elapsedTime, latencyMs));
             }
             lastImageIndex_ = imageIndex;
          }
@@ -462,6 +565,9 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
     */
    @Override
    public void imageReceived(final TaggedImage taggedImage) {
+      if (virtualStack_ != null) {
+         virtualStack_.imageReceived(taggedImage);
+      }
       updateDisplay(taggedImage);
    }
 
@@ -497,7 +603,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
          return;
       }
       try {
-         imageTagsQueue_.add(tags);
+         imageQueue_.add(new PendingImage(tags));
       }
       catch (IllegalStateException e) {
          // The queue was full. This should never happen as the queue has
@@ -685,19 +791,10 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    }
 
    /**
-    * This is a wrapper around doShowImage() that sets and unsets 
-    * isDoShowImageRunning_ to indicate when the display is complete.
+    * Sets up the window and its dimensions for a new image; the display
+    * thread renders it afterwards. Must be called on the EDT.
     */
-   private void showImage(final JSONObject tags, final boolean waitForDisplay) {
-      SwingUtilities.invokeLater(new Runnable() {
-         @Override
-         public void run() {
-            doShowImage(tags, waitForDisplay);
-         }
-      });
-   }
-   
-   private void doShowImage(final JSONObject tags, boolean waitForDisplay) {
+   private void doShowImage(final JSONObject tags) {
       updateWindowTitleAndStatus();
 
       if (tags == null) {
@@ -774,8 +871,6 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       if (frame == 0) {
          initializeContrast();
       }
-
-      updateAndDraw(true);
    }
 
    private void initializeContrast() {
@@ -1181,6 +1276,9 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
 
       // Now that we have shut down everything that may access the images,
       // we can close the dataset.
+      if (virtualStack_ != null) {
+         virtualStack_.dispose();
+      }
       imageCache_.close();
 
       // Finally, tell the window to close now.
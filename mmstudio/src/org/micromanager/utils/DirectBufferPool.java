@@ -0,0 +1,145 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DirectBufferPool.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of direct ByteBuffers, so that code doing file I/O on
+ * every image doesn't allocate (and rely on the GC to free) a new direct
+ * buffer each time.
+ *
+ * Requests are rounded up to a size class: powers of two up to 64 kB (IFDs,
+ * index map entries, small patches) and multiples of 64 kB above that (pixel
+ * buffers, which have the same size throughout an acquisition). Buffers
+ * handed out have the requested limit, position 0, native byte order and
+ * undefined contents. The total size of idle buffers kept in the pool is
+ * capped; beyond that, released buffers are left to the GC.
+ */
+public final class DirectBufferPool {
+   private static final int MIN_CLASS = 64;
+   private static final int SMALL_CLASS_LIMIT = 64 * 1024;
+
+   private static final DirectBufferPool SHARED = new DirectBufferPool(
+         System.getProperty("sun.arch.data.model", "32").equals("64") ?
+         256L << 20 : 16L << 20);
+
+   private final long maxRetainedBytes_;
+   private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> idle_ =
+         new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>>();
+   private final AtomicLong retainedBytes_ = new AtomicLong(0);
+   private final AtomicLong hits_ = new AtomicLong(0);
+   private final AtomicLong misses_ = new AtomicLong(0);
+
+   public DirectBufferPool(long maxRetainedBytes) {
+      maxRetainedBytes_ = maxRetainedBytes;
+   }
+
+   /**
+    * @return the pool shared by the multipage TIFF writers and readers
+    */
+   public static DirectBufferPool getSharedPool() {
+      return SHARED;
+   }
+
+   /**
+    * Get a buffer with at least the given capacity. Its limit is set to
+    * numBytes, and it must not be used after being released.
+    */
+   public ByteBuffer acquire(int numBytes) {
+      int sizeClass = sizeClass(numBytes);
+      ByteBuffer buffer = null;
+      ConcurrentLinkedQueue<ByteBuffer> queue = idle_.get(sizeClass);
+      if (queue != null) {
+         buffer = queue.poll();
+      }
+      if (buffer != null) {
+         retainedBytes_.addAndGet(-sizeClass);
+         hits_.incrementAndGet();
+      } else {
+         buffer = ByteBuffer.allocateDirect(sizeClass);
+         misses_.incrementAndGet();
+      }
+      buffer.clear();
+      buffer.limit(numBytes);
+      return buffer.order(ByteOrder.nativeOrder());
+   }
+
+   /**
+    * Give a buffer back to the pool. Heap buffers, read-only buffers (such
+    * as views of memory mapped files), and direct buffers that don't have the
+    * capacity of a size class, are ignored.
+    */
+   public void release(ByteBuffer buffer) {
+      if (buffer == null || !buffer.isDirect() || buffer.isReadOnly()) {
+         return;
+      }
+      int capacity = buffer.capacity();
+      if (capacity == 0 || sizeClass(capacity) != capacity) {
+         return;
+      }
+      if (retainedBytes_.addAndGet(capacity) > maxRetainedBytes_) {
+         retainedBytes_.addAndGet(-capacity);
+         return;
+      }
+      ConcurrentLinkedQueue<ByteBuffer> queue = idle_.get(capacity);
+      if (queue == null) {
+         idle_.putIfAbsent(capacity, new ConcurrentLinkedQueue<ByteBuffer>());
+         queue = idle_.get(capacity);
+      }
+      queue.offer(buffer);
+   }
+
+   /**
+    * @return the fraction of acquire() calls that were served by a recycled
+    * buffer
+    */
+   public double getHitRate() {
+      long hits = hits_.get();
+      long total = hits + misses_.get();
+      return total == 0 ? 0 : hits / (double) total;
+   }
+
+   public long getRetainedBytes() {
+      return retainedBytes_.get();
+   }
+
+   static int sizeClass(int numBytes) {
+      if (numBytes <= MIN_CLASS) {
+         return MIN_CLASS;
+      }
+      if (numBytes <= SMALL_CLASS_LIMIT) {
+         return Integer.highestOneBit(numBytes - 1) << 1;
+      }
+      int remainder = numBytes % SMALL_CLASS_LIMIT;
+      return remainder == 0 ? numBytes : numBytes + SMALL_CLASS_LIMIT - remainder;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%d acquired, hit rate %.1f%%, %.1f MB idle",
+            hits_.get() + misses_.get(), 100 * getHitRate(),
+            retainedBytes_.get() / 1048576.0);
+   }
+}
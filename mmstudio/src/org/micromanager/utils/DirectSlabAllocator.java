@@ -0,0 +1,233 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DirectSlabAllocator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Hands out blocks of large direct ByteBuffers ("slabs"), within a fixed byte
+ * budget, for storing images off the Java heap without one direct buffer
+ * (and one GC-managed cleaner) per image.
+ *
+ * Blocks are carved sequentially out of the current slab. A slab is reused
+ * once all of its blocks have been freed, so the allocator works best when
+ * blocks are freed roughly in the order they were allocated, as when the
+ * oldest images of an acquisition are evicted first. Requests larger than a
+ * slab get a slab of their own, which is dropped when freed.
+ *
+ * allocate() returns null rather than exceeding the budget, or if the JVM
+ * refuses to allocate more direct memory; callers are expected to free
+ * blocks and retry.
+ */
+public final class DirectSlabAllocator {
+   public static final int DEFAULT_SLAB_SIZE = 64 << 20;
+
+   private final long budget_;
+   private final int slabSize_;
+   private final List<Slab> slabs_ = new ArrayList<Slab>();
+   private final LinkedList<Slab> emptySlabs_ = new LinkedList<Slab>();
+   private Slab current_;
+   private long allocatedBytes_ = 0;
+   private long usedBytes_ = 0;
+
+   private static final class Slab {
+      final ByteBuffer buffer;
+      final boolean dedicated;
+      int top = 0;
+      int liveBlocks = 0;
+
+      Slab(ByteBuffer buffer, boolean dedicated) {
+         this.buffer = buffer;
+         this.dedicated = dedicated;
+      }
+   }
+
+   /**
+    * A region of a slab. Its contents stay valid until it is freed.
+    */
+   public static final class Block {
+      private final Slab slab_;
+      private final int offset_;
+      private final int length_;
+
+      private Block(Slab slab, int offset, int length) {
+         slab_ = slab;
+         offset_ = offset;
+         length_ = length;
+      }
+
+      public int getLength() {
+         return length_;
+      }
+
+      /**
+       * @return a new view of the block, with position 0, limit and capacity
+       * equal to its length, and native byte order
+       */
+      public ByteBuffer buffer() {
+         ByteBuffer view = slab_.buffer.duplicate();
+         view.limit(offset_ + length_).position(offset_);
+         return view.slice().order(ByteOrder.nativeOrder());
+      }
+   }
+
+   /**
+    * @param budget maximum total size of the slabs, in bytes
+    * @param slabSize size of each slab; smaller if the budget is smaller
+    */
+   public DirectSlabAllocator(long budget, int slabSize) {
+      if (budget <= 0 || slabSize <= 0) {
+         throw new IllegalArgumentException("Budget and slab size must be positive");
+      }
+      budget_ = budget;
+      slabSize_ = (int) Math.min(slabSize, budget);
+   }
+
+   public DirectSlabAllocator(long budget) {
+      this(budget, DEFAULT_SLAB_SIZE);
+   }
+
+   /**
+    * @return a block of numBytes, or null if that would exceed the budget
+    */
+   public synchronized Block allocate(int numBytes) {
+      if (numBytes < 0) {
+         throw new IllegalArgumentException("Negative block size");
+      }
+      Block block;
+      if (numBytes > slabSize_) {
+         Slab slab = newSlab(numBytes, true);
+         if (slab == null) {
+            return null;
+         }
+         block = carve(slab, numBytes);
+      } else {
+         if (current_ == null || current_.buffer.capacity() - current_.top < numBytes) {
+            Slab next = emptySlabs_.poll();
+            if (next == null) {
+               next = newSlab(slabSize_, false);
+               if (next == null) {
+                  return null;
+               }
+            }
+            Slab previous = current_;
+            current_ = next;
+            if (previous != null && previous.liveBlocks == 0) {
+               recycle(previous);
+            }
+         }
+         block = carve(current_, numBytes);
+      }
+      usedBytes_ += numBytes;
+      return block;
+   }
+
+   private Block carve(Slab slab, int numBytes) {
+      Block block = new Block(slab, slab.top, numBytes);
+      slab.top += numBytes;
+      slab.liveBlocks++;
+      return block;
+   }
+
+   private Slab newSlab(int capacity, boolean dedicated) {
+      if (allocatedBytes_ + capacity > budget_) {
+         return null;
+      }
+      ByteBuffer buffer;
+      try {
+         buffer = ByteBuffer.allocateDirect(capacity);
+      } catch (OutOfMemoryError e) {
+         // The JVM's direct memory limit is lower than our budget
+         ReportingUtils.logError("Could not allocate a " + capacity
+               + " byte slab with " + allocatedBytes_ + " bytes already allocated");
+         return null;
+      }
+      Slab slab = new Slab(buffer, dedicated);
+      allocatedBytes_ += capacity;
+      if (!dedicated) {
+         slabs_.add(slab);
+      }
+      return slab;
+   }
+
+   /**
+    * Free a block. It must not be used afterwards.
+    */
+   public synchronized void free(Block block) {
+      Slab slab = block.slab_;
+      usedBytes_ -= block.length_;
+      slab.liveBlocks--;
+      if (slab.liveBlocks > 0) {
+         return;
+      }
+      if (slab.dedicated) {
+         allocatedBytes_ -= slab.buffer.capacity();
+      } else if (slab == current_) {
+         slab.top = 0;
+      } else {
+         recycle(slab);
+      }
+   }
+
+   private void recycle(Slab slab) {
+      slab.top = 0;
+      emptySlabs_.add(slab);
+   }
+
+   /**
+    * Drop all slabs. Blocks allocated before must not be used afterwards.
+    */
+   public synchronized void clear() {
+      slabs_.clear();
+      emptySlabs_.clear();
+      current_ = null;
+      allocatedBytes_ = 0;
+      usedBytes_ = 0;
+   }
+
+   public long getBudget() {
+      return budget_;
+   }
+
+   /**
+    * @return the total size of the slabs allocated so far
+    */
+   public synchronized long getAllocatedBytes() {
+      return allocatedBytes_;
+   }
+
+   /**
+    * @return the total size of the blocks not yet freed
+    */
+   public synchronized long getUsedBytes() {
+      return usedBytes_;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return String.format("%.1f MB used in %d slabs, %.1f MB allocated of %.1f MB",
+            usedBytes_ / 1048576.0, slabs_.size(), allocatedBytes_ / 1048576.0,
+            budget_ / 1048576.0);
+   }
+}
@@ -0,0 +1,533 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FocusMetrics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.awt.Rectangle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Focus scores of byte and short images, computed directly on the pixel
+ * arrays by several threads, each handling a stripe of rows.
+ *
+ * The scores are the same as those of the corresponding ImageJ based
+ * methods in OughtaFocus: filters treat the image as if its edge pixels
+ * were repeated, and filter results are clipped to the pixel range, as
+ * ImageJ's convolve3x3(), medianFilter() and findEdges() do. A region of
+ * interest is handled as if the image had been cropped to it.
+ *
+ * Instances keep their scratch rows between calls, so use one instance per
+ * autofocus rather than one per image. Instances can be shared between
+ * threads, but compute one score at a time.
+ */
+public final class FocusMetrics {
+   private static final int MEAN = 0;
+   private static final int REDONDO = 1;
+   private static final int VOLATH = 2;
+   private static final int VOLATH5 = 3;
+   private static final int TENENGRAD = 4;
+   private static final int MEDIAN_EDGES = 5;
+   private static final int EDGES = 6;
+   private static final int MEDIAN_FIND_EDGES = 7;
+
+   // Below this, splitting the image costs more than it gains
+   private static final int MIN_ROWS_PER_STRIPE = 64;
+
+   private static final ExecutorService pool_ =
+         Executors.newFixedThreadPool(
+               Runtime.getRuntime().availableProcessors(),
+               new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread t = new Thread(r, "Focus metrics");
+                     t.setDaemon(true);
+                     return t;
+                  }
+               });
+
+   private final Stripe[] stripes_;
+   private final Future<?>[] futures_;
+
+   // Set for the duration of one computation
+   private Object pixels_;
+   private int imageWidth_;
+   private Rectangle roi_;
+   private int maxValue_;
+   private int metric_;
+
+   public FocusMetrics() {
+      this(Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * @param numThreads the maximum number of threads to use for one image,
+    * including the calling thread
+    */
+   public FocusMetrics(int numThreads) {
+      stripes_ = new Stripe[Math.max(1, numThreads)];
+      for (int i = 0; i < stripes_.length; i++) {
+         stripes_[i] = new Stripe();
+      }
+      futures_ = new Future<?>[stripes_.length];
+   }
+
+   /**
+    * @return whether the pixels are of a type the metrics handle, i.e. byte[]
+    * or short[]
+    */
+   public static boolean isSupported(Object pixels) {
+      return pixels instanceof byte[] || pixels instanceof short[];
+   }
+
+   public synchronized double computeMean(Object pixels, int width,
+         int height, Rectangle roi) {
+      run(MEAN, pixels, width, height, roi);
+      return getPixelSum() / getPixelCount();
+   }
+
+   /**
+    * @return the sample standard deviation of the pixel values, as
+    * reported by ImageJ's getStatistics()
+    */
+   public synchronized double computeStdDev(Object pixels, int width,
+         int height, Rectangle roi) {
+      run(MEAN, pixels, width, height, roi);
+      double n = getPixelCount();
+      if (n < 2) {
+         return 0;
+      }
+      double sum = getPixelSum();
+      double sumOfSquares = 0;
+      for (Stripe stripe : stripes_) {
+         sumOfSquares += stripe.sumOfSquares_;
+      }
+      return Math.sqrt(Math.max(0, (sumOfSquares - sum * sum / n) / (n - 1)));
+   }
+
+   /**
+    * Sum of the squared response of the "Laplace" filter of Redondo et al.,
+    * with its center weight on the left neighbour, over the interior of the
+    * image. See OughtaFocus.
+    */
+   public synchronized double computeRedondo(Object pixels, int width,
+         int height, Rectangle roi) {
+      return run(REDONDO, pixels, width, height, roi);
+   }
+
+   /**
+    * Volath's F4: the autocorrelation at a horizontal shift of one pixel
+    * minus that at a shift of two.
+    */
+   public synchronized double computeVolath(Object pixels, int width,
+         int height, Rectangle roi) {
+      return run(VOLATH, pixels, width, height, roi);
+   }
+
+   /**
+    * Volath's F5: the autocorrelation at a horizontal shift of one pixel
+    * minus the squared mean.
+    */
+   public synchronized double computeVolath5(Object pixels, int width,
+         int height, Rectangle roi) {
+      double sum = run(VOLATH5, pixels, width, height, roi);
+      double n = getPixelCount();
+      double mean = getPixelSum() / n;
+      return sum - (roi_.width - 1.0) * roi_.height * mean * mean;
+   }
+
+   /**
+    * Sum of the squared horizontal and vertical Sobel responses.
+    */
+   public synchronized double computeTenengrad(Object pixels, int width,
+         int height, Rectangle roi) {
+      return run(TENENGRAD, pixels, width, height, roi);
+   }
+
+   /**
+    * Sum of the magnitude of both diagonal edge responses, after a 3x3
+    * median filter.
+    */
+   public synchronized double computeMedianEdges(Object pixels, int width,
+         int height, Rectangle roi) {
+      return run(MEDIAN_EDGES, pixels, width, height, roi);
+   }
+
+   /**
+    * Sum of the Sobel edge magnitude, as computed by ImageJ's findEdges(),
+    * optionally after a 3x3 median filter.
+    */
+   public synchronized double computeEdgeSum(Object pixels, int width,
+         int height, Rectangle roi, boolean medianFilter) {
+      return run(medianFilter ? MEDIAN_FIND_EDGES : EDGES, pixels, width,
+            height, roi);
+   }
+
+   private double getPixelSum() {
+      double sum = 0;
+      for (Stripe stripe : stripes_) {
+         sum += stripe.pixelSum_;
+      }
+      return sum;
+   }
+
+   private double getPixelCount() {
+      return (double) roi_.width * roi_.height;
+   }
+
+   private double run(int metric, Object pixels, int width, int height,
+         Rectangle roi) {
+      if (!isSupported(pixels)) {
+         throw new IllegalArgumentException("Unsupported pixel type: " +
+               (pixels == null ? null : pixels.getClass().getSimpleName()));
+      }
+      Rectangle bounds = new Rectangle(0, 0, width, height);
+      roi_ = roi == null ? bounds : roi.intersection(bounds);
+      if (roi_.isEmpty()) {
+         throw new IllegalArgumentException("Empty region " + roi_);
+      }
+      pixels_ = pixels;
+      imageWidth_ = width;
+      maxValue_ = pixels instanceof byte[] ? 0xff : 0xffff;
+      metric_ = metric;
+
+      int numStripes = Math.min(stripes_.length,
+            Math.max(1, roi_.height / MIN_ROWS_PER_STRIPE));
+      for (int i = 0; i < stripes_.length; i++) {
+         stripes_[i].reset((int) ((long) roi_.height * i / numStripes),
+               i < numStripes ? (int) ((long) roi_.height * (i + 1) / numStripes) : 0);
+      }
+      for (int i = 1; i < numStripes; i++) {
+         futures_[i] = pool_.submit(stripes_[i]);
+      }
+      RuntimeException error = null;
+      try {
+         stripes_[0].call();
+      } catch (RuntimeException e) {
+         error = e;
+      }
+      // Always wait for all stripes, as they use this instance's scratch rows
+      for (int i = 1; i < numStripes; i++) {
+         try {
+            Uninterruptibles.getUninterruptibly(futures_[i]);
+         } catch (ExecutionException e) {
+            if (error == null) {
+               error = new RuntimeException(e.getCause());
+            }
+         }
+         futures_[i] = null;
+      }
+      pixels_ = null;
+      if (error != null) {
+         throw error;
+      }
+
+      double sum = 0;
+      for (Stripe stripe : stripes_) {
+         sum += stripe.sum_;
+      }
+      return sum;
+   }
+
+   /**
+    * Copies row y of the region, counted from the top of the region and
+    * clamped to it, to row[1 .. width]; row[0] and row[width + 1] repeat
+    * the edge pixels.
+    */
+   private void loadRow(int y, int[] row) {
+      y = Math.max(0, Math.min(roi_.height - 1, y));
+      int w = roi_.width;
+      int offset = (roi_.y + y) * imageWidth_ + roi_.x;
+      if (pixels_ instanceof byte[]) {
+         byte[] pix = (byte[]) pixels_;
+         for (int x = 0; x < w; x++) {
+            row[x + 1] = pix[offset + x] & 0xff;
+         }
+      } else {
+         short[] pix = (short[]) pixels_;
+         for (int x = 0; x < w; x++) {
+            row[x + 1] = pix[offset + x] & 0xffff;
+         }
+      }
+      row[0] = row[1];
+      row[w + 1] = row[w];
+   }
+
+   /**
+    * The last few rows a stripe used, so that each is loaded (or filtered)
+    * only once while the stripe moves down.
+    */
+   private abstract class RowCache {
+      private final int[][] rows_;
+      private final int[] rowIndices_;
+
+      RowCache(int size) {
+         rows_ = new int[size][];
+         rowIndices_ = new int[size];
+      }
+
+      void reset(int width) {
+         for (int i = 0; i < rows_.length; i++) {
+            if (rows_[i] == null || rows_[i].length < width + 2) {
+               rows_[i] = new int[width + 2];
+            }
+            rowIndices_[i] = -1;
+         }
+      }
+
+      int[] get(int y) {
+         y = Math.max(0, Math.min(roi_.height - 1, y));
+         int slot = y % rows_.length;
+         if (rowIndices_[slot] != y) {
+            load(y, rows_[slot]);
+            rowIndices_[slot] = y;
+         }
+         return rows_[slot];
+      }
+
+      abstract void load(int y, int[] row);
+   }
+
+   private final class Stripe implements Callable<Void> {
+      private int startRow_;
+      private int endRow_;
+      private double sum_;
+      private double pixelSum_;
+      private double sumOfSquares_;
+      // Each column of the 3x3 window, sorted
+      private int[] columnLow_ = new int[0];
+      private int[] columnMiddle_ = new int[0];
+      private int[] columnHigh_ = new int[0];
+
+      private final RowCache source_ = new RowCache(5) {
+         @Override
+         void load(int y, int[] row) {
+            loadRow(y, row);
+         }
+      };
+
+      private final RowCache median_ = new RowCache(3) {
+         @Override
+         void load(int y, int[] row) {
+            medianRow(source_.get(y - 1), source_.get(y), source_.get(y + 1),
+                  row);
+         }
+      };
+
+      void reset(int startRow, int endRow) {
+         startRow_ = startRow;
+         endRow_ = endRow;
+         sum_ = 0;
+         pixelSum_ = 0;
+         sumOfSquares_ = 0;
+         if (endRow > startRow) {
+            source_.reset(roi_.width);
+            median_.reset(roi_.width);
+            if (columnLow_.length < roi_.width + 2) {
+               columnLow_ = new int[roi_.width + 2];
+               columnMiddle_ = new int[roi_.width + 2];
+               columnHigh_ = new int[roi_.width + 2];
+            }
+         }
+      }
+
+      @Override
+      public Void call() {
+         int w = roi_.width;
+         int h = roi_.height;
+         for (int y = startRow_; y < endRow_; y++) {
+            switch (metric_) {
+               case MEAN:
+                  mean(source_.get(y), w);
+                  break;
+               case REDONDO:
+                  if (y > 0 && y < h - 1) {
+                     sum_ += redondo(source_.get(y - 1), source_.get(y),
+                           source_.get(y + 1), w);
+                  }
+                  break;
+               case VOLATH:
+                  sum_ += volath(source_.get(y), w);
+                  break;
+               case VOLATH5:
+                  int[] row = source_.get(y);
+                  mean(row, w);
+                  sum_ += volath5(row, w);
+                  break;
+               case TENENGRAD:
+                  sum_ += tenengrad(source_.get(y - 1), source_.get(y),
+                        source_.get(y + 1), w);
+                  break;
+               case MEDIAN_EDGES:
+                  sum_ += diagonalEdges(median_.get(y - 1), median_.get(y),
+                        median_.get(y + 1), w);
+                  break;
+               case EDGES:
+                  sum_ += findEdges(source_.get(y - 1), source_.get(y),
+                        source_.get(y + 1), w);
+                  break;
+               case MEDIAN_FIND_EDGES:
+                  sum_ += findEdges(median_.get(y - 1), median_.get(y),
+                        median_.get(y + 1), w);
+                  break;
+               default:
+                  throw new IllegalStateException("Unknown metric " + metric_);
+            }
+         }
+         return null;
+      }
+
+      private void mean(int[] row, int w) {
+         long sum = 0;
+         long sumOfSquares = 0;
+         for (int x = 1; x <= w; x++) {
+            int p = row[x];
+            sum += p;
+            sumOfSquares += (long) p * p;
+         }
+         pixelSum_ += sum;
+         sumOfSquares_ += sumOfSquares;
+      }
+
+      private long redondo(int[] up, int[] row, int[] down, int w) {
+         long sum = 0;
+         for (int x = 2; x < w; x++) {
+            long p = row[x - 1] + row[x + 1] + up[x] + down[x] - 4 * row[x - 1];
+            sum += p * p;
+         }
+         return sum;
+      }
+
+      private long volath(int[] row, int w) {
+         long sum1 = 0;
+         for (int x = 2; x < w; x++) {
+            sum1 += (long) row[x] * row[x + 1];
+         }
+         long sum2 = 0;
+         for (int x = 1; x < w - 1; x++) {
+            sum2 += (long) row[x] * row[x + 2];
+         }
+         return sum1 - sum2;
+      }
+
+      private long volath5(int[] row, int w) {
+         long sum = 0;
+         for (int x = 1; x < w; x++) {
+            sum += (long) row[x] * row[x + 1];
+         }
+         return sum;
+      }
+
+      private long tenengrad(int[] up, int[] row, int[] down, int w) {
+         // Kernels {-1, 0, 1, -2, 0, 2, -1, 0, 1} and
+         // {1, 2, 1, 0, 0, 0, -1, -2, -1}
+         long sum = 0;
+         for (int x = 1; x <= w; x++) {
+            long gx = clip(up[x + 1] - up[x - 1] + 2 * (row[x + 1] - row[x - 1])
+                  + down[x + 1] - down[x - 1]);
+            long gy = clip(up[x - 1] + 2 * up[x] + up[x + 1]
+                  - down[x - 1] - 2 * down[x] - down[x + 1]);
+            sum += gx * gx + gy * gy;
+         }
+         return sum;
+      }
+
+      private double diagonalEdges(int[] up, int[] row, int[] down, int w) {
+         // Kernels {2, 1, 0, 1, 0, -1, 0, -1, -2} and
+         // {0, 1, 2, -1, 0, 1, -2, -1, 0}
+         double sum = 0;
+         for (int x = 1; x <= w; x++) {
+            long g1 = clip(2 * (up[x - 1] - down[x + 1]) + up[x] - down[x]
+                  + row[x - 1] - row[x + 1]);
+            long g2 = clip(2 * (up[x + 1] - down[x - 1]) + up[x] - down[x]
+                  + row[x + 1] - row[x - 1]);
+            sum += Math.sqrt(g1 * g1 + g2 * g2);
+         }
+         return sum;
+      }
+
+      private long findEdges(int[] up, int[] row, int[] down, int w) {
+         long sum = 0;
+         for (int x = 1; x <= w; x++) {
+            long sum1 = up[x - 1] + 2 * up[x] + up[x + 1]
+                  - down[x - 1] - 2 * down[x] - down[x + 1];
+            long sum2 = up[x - 1] + 2 * row[x - 1] + down[x - 1]
+                  - up[x + 1] - 2 * row[x + 1] - down[x + 1];
+            sum += Math.min(maxValue_, (int) Math.sqrt(sum1 * sum1 + sum2 * sum2));
+         }
+         return sum;
+      }
+
+      private int clip(int value) {
+         return value < 0 ? 0 : (value > maxValue_ ? maxValue_ : value);
+      }
+
+      /**
+       * 3x3 median: sorts each column once, after which the median is the
+       * median of the largest low value, the middle of the middle values
+       * and the smallest high value of the three columns.
+       */
+      private void medianRow(int[] up, int[] row, int[] down, int[] result) {
+         int w = roi_.width;
+         int[] low = columnLow_;
+         int[] middle = columnMiddle_;
+         int[] high = columnHigh_;
+         for (int x = 0; x <= w + 1; x++) {
+            int a = up[x];
+            int b = row[x];
+            int c = down[x];
+            if (a > b) {
+               int t = a;
+               a = b;
+               b = t;
+            }
+            if (b > c) {
+               int t = b;
+               b = c;
+               c = t;
+               if (a > b) {
+                  t = a;
+                  a = b;
+                  b = t;
+               }
+            }
+            low[x] = a;
+            middle[x] = b;
+            high[x] = c;
+         }
+         for (int x = 1; x <= w; x++) {
+            int maxLow = Math.max(low[x - 1], Math.max(low[x], low[x + 1]));
+            int minHigh = Math.min(high[x - 1], Math.min(high[x], high[x + 1]));
+            int medianMiddle = median3(middle[x - 1], middle[x], middle[x + 1]);
+            result[x] = median3(maxLow, medianMiddle, minHigh);
+         }
+         result[0] = result[1];
+         result[w + 1] = result[w];
+      }
+   }
+
+   private static int median3(int a, int b, int c) {
+      return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+   }
+}
@@ -17,6 +17,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
+import org.micromanager.api.ImageCoordinateIndex;
 import org.micromanager.api.MMTags;
 
 /**
@@ -435,6 +436,15 @@ public class MDUtils {
              + NumberUtils.intToCoreString(position);
    }
 
+   /**
+    * @return the ImageCoordinateIndex key of an image, the primitive
+    * equivalent of getLabel()
+    */
+   public static long getImageKey(JSONObject md) throws JSONException {
+      return ImageCoordinateIndex.pack(getChannelIndex(md), getSliceIndex(md),
+              getFrameIndex(md), getPositionIndex(md));
+   }
+
    public static int[] getIndices(String label) {
       try {
          int[] indices = new int[4];
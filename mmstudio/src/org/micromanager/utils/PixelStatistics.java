@@ -0,0 +1,299 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelStatistics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.awt.Rectangle;
+
+/**
+ * Histogram, min/max, mean/standard deviation and outlier cut-offs of a
+ * byte or short image, computed in a single pass over the pixel array.
+ *
+ * The pass over the pixels only counts values; everything else is derived
+ * from the histogram, which is much smaller than the image. A stride larger
+ * than one samples every stride-th pixel of every stride-th row, which is
+ * good enough for display during live mode.
+ *
+ * Only the part of the histogram between the minimum and the maximum is
+ * kept, so that instances are cheap to cache.
+ */
+public final class PixelStatistics {
+   private final int[] histogram_;   // counts of min_ .. max_
+   private final int min_;
+   private final int max_;
+   private final long count_;
+   private final double mean_;
+   private final double stdDev_;
+   private final int stride_;
+   private final int numValues_;
+
+   private PixelStatistics(int[] rawHistogram, int stride) {
+      int min = 0;
+      while (min < rawHistogram.length && rawHistogram[min] == 0) {
+         min++;
+      }
+      int max = rawHistogram.length - 1;
+      while (max > min && rawHistogram[max] == 0) {
+         max--;
+      }
+      long count = 0;
+      long sum = 0;
+      long sumOfSquares = 0;
+      if (min < rawHistogram.length) {
+         histogram_ = new int[max - min + 1];
+         for (int value = min; value <= max; value++) {
+            long n = rawHistogram[value];
+            histogram_[value - min] = (int) n;
+            count += n;
+            sum += n * value;
+            sumOfSquares += n * value * value;
+         }
+      } else {
+         histogram_ = new int[0];
+         min = 0;
+         max = 0;
+      }
+      min_ = min;
+      max_ = max;
+      count_ = count;
+      stride_ = stride;
+      numValues_ = rawHistogram.length;
+      if (count > 0) {
+         mean_ = (double) sum / count;
+         double variance = (double) sumOfSquares / count - mean_ * mean_;
+         stdDev_ = count > 1 ? Math.sqrt(Math.max(0, variance * count / (count - 1))) : 0;
+      } else {
+         mean_ = 0;
+         stdDev_ = 0;
+      }
+   }
+
+   /**
+    * Wraps a histogram computed elsewhere, e.g. by ImageJ for image types
+    * that compute() does not handle.
+    */
+   public static PixelStatistics fromHistogram(int[] rawHistogram) {
+      return new PixelStatistics(rawHistogram, 1);
+   }
+
+   /**
+    * @param pixels byte[] or short[] pixels, as returned by
+    * ImageProcessor.getPixels()
+    * @param width width of the image
+    * @param height height of the image
+    * @param roi region to measure, or null for the whole image
+    * @param mask optional mask of the size of roi; non-zero entries are
+    * measured
+    * @param stride sample every stride-th pixel of every stride-th row
+    * @return the statistics, or null if the pixel type is not supported
+    */
+   public static PixelStatistics compute(Object pixels, int width, int height,
+         Rectangle roi, byte[] mask, int stride) {
+      if (roi == null) {
+         roi = new Rectangle(0, 0, width, height);
+      } else {
+         roi = roi.intersection(new Rectangle(0, 0, width, height));
+      }
+      stride = Math.max(1, stride);
+      if (mask != null && mask.length < roi.width * roi.height) {
+         mask = null;
+      }
+      int[] rawHistogram;
+      if (pixels instanceof byte[]) {
+         rawHistogram = histogram((byte[]) pixels, width, roi, mask, stride);
+      } else if (pixels instanceof short[]) {
+         rawHistogram = histogram((short[]) pixels, width, roi, mask, stride);
+      } else {
+         return null;
+      }
+      return new PixelStatistics(rawHistogram, stride);
+   }
+
+   /**
+    * @return the stride that brings the number of sampled pixels of an image
+    * down to about maxSamples
+    */
+   public static int strideFor(int numPixels, int maxSamples) {
+      if (maxSamples <= 0 || numPixels <= maxSamples) {
+         return 1;
+      }
+      return (int) Math.ceil(Math.sqrt((double) numPixels / maxSamples));
+   }
+
+   private static int[] histogram(byte[] pix, int width, Rectangle roi,
+         byte[] mask, int stride) {
+      // Runs of equal values are common (dark or saturated areas); counting
+      // into four tables keeps consecutive increments independent
+      int[] h0 = new int[256];
+      int[] h1 = new int[256];
+      int[] h2 = new int[256];
+      int[] h3 = new int[256];
+      for (int y = 0; y < roi.height; y += stride) {
+         int offset = (roi.y + y) * width + roi.x;
+         if (mask != null) {
+            int maskOffset = y * roi.width;
+            for (int x = 0; x < roi.width; x += stride) {
+               if (mask[maskOffset + x] != 0) {
+                  h0[pix[offset + x] & 0xff]++;
+               }
+            }
+            continue;
+         }
+         int end = offset + roi.width;
+         int i = offset;
+         if (stride == 1) {
+            for (; i + 3 < end; i += 4) {
+               h0[pix[i] & 0xff]++;
+               h1[pix[i + 1] & 0xff]++;
+               h2[pix[i + 2] & 0xff]++;
+               h3[pix[i + 3] & 0xff]++;
+            }
+         }
+         for (; i < end; i += stride) {
+            h0[pix[i] & 0xff]++;
+         }
+      }
+      for (int v = 0; v < 256; v++) {
+         h0[v] += h1[v] + h2[v] + h3[v];
+      }
+      return h0;
+   }
+
+   private static int[] histogram(short[] pix, int width, Rectangle roi,
+         byte[] mask, int stride) {
+      // A single table: unlike for bytes, splitting the counts over several
+      // 16 bit tables costs more in cache misses than it gains
+      int[] h0 = new int[65536];
+      for (int y = 0; y < roi.height; y += stride) {
+         int offset = (roi.y + y) * width + roi.x;
+         if (mask != null) {
+            int maskOffset = y * roi.width;
+            for (int x = 0; x < roi.width; x += stride) {
+               if (mask[maskOffset + x] != 0) {
+                  h0[pix[offset + x] & 0xffff]++;
+               }
+            }
+            continue;
+         }
+         int end = offset + roi.width;
+         if (stride == 1) {
+            for (int i = offset; i < end; i++) {
+               h0[pix[i] & 0xffff]++;
+            }
+         } else {
+            for (int i = offset; i < end; i += stride) {
+               h0[pix[i] & 0xffff]++;
+            }
+         }
+      }
+      return h0;
+   }
+
+   /**
+    * @return the number of pixels with the given value
+    */
+   public int getCount(int value) {
+      if (value < min_ || value > max_ || histogram_.length == 0) {
+         return 0;
+      }
+      return histogram_[value - min_];
+   }
+
+   /**
+    * Sums the histogram into bins of binSize values, starting at 0. Values
+    * beyond the last bin are left out.
+    */
+   public int[] getBinnedHistogram(int numBins, double binSize) {
+      int[] bins = new int[numBins];
+      for (int i = 0; i < histogram_.length; i++) {
+         int bin = (int) ((min_ + i) / binSize);
+         if (bin >= numBins) {
+            break;
+         }
+         bins[bin] += histogram_[i];
+      }
+      return bins;
+   }
+
+   /**
+    * Same as HistogramUtils.getMinAfterRejectingOutliers(): the lowest value
+    * after ignoring the given fraction of the darkest pixels.
+    */
+   public int getMinAfterRejectingOutliers(double fractionToReject) {
+      long maxOutliers = (long) (0.5 + count_ * fractionToReject);
+      long outliers = 0;
+      for (int i = 0; i < histogram_.length; i++) {
+         outliers += histogram_[i];
+         if (outliers > maxOutliers) {
+            return min_ + i;
+         }
+      }
+      return 0;
+   }
+
+   /**
+    * Same as HistogramUtils.getMaxAfterRejectingOutliers(): the highest value
+    * after ignoring the given fraction of the brightest pixels.
+    */
+   public int getMaxAfterRejectingOutliers(double fractionToReject) {
+      long maxOutliers = (long) (0.5 + count_ * fractionToReject);
+      long outliers = 0;
+      for (int i = histogram_.length - 1; i >= 0; i--) {
+         outliers += histogram_[i];
+         if (outliers > maxOutliers) {
+            return min_ + i;
+         }
+      }
+      return 0;
+   }
+
+   /**
+    * @return the number of pixels sampled
+    */
+   public long getCount() {
+      return count_;
+   }
+
+   public int getMin() {
+      return min_;
+   }
+
+   public int getMax() {
+      return max_;
+   }
+
+   public double getMean() {
+      return mean_;
+   }
+
+   public double getStdDev() {
+      return stdDev_;
+   }
+
+   public int getStride() {
+      return stride_;
+   }
+
+   /**
+    * @return the number of possible pixel values, i.e. 256 or 65536
+    */
+   public int getNumValues() {
+      return numValues_;
+   }
+}
@@ -0,0 +1,84 @@
+package mmcorej;
+
+import java.math.BigDecimal;
+import java.util.Iterator;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImageTagsTest {
+
+   private static ImageTags makeTags() throws JSONException {
+      ImageTags tags = new ImageTags();
+      tags.put("Int", 7);
+      tags.put("Long", 1L << 40);
+      tags.put("Double", 0.25);
+      tags.put("Boolean", true);
+      tags.put("String", "a \"quoted\" value");
+      tags.put("Short", Short.valueOf((short) 12));
+      tags.put("BigDecimal", new BigDecimal("1.5"));
+      tags.put("Character", Character.valueOf('x'));
+      tags.put("Null", JSONObject.NULL);
+      tags.put("Object", new JSONObject("{\"Width\":512,\"Name\":\"Camera\"}"));
+      tags.put("Array", new JSONArray("[1,\"two\",3.5]"));
+      return tags;
+   }
+
+   // Same keys and values, in any order
+   private static void assertSameTags(JSONObject expected, JSONObject actual) {
+      assertEquals(expected.length(), actual.length());
+      Iterator<String> keys = expected.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         assertEquals(String.valueOf(expected.opt(key)), String.valueOf(actual.opt(key)));
+      }
+   }
+
+   @Test
+   public void bytesRoundTrip() throws JSONException {
+      ImageTags tags = makeTags();
+      ImageTags decoded = ImageTags.fromBytes(tags.toBytes());
+      assertEquals(tags.length(), decoded.length());
+      assertEquals(7, decoded.getInt("Int"));
+      assertEquals(1L << 40, decoded.getLong("Long"));
+      assertEquals(0.25, decoded.getDouble("Double"), 0);
+      assertTrue(decoded.getBoolean("Boolean"));
+      assertEquals("a \"quoted\" value", decoded.getString("String"));
+      assertEquals(12, decoded.getInt("Short"));
+      assertEquals(1.5, decoded.getDouble("BigDecimal"), 0);
+      assertEquals("x", decoded.getString("Character"));
+      assertTrue(decoded.isNull("Null"));
+      assertEquals(512, decoded.getJSONObject("Object").getInt("Width"));
+      assertEquals("two", decoded.getJSONArray("Array").getString(1));
+      // The values come back as parsing the JSON text would give them
+      assertSameTags(new JSONObject(tags.toString()), decoded);
+   }
+
+   @Test
+   public void jsonRoundTrip() throws JSONException {
+      ImageTags tags = makeTags();
+      ImageTags parsed = ImageTags.fromJSON(tags.toString());
+      assertEquals(tags.length(), parsed.length());
+      assertEquals(12, parsed.getInt("Short"));
+      assertEquals("x", parsed.getString("Character"));
+      assertSameTags(new JSONObject(tags.toString()), ImageTags.fromBytes(parsed.toBytes()));
+   }
+
+   @Test
+   public void putInvalidatesCachedEncodings() throws JSONException {
+      ImageTags tags = makeTags();
+      String json = tags.toString();
+      byte[] encoded = tags.toBytes();
+      JSONObject nested = tags.getJSONObject("Object");
+      nested.put("Width", 1024);
+      tags.put("Object", nested);
+      assertNotSame(json, tags.toString());
+      assertNotSame(encoded, tags.toBytes());
+      assertEquals(1024, ImageTags.fromBytes(tags.toBytes())
+            .getJSONObject("Object").getInt("Width"));
+      assertEquals(1024, new JSONObject(tags.toString())
+            .getJSONObject("Object").getInt("Width"));
+   }
+}
@@ -0,0 +1,86 @@
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.micromanager.api.ImageCoordinateIndex;
+import static org.junit.Assert.*;
+
+public class MultipageTiffIndexTest {
+   private File dir_;
+
+   @Before
+   public void createDirectory() throws IOException {
+      dir_ = File.createTempFile("mptiffindex", "");
+      dir_.delete();
+      dir_.mkdir();
+   }
+
+   @After
+   public void deleteDirectory() {
+      for (File f : dir_.listFiles()) {
+         f.delete();
+      }
+      dir_.delete();
+   }
+
+   private void createFile(String name, long length) throws IOException {
+      RandomAccessFile f = new RandomAccessFile(new File(dir_, name), "rw");
+      f.setLength(length);
+      f.close();
+   }
+
+   @Test
+   public void entriesRoundTrip() throws IOException {
+      createFile("a.ome.tif", 1000);
+      createFile("b.ome.tif", 2000);
+      MultipageTiffIndex.Builder builder = new MultipageTiffIndex.Builder();
+      for (int frame = 3000; frame >= 0; frame--) {
+         builder.add(frame % 2 == 0 ? "a.ome.tif" : "b.ome.tif",
+                 ImageCoordinateIndex.pack(1, 2, frame, 0), frame * 10L, frame * 10L + 100, 512,
+                 frame * 10L + 700, frame);
+      }
+      builder.add("a.ome.tif", ImageCoordinateIndex.pack(0, 0, 5, 1), 1, 2, 3, 4, 5);
+      builder.add("b.ome.tif", ImageCoordinateIndex.pack(0, 0, 5, 1), 6, 7, 8, 9, 10);
+      builder.write(dir_);
+
+      MultipageTiffIndex index = MultipageTiffIndex.open(dir_);
+      assertNotNull(index);
+      assertEquals(2, index.getNumFiles());
+      assertEquals(3002, index.getNumEntries());
+      assertEquals(3000, index.getLastFrame());
+
+      int entry = index.find(1, 2, 1234, 0);
+      assertEquals("a.ome.tif", index.getFileName(index.getFileId(entry)));
+      assertEquals(12340, index.getIFDOffset(entry));
+      assertEquals(12440, index.getPixelOffset(entry));
+      assertEquals(512, index.getPixelLength(entry));
+      assertEquals(13040, index.getMetadataOffset(entry));
+      assertEquals(1234, index.getMetadataLength(entry));
+      assertEquals(-1, index.find(0, 2, 1234, 0));
+
+      //a later entry for the same image replaces the earlier one
+      entry = index.find(ImageCoordinateIndex.pack(0, 0, 5, 1));
+      assertEquals("b.ome.tif", index.getFileName(index.getFileId(entry)));
+      assertEquals(6, index.getIFDOffset(entry));
+   }
+
+   @Test
+   public void staleIndexIsIgnored() throws IOException {
+      createFile("a.ome.tif", 1000);
+      MultipageTiffIndex.Builder builder = new MultipageTiffIndex.Builder();
+      builder.add("a.ome.tif", 0, 1, 2, 3, 4, 5);
+      builder.write(dir_);
+      assertNotNull(MultipageTiffIndex.open(dir_));
+
+      createFile("a_1.ome.tif", 1000);
+      assertNull(MultipageTiffIndex.open(dir_));
+      new File(dir_, "a_1.ome.tif").delete();
+
+      createFile("a.ome.tif", 1200);
+      assertNull(MultipageTiffIndex.open(dir_));
+   }
+}
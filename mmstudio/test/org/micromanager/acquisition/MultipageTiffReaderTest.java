@@ -0,0 +1,121 @@
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.micromanager.api.ImageCoordinateIndex;
+import static org.junit.Assert.*;
+
+public class MultipageTiffReaderTest {
+   private static final int WIDTH = 16;
+   private static final int HEIGHT = 8;
+   private static final long IFD_OFFSET = 8;
+   private static final long PIXEL_OFFSET = 64;
+   private static final long KEY = ImageCoordinateIndex.pack(0, 1, 2, 0);
+
+   private File file_;
+   private RandomAccessFile raFile_;
+   private MultipageTiffReader reader_;
+
+   /*
+    * A 16 bit image written the way MultipageTiffWriter writes it: an IFD
+    * pointing at the pixels and the metadata. The reader is the one used for
+    * a file still being written, which always reads through the FileChannel
+    */
+   @Before
+   public void writeImage() throws IOException, JSONException {
+      ByteBuffer pixels = ByteBuffer.allocate(2 * WIDTH * HEIGHT)
+              .order(MultipageTiffWriter.BYTE_ORDER);
+      for (int i = 0; i < WIDTH * HEIGHT; i++) {
+         pixels.putShort((short) (1000 + 7 * i));
+      }
+      reader_ = writeFile("GRAY16", pixels.array());
+   }
+
+   private MultipageTiffReader writeFile(String pixelType, byte[] pixels)
+           throws IOException, JSONException {
+      file_ = File.createTempFile("mptiffreader", ".tif");
+      byte[] md = ("{\"PixelType\":\"" + pixelType + "\",\"Width\":16,\"Height\":8}")
+              .getBytes("UTF-8");
+      long mdOffset = PIXEL_OFFSET + pixels.length;
+      ByteBuffer buffer = ByteBuffer.allocate((int) mdOffset + md.length)
+              .order(MultipageTiffWriter.BYTE_ORDER);
+      buffer.position((int) IFD_OFFSET);
+      buffer.putChar((char) 3);
+      putEntry(buffer, MultipageTiffWriter.STRIP_OFFSETS, 4, 1, PIXEL_OFFSET);
+      putEntry(buffer, MultipageTiffWriter.STRIP_BYTE_COUNTS, 4, 1, pixels.length);
+      putEntry(buffer, MultipageTiffWriter.MM_METADATA, 2, md.length, mdOffset);
+      buffer.putInt(0);
+      buffer.position((int) PIXEL_OFFSET);
+      buffer.put(pixels);
+      buffer.put(md);
+      buffer.rewind();
+
+      raFile_ = new RandomAccessFile(file_, "rw");
+      FileChannel channel = raFile_.getChannel();
+      channel.write(buffer, 0);
+      ImageCoordinateIndex<Long> indexMap = new ImageCoordinateIndex<Long>();
+      indexMap.put(KEY, IFD_OFFSET);
+      MultipageTiffReader reader = new MultipageTiffReader(
+              new JSONObject("{\"PixelType\":\"" + pixelType + "\"}"));
+      reader.setFileChannel(channel);
+      reader.setIndexMap(indexMap);
+      return reader;
+   }
+
+   private static void putEntry(ByteBuffer buffer, char tag, int type, int count, long value) {
+      buffer.putChar(tag);
+      buffer.putChar((char) type);
+      buffer.putInt(count);
+      buffer.putInt((int) value);
+   }
+
+   @After
+   public void deleteFile() throws IOException {
+      raFile_.close();
+      file_.delete();
+   }
+
+   @Test
+   public void reads16BitImage() {
+      TaggedImage image = reader_.readImage(KEY);
+      assertNotNull(image);
+      short[] pix = (short[]) image.pix;
+      assertEquals(WIDTH * HEIGHT, pix.length);
+      for (int i = 0; i < pix.length; i++) {
+         assertEquals((short) (1000 + 7 * i), pix[i]);
+      }
+      assertNull(reader_.readImage(ImageCoordinateIndex.pack(0, 0, 0, 0)));
+   }
+
+   @Test
+   public void reads8BitImage() throws IOException, JSONException {
+      deleteFile();
+      byte[] pixels = new byte[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (byte) (3 * i);
+      }
+      reader_ = writeFile("GRAY8", pixels);
+      TaggedImage image = reader_.readImage(KEY);
+      assertNotNull(image);
+      assertArrayEquals(pixels, (byte[]) image.pix);
+   }
+
+   @Test
+   public void readsPixelBuffer() {
+      ShortBuffer pixels = reader_.readPixelBuffer(KEY).asShortBuffer();
+      assertEquals(WIDTH * HEIGHT, pixels.remaining());
+      for (int i = 0; i < WIDTH * HEIGHT; i++) {
+         assertEquals((short) (1000 + 7 * i), pixels.get());
+      }
+   }
+}
@@ -0,0 +1,95 @@
+package org.micromanager.acquisition;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.Test;
+import org.micromanager.api.DataProcessor;
+import static org.junit.Assert.*;
+
+public class ProcessorStackTest {
+   private static class Doubler extends DataProcessor<Integer> {
+      private final boolean stateless_;
+
+      Doubler(boolean stateless) {
+         stateless_ = stateless;
+      }
+
+      @Override
+      public boolean isStateless() {
+         return stateless_;
+      }
+
+      @Override
+      protected void process() {
+         Integer value = poll();
+         if (value == null) {
+            return;
+         }
+         try {
+            // Later objects often finish first
+            Thread.sleep((value * 7) % 5);
+         } catch (InterruptedException ex) {
+         }
+         // Drop multiples of 10, duplicate odd values
+         if (value % 10 != 0) {
+            produce(2 * value);
+            if (value % 2 != 0) {
+               produce(2 * value + 1);
+            }
+         }
+      }
+   }
+
+   private static List<Integer> expected(int count) {
+      List<Integer> expected = new ArrayList<Integer>();
+      for (int i = 0; i < count; i++) {
+         if (i % 10 != 0) {
+            expected.add(2 * i);
+            if (i % 2 != 0) {
+               expected.add(2 * i + 1);
+            }
+         }
+      }
+      return expected;
+   }
+
+   @Test
+   public void statelessProcessorsKeepOrder() throws InterruptedException {
+      BlockingQueue<Integer> input = new LinkedBlockingQueue<Integer>();
+      List<DataProcessor<Integer>> processors = new ArrayList<DataProcessor<Integer>>();
+      processors.add(new Doubler(true));
+      processors.add(new Doubler(false));
+      ProcessorStack<Integer> stack =
+              new ProcessorStack<Integer>(input, processors, 2, 4);
+      BlockingQueue<Integer> output = stack.begin();
+      final int count = 200;
+      for (int i = 0; i < count; i++) {
+         input.put(i);
+      }
+      // The second stage sees the output of the first
+      List<Integer> expected = new ArrayList<Integer>();
+      for (int value : expected(count)) {
+         if (value % 10 != 0) {
+            expected.add(2 * value);
+            if (value % 2 != 0) {
+               expected.add(2 * value + 1);
+            }
+         }
+      }
+      List<Integer> actual = new ArrayList<Integer>();
+      while (actual.size() < expected.size()) {
+         actual.add(output.take());
+      }
+      for (DataProcessor<Integer> processor : processors) {
+         processor.requestStop();
+         processor.join();
+      }
+      assertEquals(expected, actual);
+      assertEquals(count, processors.get(0).getStatistics().getCount());
+      assertEquals(expected(count).size(),
+              processors.get(1).getStatistics().getCount());
+      assertTrue(processors.get(0).getStatistics().getThroughput() > 0);
+   }
+}
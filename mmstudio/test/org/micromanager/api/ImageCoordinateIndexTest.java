@@ -0,0 +1,130 @@
+package org.micromanager.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import org.junit.Test;
+import org.micromanager.utils.ImageLabelComparator;
+import static org.junit.Assert.*;
+
+public class ImageCoordinateIndexTest {
+
+   @Test
+   public void keysRoundTrip() {
+      long key = ImageCoordinateIndex.pack(ImageCoordinateIndex.MAX_CHANNEL, 7,
+              ImageCoordinateIndex.MAX_FRAME, ImageCoordinateIndex.MAX_POSITION);
+      assertTrue(key >= 0);
+      assertEquals(ImageCoordinateIndex.MAX_CHANNEL, ImageCoordinateIndex.getChannel(key));
+      assertEquals(7, ImageCoordinateIndex.getSlice(key));
+      assertEquals(ImageCoordinateIndex.MAX_FRAME, ImageCoordinateIndex.getFrame(key));
+      assertEquals(ImageCoordinateIndex.MAX_POSITION, ImageCoordinateIndex.getPosition(key));
+      assertEquals(key, ImageCoordinateIndex.fromLabel(ImageCoordinateIndex.toLabel(key)));
+      assertEquals(ImageCoordinateIndex.pack(1, 22, 333, 4),
+              ImageCoordinateIndex.fromLabel("1_22_333_4"));
+      assertFalse(ImageCoordinateIndex.isInRange(0, -1, 0, 0));
+   }
+
+   @Test
+   public void coordinatesOutOfRangeRoundTrip() {
+      int[][] coordinates = {
+         {ImageCoordinateIndex.MAX_CHANNEL + 1, 0, 0, 0},
+         {0, ImageCoordinateIndex.MAX_SLICE + 1, 0, 0},
+         {0, 0, ImageCoordinateIndex.MAX_FRAME + 1, 0},
+         {0, 0, 0, ImageCoordinateIndex.MAX_POSITION + 1},
+         {0, -1, 0, 0},
+         {Integer.MAX_VALUE, -Integer.MAX_VALUE, Integer.MAX_VALUE, 3}};
+      ImageCoordinateIndex<Integer> index = new ImageCoordinateIndex<Integer>();
+      for (int i = 0; i < coordinates.length; i++) {
+         int[] c = coordinates[i];
+         assertFalse(ImageCoordinateIndex.isInRange(c[0], c[1], c[2], c[3]));
+         assertNull(index.get(c[0], c[1], c[2], c[3]));
+         long key = ImageCoordinateIndex.pack(c[0], c[1], c[2], c[3]);
+         assertTrue(key >= 0);
+         assertEquals(key, ImageCoordinateIndex.pack(c[0], c[1], c[2], c[3]));
+         assertEquals(c[0], ImageCoordinateIndex.getChannel(key));
+         assertEquals(c[1], ImageCoordinateIndex.getSlice(key));
+         assertEquals(c[2], ImageCoordinateIndex.getFrame(key));
+         assertEquals(c[3], ImageCoordinateIndex.getPosition(key));
+         String label = c[0] + "_" + c[1] + "_" + c[2] + "_" + c[3];
+         assertEquals(label, ImageCoordinateIndex.toLabel(key));
+         assertEquals(key, ImageCoordinateIndex.fromLabel(label));
+         index.put(key, i);
+         index.put(0, 0, 0, 0, -1);
+      }
+      for (int i = 0; i < coordinates.length; i++) {
+         int[] c = coordinates[i];
+         assertEquals(Integer.valueOf(i), index.get(c[0], c[1], c[2], c[3]));
+      }
+      assertEquals(coordinates.length + 1, index.size());
+   }
+
+   @Test
+   public void outOfRangeLabelsAreInAcquisitionOrder() {
+      ImageCoordinateIndex<String> index = new ImageCoordinateIndex<String>();
+      TreeSet<String> expected = new TreeSet<String>(new ImageLabelComparator(false, false));
+      int[] frames = {0, 5, ImageCoordinateIndex.MAX_FRAME, ImageCoordinateIndex.MAX_FRAME + 1,
+         3 * ImageCoordinateIndex.MAX_FRAME};
+      for (int frame : frames) {
+         for (int c = ImageCoordinateIndex.MAX_CHANNEL - 1; c <= ImageCoordinateIndex.MAX_CHANNEL + 1; c++) {
+            String label = c + "_" + (frame % 3) + "_" + frame + "_0";
+            index.put(ImageCoordinateIndex.fromLabel(label), label);
+            expected.add(label);
+         }
+      }
+      assertEquals(new ArrayList<String>(expected),
+              new ArrayList<String>(index.labels(false, false)));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void labelOutsideIntRangeIsRejected() {
+      ImageCoordinateIndex.fromLabel("0_0_2147483648_0");
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void malformedLabelIsRejected() {
+      ImageCoordinateIndex.fromLabel("1_2_3");
+   }
+
+   @Test
+   public void putGetRemove() {
+      ImageCoordinateIndex<Integer> index = new ImageCoordinateIndex<Integer>(4);
+      for (int i = 0; i < 5000; i++) {
+         index.put(i % 3, i % 7, i, i % 5, i);
+      }
+      assertEquals(5000, index.size());
+      for (int i = 0; i < 5000; i += 2) {
+         assertEquals(Integer.valueOf(i), index.remove(ImageCoordinateIndex.pack(i % 3, i % 7, i, i % 5)));
+      }
+      assertEquals(2500, index.size());
+      for (int i = 0; i < 5000; i++) {
+         Integer value = index.get(i % 3, i % 7, i, i % 5);
+         assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), value);
+      }
+      assertNull(index.get(-1, 0, 0, 0));
+   }
+
+   @Test
+   public void labelsAreInAcquisitionOrder() {
+      for (boolean slicesFirst : new boolean[] {false, true}) {
+         for (boolean timeFirst : new boolean[] {false, true}) {
+            ImageCoordinateIndex<String> index = new ImageCoordinateIndex<String>();
+            TreeSet<String> expected = new TreeSet<String>(
+                    new ImageLabelComparator(slicesFirst, timeFirst));
+            for (int c = 0; c < 3; c++) {
+               for (int z = 0; z < 12; z++) {
+                  for (int t = 0; t < 11; t++) {
+                     for (int p = 0; p < 2; p++) {
+                        String label = c + "_" + z + "_" + t + "_" + p;
+                        index.put(ImageCoordinateIndex.fromLabel(label), label);
+                        expected.add(label);
+                     }
+                  }
+               }
+            }
+            List<String> labels = new ArrayList<String>(index.labels(slicesFirst, timeFirst));
+            assertEquals(new ArrayList<String>(expected), labels);
+            assertEquals(labels.size(), index.sortedKeys(slicesFirst, timeFirst).length);
+         }
+      }
+   }
+}
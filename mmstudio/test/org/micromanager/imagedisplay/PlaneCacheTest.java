@@ -0,0 +1,47 @@
+package org.micromanager.imagedisplay;
+
+import mmcorej.TaggedImage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PlaneCacheTest {
+   private static TaggedImage plane(int numPixels) {
+      return new TaggedImage(new short[numPixels], null);
+   }
+
+   @Test
+   public void leastRecentlyUsedPlanesAreEvicted() {
+      long planeBytes = PlaneCache.sizeOf(plane(1000));
+      PlaneCache cache = new PlaneCache(3 * planeBytes);
+      cache.put(1, plane(1000));
+      cache.put(2, plane(1000));
+      cache.put(3, plane(1000));
+      assertNotNull(cache.get(1));
+      cache.put(4, plane(1000));
+      assertFalse(cache.contains(2));
+      assertTrue(cache.contains(1));
+      assertTrue(cache.contains(3));
+      assertTrue(cache.contains(4));
+      assertEquals(3 * planeBytes, cache.getBytes());
+   }
+
+   @Test
+   public void replacedAndRemovedPlanesAreAccounted() {
+      PlaneCache cache = new PlaneCache(1 << 20);
+      cache.put(1, plane(1000));
+      cache.put(1, plane(2000));
+      assertEquals(PlaneCache.sizeOf(plane(2000)), cache.getBytes());
+      cache.remove(1);
+      assertEquals(0, cache.getBytes());
+      assertEquals(0, cache.size());
+   }
+
+   @Test
+   public void planeLargerThanBudgetIsKept() {
+      PlaneCache cache = new PlaneCache(100);
+      cache.put(1, plane(1000));
+      cache.put(2, plane(1000));
+      assertEquals(1, cache.size());
+      assertTrue(cache.contains(2));
+   }
+}
@@ -0,0 +1,46 @@
+package org.micromanager.utils;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DirectBufferPoolTest {
+   @Test
+   public void sizeClassesAreCorrect() {
+      assertEquals(64, DirectBufferPool.sizeClass(1));
+      assertEquals(64, DirectBufferPool.sizeClass(64));
+      assertEquals(128, DirectBufferPool.sizeClass(65));
+      assertEquals(256, DirectBufferPool.sizeClass(180));
+      assertEquals(65536, DirectBufferPool.sizeClass(65536));
+      assertEquals(131072, DirectBufferPool.sizeClass(65537));
+      assertEquals(2048 * 2048 * 2, DirectBufferPool.sizeClass(2048 * 2048 * 2));
+   }
+
+   @Test
+   public void releasedBuffersAreReused() {
+      DirectBufferPool pool = new DirectBufferPool(1 << 20);
+      ByteBuffer first = pool.acquire(180);
+      assertTrue(first.isDirect());
+      assertEquals(180, first.limit());
+      assertEquals(0, first.position());
+      pool.release(first);
+      ByteBuffer second = pool.acquire(200);
+      assertSame(first, second);
+      assertEquals(200, second.limit());
+      assertEquals(0.5, pool.getHitRate(), 1e-9);
+   }
+
+   @Test
+   public void retainedBytesAreCapped() {
+      DirectBufferPool pool = new DirectBufferPool(100000);
+      ByteBuffer a = pool.acquire(65536);
+      ByteBuffer b = pool.acquire(65536);
+      pool.release(a);
+      pool.release(b);
+      assertEquals(65536, pool.getRetainedBytes());
+      pool.release(ByteBuffer.allocate(64));
+      assertEquals(65536, pool.getRetainedBytes());
+      pool.release(ByteBuffer.allocateDirect(64).asReadOnlyBuffer());
+      assertEquals(65536, pool.getRetainedBytes());
+   }
+}
@@ -0,0 +1,50 @@
+package org.micromanager.utils;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DirectSlabAllocatorTest {
+   @Test
+   public void blocksDoNotOverlap() {
+      DirectSlabAllocator slabs = new DirectSlabAllocator(1 << 20, 4096);
+      DirectSlabAllocator.Block a = slabs.allocate(1000);
+      DirectSlabAllocator.Block b = slabs.allocate(1000);
+      ByteBuffer bufferA = a.buffer();
+      assertEquals(1000, bufferA.capacity());
+      assertTrue(bufferA.isDirect());
+      while (bufferA.hasRemaining()) {
+         bufferA.put((byte) 1);
+      }
+      ByteBuffer bufferB = b.buffer();
+      while (bufferB.hasRemaining()) {
+         assertEquals(0, bufferB.get());
+      }
+      assertEquals(2000, slabs.getUsedBytes());
+      assertEquals(4096, slabs.getAllocatedBytes());
+   }
+
+   @Test
+   public void budgetIsNotExceeded() {
+      DirectSlabAllocator slabs = new DirectSlabAllocator(8192, 4096);
+      DirectSlabAllocator.Block first = slabs.allocate(3000);
+      assertNotNull(slabs.allocate(3000));
+      assertNull(slabs.allocate(3000));
+      assertNull(slabs.allocate(10000));
+      slabs.free(first);
+      // The first slab is empty again, so it is reused
+      assertNotNull(slabs.allocate(3000));
+      assertEquals(8192, slabs.getAllocatedBytes());
+   }
+
+   @Test
+   public void largeBlocksGetTheirOwnSlab() {
+      DirectSlabAllocator slabs = new DirectSlabAllocator(20000, 4096);
+      DirectSlabAllocator.Block large = slabs.allocate(10000);
+      assertEquals(10000, large.buffer().capacity());
+      assertEquals(10000, slabs.getAllocatedBytes());
+      slabs.free(large);
+      assertEquals(0, slabs.getAllocatedBytes());
+      assertEquals(0, slabs.getUsedBytes());
+   }
+}
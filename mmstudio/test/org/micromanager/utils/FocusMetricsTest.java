@@ -0,0 +1,203 @@
+package org.micromanager.utils;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FocusMetricsTest {
+   private static final int WIDTH = 97;
+   private static final int HEIGHT = 301;
+
+   private static short[] makeImage(int maxValue) {
+      Random random = new Random(3);
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) random.nextInt(maxValue + 1);
+      }
+      return pixels;
+   }
+
+   // Straightforward versions of the metrics, on an image given as int[y][x]
+   private static int[][] toRows(Object pixels, Rectangle roi) {
+      int[][] rows = new int[roi.height][roi.width];
+      for (int y = 0; y < roi.height; y++) {
+         for (int x = 0; x < roi.width; x++) {
+            int i = (roi.y + y) * WIDTH + roi.x + x;
+            rows[y][x] = pixels instanceof byte[] ?
+                  ((byte[]) pixels)[i] & 0xff : ((short[]) pixels)[i] & 0xffff;
+         }
+      }
+      return rows;
+   }
+
+   private static int get(int[][] img, int x, int y) {
+      y = Math.max(0, Math.min(img.length - 1, y));
+      x = Math.max(0, Math.min(img[0].length - 1, x));
+      return img[y][x];
+   }
+
+   private static int[][] convolve(int[][] img, int[] kernel, int max) {
+      int[][] result = new int[img.length][img[0].length];
+      for (int y = 0; y < img.length; y++) {
+         for (int x = 0; x < img[0].length; x++) {
+            int sum = 0;
+            for (int k = 0; k < 9; k++) {
+               sum += kernel[k] * get(img, x + k % 3 - 1, y + k / 3 - 1);
+            }
+            result[y][x] = Math.max(0, Math.min(max, sum));
+         }
+      }
+      return result;
+   }
+
+   private static int[][] median(int[][] img) {
+      int[][] result = new int[img.length][img[0].length];
+      int[] window = new int[9];
+      for (int y = 0; y < img.length; y++) {
+         for (int x = 0; x < img[0].length; x++) {
+            for (int k = 0; k < 9; k++) {
+               window[k] = get(img, x + k % 3 - 1, y + k / 3 - 1);
+            }
+            Arrays.sort(window);
+            result[y][x] = window[4];
+         }
+      }
+      return result;
+   }
+
+   private static double tenengrad(int[][] img, int max) {
+      int[][] gx = convolve(img, new int[] {-1, 0, 1, -2, 0, 2, -1, 0, 1}, max);
+      int[][] gy = convolve(img, new int[] {1, 2, 1, 0, 0, 0, -1, -2, -1}, max);
+      double sum = 0;
+      for (int y = 0; y < img.length; y++) {
+         for (int x = 0; x < img[0].length; x++) {
+            sum += (double) gx[y][x] * gx[y][x] + (double) gy[y][x] * gy[y][x];
+         }
+      }
+      return sum;
+   }
+
+   private static double medianEdges(int[][] img, int max) {
+      int[][] m = median(img);
+      int[][] g1 = convolve(m, new int[] {2, 1, 0, 1, 0, -1, 0, -1, -2}, max);
+      int[][] g2 = convolve(m, new int[] {0, 1, 2, -1, 0, 1, -2, -1, 0}, max);
+      double sum = 0;
+      for (int y = 0; y < img.length; y++) {
+         for (int x = 0; x < img[0].length; x++) {
+            sum += Math.sqrt((double) g1[y][x] * g1[y][x] + (double) g2[y][x] * g2[y][x]);
+         }
+      }
+      return sum;
+   }
+
+   private static double edgeSum(int[][] img, int max) {
+      double sum = 0;
+      for (int y = 0; y < img.length; y++) {
+         for (int x = 0; x < img[0].length; x++) {
+            long sum1 = get(img, x - 1, y - 1) + 2 * get(img, x, y - 1) + get(img, x + 1, y - 1)
+                  - get(img, x - 1, y + 1) - 2 * get(img, x, y + 1) - get(img, x + 1, y + 1);
+            long sum2 = get(img, x - 1, y - 1) + 2 * get(img, x - 1, y) + get(img, x - 1, y + 1)
+                  - get(img, x + 1, y - 1) - 2 * get(img, x + 1, y) - get(img, x + 1, y + 1);
+            sum += Math.min(max, (int) Math.sqrt(sum1 * sum1 + sum2 * sum2));
+         }
+      }
+      return sum;
+   }
+
+   private static double redondo(int[][] img) {
+      double sum = 0;
+      for (int x = 1; x < img[0].length - 1; x++) {
+         for (int y = 1; y < img.length - 1; y++) {
+            double p = img[y][x - 1] + img[y][x + 1] + img[y - 1][x]
+                  + img[y + 1][x] - 4 * img[y][x - 1];
+            sum += p * p;
+         }
+      }
+      return sum;
+   }
+
+   private static double volath(int[][] img) {
+      double sum = 0;
+      for (int y = 0; y < img.length; y++) {
+         for (int x = 1; x < img[0].length - 1; x++) {
+            sum += (double) img[y][x] * img[y][x + 1];
+         }
+         for (int x = 0; x < img[0].length - 2; x++) {
+            sum -= (double) img[y][x] * img[y][x + 2];
+         }
+      }
+      return sum;
+   }
+
+   private static void assertClose(double expected, double actual) {
+      assertEquals(expected, actual, 1e-9 * Math.abs(expected) + 1e-6);
+   }
+
+   private static void checkAll(FocusMetrics metrics, Object pixels, int max,
+         Rectangle roi) {
+      Rectangle region = roi == null ? new Rectangle(0, 0, WIDTH, HEIGHT) : roi;
+      int[][] img = toRows(pixels, region);
+      assertClose(tenengrad(img, max),
+            metrics.computeTenengrad(pixels, WIDTH, HEIGHT, roi));
+      assertClose(medianEdges(img, max),
+            metrics.computeMedianEdges(pixels, WIDTH, HEIGHT, roi));
+      assertClose(edgeSum(img, max),
+            metrics.computeEdgeSum(pixels, WIDTH, HEIGHT, roi, false));
+      assertClose(edgeSum(median(img), max),
+            metrics.computeEdgeSum(pixels, WIDTH, HEIGHT, roi, true));
+      assertClose(redondo(img),
+            metrics.computeRedondo(pixels, WIDTH, HEIGHT, roi));
+      assertClose(volath(img),
+            metrics.computeVolath(pixels, WIDTH, HEIGHT, roi));
+   }
+
+   @Test
+   public void shortMetricsMatchReference() {
+      // Several stripes, on more than one thread
+      FocusMetrics metrics = new FocusMetrics(3);
+      short[] pixels = makeImage(4095);
+      checkAll(metrics, pixels, 0xffff, null);
+      checkAll(metrics, pixels, 0xffff, new Rectangle(10, 20, 50, 200));
+   }
+
+   @Test
+   public void byteMetricsClipLikeImageJ() {
+      FocusMetrics metrics = new FocusMetrics(2);
+      short[] values = makeImage(255);
+      byte[] pixels = new byte[values.length];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (byte) values[i];
+      }
+      checkAll(metrics, pixels, 0xff, null);
+   }
+
+   @Test
+   public void meanAndStdDevMatchTwoPassValues() {
+      FocusMetrics metrics = new FocusMetrics();
+      short[] pixels = makeImage(65535);
+      double sum = 0;
+      for (short p : pixels) {
+         sum += p & 0xffff;
+      }
+      double mean = sum / pixels.length;
+      double squares = 0;
+      for (short p : pixels) {
+         squares += ((p & 0xffff) - mean) * ((p & 0xffff) - mean);
+      }
+      assertClose(mean, metrics.computeMean(pixels, WIDTH, HEIGHT, null));
+      assertEquals(Math.sqrt(squares / (pixels.length - 1)),
+            metrics.computeStdDev(pixels, WIDTH, HEIGHT, null), 1e-6);
+
+      double neighbours = 0;
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH - 1; x++) {
+            neighbours += (double) (pixels[y * WIDTH + x] & 0xffff)
+                  * (pixels[y * WIDTH + x + 1] & 0xffff);
+         }
+      }
+      assertClose(neighbours - (WIDTH - 1) * HEIGHT * mean * mean,
+            metrics.computeVolath5(pixels, WIDTH, HEIGHT, null));
+   }
+}
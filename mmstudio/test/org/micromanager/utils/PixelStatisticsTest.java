@@ -0,0 +1,96 @@
+package org.micromanager.utils;
+
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PixelStatisticsTest {
+   private static short[] randomImage(int numPixels) {
+      Random random = new Random(3);
+      short[] pixels = new short[numPixels];
+      for (int i = 0; i < numPixels; i++) {
+         pixels[i] = (short) (1000 + random.nextInt(50000));
+      }
+      return pixels;
+   }
+
+   @Test
+   public void matchesHistogramUtilsAndDirectComputation() {
+      int width = 101;
+      int height = 37;
+      short[] pixels = randomImage(width * height);
+      int[] rawHistogram = new int[65536];
+      double sum = 0;
+      int min = Integer.MAX_VALUE;
+      int max = 0;
+      for (short pixel : pixels) {
+         int value = pixel & 0xffff;
+         rawHistogram[value]++;
+         sum += value;
+         min = Math.min(min, value);
+         max = Math.max(max, value);
+      }
+      double mean = sum / pixels.length;
+      double squares = 0;
+      for (short pixel : pixels) {
+         squares += ((pixel & 0xffff) - mean) * ((pixel & 0xffff) - mean);
+      }
+
+      PixelStatistics stats = PixelStatistics.compute(pixels, width, height,
+              null, null, 1);
+      assertEquals(pixels.length, stats.getCount());
+      assertEquals(min, stats.getMin());
+      assertEquals(max, stats.getMax());
+      assertEquals(mean, stats.getMean(), 1e-6);
+      assertEquals(Math.sqrt(squares / (pixels.length - 1)), stats.getStdDev(), 1e-3);
+      HistogramUtils hu = new HistogramUtils(rawHistogram, pixels.length, 0.01);
+      assertEquals(hu.getMinAfterRejectingOutliers(),
+              stats.getMinAfterRejectingOutliers(0.01));
+      assertEquals(hu.getMaxAfterRejectingOutliers(),
+              stats.getMaxAfterRejectingOutliers(0.01));
+      int[] bins = stats.getBinnedHistogram(256, 256);
+      int total = 0;
+      for (int i = 0; i < 256; i++) {
+         total += bins[i];
+      }
+      assertEquals(pixels.length, total);
+      assertEquals(rawHistogram[1000] + rawHistogram[1001], stats.getCount(1000)
+              + stats.getCount(1001));
+   }
+
+   @Test
+   public void roiMaskAndStrideSelectPixels() {
+      byte[] pixels = new byte[10 * 10];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (byte) i;
+      }
+      Rectangle roi = new Rectangle(2, 3, 4, 2);
+      PixelStatistics stats = PixelStatistics.compute(pixels, 10, 10, roi, null, 1);
+      assertEquals(8, stats.getCount());
+      assertEquals(32, stats.getMin());
+      assertEquals(45, stats.getMax());
+
+      byte[] mask = new byte[8];
+      mask[1] = 1;
+      mask[6] = 1;
+      stats = PixelStatistics.compute(pixels, 10, 10, roi, mask, 1);
+      assertEquals(2, stats.getCount());
+      assertEquals(33, stats.getMin());
+      assertEquals(44, stats.getMax());
+
+      stats = PixelStatistics.compute(pixels, 10, 10, null, null, 3);
+      assertEquals(16, stats.getCount());
+      assertEquals(99, stats.getMax());
+      assertEquals(3, stats.getStride());
+      assertEquals(256, stats.getNumValues());
+   }
+
+   @Test
+   public void strideKeepsSamplesWithinLimit() {
+      assertEquals(1, PixelStatistics.strideFor(512 * 512, 512 * 512));
+      int stride = PixelStatistics.strideFor(2048 * 2048, 512 * 512);
+      assertEquals(4, stride);
+      assertNull(PixelStatistics.compute(new float[4], 2, 2, null, null, 1));
+   }
+}
@@ -3343,14 +3343,25 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                         }
                         start = System.currentTimeMillis();
                         long last = start;
+                        // images are popped from the core in batches
+                        TaggedImage[] popped = new TaggedImage[64];
+                        int numPopped = 0;
+                        int nextPopped = 0;
                         try {
-                           while ((core_.getRemainingImageCount() > 0
+                           while ((nextPopped < numPopped
+                                 || core_.getRemainingImageCount() > 0
                                  || core_.isSequenceRunning(firstCamera)
                                  || ((twoSided || acqBothCameras) && core_.isSequenceRunning(secondCamera)))
                                  && !done) {
                               now = System.currentTimeMillis();
-                              if (core_.getRemainingImageCount() > 0) {  // we have an image to grab
-                                 TaggedImage timg = core_.popNextTaggedImage();
+                              if (nextPopped == numPopped) {
+                                 // waits up to 1 ms for an image rather than sleeping
+                                 numPopped = core_.popNextTaggedImages(popped, 1);
+                                 nextPopped = 0;
+                              }
+                              if (nextPopped < numPopped) {  // we have an image to grab
+                                 TaggedImage timg = popped[nextPopped];
+                                 popped[nextPopped++] = null;
                                  
                                  if (checkForSkips && imagesToSkip != 0) {
                                     imagesToSkip--;
@@ -3492,7 +3503,9 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
 
                               } else {  // no image ready yet
                                  done = cancelAcquisition_.get();
-                                 Thread.sleep(1);
+                                 if (!core_.isSequenceRunning()) {
+                                    Thread.sleep(1);  // the core did not wait
+                                 }
                                  if (now - last >= timeout2) {
                                     ReportingUtils.logError("Camera did not send all expected images within" +
                                           " a reasonable period for timepoint " + numTimePointsDone_ + ".  Continuing anyway.");
@@ -0,0 +1,225 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.acq;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 2x2 averaging of one tile into a quadrant of the tile one resolution level
+ * down, with a separate loop for each pixel type (8 bit, 16 bit and RGB).
+ * Large tiles are split in bands of rows that are averaged in parallel.
+ *
+ * Blocks at the right or bottom edge of the higher resolution tile average
+ * the pixels that exist. Averages are truncated.
+ */
+class Downsampler {
+
+   // Below this many pixels, a tile is averaged on the calling thread only
+   private static final int MIN_PIXELS_PER_BAND = 128 * 1024;
+   private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+   private static final ExecutorService executor_ = Executors.newFixedThreadPool(NUM_THREADS,
+           new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                 Thread t = new Thread(r, "Magellan downsampling thread");
+                 t.setDaemon(true);
+                 return t;
+              }
+           });
+
+   /**
+    * @param src pixels of the higher resolution tile: byte[], short[], or
+    * byte[] with 4 bytes per pixel for RGB
+    * @param srcWidth width of the higher resolution tile
+    * @param srcHeight height of the higher resolution tile
+    * @param srcX left edge of the part of the higher resolution tile to use
+    * (i.e. half the overlap for full resolution tiles)
+    * @param srcY top edge of the part of the higher resolution tile to use
+    * @param width width of the part to use, and of the lower resolution tile
+    * @param height height of the part to use, and of the lower resolution tile
+    * @param dst pixels of the lower resolution tile, same type as src
+    * @param xPos 0 for the left and 1 for the right quadrant
+    * @param yPos 0 for the top and 1 for the bottom quadrant
+    * @param rgb whether the pixels are RGB
+    */
+   static void downsample(final Object src, final int srcWidth, final int srcHeight,
+           final int srcX, final int srcY, final int width, final int height,
+           final Object dst, final int xPos, final int yPos, final boolean rgb) {
+      int numBands = (int) Math.min(NUM_THREADS,
+              Math.max(1, (long) width * height / MIN_PIXELS_PER_BAND));
+      numBands = Math.min(numBands, (height + 1) / 2);
+      ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int band = 1; band < numBands; band++) {
+         final int yStart = bandStart(band, numBands, height);
+         final int yEnd = bandStart(band + 1, numBands, height);
+         futures.add(executor_.submit(new Runnable() {
+            @Override
+            public void run() {
+               downsampleRows(src, srcWidth, srcHeight, srcX, srcY, width, height,
+                       dst, xPos, yPos, rgb, yStart, yEnd);
+            }
+         }));
+      }
+      downsampleRows(src, srcWidth, srcHeight, srcX, srcY, width, height,
+              dst, xPos, yPos, rgb, 0, bandStart(1, numBands, height));
+
+      boolean interrupted = false;
+      for (Future<?> f : futures) {
+         while (true) {
+            try {
+               f.get();
+               break;
+            } catch (InterruptedException e) {
+               interrupted = true;
+            } catch (ExecutionException e) {
+               throw new RuntimeException(e.getCause());
+            }
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * First (even) row of a band
+    */
+   private static int bandStart(int band, int numBands, int height) {
+      int pairs = (height + 1) / 2;
+      return 2 * (int) ((long) pairs * band / numBands);
+   }
+
+   private static void downsampleRows(Object src, int srcWidth, int srcHeight,
+           int srcX, int srcY, int width, int height, Object dst, int xPos, int yPos,
+           boolean rgb, int yStart, int yEnd) {
+      if (rgb) {
+         downsampleRGB((byte[]) src, srcWidth, srcHeight, srcX, srcY, width, height,
+                 (byte[]) dst, xPos, yPos, yStart, yEnd);
+      } else if (src instanceof byte[]) {
+         downsampleBytes((byte[]) src, srcWidth, srcHeight, srcX, srcY, width, height,
+                 (byte[]) dst, xPos, yPos, yStart, yEnd);
+      } else {
+         downsampleShorts((short[]) src, srcWidth, srcHeight, srcX, srcY, width, height,
+                 (short[]) dst, xPos, yPos, yStart, yEnd);
+      }
+   }
+
+   // In the loops below, x and y are coordinates in the part of the higher
+   // resolution tile that is used. The pixel at (x, y) lands in the lower
+   // resolution tile at ((x + xPos * width) / 2, (y + yPos * height) / 2).
+
+   private static void downsampleShorts(short[] src, int srcWidth, int srcHeight,
+           int srcX, int srcY, int width, int height, short[] dst, int xPos, int yPos,
+           int yStart, int yEnd) {
+      // Blocks left of this have a right hand column
+      int xPairEnd = Math.min(width, srcWidth - 1);
+      int dstColumn = (xPos * width) / 2;
+      for (int y = yStart; y < yEnd; y += 2) {
+         int s0 = (srcY + y) * srcWidth + srcX;
+         int d = ((y + yPos * height) / 2) * width + dstColumn;
+         int x = 0;
+         if (y < srcHeight - 1) {
+            int s1 = s0 + srcWidth;
+            for (; x < xPairEnd; x += 2, d++) {
+               dst[d] = (short) (((src[s0 + x] & 0xffff) + (src[s0 + x + 1] & 0xffff)
+                       + (src[s1 + x] & 0xffff) + (src[s1 + x + 1] & 0xffff)) >> 2);
+            }
+            for (; x < width; x += 2, d++) {
+               dst[d] = (short) (((src[s0 + x] & 0xffff) + (src[s1 + x] & 0xffff)) >> 1);
+            }
+         } else {
+            for (; x < xPairEnd; x += 2, d++) {
+               dst[d] = (short) (((src[s0 + x] & 0xffff) + (src[s0 + x + 1] & 0xffff)) >> 1);
+            }
+            for (; x < width; x += 2, d++) {
+               dst[d] = src[s0 + x];
+            }
+         }
+      }
+   }
+
+   private static void downsampleBytes(byte[] src, int srcWidth, int srcHeight,
+           int srcX, int srcY, int width, int height, byte[] dst, int xPos, int yPos,
+           int yStart, int yEnd) {
+      int xPairEnd = Math.min(width, srcWidth - 1);
+      int dstColumn = (xPos * width) / 2;
+      for (int y = yStart; y < yEnd; y += 2) {
+         int s0 = (srcY + y) * srcWidth + srcX;
+         int d = ((y + yPos * height) / 2) * width + dstColumn;
+         int x = 0;
+         if (y < srcHeight - 1) {
+            int s1 = s0 + srcWidth;
+            for (; x < xPairEnd; x += 2, d++) {
+               dst[d] = (byte) (((src[s0 + x] & 0xff) + (src[s0 + x + 1] & 0xff)
+                       + (src[s1 + x] & 0xff) + (src[s1 + x + 1] & 0xff)) >> 2);
+            }
+            for (; x < width; x += 2, d++) {
+               dst[d] = (byte) (((src[s0 + x] & 0xff) + (src[s1 + x] & 0xff)) >> 1);
+            }
+         } else {
+            for (; x < xPairEnd; x += 2, d++) {
+               dst[d] = (byte) (((src[s0 + x] & 0xff) + (src[s0 + x + 1] & 0xff)) >> 1);
+            }
+            for (; x < width; x += 2, d++) {
+               dst[d] = src[s0 + x];
+            }
+         }
+      }
+   }
+
+   /**
+    * RGB pixels are 4 bytes; the first three are averaged, the fourth is
+    * left alone
+    */
+   private static void downsampleRGB(byte[] src, int srcWidth, int srcHeight,
+           int srcX, int srcY, int width, int height, byte[] dst, int xPos, int yPos,
+           int yStart, int yEnd) {
+      int xPairEnd = Math.min(width, srcWidth - 1);
+      int dstColumn = (xPos * width) / 2;
+      for (int y = yStart; y < yEnd; y += 2) {
+         int s0 = 4 * ((srcY + y) * srcWidth + srcX);
+         int d = 4 * (((y + yPos * height) / 2) * width + dstColumn);
+         boolean hasNextRow = y < srcHeight - 1;
+         int s1 = s0 + 4 * srcWidth;
+         for (int x = 0; x < width; x += 2, d += 4) {
+            boolean hasNextColumn = x < xPairEnd;
+            for (int c = 0; c < 3; c++) {
+               int i = s0 + 4 * x + c;
+               int j = s1 + 4 * x + c;
+               int value;
+               if (hasNextRow && hasNextColumn) {
+                  value = ((src[i] & 0xff) + (src[i + 4] & 0xff)
+                          + (src[j] & 0xff) + (src[j + 4] & 0xff)) >> 2;
+               } else if (hasNextColumn) {
+                  value = ((src[i] & 0xff) + (src[i + 4] & 0xff)) >> 1;
+               } else if (hasNextRow) {
+                  value = ((src[i] & 0xff) + (src[j] & 0xff)) >> 1;
+               } else {
+                  value = src[i] & 0xff;
+               }
+               dst[d + c] = (byte) value;
+            }
+         }
+      }
+   }
+}
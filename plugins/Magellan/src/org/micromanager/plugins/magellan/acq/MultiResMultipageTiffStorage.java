@@ -29,10 +29,19 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.micromanager.plugins.magellan.json.JSONArray;
@@ -74,6 +83,44 @@ public class MultiResMultipageTiffStorage {
    private BDVXMLWriter bdvXML_;
    private int currentTP_ = -1;
    private boolean rgb_;
+   //full res tiles waiting to be added to the lower resolution levels
+   private static final int PYRAMID_QUEUE_SIZE = 16;
+   private static final MagellanTaggedImage PYRAMID_END = new MagellanTaggedImage(null, null);
+   private static final long FLUSH_INTERVAL_MS = 1000;
+   private static final int MAX_PENDING_TILES = 64;
+   private static final int ALL_QUADRANTS = 0xf;
+   private final LinkedBlockingQueue<MagellanTaggedImage> pyramidQueue_ =
+           new LinkedBlockingQueue<MagellanTaggedImage>(PYRAMID_QUEUE_SIZE);
+   private Thread pyramidThread_;
+   //guards pendingTiles_ and the building of lower resolution levels
+   private final Object pyramidLock_ = new Object();
+   //lower resolution tiles being filled in, by resolution index and label
+   private final LinkedHashMap<String, PendingTile> pendingTiles_ = new LinkedHashMap<String, PendingTile>();
+   private volatile boolean pendingDirty_ = false;
+   //decoded tiles for display, by resolution, channel, slice, frame, row and column
+   private static final long TILE_CACHE_BYTES = 256 * 1024 * 1024;
+   private static final int MIN_CACHED_TILES = 16;
+   private int maxCachedTiles_ = MIN_CACHED_TILES;
+   private final LinkedHashMap<String, MagellanTaggedImage> tileCache_ =
+           new LinkedHashMap<String, MagellanTaggedImage>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, MagellanTaggedImage> eldest) {
+         return size() > maxCachedTiles_;
+      }
+   };
+   private long tileVersion_ = 0;
+   //latest prefetch request of each channel, so that in composite mode the
+   //prefetches of the displayed channels don't cancel each other
+   private final ConcurrentHashMap<Integer, AtomicInteger> prefetchRequests_ =
+           new ConcurrentHashMap<Integer, AtomicInteger>();
+   private static final ExecutorService prefetchExecutor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Magellan tile prefetch thread");
+         t.setDaemon(true);
+         return t;
+      }
+   });
    
    /**
     * Constructor to load existing storage from disk
@@ -207,6 +254,9 @@ public class MultiResMultipageTiffStorage {
       pixelSizeZ_ = MD.getZStepUm(summaryMD_);
       pixelSizeXY_ = MD.getPixelSizeUm(summaryMD_);
       affine_ = AffineUtils.stringToTransform(MD.getAffineTransformString(summaryMD_));
+      long tileBytes = (long) fullResTileWidthIncludingOverlap_ * fullResTileHeightIncludingOverlap_ * (rgb_ ? 4 : byteDepth_);
+      long cacheBytes = Math.min(TILE_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 8);
+      maxCachedTiles_ = (int) Math.max(MIN_CACHED_TILES, cacheBytes / Math.max(1, tileBytes));
    }
    
    public int getByteDepth() {
@@ -391,115 +441,259 @@ public class MultiResMultipageTiffStorage {
     */
    public MagellanTaggedImage getImageForDisplay(int channel, int slice, int frame, int dsIndex, long x, long y, 
            int width, int height) {
+      Object pixels = createDisplayPixels(channel, width, height);
+      JSONObject topLeftMD = copyTiles(pixels, width, 0, 0, channel, slice, frame, dsIndex, x, y, width, height);
+      return new MagellanTaggedImage(pixels, topLeftMD);
+   }
+
+   /**
+    * @return pixels for a display image, filled with the background pixel
+    * value if there is one
+    */
+   Object createDisplayPixels(int channel, int width, int height) {
       Object pixels;
-       if (rgb_) {
-          pixels = new byte[width * height * 4];
-       } else {
-           if (byteDepth_ == 1) {
-               pixels = new byte[width * height];
-               if (backgroundPix_.containsKey(channel)) {
-                   Arrays.fill((byte[]) pixels, (byte) getBackgroundPixelValue(channel));
-               }
-           } else {
-               pixels = new short[width * height];
-               if (backgroundPix_.containsKey(channel)) {
-                   Arrays.fill((short[]) pixels, (short) getBackgroundPixelValue(channel));
-               }
-           }
-       }
-      //go line by line through one column of tiles at a time, then move to next column
+      if (rgb_) {
+         pixels = new byte[width * height * 4];
+      } else if (byteDepth_ == 1) {
+         pixels = new byte[width * height];
+      } else {
+         pixels = new short[width * height];
+      }
+      if (backgroundPix_.containsKey(channel)) {
+         fillBackground(pixels, width, channel, 0, 0, width, height);
+      }
+      return pixels;
+   }
+
+   /**
+    * Fills a rectangle of a display image with the background pixel value
+    */
+   void fillBackground(Object pixels, int pixelsWidth, int channel, int x, int y, int width, int height) {
+      for (int line = y; line < y + height; line++) {
+         if (rgb_) {
+            Arrays.fill((byte[]) pixels, 4 * (line * pixelsWidth + x), 4 * (line * pixelsWidth + x + width), (byte) 0);
+         } else if (byteDepth_ == 1) {
+            Arrays.fill((byte[]) pixels, line * pixelsWidth + x, line * pixelsWidth + x + width,
+                    (byte) getBackgroundPixelValue(channel));
+         } else {
+            Arrays.fill((short[]) pixels, line * pixelsWidth + x, line * pixelsWidth + x + width,
+                    (short) getBackgroundPixelValue(channel));
+         }
+      }
+   }
+
+   /**
+    * Copies the part of the stitched image at the given resolution with top left
+    * pixel (x, y) and the given size into a display image, at (dstX, dstY).
+    * Pixels where there are no tiles are left alone
+    *
+    * @return tags of the top left tile found, or null if there are no tiles
+    */
+   JSONObject copyTiles(Object dst, int dstWidth, int dstX, int dstY, int channel, int slice, int frame,
+           int dsIndex, long x, long y, int width, int height) {
+      if (width <= 0 || height <= 0) {
+         return null;
+      }
+      int multiplier = rgb_ ? 4 : 1;
       JSONObject topLeftMD = null;
-      //first calculate how many columns and rows of tiles are relevant and the number of pixels
-      //of each tile to copy into the returned image
-      long previousCol = tileIndexFromPixelIndex(x, true) - 1; //make it one less than the first col in loop
-      LinkedList<Integer> lineWidths = new LinkedList<Integer>();
-      for (long i = x; i < x + width; i++) { //Iterate through every column of pixels in the image to be returned
-         long colIndex = tileIndexFromPixelIndex(i, true);
-         if (colIndex != previousCol) {
-            lineWidths.add(0);
-         }
-         //Increment current width
-         lineWidths.add(lineWidths.removeLast() + 1);
-         previousCol = colIndex;
-      }
-      //do the same thing for rows
-      long previousRow = tileIndexFromPixelIndex(y, false) - 1; //one less than first row in loop?
-      LinkedList<Integer> lineHeights = new LinkedList<Integer>();
-      for (long i = y; i < y + height; i++) {
-         long rowIndex = tileIndexFromPixelIndex(i, false);
-         if (rowIndex != previousRow) {
-            lineHeights.add(0);
-         }
-         //add one to pixel count of current height
-         lineHeights.add(lineHeights.removeLast() + 1);
-         previousRow = rowIndex;
-      }
-      //get starting row and column
-      long rowStart = tileIndexFromPixelIndex(y, false);
-      long colStart = tileIndexFromPixelIndex(x, true);
-      //xOffset and y offset are the distance from the top left of the display image into which 
-      //we are copying data
-      int xOffset = 0;
-      for (long col = colStart; col < colStart + lineWidths.size(); col++) {
-         int yOffset = 0;
-         for (long row = rowStart; row < rowStart + lineHeights.size(); row++) {
-            MagellanTaggedImage tile = null;          
-            if (dsIndex == 0) {
-               tile = fullResStorage_.getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
-            } else {               
-               tile = lowResStorages_.get(dsIndex) == null ? null : 
-                       lowResStorages_.get(dsIndex).getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
-            }
-            if (tile == null) {
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
+      long colEnd = tileIndexFromPixelIndex(x + width - 1, true);
+      long rowEnd = tileIndexFromPixelIndex(y + height - 1, false);
+      //go through one column of tiles at a time, then move to next column
+      for (long col = tileIndexFromPixelIndex(x, true); col <= colEnd; col++) {
+         //part of the requested area within this column of tiles
+         long left = Math.max(x, col * tileWidth_);
+         int lineWidth = (int) (Math.min(x + width, (col + 1) * tileWidth_) - left);
+         for (long row = tileIndexFromPixelIndex(y, false); row <= rowEnd; row++) {
+            MagellanTaggedImage tile = getTile(dsIndex, channel, slice, frame, row, col);
+            if (tile == null || isEmpty(tile)) {
                continue; //If no data present for this tile go on to next one
-            } else if ( (tile.pix instanceof byte[] && ((byte[]) tile.pix).length == 0) ||
-                    (tile.pix instanceof short[] && ((short[]) tile.pix).length == 0))  {
-               //Somtimes an inability to read IFDs soon after they are written results in an image being read 
-               //with 0 length pixels. Can't figure out why this happens, but it is rare and will result at worst with
-               //a black flickering during acquisition
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
-               continue;
             }
             //take top left tile for metadata
             if (topLeftMD == null) {
                topLeftMD = tile.tags;
             }
-            //Copy pixels into the image to be returned
-            //yOffset is how many rows from top of viewable area, y is top of image to top of area
-            for (int line = yOffset; line < lineHeights.get((int)(row - rowStart)) + yOffset; line++) {
-               int tileYPix = (int) ((y + line) % tileHeight_);
-               int tileXPix = (int) ((x + xOffset) % tileWidth_);                   
-               //make sure tile pixels are positive
-               while (tileXPix < 0) {
-                  tileXPix += tileWidth_;
-               }
-               while (tileYPix < 0) {
-                  tileYPix += tileHeight_;
-               }
-               try {
-                  int multiplier = rgb_ ? 4 : 1; 
-                  if (dsIndex == 0) {
-                     //account for overlaps when viewing full resolution tiles
-                     tileYPix += yOverlap_ / 2;
-                     tileXPix += xOverlap_ / 2;
-                     System.arraycopy(tile.pix, multiplier*(tileYPix * fullResTileWidthIncludingOverlap_ + tileXPix), pixels, (xOffset + width * line)*multiplier, multiplier*lineWidths.get((int) (col - colStart)));                 
-                  } else {
-                     System.arraycopy(tile.pix, multiplier*(tileYPix * tileWidth_ + tileXPix), pixels, multiplier*(xOffset + width * line), multiplier*lineWidths.get((int)(col - colStart)));
-                  }
-               } catch (Exception e) {
-                  e.printStackTrace();
-                  Log.log("Problem copying pixels");
+            long top = Math.max(y, row * tileHeight_);
+            int numLines = (int) (Math.min(y + height, (row + 1) * tileHeight_) - top);
+            int tileXPix = (int) (left - col * tileWidth_);
+            int tileYPix = (int) (top - row * tileHeight_);
+            int tilePixWidth = tileWidth_;
+            if (dsIndex == 0) {
+               //account for overlaps when viewing full resolution tiles
+               tileXPix += xOverlap_ / 2;
+               tileYPix += yOverlap_ / 2;
+               tilePixWidth = fullResTileWidthIncludingOverlap_;
+            }
+            int dstIndex = (dstY + (int) (top - y)) * dstWidth + dstX + (int) (left - x);
+            try {
+               for (int line = 0; line < numLines; line++) {
+                  System.arraycopy(tile.pix, multiplier * ((tileYPix + line) * tilePixWidth + tileXPix),
+                          dst, multiplier * (dstIndex + line * dstWidth), multiplier * lineWidth);
                }
+            } catch (Exception e) {
+               e.printStackTrace();
+               Log.log("Problem copying pixels");
             }
-            yOffset += lineHeights.get((int)(row - rowStart));
+         }
+      }
+      return topLeftMD;
+   }
 
+   /**
+    * @return tags of the top left tile in the given part of the stitched image,
+    * as returned by copyTiles, or null if there are no tiles
+    */
+   JSONObject getTopLeftTileTags(int channel, int slice, int frame, int dsIndex, long x, long y,
+           int width, int height) {
+      if (width <= 0 || height <= 0) {
+         return null;
+      }
+      long colEnd = tileIndexFromPixelIndex(x + width - 1, true);
+      long rowEnd = tileIndexFromPixelIndex(y + height - 1, false);
+      for (long col = tileIndexFromPixelIndex(x, true); col <= colEnd; col++) {
+         for (long row = tileIndexFromPixelIndex(y, false); row <= rowEnd; row++) {
+            MagellanTaggedImage tile = getTile(dsIndex, channel, slice, frame, row, col);
+            if (tile != null && !isEmpty(tile)) {
+               return tile.tags;
+            }
          }
-         xOffset += lineWidths.get((int)(col - colStart));
       }
-      return new MagellanTaggedImage(pixels, topLeftMD);
+      return null;
    }
-   
+
+   private static boolean isEmpty(MagellanTaggedImage tile) {
+      //Somtimes an inability to read IFDs soon after they are written results in an image being read 
+      //with 0 length pixels. Can't figure out why this happens, but it is rare and will result at worst with
+      //a black flickering during acquisition
+      return (tile.pix instanceof byte[] && ((byte[]) tile.pix).length == 0)
+              || (tile.pix instanceof short[] && ((short[]) tile.pix).length == 0);
+   }
+
+   private static String tileKey(int dsIndex, int channel, int slice, int frame, long row, long col) {
+      return dsIndex + "_" + channel + "_" + slice + "_" + frame + "_" + row + "_" + col;
+   }
+
+   /**
+    * @return the tile at the given resolution, row and column, from the
+    * cache of decoded tiles if it is there, or null if there is none
+    */
+   private MagellanTaggedImage getTile(int dsIndex, int channel, int slice, int frame, long row, long col) {
+      String key = tileKey(dsIndex, channel, slice, frame, row, col);
+      long version;
+      synchronized (tileCache_) {
+         MagellanTaggedImage tile = tileCache_.get(key);
+         if (tile != null) {
+            return tile;
+         }
+         version = tileVersion_;
+      }
+      int positionIndex = posManager_.getPositionIndexFromTilePosition(dsIndex, row, col);
+      if (positionIndex == -1) {
+         return null;
+      }
+      MagellanTaggedImage tile;
+      if (dsIndex == 0) {
+         tile = fullResStorage_.getImage(channel, slice, frame, positionIndex);
+      } else {
+         TaggedImageStorageMultipageTiff storage = lowResStorages_.get(dsIndex);
+         tile = storage == null ? null : storage.getImage(channel, slice, frame, positionIndex);
+      }
+      if (tile == null || isEmpty(tile)) {
+         return tile;
+      }
+      synchronized (tileCache_) {
+         //don't cache a tile that may have been rewritten while it was read
+         if (version == tileVersion_) {
+            tileCache_.put(key, tile);
+         }
+      }
+      return tile;
+   }
+
+   /**
+    * Drops a tile that is being (re)written from the cache of decoded tiles
+    */
+   private void invalidateTile(int dsIndex, int fullResPositionIndex, int channel, int slice, int frame) {
+      String key = tileKey(dsIndex, channel, slice, frame, posManager_.getGridRow(fullResPositionIndex, dsIndex),
+              posManager_.getGridCol(fullResPositionIndex, dsIndex));
+      synchronized (tileCache_) {
+         tileCache_.remove(key);
+         tileVersion_++;
+      }
+   }
+
+   /**
+    * @return a number that changes whenever a tile is added or rewritten, so
+    * that composited display images can tell whether they are still current
+    */
+   long getTileVersion() {
+      synchronized (tileCache_) {
+         return tileVersion_;
+      }
+   }
+
+   /**
+    * Loads the tiles around a displayed area, and the tiles of the same area
+    * one resolution level up and down, into the cache of decoded tiles on a
+    * background thread. A newer request for the same channel cancels what is
+    * left of an older one
+    */
+   void prefetchTiles(final int channel, final int slice, final int frame, final int dsIndex,
+           final long x, final long y, final int width, final int height) {
+      final int request = getPrefetchRequest(channel).incrementAndGet();
+      prefetchExecutor_.submit(new Runnable() {
+         @Override
+         public void run() {
+            //one tile all around for panning
+            if (!prefetchRegion(request, channel, slice, frame, dsIndex, x - tileWidth_, y - tileHeight_,
+                    width + 2 * tileWidth_, height + 2 * tileHeight_)) {
+               return;
+            }
+            //the area around the center for zooming in and out
+            long xCenter = x + width / 2;
+            long yCenter = y + height / 2;
+            if (dsIndex > 0 && !prefetchRegion(request, channel, slice, frame, dsIndex - 1,
+                    2 * xCenter - width / 2, 2 * yCenter - height / 2, width, height)) {
+               return;
+            }
+            if (dsIndex + 1 < getNumResLevels()) {
+               prefetchRegion(request, channel, slice, frame, dsIndex + 1,
+                       xCenter / 2 - width / 2, yCenter / 2 - height / 2, width, height);
+            }
+         }
+      });
+   }
+
+   private AtomicInteger getPrefetchRequest(int channel) {
+      AtomicInteger request = prefetchRequests_.get(channel);
+      if (request == null) {
+         prefetchRequests_.putIfAbsent(channel, new AtomicInteger());
+         request = prefetchRequests_.get(channel);
+      }
+      return request;
+   }
+
+   /**
+    * @return false if a newer prefetch request has been made for the channel
+    */
+   private boolean prefetchRegion(int request, int channel, int slice, int frame, int dsIndex,
+           long x, long y, int width, int height) {
+      long colEnd = tileIndexFromPixelIndex(x + width - 1, true);
+      long rowEnd = tileIndexFromPixelIndex(y + height - 1, false);
+      for (long col = tileIndexFromPixelIndex(x, true); col <= colEnd; col++) {
+         for (long row = tileIndexFromPixelIndex(y, false); row <= rowEnd; row++) {
+            if (request != getPrefetchRequest(channel).get()) {
+               return false;
+            }
+            try {
+               getTile(dsIndex, channel, slice, frame, row, col);
+            } catch (Exception e) {
+               //only a prefetch, the tile will be read again if it is displayed
+            }
+         }
+      }
+      return true;
+   }
+
    /**
     * Called before any images have been added to initialize the resolution to the specifiec zoom level
     * @param resIndex 
@@ -515,203 +709,308 @@ public class MultiResMultipageTiffStorage {
    }
 
    /**
-    * create an additional lower resolution level so that image can be zoomed out 
+    * create an additional lower resolution level so that image can be zoomed out.
+    * The level is built before returning, on the calling thread, which first
+    * waits for the pyramid thread to finish adding or writing tiles
     */
    public boolean addLowerResolution() {
-      synchronized(this) {
-         if (fullResStorage_.imageKeys().size() == 0) {
-            //nothing to downsample
-            return false;
-         }
-         //create a null pointer in lower res storages to signal addToLoResStorage function
-         //to continue downsampling to this level
-         lowResStorages_.put(1 + lowResStorages_.keySet().size(), null);
-         //update position manager to reflect addition of new resolution level
-         posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
-         String aLabel = fullResStorage_.imageKeys().iterator().next();
-         int[] indices = MD.getIndices(aLabel);
-         MagellanTaggedImage anImage = fullResStorage_.getImage(indices[0], indices[1], indices[2], indices[3]);         
-         addToLowResStorage(anImage, 0, indices[3]);
+      synchronized (pyramidLock_) {
+         synchronized (this) {
+            if (fullResStorage_.imageKeys().size() == 0) {
+               //nothing to downsample
+               return false;
+            }
+            //create a null pointer in lower res storages to signal that this level
+            //must be built from the level above it
+            lowResStorages_.put(1 + lowResStorages_.keySet().size(), null);
+            //update position manager to reflect addition of new resolution level
+            posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
+         }
+         flushPendingTiles();
          return true;
       }
    }
-   
-   private void addToLowResStorage(MagellanTaggedImage img, int previousResIndex, int fullResPositionIndex) {
-      //Read indices
-      int channel = MD.getChannelIndex(img.tags);
-      int slice = MD.getSliceIndex(img.tags);
-      int frame = MD.getFrameIndex(img.tags);
 
-      if (estimateBackground_) {
-         readBackgroundPixelValue(channel, img); //find a background pixel value in the first image
+   /**
+    * Takes full resolution tiles off the queue and adds them to the lower
+    * resolution levels, writing out incomplete tiles whenever the queue has
+    * been idle, or busy, for FLUSH_INTERVAL_MS so that the display stays current
+    */
+   private void runPyramidThread() {
+      long lastFlush = System.currentTimeMillis();
+      while (true) {
+         MagellanTaggedImage img;
+         try {
+            if (pendingDirty_) {
+               long wait = lastFlush + FLUSH_INTERVAL_MS - System.currentTimeMillis();
+               img = pyramidQueue_.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+            } else {
+               img = pyramidQueue_.take();
+            }
+         } catch (InterruptedException ex) {
+            Log.log("Downsampling thread interrupted");
+            return;
+         }
+         synchronized (pyramidLock_) {
+            if (img == null || img == PYRAMID_END) {
+               flushPendingTiles();
+               lastFlush = System.currentTimeMillis();
+               if (img == PYRAMID_END) {
+                  return;
+               }
+            } else {
+               addToLowResStorage(img);
+            }
+         }
       }
-      Object previousLevelPix = img.pix;
-      int resolutionIndex = previousResIndex + 1;
-      
+   }
+
+   /**
+    * Waits for the pyramid thread to downsample everything still queued
+    */
+   private void stopPyramidThread() {
+      Thread thread;
+      synchronized (this) {
+         thread = pyramidThread_;
+         pyramidThread_ = null;
+      }
+      if (thread == null) {
+         return;
+      }
+      boolean interrupted = false;
+      while (true) {
+         try {
+            pyramidQueue_.put(PYRAMID_END);
+            thread.join();
+            break;
+         } catch (InterruptedException ex) {
+            interrupted = true;
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private boolean isLevelNeeded(int resIndex) {
       //Auto downsample until max number of tiles in either direction is less than the highest dsFactor
       //or keep going until lowest user created resolution exists
-      while (lowResStorages_.containsKey(resolutionIndex) ||
-              (posManager_.getNumRows() >= Math.pow(2, resolutionIndex) || posManager_.getNumCols() >= Math.pow(2, resolutionIndex)) ) {
-
-         //See if storage level exists
-         if (!lowResStorages_.containsKey(resolutionIndex) || lowResStorages_.get(resolutionIndex) == null) {
-            createDownsampledStorage(resolutionIndex);
-            //add all tiles from existing resolution levels to this new one            
-            TaggedImageStorageMultipageTiff previousLevelStorage;
-            if (resolutionIndex == 1) {
-               previousLevelStorage = fullResStorage_;
-            } else {
-               previousLevelStorage = lowResStorages_.get(resolutionIndex - 1);
-            }            
-            Set<String> imageKeys = previousLevelStorage.imageKeys();
-            for (String key : imageKeys) {
-               String[] indices = key.split("_");
-               MagellanTaggedImage ti = previousLevelStorage.getImage(Integer.parseInt(indices[0]), Integer.parseInt(indices[1]),
-                       Integer.parseInt(indices[2]), Integer.parseInt(indices[3]));
-               addToLowResStorage(ti, resolutionIndex - 1, posManager_.getFullResPositionIndex(Integer.parseInt(indices[3]), resolutionIndex - 1)); 
+      return lowResStorages_.containsKey(resIndex) || posManager_.getNumRows() >= Math.pow(2, resIndex)
+              || posManager_.getNumCols() >= Math.pow(2, resIndex);
+   }
+
+   private boolean levelExists(int resIndex) {
+      return lowResStorages_.get(resIndex) != null;
+   }
+
+   /**
+    * Averages a full resolution tile into the tiles of each lower resolution
+    * level that contain it. A lower resolution tile is written once all four
+    * of its quadrants have been filled, and only then added to the level below.
+    * Must hold pyramidLock_
+    */
+   private void addToLowResStorage(MagellanTaggedImage img) {
+      int channel = MD.getChannelIndex(img.tags);
+      int slice = MD.getSliceIndex(img.tags);
+      int frame = MD.getFrameIndex(img.tags);
+      int fullResPositionIndex = MD.getPositionIndex(img.tags);
+      Object previousLevelPix = img.pix;
+      for (int resIndex = 1; isLevelNeeded(resIndex); resIndex++) {
+         if (!levelExists(resIndex)) {
+            //builds the missing level from the stored tiles of the level above,
+            //which include this one
+            flushPendingTiles();
+            return;
+         }
+         PendingTile tile = getPendingTile(resIndex, channel, slice, frame, fullResPositionIndex, img.tags);
+         downsample(previousLevelPix, resIndex, fullResPositionIndex, tile);
+         if (tile.quadrants != ALL_QUADRANTS) {
+            return;
+         }
+         writeTile(tile);
+         pendingTiles_.remove(tile.key);
+         previousLevelPix = tile.pix;
+      }
+   }
+
+   /**
+    * Writes all incomplete tiles that changed, level by level, adding each to
+    * the level below, and builds levels that have been requested but do not
+    * exist yet. Must hold pyramidLock_
+    */
+   private void flushPendingTiles() {
+      for (int resIndex = 1; isLevelNeeded(resIndex); resIndex++) {
+         if (!levelExists(resIndex)) {
+            buildLevel(resIndex);
+         }
+         for (PendingTile tile : new ArrayList<PendingTile>(pendingTiles_.values())) {
+            if (tile.resIndex != resIndex || !tile.dirty) {
+               continue;
             }
-            return; //this will include the higher res tile intially added, so can return here and
-            //not worry about having to add it again
-         }
-         //Create pixels or get appropriate pixels to add to
-         MagellanTaggedImage existingImage = lowResStorages_.get(resolutionIndex).getImage(channel, slice, frame,
-                 posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
-         Object currentLevelPix;
-         if (existingImage == null) {
-             if (rgb_) {
-                 currentLevelPix = new byte[tileWidth_ * tileHeight_ * 4];
-             } else if (byteDepth_ == 1) {
-                 currentLevelPix = new byte[tileWidth_ * tileHeight_];
-             } else {
-                 currentLevelPix = new short[tileWidth_ * tileHeight_];
-             }         
-            //fill in with background pixel value
-            if (rgb_) {
-                //whatever
-            }else if (byteDepth_ == 1) {
-               Arrays.fill((byte[]) currentLevelPix, (byte) getBackgroundPixelValue(channel));
-            } else {
-               Arrays.fill((short[]) currentLevelPix, (short) getBackgroundPixelValue(channel));
+            writeTile(tile);
+            //a missing next level is built from storage on the next iteration
+            if (levelExists(resIndex + 1)) {
+               PendingTile parent = getPendingTile(resIndex + 1, tile.channel, tile.slice, tile.frame,
+                       tile.fullResPositionIndex, tile.tags);
+               downsample(tile.pix, resIndex + 1, tile.fullResPositionIndex, parent);
             }
+         }
+      }
+      pendingDirty_ = false;
+      //everything is written now, only keep the most recent tiles around
+      Iterator<PendingTile> it = pendingTiles_.values().iterator();
+      while (pendingTiles_.size() > MAX_PENDING_TILES && it.hasNext()) {
+         it.next();
+         it.remove();
+      }
+   }
+
+   /**
+    * Creates the storage for a resolution level and averages every stored
+    * tile of the level above into it. Source tiles are grouped by the tile
+    * they fall in, and each tile is written and dropped from memory as soon
+    * as its group is done. Must hold pyramidLock_
+    */
+   private void buildLevel(int resIndex) {
+      ArrayList<String> imageKeys;
+      TaggedImageStorageMultipageTiff previousLevelStorage;
+      synchronized (this) {
+         createDownsampledStorage(resIndex);
+         if (resIndex == 1) {
+            previousLevelStorage = fullResStorage_;
          } else {
-            currentLevelPix = existingImage.pix; 
-         }     
+            previousLevelStorage = lowResStorages_.get(resIndex - 1);
+         }
+         imageKeys = new ArrayList<String>(previousLevelStorage.imageKeys());
+      }
+      if (!levelExists(resIndex)) {
+         return;
+      }
+      //channel, slice, frame, position and full resolution position of the
+      //source tiles, by the label of the tile they are averaged into
+      LinkedHashMap<String, ArrayList<int[]>> sourcesByTile = new LinkedHashMap<String, ArrayList<int[]>>();
+      for (String key : imageKeys) {
+         int[] indices = MD.getIndices(key);
+         int fullResPositionIndex = resIndex == 1 ? indices[3]
+                 : posManager_.getFullResPositionIndex(indices[3], resIndex - 1);
+         String tileLabel = MD.generateLabel(indices[0], indices[1], indices[2],
+                 posManager_.getLowResPositionIndex(fullResPositionIndex, resIndex));
+         ArrayList<int[]> sources = sourcesByTile.get(tileLabel);
+         if (sources == null) {
+            sources = new ArrayList<int[]>(4);
+            sourcesByTile.put(tileLabel, sources);
+         }
+         sources.add(new int[]{indices[0], indices[1], indices[2], indices[3], fullResPositionIndex});
+      }
+      for (ArrayList<int[]> sources : sourcesByTile.values()) {
+         PendingTile tile = null;
+         for (int[] source : sources) {
+            MagellanTaggedImage ti = previousLevelStorage.getImage(source[0], source[1], source[2], source[3]);
+            if (ti == null) {
+               continue;
+            }
+            if (tile == null) {
+               tile = getPendingTile(resIndex, source[0], source[1], source[2], source[4], ti.tags);
+            }
+            downsample(ti.pix, resIndex, source[4], tile);
+         }
+         if (tile != null) {
+            //the level below doesn't exist yet either, it is built from storage next
+            writeTile(tile);
+            pendingTiles_.remove(tile.key);
+         }
+      }
+   }
 
-         
-         //Determine which position in 2x2 this tile sits in
-         int xPos = (int) Math.abs((posManager_.getGridCol(fullResPositionIndex, resolutionIndex - 1) % 2));
-         int yPos = (int) Math.abs((posManager_.getGridRow(fullResPositionIndex, resolutionIndex - 1) % 2));
-         //Add one if top or left so border pixels from an odd length image gets added in
-         for (int x = 0; x < tileWidth_; x += 2) { //iterate over previous res level pixels
-            for (int y = 0; y < tileHeight_; y += 2) {
-               //average a square of 4 pixels from previous level
-               //edges: if odd number of pixels in tile, round to determine which
-               //tiles pixels make it to next res level
-               
-               //these are the indices of pixels at the previous res level, which are offset
-               //when moving from res level 0 to one as we throw away the overlapped image edges
-               int pixelX, pixelY, previousLevelWidth, previousLevelHeight; 
-               if ( resolutionIndex == 1 ) {                  
-                  //add offsets to account for overlap pixels at resolution level 0
-                  pixelX = x + xOverlap_ / 2;
-                  pixelY = y + yOverlap_ /2;
-                  previousLevelWidth = fullResTileWidthIncludingOverlap_;
-                  previousLevelHeight = fullResTileHeightIncludingOverlap_;
-               } else {
-                  pixelX = x;
-                  pixelY = y;
-                  previousLevelWidth = tileWidth_;
-                  previousLevelHeight = tileHeight_;
+   /**
+    * @return the tile at the given resolution level containing the given full
+    * resolution position, from memory, from storage, or new and filled with
+    * the background pixel value
+    */
+   private PendingTile getPendingTile(int resIndex, int channel, int slice, int frame,
+           int fullResPositionIndex, JSONObject sourceTags) {
+      int positionIndex = posManager_.getLowResPositionIndex(fullResPositionIndex, resIndex);
+      String key = resIndex + "_" + MD.generateLabel(channel, slice, frame, positionIndex);
+      PendingTile tile = pendingTiles_.get(key);
+      if (tile != null) {
+         return tile;
+      }
+      MagellanTaggedImage existingImage = lowResStorages_.get(resIndex).getImage(channel, slice, frame, positionIndex);
+      Object pix;
+      if (existingImage != null) {
+         pix = existingImage.pix;
+      } else if (rgb_) {
+         pix = new byte[tileWidth_ * tileHeight_ * 4];
+      } else if (byteDepth_ == 1) {
+         pix = new byte[tileWidth_ * tileHeight_];
+         Arrays.fill((byte[]) pix, (byte) getBackgroundPixelValue(channel));
+      } else {
+         pix = new short[tileWidth_ * tileHeight_];
+         Arrays.fill((short[]) pix, (short) getBackgroundPixelValue(channel));
+      }
+      tile = new PendingTile(key, resIndex, channel, slice, frame, positionIndex, fullResPositionIndex,
+              pix, sourceTags, existingImage != null);
+      pendingTiles_.put(key, tile);
+      return tile;
+   }
 
-               }
-                int rgbMultiplier_ = rgb_ ? 4 : 1;
-                for (int compIndex = 0; compIndex < (rgb_ ? 3 : 1); compIndex++) {
-                    int count = 1; //count is number of pixels (out of 4) used to create a pixel at this level
-                    //always take top left pixel, maybe take others depending on whether at image edge
-                    int sum = 0;
-                    if (byteDepth_ == 1 || rgb_) {
-                        sum += ((byte[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX)*rgbMultiplier_ + compIndex] & 0xff;
-                    } else {
-                        sum += ((short[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX)*rgbMultiplier_ + compIndex] & 0xffff;
-                    }
-
-                    //pixel index can be different from index in tile at resolution level 0 if there is nonzero overlap
-                    if (x < previousLevelWidth - 1 && y < previousLevelHeight - 1) { //if not bottom right corner, add three more pix
-                        count += 3;
-                        if (byteDepth_ == 1 || rgb_) {
-                            sum += (((byte[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xff)
-                                    + (((byte[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xff)
-                                    + (((byte[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xff);
-                        } else {
-                            sum += (((short[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xffff)
-                                    + (((short[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xffff)
-                                    + (((short[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xffff);
-                        }
-                    } else if (x < previousLevelWidth - 1) { //if not right edge, add one more pix
-                        count++;
-                        if (byteDepth_ == 1 || rgb_) {
-                            sum += ((byte[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xff;
-                        } else {
-                            sum += ((short[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xffff;
-                        }
-                    } else if (y < previousLevelHeight - 1) { // if not bottom edge, add one more pix
-                        count++;
-                        if (byteDepth_ == 1 || rgb_) {
-                            sum += ((byte[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xff;
-                        } else {
-                            sum += ((short[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xffff;
-                        }
-                    } else {
-                        //it is the bottom right corner, no more pix to add
-                    }
-                    //add averaged pixel into appropriate quadrant of current res level
-                    //if full res tile has an odd number of pix, the last one gets chopped off
-                    //to make it fit into tile containers
-                    try {
-                        int index = (((y + yPos * tileHeight_) / 2) * tileWidth_ + (x + xPos * tileWidth_) / 2)*rgbMultiplier_+compIndex;
-                        if (byteDepth_ == 1 || rgb_) {
-                            ((byte[]) currentLevelPix)[index] = (byte) Math.round(sum / count);
-                        } else {
-                            ((short[]) currentLevelPix)[index] = (short) Math.round(sum / count);
-                        }
-                    } catch (Exception e) {
-                        Log.log("Couldn't copy pixels to lower resolution");
-                        e.printStackTrace();
-                        return;
-                    }
-
-                }
-            }
+   /**
+    * Averages a tile of the level above into its quadrant of a tile
+    */
+   private void downsample(Object previousLevelPix, int resIndex, int fullResPositionIndex, PendingTile tile) {
+      //Determine which position in 2x2 this tile sits in
+      int xPos = (int) Math.abs((posManager_.getGridCol(fullResPositionIndex, resIndex - 1) % 2));
+      int yPos = (int) Math.abs((posManager_.getGridRow(fullResPositionIndex, resIndex - 1) % 2));
+      try {
+         if (resIndex == 1) {
+            //skip the overlap pixels at resolution level 0
+            Downsampler.downsample(previousLevelPix, fullResTileWidthIncludingOverlap_, fullResTileHeightIncludingOverlap_,
+                    xOverlap_ / 2, yOverlap_ / 2, tileWidth_, tileHeight_, tile.pix, xPos, yPos, rgb_);
+         } else {
+            Downsampler.downsample(previousLevelPix, tileWidth_, tileHeight_, 0, 0, tileWidth_, tileHeight_,
+                    tile.pix, xPos, yPos, rgb_);
          }
-         
-         //store this tile in the storage class correspondign to this resolution
-         try {
-            if (existingImage == null) {     //Image doesn't yet exist at this level, so add it
+      } catch (Exception e) {
+         Log.log("Couldn't copy pixels to lower resolution");
+         e.printStackTrace();
+         return;
+      }
+      tile.quadrants |= 1 << (2 * yPos + xPos);
+      tile.dirty = true;
+      pendingDirty_ = true;
+   }
+
+   /**
+    * Stores a tile in the storage class corresponding to its resolution
+    */
+   private void writeTile(PendingTile tile) {
+      try {
+         synchronized (this) {
+            if (!tile.stored) {     //Image doesn't yet exist at this level, so add it
                //create a copy of tags so tags from a different res level arent inadverntanly modified
                // while waiting for being written to disk
-               JSONObject tags = new JSONObject(img.tags.toString());
+               JSONObject tags = new JSONObject(tile.tags.toString());
                //modify tags to reflect image size, and correct position index
                MD.setWidth(tags, tileWidth_);
                MD.setHeight(tags, tileHeight_);
-               long gridRow = posManager_.getGridRow(fullResPositionIndex, resolutionIndex);
-               long gridCol = posManager_.getGridCol(fullResPositionIndex, resolutionIndex);
+               long gridRow = posManager_.getGridRow(tile.fullResPositionIndex, tile.resIndex);
+               long gridCol = posManager_.getGridCol(tile.fullResPositionIndex, tile.resIndex);
                MD.setPositionName(tags, "Grid_" + gridRow + "_" + gridCol);
-               MD.setPositionIndex(tags, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));  
-               lowResStorages_.get(resolutionIndex).putImage(new MagellanTaggedImage(currentLevelPix, tags));
+               MD.setPositionIndex(tags, tile.positionIndex);
+               lowResStorages_.get(tile.resIndex).putImage(new MagellanTaggedImage(tile.pix, tags));
             } else {
                //Image already exists, only overwrite pixels to include new tiles
-               lowResStorages_.get(resolutionIndex).overwritePixels(currentLevelPix,
-                       channel, slice, frame, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
+               lowResStorages_.get(tile.resIndex).overwritePixels(tile.pix,
+                       tile.channel, tile.slice, tile.frame, tile.positionIndex);
             }
-         } catch (Exception e) {
-            e.printStackTrace();
-            Log.log("Couldnt modify tags for lower resolution level");
+            invalidateTile(tile.resIndex, tile.fullResPositionIndex, tile.channel, tile.slice, tile.frame);
          }
-
-         //go on to next level of downsampling
-         previousLevelPix = currentLevelPix;
-         resolutionIndex++;
+      } catch (Exception e) {
+         e.printStackTrace();
+         Log.log("Couldnt modify tags for lower resolution level");
       }
+      tile.stored = true;
+      tile.dirty = false;
    }
 
    private void createDownsampledStorage(int resIndex) {
@@ -739,15 +1038,35 @@ public class MultiResMultipageTiffStorage {
          synchronized (this) {            
             //write to full res storage as normal (i.e. with overlap pixels present)
             fullResStorage_.putImage(MagellanTaggedImage);
-            addToLowResStorage(MagellanTaggedImage, 0, MD.getPositionIndex(MagellanTaggedImage.tags));
+            invalidateTile(0, MD.getPositionIndex(MagellanTaggedImage.tags), MD.getChannelIndex(MagellanTaggedImage.tags),
+                    MD.getSliceIndex(MagellanTaggedImage.tags), MD.getFrameIndex(MagellanTaggedImage.tags));
+            if (estimateBackground_) {
+               //find a background pixel value in the first image
+               readBackgroundPixelValue(MD.getChannelIndex(MagellanTaggedImage.tags), MagellanTaggedImage);
+            }
             if (currentTP_ < MD.getFrameIndex(MagellanTaggedImage.tags)) {
                bdvXML_.addTP();
                currentTP_ = MD.getFrameIndex(MagellanTaggedImage.tags);
             }
+            if (pyramidThread_ == null) {
+               pyramidThread_ = new Thread(new Runnable() {
+                  @Override
+                  public void run() {
+                     runPyramidThread();
+                  }
+               }, "Magellan pyramid thread");
+               pyramidThread_.setDaemon(true);
+               pyramidThread_.start();
+            }
          }
+         //lower resolutions are made on the pyramid thread; blocks when it falls behind
+         pyramidQueue_.put(MagellanTaggedImage);
       } catch (IOException ex) {
          Log.log(ex.toString());
-      } 
+      } catch (InterruptedException ex) {
+         Log.log("Interrupted while queueing image for downsampling");
+         Thread.currentThread().interrupt();
+      }
    }
    
    public MagellanTaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex, int resLevel) {
@@ -772,6 +1091,7 @@ public class MultiResMultipageTiffStorage {
    }
 
    public void finished() {
+      stopPyramidThread();
       try {
          if (bdvXML_ != null) { //if its not an oened dataset
             bdvXML_.close();
@@ -949,4 +1269,34 @@ public class MultiResMultipageTiffStorage {
         return posManager_.getFullResPositionIndexFromStageCoords(xPos, yPos);
     }
    
+   /**
+    * A lower resolution tile and which of its quadrants have been filled in
+    */
+   private static class PendingTile {
+
+      final String key;
+      final int resIndex, channel, slice, frame, positionIndex;
+      //any full resolution position within the tile
+      final int fullResPositionIndex;
+      final Object pix;
+      //tags of a tile from the level above, used when first storing this one
+      final JSONObject tags;
+      int quadrants = 0;
+      boolean dirty = false;
+      boolean stored;
+
+      PendingTile(String key, int resIndex, int channel, int slice, int frame, int positionIndex,
+              int fullResPositionIndex, Object pix, JSONObject tags, boolean stored) {
+         this.key = key;
+         this.resIndex = resIndex;
+         this.channel = channel;
+         this.slice = slice;
+         this.frame = frame;
+         this.positionIndex = positionIndex;
+         this.fullResPositionIndex = fullResPositionIndex;
+         this.pix = pix;
+         this.tags = tags;
+         this.stored = stored;
+      }
+   }
 }
@@ -0,0 +1,131 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.acq;
+
+import java.util.HashMap;
+import org.micromanager.plugins.magellan.json.JSONObject;
+
+/**
+ * Stitches the images shown in the viewer out of the tiles of a
+ * MultiResMultipageTiffStorage, like getImageForDisplay, but reusing its
+ * pixel buffers: each channel has two, one holding the image last handed to
+ * the display and one the next image is composited into. When the view is
+ * panned, the part of the last image still in view is shifted into the next
+ * one, and only the newly exposed edges are read from the tiles.
+ *
+ * Images returned by this class are only valid until the next but one call
+ * for the same channel, so they must not be kept
+ */
+public class ViewportCompositor {
+
+   private final MultiResMultipageTiffStorage storage_;
+   private final HashMap<Integer, ChannelView> views_ = new HashMap<Integer, ChannelView>();
+
+   public ViewportCompositor(MultiResMultipageTiffStorage storage) {
+      storage_ = storage;
+   }
+
+   /**
+    * @see MultiResMultipageTiffStorage#getImageForDisplay
+    */
+   public synchronized MagellanTaggedImage getImageForDisplay(int channel, int slice, int frame, int dsIndex,
+           long x, long y, int width, int height) {
+      //read before compositing, so that tiles written meanwhile are picked up next time
+      long version = storage_.getTileVersion();
+      ChannelView view = views_.get(channel);
+      if (view == null || view.width != width || view.height != height) {
+         view = new ChannelView(width, height);
+         views_.put(channel, view);
+      }
+      boolean sameTiles = view.current != -1 && view.slice == slice && view.frame == frame
+              && view.dsIndex == dsIndex && view.version == version;
+      if (sameTiles && view.x == x && view.y == y) {
+         return new MagellanTaggedImage(view.buffers[view.current], view.tags);
+      }
+      int next = view.current == 0 ? 1 : 0;
+      if (view.buffers[next] == null) {
+         view.buffers[next] = storage_.createDisplayPixels(channel, width, height);
+      }
+      Object buffer = view.buffers[next];
+      long dx = x - view.x;
+      long dy = y - view.y;
+      JSONObject tags;
+      if (sameTiles && Math.abs(dx) < width && Math.abs(dy) < height) {
+         //part of the new image that was in the last one
+         int left = (int) Math.max(0, -dx);
+         int right = (int) Math.min(width, width - dx);
+         int top = (int) Math.max(0, -dy);
+         int bottom = (int) Math.min(height, height - dy);
+         int multiplier = storage_.isRGB() ? 4 : 1;
+         Object previous = view.buffers[view.current];
+         for (int line = top; line < bottom; line++) {
+            System.arraycopy(previous, multiplier * ((line + (int) dy) * width + left + (int) dx),
+                    buffer, multiplier * (line * width + left), multiplier * (right - left));
+         }
+         //newly exposed strips above, below, left and right of it
+         composite(buffer, width, channel, slice, frame, dsIndex, x, y, 0, 0, width, top);
+         composite(buffer, width, channel, slice, frame, dsIndex, x, y, 0, bottom, width, height - bottom);
+         composite(buffer, width, channel, slice, frame, dsIndex, x, y, 0, top, left, bottom - top);
+         composite(buffer, width, channel, slice, frame, dsIndex, x, y, right, top, width - right, bottom - top);
+         tags = storage_.getTopLeftTileTags(channel, slice, frame, dsIndex, x, y, width, height);
+      } else {
+         tags = composite(buffer, width, channel, slice, frame, dsIndex, x, y, 0, 0, width, height);
+      }
+      view.current = next;
+      view.slice = slice;
+      view.frame = frame;
+      view.dsIndex = dsIndex;
+      view.x = x;
+      view.y = y;
+      view.version = version;
+      view.tags = tags;
+      storage_.prefetchTiles(channel, slice, frame, dsIndex, x, y, width, height);
+      return new MagellanTaggedImage(buffer, tags);
+   }
+
+   /**
+    * Fills a rectangle of the buffer, at (dstX, dstY) relative to the view at
+    * (x, y), with background and tiles
+    */
+   private JSONObject composite(Object buffer, int width, int channel, int slice, int frame, int dsIndex,
+           long x, long y, int dstX, int dstY, int rectWidth, int rectHeight) {
+      if (rectWidth <= 0 || rectHeight <= 0) {
+         return null;
+      }
+      storage_.fillBackground(buffer, width, channel, dstX, dstY, rectWidth, rectHeight);
+      return storage_.copyTiles(buffer, width, dstX, dstY, channel, slice, frame, dsIndex,
+              x + dstX, y + dstY, rectWidth, rectHeight);
+   }
+
+   private static class ChannelView {
+
+      final int width, height;
+      final Object[] buffers = new Object[2];
+      //buffer holding the last image, -1 if there is none yet
+      int current = -1;
+      int slice, frame, dsIndex;
+      long x, y;
+      long version;
+      JSONObject tags;
+
+      ChannelView(int width, int height) {
+         this.width = width;
+         this.height = height;
+      }
+   }
+}
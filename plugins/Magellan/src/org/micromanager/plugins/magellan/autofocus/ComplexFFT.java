@@ -0,0 +1,94 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.autofocus;
+
+/**
+ * In place radix 2 FFT of one length, with the twiddle factors and bit
+ * reversal precomputed. Unscaled in both directions.
+ *
+ * Immutable, so one instance can be used by several threads at once
+ */
+class ComplexFFT {
+
+   private final int n_;
+   private final int[] bitReversed_;
+   private final double[] cos_, sin_;
+
+   /**
+    * @param n length of the transform, a power of 2
+    */
+   ComplexFFT(int n) {
+      if (n < 1 || (n & (n - 1)) != 0) {
+         throw new IllegalArgumentException("FFT length must be a power of 2: " + n);
+      }
+      n_ = n;
+      int bits = Integer.numberOfTrailingZeros(n);
+      bitReversed_ = new int[n];
+      for (int i = 0; i < n; i++) {
+         bitReversed_[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+      }
+      cos_ = new double[n / 2];
+      sin_ = new double[n / 2];
+      for (int i = 0; i < n / 2; i++) {
+         cos_[i] = Math.cos(2 * Math.PI * i / n);
+         sin_[i] = Math.sin(2 * Math.PI * i / n);
+      }
+   }
+
+   int getLength() {
+      return n_;
+   }
+
+   /**
+    * @param re real parts, at least as long as the transform
+    * @param im imaginary parts, at least as long as the transform
+    * @param inverse sign of the exponent: forward is exp(-2 pi i jk/n)
+    */
+   void transform(double[] re, double[] im, boolean inverse) {
+      for (int i = 0; i < n_; i++) {
+         int j = bitReversed_[i];
+         if (j > i) {
+            double t = re[i];
+            re[i] = re[j];
+            re[j] = t;
+            t = im[i];
+            im[i] = im[j];
+            im[j] = t;
+         }
+      }
+      double sign = inverse ? 1 : -1;
+      for (int size = 2; size <= n_; size *= 2) {
+         int half = size / 2;
+         int step = n_ / size;
+         for (int start = 0; start < n_; start += size) {
+            for (int k = 0; k < half; k++) {
+               double wr = cos_[k * step];
+               double wi = sign * sin_[k * step];
+               int a = start + k;
+               int b = a + half;
+               double tr = re[b] * wr - im[b] * wi;
+               double ti = re[b] * wi + im[b] * wr;
+               re[b] = re[a] - tr;
+               im[b] = im[a] - ti;
+               re[a] += tr;
+               im[a] += ti;
+            }
+         }
+      }
+   }
+}
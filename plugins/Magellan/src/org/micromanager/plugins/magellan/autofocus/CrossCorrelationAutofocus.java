@@ -19,9 +19,6 @@ package org.micromanager.plugins.magellan.autofocus;
 
 import org.micromanager.plugins.magellan.acq.FixedAreaAcquisition;
 import org.micromanager.plugins.magellan.acq.MultiResMultipageTiffStorage;
-import ij.ImagePlus;
-import ij.ImageStack;
-import ij3d.image3d.FHTImage3D;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode;
@@ -33,9 +30,6 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import org.micromanager.plugins.magellan.main.Magellan;
 import org.micromanager.plugins.magellan.misc.Log;
 import org.apache.commons.math.ArgumentOutsideDomainException;
 import org.apache.commons.math.analysis.interpolation.SplineInterpolator;
@@ -49,12 +43,9 @@ public class CrossCorrelationAutofocus {
 
    //number of interppolated points per z step
    private static final double SPLINE_PRECISION = 10;
-   //5e6--13 s
-   //1e7--37 s
-   //4e7--92 s
-   //1e8--92 s
-   //8e8--682 s
-   private static final int NUM_VOXEL_TARGET = 20000000; //this target shuld take 1-2 min to calculate, while maintaining images of a resonable size
+   //with a spectrum of the previous time point already calculated, this
+   //target takes a few seconds on one core, while maintaining images of a resonable size
+   private static final int NUM_VOXEL_TARGET = 20000000;
    private static final int AF_TIMEOUT_MIN = 30;
    
    private final int channelIndex_;
@@ -67,6 +58,11 @@ public class CrossCorrelationAutofocus {
    private int downsampledWidth_;
    private int downsampledHeight_;
    private ExecutorService afExecutor_;
+   private StackCorrelator correlator_;
+   //spectrum of the last time point, kept as reference for the next one,
+   //and a buffer left over from the one before, for the spectrum of the next
+   private float[][] referenceSpectrum_, spareSpectrum_;
+   private int referenceTimeIndex_ = -1, referenceMinSlice_;
            
    
    public CrossCorrelationAutofocus(final FixedAreaAcquisition acq, int channelIndex, double maxDisplacement , double initialPosition) {
@@ -155,15 +151,29 @@ public class CrossCorrelationAutofocus {
             Log.log("Drift compensation DS Index: " + downsampleIndex_, false);
             Log.log("Drift compensation DS Width: " + downsampledWidth_, false);
             Log.log("Drift compensation DS Height: " + downsampledHeight_, false);
+            //transform now, so that the next time point only needs its own transform
+            try {
+               transformTimePoint(0);
+            } catch (Exception e) {
+               Log.log("Couldn't calculate drift compensation reference: " + e, true);
+            }
         } else {
-            ImageStack lastTPStack = createAFStack(acq_, timeIndex - 1, channelIndex_, downsampledWidth_, downsampledHeight_, downsampleIndex_);
-            ImageStack currentTPStack = createAFStack(acq_, timeIndex, channelIndex_, downsampledWidth_, downsampledHeight_, downsampleIndex_);
+            int minSlice = acq_.getMinSliceIndex();
+            if (referenceTimeIndex_ != timeIndex - 1 || referenceMinSlice_ != minSlice
+                    || correlator_ == null || correlator_.getNumSlices() != acq_.getNumSlices()) {
+               //no reference for these slices, e.g. because the range of slices changed
+               transformTimePoint(timeIndex - 1);
+            }
+            float[][] lastTPSpectrum = referenceSpectrum_;
+            transformTimePoint(timeIndex);
             //run autofocus
             //image drift is the difference between this TP and the previous one
             //but does not represent the acutal drift because these 2 TPs will likely have different 
             //positions for the AF compensation Z device
             //drifteCorrection = move for the AF drive to bring current TP to position of previous TP
-            double driftCorrection = -calcFocusDrift(acq_.getName(), lastTPStack, currentTPStack, acq_.getZStep());
+            double driftCorrection = -calcFocusDrift(acq_.getName(), lastTPSpectrum, referenceSpectrum_, acq_.getZStep());
+            //the correlation used up the last spectrum, so it can hold the next one
+            spareSpectrum_ = lastTPSpectrum;
             Log.log(acq_.getName() + " Drift compensation: correction = " + driftCorrection, true);
             //now add in a factor accounting for the previous AF
             //i.e. how far the reference image is from the desired position
@@ -181,34 +191,31 @@ public class CrossCorrelationAutofocus {
         }
     }
 
-    /**
-     * return a 32 bit for use with cross corr autofocus
-     *
-
-    * @return
+   /**
+    * Reads the slices of a time point from storage and calculates their
+    * spectrum, which becomes the reference for the next time point
     */
-   private static ImageStack createAFStack(FixedAreaAcquisition acq, int timeIndex, int channelIndex, int width, int height, int dsIndex) {
-      ImageStack stack = new ImageStack(width, height);
-      //get background pixel value
-      for (int slice = acq.getMinSliceIndex(); slice < acq.getMinSliceIndex() + acq.getNumSlices(); slice++) {
-         //add as int
-         float[] pix32;
-         if (Magellan.getCore().getBytesPerPixel() == 1) {
-            byte[] pix = (byte[]) acq.getStorage().getImageForDisplay(channelIndex, slice, timeIndex, dsIndex, 0, 0, width, height).pix;
-            pix32 = new float[pix.length];
-            for (int i = 0; i < pix.length; i++) {
-               pix32[i] = pix[i] & 0xff;
-            }
-         } else {
-            short[] pix = (short[]) acq.getStorage().getImageForDisplay(channelIndex, slice, timeIndex, dsIndex, 0, 0, width, height).pix;
-            pix32 = new float[pix.length];
-            for (int i = 0; i < pix.length; i++) {
-               pix32[i] = pix[i] & 0xffff;
-            }
-         }
-         stack.addSlice(null, pix32);
+   private void transformTimePoint(final int timeIndex) throws Exception {
+      final int minSlice = acq_.getMinSliceIndex();
+      int numSlices = acq_.getNumSlices();
+      if (correlator_ == null || correlator_.getNumSlices() != numSlices) {
+         correlator_ = new StackCorrelator(downsampledWidth_, downsampledHeight_, numSlices);
+         referenceSpectrum_ = null;
+         spareSpectrum_ = null;
       }
-      return stack;
+      float[][] spectrum = spareSpectrum_ != null ? spareSpectrum_ : correlator_.createSpectrum();
+      spareSpectrum_ = null;
+      final MultiResMultipageTiffStorage storage = acq_.getStorage();
+      correlator_.transform(new StackCorrelator.SliceSource() {
+         @Override
+         public Object getPixels(int slice) {
+            return storage.getImageForDisplay(channelIndex_, minSlice + slice, timeIndex, downsampleIndex_,
+                    0, 0, downsampledWidth_, downsampledHeight_).pix;
+         }
+      }, spectrum);
+      referenceSpectrum_ = spectrum;
+      referenceTimeIndex_ = timeIndex;
+      referenceMinSlice_ = minSlice;
    }
 
    /**
@@ -219,18 +226,20 @@ public class CrossCorrelationAutofocus {
    * @return double representing the focus position of current relative to original (i.e. 4 means
    * that current is focused 4 um deeper than current)
    */
-   private double calcFocusDrift(String acqName, final ImageStack tp0Stack, final ImageStack currentTPStack, double pixelSizeZ) throws Exception {    
+   private double calcFocusDrift(String acqName, final float[][] tp0Spectrum, final float[][] currentTPSpectrum, double pixelSizeZ) throws Exception {    
       Log.log( acqName + " Autofocus: cross correlating", true);    
       //do actual autofocusing on a seperate thread so a bug in it won't crash everything
-      Future<ImageStack> f = afExecutor_.submit(new Callable<ImageStack>() {
+      final StackCorrelator correlator = correlator_;
+      Future<double[]> f = afExecutor_.submit(new Callable<double[]>() {
           @Override
-          public ImageStack call() throws Exception {
-              return FHTImage3D.crossCorrelation(tp0Stack, currentTPStack);
+          public double[] call() throws Exception {
+              //maximum cross correlation intensity at each z slice
+              return correlator.correlate(tp0Spectrum, currentTPSpectrum);
           }
       });
-      ImageStack xCorrStack;
+      double[] ccIntensity;
        try {
-           xCorrStack = f.get(AF_TIMEOUT_MIN, TimeUnit.MINUTES);
+           ccIntensity = f.get(AF_TIMEOUT_MIN, TimeUnit.MINUTES);
        } catch (InterruptedException ex) {
            Log.log("autofocus aborted");
            throw new Exception();
@@ -244,13 +253,9 @@ public class CrossCorrelationAutofocus {
        }
       
       Log.log( acqName + " Autofocus: finished cross correlating..calculating drift", true);      
-      ImagePlus xCorr = new ImagePlus("XCorr", xCorrStack);      
-      //find the maximum cross correlation intensity at each z slice
-      double[] ccIntensity = new double[xCorr.getNSlices()], interpolatedCCMax = new double[xCorr.getNSlices()];
-      for (int i = 1; i <= ccIntensity.length; i++) {
-         xCorr.setSlice(i);      
-         ccIntensity[i - 1] = findMaxPixelVal((float[]) xCorr.getProcessor().getPixels(), xCorr.getWidth(), xCorr.getHeight());
-         interpolatedCCMax[i - 1] = i - 1;
+      double[] interpolatedCCMax = new double[ccIntensity.length];
+      for (int i = 0; i < ccIntensity.length; i++) {
+         interpolatedCCMax[i] = i;
       }
 
       //find maximum value of interpolated spline function
@@ -270,23 +275,9 @@ public class CrossCorrelationAutofocus {
       //get maximum value of xCorr in slice index units
       double ccMaxSliceIndex = sliceIndexInterpolationPoints[maxIndex];
       //convert to um
-      double drift_um = (ccMaxSliceIndex - (((double) xCorr.getNSlices()) / 2.0)) * pixelSizeZ;
-      xCorr.close();
+      double drift_um = (ccMaxSliceIndex - (((double) ccIntensity.length) / 2.0)) * pixelSizeZ;
       
       return drift_um;
    }
    
-   private static float findMaxPixelVal(float[] pix, int width, int height) {
-      //only use central square for calulating max, because weird large values can occur on the edges of the xCorr
-      float max = 0;
-      for (int i = 0; i < width*height; i++) {
-         if (i / width < height / 4 || i / width > 3*height / 4 ||
-                 i % width  < width / 4 || i % width > 3*width/4) {
-            continue; // use only central square of pixels
-         }
-         max = Math.max(max, pix[i]);
-      }
-      return max;
-   }
-   
 }
@@ -0,0 +1,405 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.autofocus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 3D cross correlation of z stacks, split so that the transform of each stack
+ * is computed once and can be kept for the next correlation. Takes the place of
+ * FHTImage3D.crossCorrelation followed by taking the maximum of the central
+ * square of each slice: stacks are zero padded to powers of 2 in x, y and z,
+ * and the correlation is circular.
+ *
+ * A stack is transformed into a half spectrum (real to complex): each slice is
+ * transformed in 2D as soon as it is read, two real rows per complex FFT, and
+ * then every column of the stack is transformed in z. Slices, columns and the
+ * slices of the correlation are spread over a pool of threads, each of which
+ * reuses its own scratch buffers
+ */
+class StackCorrelator {
+
+   //columns of the spectrum transformed in z per task
+   private static final int COLUMNS_PER_TASK = 256;
+   private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+   private static final ExecutorService executor_ = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Magellan autofocus correlation thread");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   /**
+    * Pixels of one slice of a stack, byte[] or short[]
+    */
+   interface SliceSource {
+
+      Object getPixels(int slice) throws Exception;
+   }
+
+   private interface IndexTask {
+
+      void run(int index) throws Exception;
+   }
+
+   private final int width_, height_, numSlices_;
+   //padded sizes
+   private final int nx_, ny_, nz_;
+   //complex values in each row of the half spectrum
+   private final int halfWidth_;
+   private final ComplexFFT fftX_, fftY_, fftZ_;
+   private final ThreadLocal<double[][]> scratch_;
+
+   /**
+    * @param width width of the slices
+    * @param height height of the slices
+    * @param numSlices number of slices in a stack
+    */
+   StackCorrelator(int width, int height, int numSlices) {
+      width_ = width;
+      height_ = height;
+      numSlices_ = numSlices;
+      nx_ = powerOf2AtLeast(width);
+      ny_ = powerOf2AtLeast(height);
+      nz_ = powerOf2AtLeast(numSlices);
+      halfWidth_ = nx_ / 2 + 1;
+      fftX_ = new ComplexFFT(nx_);
+      fftY_ = new ComplexFFT(ny_);
+      fftZ_ = new ComplexFFT(nz_);
+      final int maxLength = Math.max(nx_, Math.max(ny_, nz_));
+      scratch_ = new ThreadLocal<double[][]>() {
+         @Override
+         protected double[][] initialValue() {
+            return new double[][]{new double[maxLength], new double[maxLength]};
+         }
+      };
+   }
+
+   private static int powerOf2AtLeast(int n) {
+      int p = 1;
+      while (p < n) {
+         p *= 2;
+      }
+      return p;
+   }
+
+   int getWidth() {
+      return width_;
+   }
+
+   int getHeight() {
+      return height_;
+   }
+
+   int getNumSlices() {
+      return numSlices_;
+   }
+
+   /**
+    * @return number of slices of the correlation, i.e. the padded number of
+    * slices of the stacks
+    */
+   int getNumCorrelationSlices() {
+      return nz_;
+   }
+
+   /**
+    * @return buffer for the spectrum of a stack, to be filled by transform
+    */
+   float[][] createSpectrum() {
+      return new float[nz_][2 * halfWidth_ * ny_];
+   }
+
+   /**
+    * Reads and transforms every slice of a stack, then transforms it in z
+    *
+    * @param spectrum buffer from createSpectrum, whose contents are
+    * overwritten
+    */
+   void transform(final SliceSource source, final float[][] spectrum) throws InterruptedException, ExecutionException {
+      runParallel(nz_, new IndexTask() {
+         @Override
+         public void run(int slice) throws Exception {
+            if (slice < numSlices_) {
+               transformSlice(source.getPixels(slice), spectrum[slice]);
+            } else {
+               Arrays.fill(spectrum[slice], 0);
+            }
+         }
+      });
+      final int numColumns = halfWidth_ * ny_;
+      runParallel((numColumns + COLUMNS_PER_TASK - 1) / COLUMNS_PER_TASK, new IndexTask() {
+         @Override
+         public void run(int task) {
+            double[][] scratch = scratch_.get();
+            double[] re = scratch[0], im = scratch[1];
+            int end = Math.min(numColumns, (task + 1) * COLUMNS_PER_TASK);
+            for (int column = task * COLUMNS_PER_TASK; column < end; column++) {
+               int i = 2 * column;
+               for (int z = 0; z < nz_; z++) {
+                  re[z] = spectrum[z][i];
+                  im[z] = spectrum[z][i + 1];
+               }
+               fftZ_.transform(re, im, false);
+               for (int z = 0; z < nz_; z++) {
+                  spectrum[z][i] = (float) re[z];
+                  spectrum[z][i + 1] = (float) im[z];
+               }
+            }
+         }
+      });
+   }
+
+   /**
+    * 2D real to complex transform of one slice
+    */
+   private void transformSlice(Object pixels, float[] out) {
+      double[][] scratch = scratch_.get();
+      double[] re = scratch[0], im = scratch[1];
+      int rowLength = 2 * halfWidth_;
+      //rows, two at a time as the real and imaginary parts of one FFT
+      for (int y = 0; y < height_; y += 2) {
+         loadRow(pixels, y, re);
+         if (y + 1 < height_) {
+            loadRow(pixels, y + 1, im);
+         } else {
+            Arrays.fill(im, 0, nx_, 0);
+         }
+         fftX_.transform(re, im, false);
+         //separate the spectra of the two rows, using their symmetry
+         int o1 = y * rowLength;
+         int o2 = o1 + rowLength;
+         boolean secondRow = y + 1 < ny_;
+         for (int k = 0; k < halfWidth_; k++) {
+            int nk = (nx_ - k) & (nx_ - 1);
+            double sumRe = re[k] + re[nk], sumIm = im[k] - im[nk];
+            double diffRe = re[k] - re[nk], diffIm = im[k] + im[nk];
+            out[o1 + 2 * k] = (float) (0.5 * sumRe);
+            out[o1 + 2 * k + 1] = (float) (0.5 * sumIm);
+            if (secondRow) {
+               out[o2 + 2 * k] = (float) (0.5 * diffIm);
+               out[o2 + 2 * k + 1] = (float) (-0.5 * diffRe);
+            }
+         }
+      }
+      //rows of padding
+      int firstPadding = height_ + (height_ % 2);
+      Arrays.fill(out, Math.min(out.length, firstPadding * rowLength), out.length, 0);
+      //columns
+      for (int k = 0; k < halfWidth_; k++) {
+         for (int y = 0; y < ny_; y++) {
+            re[y] = out[y * rowLength + 2 * k];
+            im[y] = out[y * rowLength + 2 * k + 1];
+         }
+         fftY_.transform(re, im, false);
+         for (int y = 0; y < ny_; y++) {
+            out[y * rowLength + 2 * k] = (float) re[y];
+            out[y * rowLength + 2 * k + 1] = (float) im[y];
+         }
+      }
+   }
+
+   private void loadRow(Object pixels, int y, double[] row) {
+      int offset = y * width_;
+      if (pixels instanceof byte[]) {
+         byte[] pix = (byte[]) pixels;
+         for (int x = 0; x < width_; x++) {
+            row[x] = pix[offset + x] & 0xff;
+         }
+      } else if (pixels instanceof short[]) {
+         short[] pix = (short[]) pixels;
+         for (int x = 0; x < width_; x++) {
+            row[x] = pix[offset + x] & 0xffff;
+         }
+      } else {
+         throw new IllegalArgumentException("Autofocus only works with 8 and 16 bit images");
+      }
+      Arrays.fill(row, width_, nx_, 0);
+   }
+
+   /**
+    * Correlates two transformed stacks and finds the maximum of the central
+    * square of each slice of the correlation
+    *
+    * @param reference spectrum of the earlier stack, which is used as the
+    * buffer for the correlation, so that its contents are lost
+    * @param current spectrum of the later stack, left unchanged
+    * @return maximum of each slice, in the order of the slices of the
+    * correlation with its quadrants swapped (i.e. no shift in the middle)
+    */
+   double[] correlate(final float[][] reference, final float[][] current)
+           throws InterruptedException, ExecutionException {
+      //multiply with the conjugate and transform back in z
+      final int numColumns = halfWidth_ * ny_;
+      final double scale = 1.0 / ((double) nx_ * ny_ * nz_);
+      runParallel((numColumns + COLUMNS_PER_TASK - 1) / COLUMNS_PER_TASK, new IndexTask() {
+         @Override
+         public void run(int task) {
+            double[][] scratch = scratch_.get();
+            double[] re = scratch[0], im = scratch[1];
+            int end = Math.min(numColumns, (task + 1) * COLUMNS_PER_TASK);
+            for (int column = task * COLUMNS_PER_TASK; column < end; column++) {
+               int i = 2 * column;
+               for (int z = 0; z < nz_; z++) {
+                  double ar = reference[z][i], ai = reference[z][i + 1];
+                  double br = current[z][i], bi = current[z][i + 1];
+                  re[z] = ar * br + ai * bi;
+                  im[z] = ai * br - ar * bi;
+               }
+               fftZ_.transform(re, im, true);
+               for (int z = 0; z < nz_; z++) {
+                  reference[z][i] = (float) (re[z] * scale);
+                  reference[z][i + 1] = (float) (im[z] * scale);
+               }
+            }
+         }
+      });
+      //then each slice in 2D
+      final double[] maxima = new double[nz_];
+      runParallel(nz_, new IndexTask() {
+         @Override
+         public void run(int z) {
+            maxima[(z + nz_ / 2) % nz_] = centralMaximum(reference[z]);
+         }
+      });
+      return maxima;
+   }
+
+   /**
+    * Inverse 2D transform of one slice of the correlation, only for the rows
+    * in the central square
+    *
+    * @return maximum of the central square (and 0 if everything is negative)
+    */
+   private float centralMaximum(float[] slice) {
+      double[][] scratch = scratch_.get();
+      double[] re = scratch[0], im = scratch[1];
+      int rowLength = 2 * halfWidth_;
+      for (int k = 0; k < halfWidth_; k++) {
+         for (int y = 0; y < ny_; y++) {
+            re[y] = slice[y * rowLength + 2 * k];
+            im[y] = slice[y * rowLength + 2 * k + 1];
+         }
+         fftY_.transform(re, im, true);
+         for (int y = 0; y < ny_; y++) {
+            slice[y * rowLength + 2 * k] = (float) re[y];
+            slice[y * rowLength + 2 * k + 1] = (float) im[y];
+         }
+      }
+      //central square of the swapped correlation, as in findMaxPixelVal
+      int yStart = ny_ / 4, yEnd = 3 * ny_ / 4;
+      int xStart = nx_ / 4, xEnd = 3 * nx_ / 4;
+      float max = 0;
+      for (int sy = yStart; sy <= yEnd; sy += 2) {
+         //two rows as the real and imaginary parts of one FFT
+         int o1 = ((sy + ny_ / 2) % ny_) * rowLength;
+         boolean secondRow = sy + 1 <= yEnd;
+         int o2 = secondRow ? ((sy + 1 + ny_ / 2) % ny_) * rowLength : -1;
+         for (int k = 0; k < halfWidth_; k++) {
+            double h1r = slice[o1 + 2 * k], h1i = slice[o1 + 2 * k + 1];
+            double h2r = secondRow ? slice[o2 + 2 * k] : 0, h2i = secondRow ? slice[o2 + 2 * k + 1] : 0;
+            re[k] = h1r - h2i;
+            im[k] = h1i + h2r;
+            if (k > 0 && k < nx_ - k) {
+               re[nx_ - k] = h1r + h2i;
+               im[nx_ - k] = h2r - h1i;
+            }
+         }
+         fftX_.transform(re, im, true);
+         for (int sx = xStart; sx <= xEnd; sx++) {
+            int x = (sx + nx_ / 2) % nx_;
+            max = Math.max(max, (float) re[x]);
+            if (secondRow) {
+               max = Math.max(max, (float) im[x]);
+            }
+         }
+      }
+      return max;
+   }
+
+   /**
+    * Runs tasks 0 to count - 1 on the pool and the calling thread, and waits
+    * for all of them to finish. Tasks are handed out one at a time, since reading
+    * slices can take very different times
+    */
+   private void runParallel(final int count, final IndexTask task) throws InterruptedException, ExecutionException {
+      final AtomicInteger next = new AtomicInteger(0);
+      final AtomicBoolean cancelled = new AtomicBoolean(false);
+      Callable<Void> worker = new Callable<Void>() {
+         @Override
+         public Void call() throws Exception {
+            int index;
+            while (!cancelled.get() && (index = next.getAndIncrement()) < count) {
+               task.run(index);
+               if (Thread.currentThread().isInterrupted()) {
+                  cancelled.set(true);
+               }
+            }
+            return null;
+         }
+      };
+      ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = 1; i < Math.min(NUM_THREADS, count); i++) {
+         futures.add(executor_.submit(worker));
+      }
+      ExecutionException error = null;
+      try {
+         worker.call();
+      } catch (Exception e) {
+         cancelled.set(true);
+         error = new ExecutionException(e);
+      }
+      //wait for the other workers even when interrupted, so that no
+      //task still uses the buffers when this returns
+      boolean interrupted = false;
+      for (Future<Void> f : futures) {
+         while (true) {
+            try {
+               f.get();
+               break;
+            } catch (InterruptedException e) {
+               interrupted = true;
+               cancelled.set(true);
+            } catch (ExecutionException e) {
+               cancelled.set(true);
+               if (error == null) {
+                  error = e;
+               }
+               break;
+            }
+         }
+      }
+      if (interrupted || Thread.interrupted()) {
+         throw new InterruptedException();
+      }
+      if (error != null) {
+         throw error;
+      }
+   }
+}
@@ -26,6 +26,7 @@ import org.micromanager.plugins.magellan.acq.FixedAreaAcquisition;
 import org.micromanager.plugins.magellan.acq.MMImageCache;
 import org.micromanager.plugins.magellan.acq.MagellanTaggedImage;
 import org.micromanager.plugins.magellan.acq.MultiResMultipageTiffStorage;
+import org.micromanager.plugins.magellan.acq.ViewportCompositor;
 import java.awt.Dimension;
 import java.awt.Point;
 import java.awt.Rectangle;
@@ -48,6 +49,7 @@ public class ZoomableVirtualStack extends AcquisitionVirtualStack {
    private volatile int displayImageWidth_, displayImageHeight_;
    private volatile long xView_ = 0, yView_ = 0;  //top left pixel of view in current res
    private MultiResMultipageTiffStorage multiResStorage_;
+   private final ViewportCompositor compositor_;
    private final int tileWidth_, tileHeight_;
    private Acquisition acquisition_;
    private final boolean boundedImage_;
@@ -62,6 +64,7 @@ public class ZoomableVirtualStack extends AcquisitionVirtualStack {
       nSlices_ = nSlices;
       disp_ = (DisplayPlus) vad;
       multiResStorage_ = multiResStorage;
+      compositor_ = new ViewportCompositor(multiResStorage);
       //display image could conceivably be bigger than a single FOV, but not smaller
       displayImageWidth_ = width;
       displayImageHeight_ = height;
@@ -106,6 +109,7 @@ public class ZoomableVirtualStack extends AcquisitionVirtualStack {
       imageCache_ = oldStack.imageCache_;
       nSlices_ = oldStack.nSlices_;
       multiResStorage_ = oldStack.multiResStorage_;
+      compositor_ = new ViewportCompositor(multiResStorage_);
       disp_ = oldStack.disp_;
       //display image could conceivably be bigger than a single FOV, but not smaller
       displayImageWidth_ = width;
@@ -408,7 +412,7 @@ public class ZoomableVirtualStack extends AcquisitionVirtualStack {
          slice += disp_.getStorage().getMinSliceIndexOpenedDataset();
       }
 
-      return multiResStorage_.getImageForDisplay(channel, slice, frame, resolutionIndex_,
+      return compositor_.getImageForDisplay(channel, slice, frame, resolutionIndex_,
               xView_, yView_, displayImageWidth_, displayImageHeight_);
    }
    
@@ -0,0 +1,194 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.surfacesandregions;
+
+import java.awt.geom.Point2D;
+import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
+
+/**
+ * Convex hull of the surface points, for the point and tile tests that used to
+ * go through a Region (a BSP tree) built from the hull. Points are inside if
+ * they are inside the hull or on its boundary, as with
+ * Region.checkPoint(...) != OUTSIDE, and a tile intersects the hull only if
+ * they overlap by more than a boundary, as with a non empty
+ * intersection of the two regions.
+ *
+ * Immutable, so it can be shared between threads
+ */
+class ConvexPolygon {
+
+   //same tolerance as the hull generated by MonotoneChain
+   private static final double TOLERANCE = 1e-10;
+
+   //vertices in counterclockwise order
+   private final double[] xs_, ys_;
+   private final double xMin_, xMax_, yMin_, yMax_;
+
+   /**
+    * @param vertices vertices of a convex polygon, in order, clockwise or
+    * counterclockwise
+    */
+   ConvexPolygon(Vector2D[] vertices) {
+      //drop repeated vertices, which have no edge between them
+      double[] xs = new double[vertices.length];
+      double[] ys = new double[vertices.length];
+      int n = 0;
+      for (Vector2D v : vertices) {
+         if (n == 0 || v.getX() != xs[n - 1] || v.getY() != ys[n - 1]) {
+            xs[n] = v.getX();
+            ys[n] = v.getY();
+            n++;
+         }
+      }
+      if (n > 1 && xs[n - 1] == xs[0] && ys[n - 1] == ys[0]) {
+         n--;
+      }
+      double area = 0;
+      for (int i = 0; i < n; i++) {
+         int j = (i + 1) % n;
+         area += xs[i] * ys[j] - xs[j] * ys[i];
+      }
+      xs_ = new double[n];
+      ys_ = new double[n];
+      double xMin = Double.MAX_VALUE, xMax = -Double.MAX_VALUE;
+      double yMin = Double.MAX_VALUE, yMax = -Double.MAX_VALUE;
+      for (int i = 0; i < n; i++) {
+         int src = area < 0 ? n - 1 - i : i;
+         xs_[i] = xs[src];
+         ys_[i] = ys[src];
+         xMin = Math.min(xMin, xs_[i]);
+         xMax = Math.max(xMax, xs_[i]);
+         yMin = Math.min(yMin, ys_[i]);
+         yMax = Math.max(yMax, ys_[i]);
+      }
+      xMin_ = xMin;
+      xMax_ = xMax;
+      yMin_ = yMin;
+      yMax_ = yMax;
+   }
+
+   /**
+    * @return true if the point is inside the polygon or on its boundary
+    */
+   boolean contains(double x, double y) {
+      int n = xs_.length;
+      if (n == 0 || x < xMin_ - TOLERANCE || x > xMax_ + TOLERANCE
+              || y < yMin_ - TOLERANCE || y > yMax_ + TOLERANCE) {
+         return false;
+      }
+      for (int i = 0; i < n; i++) {
+         int j = i + 1 == n ? 0 : i + 1;
+         double ex = xs_[j] - xs_[i];
+         double ey = ys_[j] - ys_[i];
+         //distance to the left of the edge, times its length
+         double cross = ex * (y - ys_[i]) - ey * (x - xs_[i]);
+         if (cross < -TOLERANCE * Math.sqrt(ex * ex + ey * ey)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Separating axis test of the polygon against another convex polygon,
+    * such as the corners of a tile
+    *
+    * @return true if the two overlap by more than their boundaries
+    */
+   boolean intersects(Point2D.Double[] corners) {
+      if (xs_.length < 3) {
+         return false;
+      }
+      double cxMin = Double.MAX_VALUE, cxMax = -Double.MAX_VALUE;
+      double cyMin = Double.MAX_VALUE, cyMax = -Double.MAX_VALUE;
+      for (Point2D.Double c : corners) {
+         cxMin = Math.min(cxMin, c.x);
+         cxMax = Math.max(cxMax, c.x);
+         cyMin = Math.min(cyMin, c.y);
+         cyMax = Math.max(cyMax, c.y);
+      }
+      if (cxMax <= xMin_ || cxMin >= xMax_ || cyMax <= yMin_ || cyMin >= yMax_) {
+         return false;
+      }
+      for (int i = 0; i < xs_.length; i++) {
+         int j = i + 1 == xs_.length ? 0 : i + 1;
+         if (isSeparatingAxis(ys_[j] - ys_[i], xs_[i] - xs_[j], corners)) {
+            return false;
+         }
+      }
+      for (int i = 0; i < corners.length; i++) {
+         int j = i + 1 == corners.length ? 0 : i + 1;
+         if (isSeparatingAxis(corners[j].y - corners[i].y, corners[i].x - corners[j].x, corners)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private boolean isSeparatingAxis(double nx, double ny, Point2D.Double[] corners) {
+      double length = Math.sqrt(nx * nx + ny * ny);
+      if (length == 0) {
+         return false;
+      }
+      double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+      for (int i = 0; i < xs_.length; i++) {
+         double p = xs_[i] * nx + ys_[i] * ny;
+         min = Math.min(min, p);
+         max = Math.max(max, p);
+      }
+      double cMin = Double.MAX_VALUE, cMax = -Double.MAX_VALUE;
+      for (Point2D.Double c : corners) {
+         double p = c.x * nx + c.y * ny;
+         cMin = Math.min(cMin, p);
+         cMax = Math.max(cMax, p);
+      }
+      return Math.min(max, cMax) - Math.max(min, cMin) <= TOLERANCE * length;
+   }
+
+   /**
+    * Finds where a horizontal line crosses the inside of the polygon
+    *
+    * @param range set to the x coordinates where the line crosses into and out
+    * of the polygon, shrunk by the tolerance so that boundary points are
+    * excluded
+    * @return false if the line does not go through the inside of the polygon
+    */
+   boolean getInsideXRange(double y, double[] range) {
+      int n = xs_.length;
+      if (n < 3 || y <= yMin_ + TOLERANCE || y >= yMax_ - TOLERANCE) {
+         return false;
+      }
+      double xMin = Double.MAX_VALUE, xMax = -Double.MAX_VALUE;
+      for (int i = 0; i < n; i++) {
+         int j = i + 1 == n ? 0 : i + 1;
+         if ((ys_[i] <= y && ys_[j] >= y) || (ys_[i] >= y && ys_[j] <= y)) {
+            if (ys_[i] == ys_[j]) {
+               xMin = Math.min(xMin, Math.min(xs_[i], xs_[j]));
+               xMax = Math.max(xMax, Math.max(xs_[i], xs_[j]));
+            } else {
+               double x = xs_[i] + (y - ys_[i]) * (xs_[j] - xs_[i]) / (ys_[j] - ys_[i]);
+               xMin = Math.min(xMin, x);
+               xMax = Math.max(xMax, x);
+            }
+         }
+      }
+      range[0] = xMin + TOLERANCE;
+      range[1] = xMax - TOLERANCE;
+      return range[0] < range[1];
+   }
+}
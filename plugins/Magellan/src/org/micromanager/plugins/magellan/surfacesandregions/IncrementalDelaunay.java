@@ -0,0 +1,517 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.plugins.magellan.surfacesandregions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+/**
+ * Delaunay triangulation in XY of points with a Z value, to which points can
+ * be added and from which they can be removed one at a time.
+ *
+ * All points lie inside a large "super" triangle whose vertices are not
+ * surface points, so that every point has a closed ring of triangles around
+ * it. Points are inserted with the Bowyer-Watson algorithm and removed by
+ * filling the hole left behind with Delaunay ears. When a point falls
+ * outside the area covered by the super triangle, everything is
+ * triangulated again with a bigger one.
+ *
+ * Each triangle caches the plane through its vertices, so that interpolating
+ * a Z value is a few multiplications. Modifications must come from one
+ * thread; once updatePlanes() has been called, any number of threads can
+ * locate points and interpolate.
+ */
+class IncrementalDelaunay {
+
+   // Size of the super triangle relative to the area it has room for
+   private static final double SUPER_SCALE = 100;
+   // Room left for new points around the current ones before rebuilding
+   private static final double GROWTH_MARGIN = 4;
+
+   static class Vertex {
+
+      final double x, y, z;
+      final boolean isSuper;
+      // any triangle with this vertex
+      Triangle triangle;
+      // position in vertices_
+      int index = -1;
+
+      Vertex(double x, double y, double z, boolean isSuper) {
+         this.x = x;
+         this.y = y;
+         this.z = z;
+         this.isSuper = isSuper;
+      }
+   }
+
+   static class Triangle {
+
+      // counterclockwise
+      final Vertex[] v = new Vertex[3];
+      // n[i] is the triangle across the edge opposite v[i], null on the outside
+      final Triangle[] n = new Triangle[3];
+      boolean alive = true;
+      // plane z = a * x + b * y + c, and the angle of its normal to vertical in degrees
+      private double a, b, c;
+      private float normalAngle;
+      private boolean planeValid = false;
+
+      Triangle(Vertex v0, Vertex v1, Vertex v2) {
+         v[0] = v0;
+         v[1] = v1;
+         v[2] = v2;
+      }
+
+      boolean hasSuperVertex() {
+         return v[0].isSuper || v[1].isSuper || v[2].isSuper;
+      }
+
+      double interpolate(double x, double y) {
+         return a * x + b * y + c;
+      }
+
+      float getNormalAngle() {
+         return normalAngle;
+      }
+
+      private void updatePlane() {
+         if (planeValid) {
+            return;
+         }
+         double x1 = v[1].x - v[0].x, y1 = v[1].y - v[0].y, z1 = v[1].z - v[0].z;
+         double x2 = v[2].x - v[0].x, y2 = v[2].y - v[0].y, z2 = v[2].z - v[0].z;
+         double det = x1 * y2 - x2 * y1;
+         a = (z1 * y2 - z2 * y1) / det;
+         b = (x1 * z2 - x2 * z1) / det;
+         c = v[0].z - a * v[0].x - b * v[0].y;
+         normalAngle = (float) (Math.acos(1 / Math.sqrt(1 + a * a + b * b)) / Math.PI * 180.0);
+         planeValid = true;
+      }
+
+      private int indexOf(Vertex vertex) {
+         return v[0] == vertex ? 0 : (v[1] == vertex ? 1 : 2);
+      }
+   }
+
+   private final ArrayList<Vertex> vertices_ = new ArrayList<Vertex>();
+   private final LinkedHashSet<Triangle> triangles_ = new LinkedHashSet<Triangle>();
+   private double centerX_, centerY_, safeRadius_ = -1;
+   private Triangle last_;
+   private final Random random_ = new Random(0);
+
+   /**
+    * @return the number of (non super) points
+    */
+   int size() {
+      return vertices_.size();
+   }
+
+   /**
+    * @return the new vertex, or null if there already is a point at x, y
+    */
+   Vertex insert(double x, double y, double z) {
+      if (safeRadius_ < 0 || Math.hypot(x - centerX_, y - centerY_) > safeRadius_) {
+         if (findDuplicate(x, y) != null) {
+            return null;
+         }
+         Vertex vertex = new Vertex(x, y, z, false);
+         addVertex(vertex);
+         rebuild();
+         return vertex;
+      }
+      Triangle t = locate(x, y, last_);
+      for (Vertex corner : t.v) {
+         if (corner.x == x && corner.y == y) {
+            return null;
+         }
+      }
+      Vertex vertex = new Vertex(x, y, z, false);
+      addVertex(vertex);
+      insertIntoTriangulation(vertex, t);
+      return vertex;
+   }
+
+   void remove(Vertex vertex) {
+      if (vertex.index == -1) {
+         return;
+      }
+      Vertex moved = vertices_.remove(vertices_.size() - 1);
+      if (moved != vertex) {
+         vertices_.set(vertex.index, moved);
+         moved.index = vertex.index;
+      }
+      vertex.index = -1;
+      removeFromTriangulation(vertex);
+   }
+
+   /**
+    * Computes the planes of triangles created since the last call
+    */
+   void updatePlanes() {
+      for (Triangle t : triangles_) {
+         t.updatePlane();
+      }
+   }
+
+   /**
+    * @return any triangle, to start walking from
+    */
+   Triangle anyTriangle() {
+      return last_;
+   }
+
+   /**
+    * Walks from the given triangle to the one containing x, y. Does not
+    * modify the triangulation
+    *
+    * @param start triangle to start from, e.g. the one containing a nearby
+    * point, or null
+    */
+   Triangle locate(double x, double y, Triangle start) {
+      Triangle t = start != null && start.alive ? start : last_;
+      int maxSteps = 4 * triangles_.size() + 16;
+      for (int step = 0; step < maxSteps; step++) {
+         Triangle next = null;
+         // starting at a different edge each step keeps the walk from
+         // circling in degenerate cases
+         for (int k = 0; k < 3; k++) {
+            int i = (k + step) % 3;
+            Vertex p = t.v[(i + 1) % 3];
+            Vertex q = t.v[(i + 2) % 3];
+            if (t.n[i] != null && orient(p.x, p.y, q.x, q.y, x, y) < 0) {
+               next = t.n[i];
+               break;
+            }
+         }
+         if (next == null) {
+            return t;
+         }
+         t = next;
+      }
+      // should not happen, but never fail to find a triangle
+      for (Triangle candidate : triangles_) {
+         if (contains(candidate, x, y)) {
+            return candidate;
+         }
+      }
+      return t;
+   }
+
+   private void addVertex(Vertex vertex) {
+      vertex.index = vertices_.size();
+      vertices_.add(vertex);
+   }
+
+   private Vertex findDuplicate(double x, double y) {
+      for (Vertex vertex : vertices_) {
+         if (vertex.x == x && vertex.y == y) {
+            return vertex;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Triangulates all points again, inside a super triangle with room for
+    * points around them
+    */
+   private void rebuild() {
+      double xMin = Double.MAX_VALUE, xMax = -Double.MAX_VALUE;
+      double yMin = Double.MAX_VALUE, yMax = -Double.MAX_VALUE;
+      for (Vertex vertex : vertices_) {
+         xMin = Math.min(xMin, vertex.x);
+         xMax = Math.max(xMax, vertex.x);
+         yMin = Math.min(yMin, vertex.y);
+         yMax = Math.max(yMax, vertex.y);
+      }
+      centerX_ = (xMin + xMax) / 2;
+      centerY_ = (yMin + yMax) / 2;
+      safeRadius_ = GROWTH_MARGIN * Math.max(1, Math.hypot(xMax - xMin, yMax - yMin) / 2);
+      // equilateral triangle around the circle of radius r
+      double r = SUPER_SCALE * safeRadius_;
+      Vertex s0 = new Vertex(centerX_, centerY_ + 2 * r, 0, true);
+      Vertex s1 = new Vertex(centerX_ - Math.sqrt(3) * r, centerY_ - r, 0, true);
+      Vertex s2 = new Vertex(centerX_ + Math.sqrt(3) * r, centerY_ - r, 0, true);
+      for (Triangle t : triangles_) {
+         t.alive = false;
+      }
+      triangles_.clear();
+      last_ = newTriangle(s0, s1, s2);
+      // random order gives expected O(n log n)
+      ArrayList<Vertex> order = new ArrayList<Vertex>(vertices_);
+      Collections.shuffle(order, random_);
+      for (Vertex vertex : order) {
+         insertIntoTriangulation(vertex, locate(vertex.x, vertex.y, last_));
+      }
+   }
+
+   private Triangle newTriangle(Vertex v0, Vertex v1, Vertex v2) {
+      Triangle t = new Triangle(v0, v1, v2);
+      triangles_.add(t);
+      v0.triangle = t;
+      v1.triangle = t;
+      v2.triangle = t;
+      return t;
+   }
+
+   private void kill(Triangle t) {
+      t.alive = false;
+      triangles_.remove(t);
+   }
+
+   /**
+    * Bowyer-Watson: removes the triangles whose circumcircle contains the
+    * vertex and connects the vertex to the edges of the hole
+    */
+   private void insertIntoTriangulation(Vertex vertex, Triangle containing) {
+      ArrayList<Triangle> cavity = new ArrayList<Triangle>();
+      HashMap<Triangle, Boolean> inCavity = new HashMap<Triangle, Boolean>();
+      cavity.add(containing);
+      inCavity.put(containing, true);
+      // boundary edges of the cavity as (from, to, outside neighbor), counterclockwise
+      ArrayList<Vertex> edgeFrom = new ArrayList<Vertex>();
+      ArrayList<Vertex> edgeTo = new ArrayList<Vertex>();
+      ArrayList<Triangle> edgeOutside = new ArrayList<Triangle>();
+      for (int k = 0; k < cavity.size(); k++) {
+         Triangle t = cavity.get(k);
+         for (int i = 0; i < 3; i++) {
+            Triangle neighbor = t.n[i];
+            if (neighbor != null && inCavity.containsKey(neighbor)) {
+               continue;
+            }
+            Vertex p = t.v[(i + 1) % 3];
+            Vertex q = t.v[(i + 2) % 3];
+            // a neighbor also goes if the new vertex is not strictly inside
+            // the shared edge, which keeps the hole star shaped when rounding
+            // makes the circumcircle test inconsistent
+            if (neighbor != null && (inCircumcircle(neighbor, vertex.x, vertex.y)
+                    || orient(p.x, p.y, q.x, q.y, vertex.x, vertex.y) <= 0)) {
+               cavity.add(neighbor);
+               inCavity.put(neighbor, true);
+               continue;
+            }
+            edgeFrom.add(p);
+            edgeTo.add(q);
+            edgeOutside.add(neighbor);
+         }
+      }
+      // an edge found before its outer triangle joined the cavity is not a boundary edge
+      ArrayList<Triangle> created = new ArrayList<Triangle>();
+      for (int e = 0; e < edgeFrom.size(); e++) {
+         Triangle outside = edgeOutside.get(e);
+         if (outside != null && inCavity.containsKey(outside)) {
+            continue;
+         }
+         Triangle t = newTriangle(edgeFrom.get(e), edgeTo.get(e), vertex);
+         t.n[2] = outside;
+         if (outside != null) {
+            outside.n[edgeIndex(outside, edgeTo.get(e), edgeFrom.get(e))] = t;
+         }
+         created.add(t);
+      }
+      for (Triangle t : cavity) {
+         kill(t);
+      }
+      linkFan(created);
+      last_ = created.get(0);
+   }
+
+   /**
+    * Links triangles (a, b, vertex) that share the vertex and together
+    * surround it
+    */
+   private static void linkFan(ArrayList<Triangle> fan) {
+      HashMap<Vertex, Triangle> byFrom = new HashMap<Vertex, Triangle>();
+      for (Triangle t : fan) {
+         byFrom.put(t.v[0], t);
+      }
+      for (Triangle t : fan) {
+         // edge (b, vertex) is shared with the triangle starting at b
+         Triangle next = byFrom.get(t.v[1]);
+         t.n[0] = next;
+         next.n[1] = t;
+      }
+   }
+
+   /**
+    * @return index i of the edge (from, to) of t, i.e. the one opposite v[i]
+    */
+   private static int edgeIndex(Triangle t, Vertex from, Vertex to) {
+      for (int i = 0; i < 3; i++) {
+         if (t.v[(i + 1) % 3] == from && t.v[(i + 2) % 3] == to) {
+            return i;
+         }
+      }
+      throw new IllegalStateException("Broken triangulation");
+   }
+
+   /**
+    * Removes the triangles around the vertex and fills the polygon they leave
+    * with Delaunay triangles, clipping one ear at a time
+    */
+   private void removeFromTriangulation(Vertex vertex) {
+      // ring of triangles around the vertex, counterclockwise
+      ArrayList<Triangle> ring = new ArrayList<Triangle>();
+      ArrayList<Vertex> polygon = new ArrayList<Vertex>();
+      ArrayList<Triangle> outside = new ArrayList<Triangle>();
+      Triangle t = vertex.triangle;
+      do {
+         int i = t.indexOf(vertex);
+         ring.add(t);
+         polygon.add(t.v[(i + 1) % 3]);
+         outside.add(t.n[i]);
+         t = t.n[(i + 1) % 3];
+      } while (t != vertex.triangle);
+
+      // edges of the polygon with the triangles outside them, by (from, to)
+      HashMap<Vertex, Triangle> outsideOfEdgeFrom = new HashMap<Vertex, Triangle>();
+      for (int k = 0; k < polygon.size(); k++) {
+         outsideOfEdgeFrom.put(polygon.get(k), outside.get(k));
+      }
+      for (Triangle r : ring) {
+         kill(r);
+      }
+
+      ArrayList<Triangle> created = new ArrayList<Triangle>();
+      ArrayList<Vertex> remaining = new ArrayList<Vertex>(polygon);
+      while (remaining.size() > 3) {
+         int ear = findEar(remaining);
+         int size = remaining.size();
+         Vertex a = remaining.get((ear + size - 1) % size);
+         Vertex b = remaining.get(ear);
+         Vertex c = remaining.get((ear + 1) % size);
+         created.add(newTriangle(a, b, c));
+         remaining.remove(ear);
+      }
+      created.add(newTriangle(remaining.get(0), remaining.get(1), remaining.get(2)));
+
+      // link the new triangles with each other and with the outside
+      HashMap<Long, Triangle> byEdge = new HashMap<Long, Triangle>();
+      HashMap<Vertex, Integer> ids = new HashMap<Vertex, Integer>();
+      for (int k = 0; k < polygon.size(); k++) {
+         ids.put(polygon.get(k), k);
+      }
+      for (Triangle n : created) {
+         for (int i = 0; i < 3; i++) {
+            Vertex from = n.v[(i + 1) % 3];
+            Vertex to = n.v[(i + 2) % 3];
+            Triangle other = byEdge.remove(edgeKey(ids.get(to), ids.get(from)));
+            if (other != null) {
+               n.n[i] = other;
+               other.n[edgeIndex(other, to, from)] = n;
+            } else {
+               byEdge.put(edgeKey(ids.get(from), ids.get(to)), n);
+            }
+         }
+      }
+      // what is left are edges of the polygon
+      for (Triangle n : byEdge.values()) {
+         for (int i = 0; i < 3; i++) {
+            if (n.n[i] != null) {
+               continue;
+            }
+            Vertex from = n.v[(i + 1) % 3];
+            Vertex to = n.v[(i + 2) % 3];
+            if (outsideOfEdgeFrom.containsKey(from) && polygon.get((ids.get(from) + 1) % polygon.size()) == to) {
+               Triangle out = outsideOfEdgeFrom.get(from);
+               n.n[i] = out;
+               if (out != null) {
+                  out.n[edgeIndex(out, to, from)] = n;
+               }
+            }
+         }
+      }
+      last_ = created.get(0);
+   }
+
+   private static long edgeKey(int from, int to) {
+      return ((long) from << 32) | (to & 0xffffffffL);
+   }
+
+   /**
+    * @return index of a vertex of the polygon that, with its neighbors, forms
+    * a triangle inside the polygon whose circumcircle holds no other vertex
+    */
+   private static int findEar(ArrayList<Vertex> polygon) {
+      int size = polygon.size();
+      int fallback = -1;
+      for (int k = 0; k < size; k++) {
+         Vertex a = polygon.get((k + size - 1) % size);
+         Vertex b = polygon.get(k);
+         Vertex c = polygon.get((k + 1) % size);
+         if (orient(a.x, a.y, b.x, b.y, c.x, c.y) <= 0) {
+            continue;
+         }
+         if (fallback == -1) {
+            fallback = k;
+         }
+         boolean empty = true;
+         for (Vertex other : polygon) {
+            if (other != a && other != b && other != c
+                    && inCircumcircle(a, b, c, other.x, other.y)) {
+               empty = false;
+               break;
+            }
+         }
+         if (empty) {
+            return k;
+         }
+      }
+      // only when rounding spoils the circumcircle tests
+      return fallback == -1 ? 0 : fallback;
+   }
+
+   private static boolean contains(Triangle t, double x, double y) {
+      for (int i = 0; i < 3; i++) {
+         Vertex p = t.v[(i + 1) % 3];
+         Vertex q = t.v[(i + 2) % 3];
+         if (orient(p.x, p.y, q.x, q.y, x, y) < 0) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * @return positive if a, b, c are counterclockwise, negative if clockwise
+    */
+   private static double orient(double ax, double ay, double bx, double by, double cx, double cy) {
+      return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+   }
+
+   private static boolean inCircumcircle(Triangle t, double x, double y) {
+      return inCircumcircle(t.v[0], t.v[1], t.v[2], x, y);
+   }
+
+   /**
+    * @return whether x, y is strictly inside the circumcircle of the
+    * counterclockwise triangle a, b, c
+    */
+   private static boolean inCircumcircle(Vertex a, Vertex b, Vertex c, double x, double y) {
+      double adx = a.x - x, ady = a.y - y;
+      double bdx = b.x - x, bdy = b.y - y;
+      double cdx = c.x - x, cdy = c.y - y;
+      double det = (adx * adx + ady * ady) * (bdx * cdy - cdx * bdy)
+              - (bdx * bdx + bdy * bdy) * (adx * cdy - cdx * ady)
+              + (cdx * cdx + cdy * cdy) * (adx * bdy - bdx * ady);
+      return det > 0;
+   }
+}
@@ -20,9 +20,7 @@ package org.micromanager.plugins.magellan.surfacesandregions;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.TreeSet;
-import org.apache.commons.math3.geometry.euclidean.twod.Euclidean2D;
 import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
-import org.apache.commons.math3.geometry.partitioning.Region;
 
 /**
  *
@@ -35,13 +33,13 @@ public class SingleResolutionInterpolation {
    private final float[][] interpolation_;
    private final float[][] normals_; //stored in degrees
    private final double boundXMin_, boundXMax_, boundYMin_, boundYMax_;
-   private Region<Euclidean2D> convexHullRegion_;
+   private ConvexPolygon convexHull_;
    //for extrapolation
    private TreeSet<Vector2D> convexHullVertices_;
    private Point3d[] allPoints_;
    
    public SingleResolutionInterpolation(int pixPerPoint, boolean[][] defined, float[][] interp, float[][] normals, double boundXMin, double boundXMax, double boundYMin, double boundYMax, 
-           Region<Euclidean2D> ch, Vector2D[] convexHullVertices, Point3d[] allPoints ) {
+           ConvexPolygon ch, Vector2D[] convexHullVertices, Point3d[] allPoints ) {
       pixPerInterpPoint_ = pixPerPoint;
       interpDefined_ = defined;
       interpolation_ = interp;      
@@ -50,7 +48,7 @@ public class SingleResolutionInterpolation {
       boundYMax_ = boundYMax;
       boundXMin_ = boundXMin;
       boundYMin_ = boundYMin;
-      convexHullRegion_ = ch;
+      convexHull_ = ch;
       //keep them sorted for fast searching
       convexHullVertices_ = new TreeSet<Vector2D>(new Comparator<Vector2D>() {
          @Override
@@ -123,9 +121,9 @@ public class SingleResolutionInterpolation {
       
 
    private boolean isInsideConvexHull(double x, double y) {
-      if (convexHullRegion_ == null) {
+      if (convexHull_ == null) {
          return false;
       }
-      return convexHullRegion_.checkPoint(new Vector2D(x, y)) != Region.Location.OUTSIDE;
+      return convexHull_.contains(x, y);
    }
 }
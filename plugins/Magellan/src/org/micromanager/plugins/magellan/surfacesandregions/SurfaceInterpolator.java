@@ -26,9 +26,12 @@ import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -36,13 +39,9 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import org.micromanager.plugins.magellan.main.Magellan;
 import org.micromanager.plugins.magellan.misc.Log;
-import org.apache.commons.math3.geometry.euclidean.twod.Euclidean2D;
-import org.apache.commons.math3.geometry.euclidean.twod.PolygonsSet;
 import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
 import org.apache.commons.math3.geometry.euclidean.twod.hull.ConvexHull2D;
 import org.apache.commons.math3.geometry.euclidean.twod.hull.MonotoneChain;
-import org.apache.commons.math3.geometry.partitioning.Region;
-import org.apache.commons.math3.geometry.partitioning.RegionFactory;
 import org.micromanager.plugins.magellan.propsandcovariants.CovariantPairingsManager;
 import org.micromanager.plugins.magellan.propsandcovariants.SurfaceData;
 
@@ -65,9 +64,12 @@ public abstract class SurfaceInterpolator implements XYFootprint {
    private final boolean towardsSampleIsPositive_;
    protected volatile TreeSet<Point3d> points_;
    private MonotoneChain mChain_;
-   private final RegionFactory<Euclidean2D> regionFacotry_ = new RegionFactory<Euclidean2D>();
    protected volatile Vector2D[] convexHullVertices_;
-   protected volatile Region<Euclidean2D> convexHullRegion_;
+   protected volatile ConvexPolygon convexHull_;
+   //closest points for extrapolation
+   protected volatile SurfacePointIndex pointIndex_ = new SurfacePointIndex(new Point3d[0]);
+   //range of the surface under each position, for the current interpolation
+   private volatile PositionZRanges zRanges_;
    private volatile int numRows_, numCols_;
    private volatile List<XYStagePosition> xyPositions_;
    private volatile double xyPadding_um_ = 0;
@@ -238,15 +240,8 @@ public abstract class SurfaceInterpolator implements XYFootprint {
    }
    
    public boolean isDefinedAtPosition(XYStagePosition position) {
-      //create square region correpsonding to stage pos
-      Region<Euclidean2D> square = getStagePositionRegion(position);
-      //if convex hull and position have no intersection, delete
-      Region<Euclidean2D> intersection = regionFacotry_.intersection(square, convexHullRegion_);
-      if (intersection.isEmpty()) {
-         return false;
-      } else {
-         return true;
-      }
+      //square correpsonding to stage pos + padding
+      return convexHull_.intersects(getPositionCornersWithPadding(position, xyPadding_um_));
    }
 
    /**
@@ -273,26 +268,50 @@ public abstract class SurfaceInterpolator implements XYFootprint {
     */
    public boolean testPositionRelativeToSurface(XYStagePosition pos, SurfaceInterpolator surface, double zPos, 
            int mode, boolean extrapolate) throws InterruptedException {
+      float[] zRange = surface.getZRange(pos, extrapolate);
+      //completely above or below = on the same side of the lowest and the highest surface value
+      if (mode == ABOVE_SURFACE) {
+         return towardsSampleIsPositive_ ? zPos < zRange[0] : zPos > zRange[1];
+      } else if (mode == BELOW_SURFACE) {
+         return towardsSampleIsPositive_ ? zPos > zRange[1] : zPos < zRange[0];
+      }
+      return true;
+   }
+
+   /**
+    * Min and max of the surface over a position (+ padding), calculated once
+    * for each interpolation and position and cached so that testing positions
+    * at every slice does not sample the surface again
+    *
+    * @param extrapolate whether to include extrapolated values where the
+    * surface is not defined
+    * @return {min, max}, {+infinity, -infinity} if the surface is not defined
+    * anywhere over the position
+    */
+   private float[] getZRange(XYStagePosition pos, boolean extrapolate) throws InterruptedException {
+      SingleResolutionInterpolation interp = waitForCurentInterpolation();
+      PositionZRanges ranges = zRanges_;
+      if (ranges == null || ranges.interpolation != interp || ranges.padding != xyPadding_um_) {
+         ranges = new PositionZRanges(interp, xyPadding_um_);
+         zRanges_ = ranges;
+      }
+      Map<XYStagePosition, float[]> map = extrapolate ? ranges.extrapolated : ranges.interpolated;
+      float[] zRange = map.get(pos);
+      if (zRange == null) {
+         zRange = calcZRange(interp, pos, ranges.padding, extrapolate);
+         map.put(pos, zRange);
+      }
+      return zRange;
+   }
+
+   private float[] calcZRange(SingleResolutionInterpolation interp, XYStagePosition pos, double padding,
+           boolean extrapolate) {
+      float[] zRange = new float[]{Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
       //get the corners with padding added in
-      Point2D.Double[] corners = getPositionCornersWithPadding(pos, surface.xyPadding_um_);
-      //First check position corners before going into a more detailed set of test points
+      Point2D.Double[] corners = getPositionCornersWithPadding(pos, padding);
+      //First the position corners
       for (Point2D.Double point : corners) {
-         float interpVal;
-         if (!surface.waitForCurentInterpolation().isInterpDefined(point.x, point.y)) {
-            if (extrapolate) {
-               interpVal = surface.getExtrapolatedValue(point.x, point.y);
-            } else {
-               continue;
-            }
-         } else {
-            interpVal = surface.waitForCurentInterpolation().getInterpolatedValue(point.x, point.y);
-         }
-         if ((towardsSampleIsPositive_ && mode == ABOVE_SURFACE && zPos >= interpVal)
-                 || (towardsSampleIsPositive_ && mode == BELOW_SURFACE && zPos <= interpVal)
-                 || (!towardsSampleIsPositive_ && mode == ABOVE_SURFACE && zPos <= interpVal)
-                 || (!towardsSampleIsPositive_ && mode == BELOW_SURFACE) && zPos >= interpVal) {
-            return false;
-         }
+         addToZRange(interp, point.x, point.y, extrapolate, zRange);
       }
       //then check a grid of points spanning entire position        
       //9x9 square of points to check for each position
@@ -306,7 +325,6 @@ public abstract class SurfaceInterpolator implements XYFootprint {
       } catch (NoninvertibleTransformException ex) {
          Log.log("Problem inverting affine transform");
       }
-      outerloop:
       for (double x = 0; x <= pixelSpan.x; x += pixelSpan.x / (double) NUM_XY_TEST_POINTS) {
          for (double y = 0; y <= pixelSpan.y; y += pixelSpan.y / (double) NUM_XY_TEST_POINTS) {
             //convert these abritray pixel coordinates back to stage coordinates
@@ -318,26 +336,31 @@ public abstract class SurfaceInterpolator implements XYFootprint {
              transform = new AffineTransform(transformMaxtrix);
             Point2D.Double stageCoords = new Point2D.Double();
             transform.transform(new Point2D.Double(x, y), stageCoords);
-            //test point for inclusion of position
-            float interpVal;
-            if (!surface.waitForCurentInterpolation().isInterpDefined(stageCoords.x, stageCoords.y)) {
-               if (extrapolate) {
-                  interpVal = surface.getExtrapolatedValue(stageCoords.x, stageCoords.y);
-               } else {
-                  continue;
-               }
-            } else {
-               interpVal = surface.waitForCurentInterpolation().getInterpolatedValue(stageCoords.x, stageCoords.y);
-            }
-            if ((towardsSampleIsPositive_ && mode == ABOVE_SURFACE && zPos >= interpVal)
-                    || (towardsSampleIsPositive_ && mode == BELOW_SURFACE && zPos <= interpVal)
-                    || (!towardsSampleIsPositive_ && mode == ABOVE_SURFACE && zPos <= interpVal)
-                    || (!towardsSampleIsPositive_ && mode == BELOW_SURFACE) && zPos >= interpVal) {
-               return false;
-            }
+            addToZRange(interp, stageCoords.x, stageCoords.y, extrapolate, zRange);
          }
       }
-      return true;
+      return zRange;
+   }
+
+   private void addToZRange(SingleResolutionInterpolation interp, double x, double y, boolean extrapolate,
+           float[] zRange) {
+      float interpVal;
+      if (!interp.isInterpDefined(x, y)) {
+         if (extrapolate) {
+            interpVal = getExtrapolatedValue(x, y);
+         } else {
+            return;
+         }
+      } else {
+         interpVal = interp.getInterpolatedValue(x, y);
+      }
+      //NaNs never put a position on either side, so leave them out
+      if (interpVal < zRange[0]) {
+         zRange[0] = interpVal;
+      }
+      if (interpVal > zRange[1]) {
+         zRange[1] = interpVal;
+      }
    }
 
 
@@ -399,33 +422,6 @@ public abstract class SurfaceInterpolator implements XYFootprint {
       }           
    }
    
-   /**
-    * Create a 2D square region corresponding to the the stage position + any extra padding
-    * @param pos
-    * @return 
-    */
-   private Region<Euclidean2D> getStagePositionRegion(XYStagePosition pos) {
-       Region<Euclidean2D> square;
-       Point2D.Double[] corners = pos.getDisplayedTileCorners();
-      if (xyPadding_um_ == 0) {
-         square = new PolygonsSet(0.0001, new Vector2D[]{
-                    new Vector2D(corners[0].x, corners[0].y),
-                    new Vector2D(corners[1].x, corners[1].y),
-                    new Vector2D(corners[2].x, corners[2].y),
-                    new Vector2D(corners[3].x, corners[3].y)});
-      } else { //expand to bigger square to acount for padding
-         //make two lines that criss cross the smaller square
-         double diagonalLength = new Vector2D(corners[0].x, corners[0].y).distance(new Vector2D(corners[2].x, corners[2].y));
-         Vector2D center = new Vector2D(pos.getCenter().x, pos.getCenter().y);
-         square = new PolygonsSet(0.0001, new Vector2D[]{
-                    center.add(xyPadding_um_ + 0.5 * diagonalLength, new Vector2D(corners[0].x - corners[2].x, corners[0].y - corners[2].y).normalize()),
-                    center.add(xyPadding_um_ + 0.5 * diagonalLength, new Vector2D(corners[1].x - corners[3].x, corners[1].y - corners[3].y).normalize()),
-                    center.add(xyPadding_um_ + 0.5 * diagonalLength, new Vector2D(corners[2].x - corners[0].x, corners[2].y - corners[0].y).normalize()),
-                    center.add(xyPadding_um_ + 0.5 * diagonalLength, new Vector2D(corners[3].x - corners[1].x, corners[3].y - corners[1].y).normalize())});
-      }
-      return square.checkPoint(new Vector2D(pos.getCenter().x, pos.getCenter().y)) == Region.Location.OUTSIDE ? regionFacotry_.getComplement(square) : square;
-   }
-
    private void calculateConvexHullBounds() {
       //convert convex hull vertices to pixel offsets in an arbitrary pixel space
       AffineTransform transform = AffineUtils.getAffineTransform(getCurrentPixelSizeConfig(),0, 0);
@@ -517,14 +513,10 @@ public abstract class SurfaceInterpolator implements XYFootprint {
             throw new InterruptedException();
          }
          XYStagePosition pos = positions.get(i);
-         //create square region correpsonding to stage pos
-         Region<Euclidean2D> square = getStagePositionRegion(pos);     
          //if convex hull and position have no intersection, delete
-         Region<Euclidean2D> intersection = regionFacotry_.intersection(square, convexHullRegion_);
-         if (intersection.isEmpty()) {
+         if (!convexHull_.intersects(getPositionCornersWithPadding(pos, xyPadding_um_))) {
             positions.remove(i);
          }
-         square.getBoundarySize();
       }
       if (Thread.interrupted()) {
          throw new InterruptedException();
@@ -541,6 +533,7 @@ public abstract class SurfaceInterpolator implements XYFootprint {
       
    public synchronized void deleteAllPoints() {
       points_.clear();
+      pointIndex_ = new SurfacePointIndex(new Point3d[0]);
    }
    
    public synchronized void deletePointsWithinZRange(double zMin, double zMax) {
@@ -613,6 +606,7 @@ public abstract class SurfaceInterpolator implements XYFootprint {
    private synchronized void updateConvexHullAndInterpolate() {
       //duplicate points for use on caluclation thread
       final LinkedList<Point3d> points = new LinkedList<Point3d>(points_);
+      pointIndex_ = new SurfacePointIndex(points.toArray(new Point3d[0]));
       if (currentInterpolationTask_ != null && !currentInterpolationTask_.isDone()) {
          //cancel current interpolation because interpolation points have changed, call does not block
          currentInterpolationTask_.cancel(true);
@@ -620,7 +614,7 @@ public abstract class SurfaceInterpolator implements XYFootprint {
       //don't want one of the get methods returning a null object thinking it has a value
       synchronized (convexHullLock_) {
          convexHullVertices_ = null;
-         convexHullRegion_ = null;
+         convexHull_ = null;
       }
       synchronized (interpolationLock_) {
          currentInterpolation_ = null;
@@ -654,7 +648,7 @@ public abstract class SurfaceInterpolator implements XYFootprint {
                   if (Thread.interrupted()) {
                      throw new InterruptedException();
                   }
-                  convexHullRegion_ = hull.createRegion();
+                  convexHull_ = new ConvexPolygon(hull.getVertices());
                   if (Thread.interrupted()) {
                      throw new InterruptedException();
                   }
@@ -708,5 +702,23 @@ public abstract class SurfaceInterpolator implements XYFootprint {
       return list;
    }
 
-   
+   /**
+    * Ranges of the surface over positions, only valid for one interpolation
+    * and padding. Positions are told apart by identity, like the lists of
+    * positions acquisitions get from the surface
+    */
+   private static class PositionZRanges {
+
+      final SingleResolutionInterpolation interpolation;
+      final double padding;
+      final Map<XYStagePosition, float[]> interpolated =
+              Collections.synchronizedMap(new IdentityHashMap<XYStagePosition, float[]>());
+      final Map<XYStagePosition, float[]> extrapolated =
+              Collections.synchronizedMap(new IdentityHashMap<XYStagePosition, float[]>());
+
+      PositionZRanges(SingleResolutionInterpolation interp, double pad) {
+         interpolation = interp;
+         padding = pad;
+      }
+   }
 }
@@ -16,31 +16,55 @@
 //
 package org.micromanager.plugins.magellan.surfacesandregions;
 
-import delaunay_triangulation.Delaunay_Triangulation;
-import delaunay_triangulation.Point_dt;
-import delaunay_triangulation.Triangle_dt;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.TreeMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.micromanager.plugins.magellan.main.Magellan;
 import org.apache.commons.math3.geometry.euclidean.threed.Line;
 import org.apache.commons.math3.geometry.euclidean.threed.Plane;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
-import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
-import org.apache.commons.math3.geometry.partitioning.Region;
-import java.util.Iterator;
-import java.util.List;
+import org.micromanager.plugins.magellan.misc.Log;
 
 /**
  * Subclass that implements a particular interpolation method This one creates a
  * plane based on the 3 closest points in XY space using the delaunay
  * triangulation and calculates specific z values in that plane
+ * 
+ * The triangulation is kept between interpolations and only the points that
+ * were added or deleted are inserted into or removed from it. Each finer
+ * interpolation grid contains the points of the previous one, whose values
+ * are copied rather than calculated again, and rows of the grid are
+ * calculated in parallel, each walking from triangle to triangle along the row
  */
 public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
 
    private static final double TOLERANCE = 0.01;
+   //below this many interpolation points per thread, rows are not split among threads
+   private static final int MIN_POINTS_PER_THREAD = 4096;
+   private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+   private static final ExecutorService rowExecutor_ = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Interpolation row thread");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   //only used from the interpolation calculation thread
+   private final IncrementalDelaunay triangulation_ = new IncrementalDelaunay();
+   //vertex of each point in the triangulation, null for points at the same XY as another
+   private final IdentityHashMap<Point3d, IncrementalDelaunay.Vertex> vertices_ =
+           new IdentityHashMap<Point3d, IncrementalDelaunay.Vertex>();
 
    public SurfaceInterpolatorSimple(String xyName, String zName) {
       super(xyName, zName);
@@ -50,11 +74,9 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
 
       double pixSize = Magellan.getCore().getPixelSizeUm();
       //provide interpolator with current list of data points
-      Point_dt triangulationPoints[] = new Point_dt[points.size()];
-      for (int i = 0; i < points.size(); i++) {
-         triangulationPoints[i] = new Point_dt(points.get(i).x, points.get(i).y, points.get(i).z);
-      }
-      Delaunay_Triangulation dTri = new Delaunay_Triangulation(triangulationPoints);
+      updateTriangulation(points);
+      triangulation_.updatePlanes();
+      ConvexPolygon hull = convexHull_;
 
       int maxPixelDimension = (int) (Math.max(boundXMax_ - boundXMin_, boundYMax_ - boundYMin_) / pixSize);
       //Start with at least 20 interp points and go smaller and smaller until every pixel interped?
@@ -66,90 +88,180 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
          throw new InterruptedException();
       }
 
+      int numInterpPointsX = 0, numInterpPointsY = 0;
+      float[][] previousVals = null, previousNormals = null;
+      boolean[][] previousDefined = null;
       while (pixelsPerInterpPoint >= MIN_PIXELS_PER_INTERP_POINT) {
-         int numInterpPointsX = (int) (((boundXMax_ - boundXMin_) / pixSize) / pixelsPerInterpPoint);
-         int numInterpPointsY = (int) (((boundYMax_ - boundYMin_) / pixSize) / pixelsPerInterpPoint);
-         double dx = (boundXMax_ - boundXMin_) / (numInterpPointsX - 1);
-         double dy = (boundYMax_ - boundYMin_) / (numInterpPointsY - 1);
-
+         if (previousVals == null) {
+            numInterpPointsX = Math.max(2, (int) (((boundXMax_ - boundXMin_) / pixSize) / pixelsPerInterpPoint));
+            numInterpPointsY = Math.max(2, (int) (((boundYMax_ - boundYMin_) / pixSize) / pixelsPerInterpPoint));
+         } else {
+            //twice as many intervals, so that every other point is a point of the previous grid
+            numInterpPointsX = 2 * numInterpPointsX - 1;
+            numInterpPointsY = 2 * numInterpPointsY - 1;
+         }
          float[][] interpVals = new float[numInterpPointsY][numInterpPointsX];
          float[][] interpNormals = new float[numInterpPointsY][numInterpPointsX];
          boolean[][] interpDefined = new boolean[numInterpPointsY][numInterpPointsX];
-         for (int yInd = 0; yInd < interpVals.length; yInd++) {
-            for (int xInd = 0; xInd < interpVals[0].length; xInd++) {
-               if (Thread.interrupted()) {
-                  throw new InterruptedException();
-               }
-               double xVal = boundXMin_ + dx * xInd;
-               double yVal = boundYMin_ + dy * yInd;
-               boolean inHull = convexHullRegion_.checkPoint(new Vector2D(xVal, yVal)) == Region.Location.INSIDE;
-               if (inHull) {
-                  Triangle_dt tri = dTri.find(new Point_dt(xVal, yVal));
-                  //convert to apache commons coordinates to make a plane
-                  Vector3D v1 = new Vector3D(tri.p1().x(), tri.p1().y(), tri.p1().z());
-                  Vector3D v2 = new Vector3D(tri.p2().x(), tri.p2().y(), tri.p2().z());
-                  Vector3D v3 = new Vector3D(tri.p3().x(), tri.p3().y(), tri.p3().z());
-                  Plane plane = new Plane(v1, v2, v3, TOLERANCE);
-                  //intersetion of vertical line at these x+y values with plane gives point in plane
-                  Vector3D pointInPlane = plane.intersection(new Line(new Vector3D(xVal, yVal, 0), new Vector3D(xVal, yVal, 1), TOLERANCE));
-                  float zVal = (float) pointInPlane.getZ();
-                  interpVals[yInd][xInd] = zVal;
-                  float angle = (float) (Vector3D.angle(plane.getNormal(), new Vector3D(0, 0, 1)) / Math.PI * 180.0);
-                  interpNormals[yInd][xInd] = angle;
-                  interpDefined[yInd][xInd] = true;
-               } else {
-                  interpDefined[yInd][xInd] = false;
-               }
-            }
-         }
+         interpolateGrid(hull, interpVals, interpNormals, interpDefined,
+                 previousVals, previousNormals, previousDefined);
          if (Thread.interrupted()) {
             throw new InterruptedException();
          }
          synchronized (interpolationLock_) {
             currentInterpolation_ = new SingleResolutionInterpolation(pixelsPerInterpPoint, interpDefined, interpVals, interpNormals,
                     boundXMin_, boundXMax_, boundYMin_, boundYMax_,
-                    convexHullRegion_, convexHullVertices_, getPoints());
+                    hull, convexHullVertices_, getPoints());
             interpolationLock_.notifyAll();
          }
-//         System.gc();
+         previousVals = interpVals;
+         previousNormals = interpNormals;
+         previousDefined = interpDefined;
          pixelsPerInterpPoint /= 2;
       }
    }
 
-   @Override
-   public float getExtrapolatedValue(double x, double y) {
-      //duplicate points for thread safety
-     final LinkedList<Point3d> points = new LinkedList<Point3d>(points_);
+   /**
+    * Inserts new points into and removes deleted points from the triangulation
+    */
+   private void updateTriangulation(LinkedList<Point3d> points) throws InterruptedException {
+      IdentityHashMap<Point3d, Boolean> current = new IdentityHashMap<Point3d, Boolean>();
+      for (Point3d p : points) {
+         current.put(p, Boolean.TRUE);
+      }
+      boolean removed = false;
+      Iterator<Map.Entry<Point3d, IncrementalDelaunay.Vertex>> it = vertices_.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<Point3d, IncrementalDelaunay.Vertex> entry = it.next();
+         if (!current.containsKey(entry.getKey())) {
+            if (entry.getValue() != null) {
+               triangulation_.remove(entry.getValue());
+               removed = true;
+            }
+            it.remove();
+         }
+         if (Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+      }
+      for (Point3d p : points) {
+         boolean isNew = !vertices_.containsKey(p);
+         //a point at the same XY as one that was deleted can take its place
+         if (isNew || (removed && vertices_.get(p) == null)) {
+            vertices_.put(p, triangulation_.insert(p.x, p.y, p.z));
+         }
+         if (Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+      }
+   }
 
-      //find 3 closest points and calculate value
-      //find closest convex hull vertex
-      final LinkedList<Integer> closestIndices = new LinkedList<Integer>();
-      final LinkedList<Double> closestDistances = new LinkedList<Double>();
-      for  (int i = 0; i < points.size(); i++) {
-         //get current distance
-         Vector2D vertex = new Vector2D(points.get(i).x, points.get(i).y);
-         double distance = vertex.distance(new Vector2D(x, y));
-         if (closestDistances.size() < 3) {
-            closestIndices.add(i);
-            closestDistances.add(distance);
-         } else if (distance < closestDistances.get(2)) {
-            closestIndices.removeLast();
-            closestDistances.removeLast();
-            closestIndices.add(i);
-            closestDistances.add(distance);
+   /**
+    * Fills in a grid of interpolated values, copying every other value of
+    * every other row from the previous, coarser, grid when there is one
+    */
+   private void interpolateGrid(final ConvexPolygon hull, final float[][] vals, final float[][] normals,
+           final boolean[][] defined, final float[][] previousVals, final float[][] previousNormals,
+           final boolean[][] previousDefined) throws InterruptedException {
+      final int numRows = vals.length;
+      int numBands = (int) Math.min(NUM_THREADS,
+              Math.max(1, (long) numRows * vals[0].length / MIN_POINTS_PER_THREAD));
+      final AtomicBoolean cancelled = new AtomicBoolean(false);
+      ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int band = 1; band < numBands; band++) {
+         final int start = (int) ((long) numRows * band / numBands);
+         final int end = (int) ((long) numRows * (band + 1) / numBands);
+         futures.add(rowExecutor_.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+               interpolateRows(start, end, hull, vals, normals, defined,
+                       previousVals, previousNormals, previousDefined, cancelled);
+               return null;
+            }
+         }));
+      }
+      interpolateRows(0, numRows / numBands, hull, vals, normals, defined,
+              previousVals, previousNormals, previousDefined, cancelled);
+      //wait for the other rows even when cancelled, so that the triangulation
+      //is not changed by the next interpolation while they still read it
+      for (Future<Void> f : futures) {
+         while (true) {
+            try {
+               f.get();
+               break;
+            } catch (InterruptedException e) {
+               cancelled.set(true);
+            } catch (ExecutionException e) {
+               cancelled.set(true);
+               Log.log("Problem interpolating surface: " + e.getCause());
+               break;
+            }
          }
-         //sort
-         Collections.sort(closestIndices, new Comparator<Integer>() {
-            public int compare(Integer left, Integer right) {
-               return (new Double(closestDistances.get(closestIndices.indexOf(left)))).
-                       compareTo(closestDistances.get(closestIndices.indexOf(right)));
+      }
+      if (cancelled.get()) {
+         throw new InterruptedException();
+      }
+   }
+
+   private void interpolateRows(int startRow, int endRow, ConvexPolygon hull, float[][] vals,
+           float[][] normals, boolean[][] defined, float[][] previousVals, float[][] previousNormals,
+           boolean[][] previousDefined, AtomicBoolean cancelled) {
+      int numInterpPointsX = vals[0].length;
+      int numInterpPointsY = vals.length;
+      double dx = (boundXMax_ - boundXMin_) / (numInterpPointsX - 1);
+      double dy = (boundYMax_ - boundYMin_) / (numInterpPointsY - 1);
+      double[] hullRange = new double[2];
+      IncrementalDelaunay.Triangle rowStart = triangulation_.anyTriangle();
+      for (int yInd = startRow; yInd < endRow; yInd++) {
+         //only the calculation thread gets interrupted
+         if (cancelled.get() || Thread.interrupted()) {
+            cancelled.set(true);
+            return;
+         }
+         double yVal = boundYMin_ + dy * yInd;
+         boolean rowInHull = hull.getInsideXRange(yVal, hullRange);
+         boolean coarseRow = previousVals != null && yInd % 2 == 0;
+         IncrementalDelaunay.Triangle tri = rowStart;
+         boolean firstInRow = true;
+         for (int xInd = 0; xInd < numInterpPointsX; xInd++) {
+            if (coarseRow && xInd % 2 == 0) {
+               vals[yInd][xInd] = previousVals[yInd / 2][xInd / 2];
+               normals[yInd][xInd] = previousNormals[yInd / 2][xInd / 2];
+               defined[yInd][xInd] = previousDefined[yInd / 2][xInd / 2];
+               continue;
+            }
+            double xVal = boundXMin_ + dx * xInd;
+            if (!rowInHull || xVal <= hullRange[0] || xVal >= hullRange[1]) {
+               defined[yInd][xInd] = false;
+               continue;
+            }
+            //walk from the triangle of the previous point in the row
+            tri = triangulation_.locate(xVal, yVal, tri);
+            if (firstInRow) {
+               rowStart = tri;
+               firstInRow = false;
             }
-         });
-         Collections.sort(closestDistances);
+            double zVal = tri.interpolate(xVal, yVal);
+            if (tri.hasSuperVertex() || Double.isNaN(zVal)) {
+               //a sliver at the edge of the hull that the triangulation does not have
+               vals[yInd][xInd] = getExtrapolatedValue(xVal, yVal);
+               normals[yInd][xInd] = 0;
+            } else {
+               vals[yInd][xInd] = (float) zVal;
+               normals[yInd][xInd] = tri.getNormalAngle();
+            }
+            defined[yInd][xInd] = true;
+         }
       }
-      Point3d point1 = points.get(closestIndices.get(0));
-      Point3d point2 = points.get(closestIndices.get(1));
-      Point3d point3 = points.get(closestIndices.get(2));
+   }
+
+   @Override
+   public float getExtrapolatedValue(double x, double y) {
+      //find 3 closest points and calculate value
+      Point3d[] closest = pointIndex_.findNearest(x, y, 3);
+      Point3d point1 = closest[0];
+      Point3d point2 = closest[1];
+      Point3d point3 = closest[2];
       Vector3D v1 = new Vector3D(point1.x, point1.y, point1.z);
       Vector3D v2 = new Vector3D(point2.x, point2.y, point2.z);
       Vector3D v3 = new Vector3D(point3.x, point3.y, point3.z);
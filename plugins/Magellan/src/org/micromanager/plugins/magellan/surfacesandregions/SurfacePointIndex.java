@@ -0,0 +1,108 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.surfacesandregions;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * 2D k-d tree of the surface points, for finding the points closest in XY to
+ * where the surface is extrapolated. The tree is stored in an array: the median
+ * of each range of the array splits the range on x or y, alternating with
+ * depth.
+ *
+ * Built once for each set of points and immutable after that, so it can be
+ * shared between threads
+ */
+class SurfacePointIndex {
+
+   private final Point3d[] points_;
+
+   SurfacePointIndex(Point3d[] points) {
+      points_ = Arrays.copyOf(points, points.length);
+      build(0, points_.length, 0);
+   }
+
+   int size() {
+      return points_.length;
+   }
+
+   private void build(int start, int end, int depth) {
+      if (end - start <= 1) {
+         return;
+      }
+      final boolean splitX = depth % 2 == 0;
+      //a full sort of the range is simpler than a selection and fast enough for surfaces
+      Arrays.sort(points_, start, end, new Comparator<Point3d>() {
+         @Override
+         public int compare(Point3d p1, Point3d p2) {
+            return splitX ? Double.compare(p1.x, p2.x) : Double.compare(p1.y, p2.y);
+         }
+      });
+      int mid = (start + end) >>> 1;
+      build(start, mid, depth + 1);
+      build(mid + 1, end, depth + 1);
+   }
+
+   /**
+    * @return the (up to) k points closest to (x, y), closest first
+    */
+   Point3d[] findNearest(double x, double y, int k) {
+      k = Math.min(k, points_.length);
+      Point3d[] nearest = new Point3d[k];
+      double[] distances = new double[k];
+      Arrays.fill(distances, Double.MAX_VALUE);
+      search(0, points_.length, 0, x, y, nearest, distances);
+      return nearest;
+   }
+
+   private void search(int start, int end, int depth, double x, double y,
+           Point3d[] nearest, double[] distances) {
+      if (end <= start) {
+         return;
+      }
+      int mid = (start + end) >>> 1;
+      Point3d p = points_[mid];
+      double distance = (p.x - x) * (p.x - x) + (p.y - y) * (p.y - y);
+      int k = nearest.length;
+      if (k > 0 && distance < distances[k - 1]) {
+         //insert in order
+         int i = k - 1;
+         while (i > 0 && distances[i - 1] > distance) {
+            distances[i] = distances[i - 1];
+            nearest[i] = nearest[i - 1];
+            i--;
+         }
+         distances[i] = distance;
+         nearest[i] = p;
+      }
+      double offset = depth % 2 == 0 ? x - p.x : y - p.y;
+      //search the side of the split the point is on first, the other only if it can be closer
+      if (offset < 0) {
+         search(start, mid, depth + 1, x, y, nearest, distances);
+         if (k > 0 && offset * offset < distances[k - 1]) {
+            search(mid + 1, end, depth + 1, x, y, nearest, distances);
+         }
+      } else {
+         search(mid + 1, end, depth + 1, x, y, nearest, distances);
+         if (k > 0 && offset * offset < distances[k - 1]) {
+            search(start, mid, depth + 1, x, y, nearest, distances);
+         }
+      }
+   }
+}
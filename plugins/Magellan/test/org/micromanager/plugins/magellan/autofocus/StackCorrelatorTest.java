@@ -0,0 +1,162 @@
+package org.micromanager.plugins.magellan.autofocus;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the FFT based correlation against a direct circular correlation of
+ * the zero padded stacks, on small stacks of odd sizes
+ */
+public class StackCorrelatorTest {
+
+   @Test
+   public void fftMatchesDirectTransform() {
+      Random random = new Random(5);
+      for (int n = 1; n <= 16; n *= 2) {
+         double[] re = new double[n], im = new double[n];
+         for (int i = 0; i < n; i++) {
+            re[i] = random.nextDouble() - 0.5;
+            im[i] = random.nextDouble() - 0.5;
+         }
+         for (boolean inverse : new boolean[]{false, true}) {
+            double sign = inverse ? 1 : -1;
+            double[] outRe = re.clone(), outIm = im.clone();
+            new ComplexFFT(n).transform(outRe, outIm, inverse);
+            for (int k = 0; k < n; k++) {
+               double sumRe = 0, sumIm = 0;
+               for (int j = 0; j < n; j++) {
+                  double angle = sign * 2 * Math.PI * j * k / n;
+                  sumRe += re[j] * Math.cos(angle) - im[j] * Math.sin(angle);
+                  sumIm += re[j] * Math.sin(angle) + im[j] * Math.cos(angle);
+               }
+               assertEquals(sumRe, outRe[k], 1e-9);
+               assertEquals(sumIm, outIm[k], 1e-9);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void correlationMatchesDirectCorrelation16Bit() throws Exception {
+      checkCorrelation(5, 7, 3, false);
+      checkCorrelation(9, 5, 5, false);
+   }
+
+   @Test
+   public void correlationMatchesDirectCorrelation8Bit() throws Exception {
+      checkCorrelation(7, 3, 1, true);
+      checkCorrelation(3, 9, 7, true);
+   }
+
+   private static void checkCorrelation(int width, int height, int numSlices, boolean eightBit)
+           throws Exception {
+      Random random = new Random(width * 100 + height * 10 + numSlices);
+      final Object[] a = randomStack(random, width, height, numSlices, eightBit);
+      final Object[] b = randomStack(random, width, height, numSlices, eightBit);
+      StackCorrelator correlator = new StackCorrelator(width, height, numSlices);
+      float[][] reference = correlator.createSpectrum();
+      float[][] current = correlator.createSpectrum();
+      correlator.transform(new StackCorrelator.SliceSource() {
+         @Override
+         public Object getPixels(int slice) {
+            return a[slice];
+         }
+      }, reference);
+      correlator.transform(new StackCorrelator.SliceSource() {
+         @Override
+         public Object getPixels(int slice) {
+            return b[slice];
+         }
+      }, current);
+      double[] maxima = correlator.correlate(reference, current);
+
+      double[] expected = directCentralMaxima(a, b, width, height, numSlices, eightBit);
+      assertEquals(correlator.getNumCorrelationSlices(), maxima.length);
+      assertEquals(expected.length, maxima.length);
+      double largest = 0;
+      for (double m : expected) {
+         largest = Math.max(largest, m);
+      }
+      for (int z = 0; z < expected.length; z++) {
+         //the spectra are floats
+         assertEquals(expected[z], maxima[z], 1e-5 * largest);
+      }
+   }
+
+   private static Object[] randomStack(Random random, int width, int height, int numSlices,
+           boolean eightBit) {
+      Object[] stack = new Object[numSlices];
+      for (int z = 0; z < numSlices; z++) {
+         if (eightBit) {
+            byte[] pix = new byte[width * height];
+            random.nextBytes(pix);
+            stack[z] = pix;
+         } else {
+            short[] pix = new short[width * height];
+            for (int i = 0; i < pix.length; i++) {
+               pix[i] = (short) random.nextInt(65536);
+            }
+            stack[z] = pix;
+         }
+      }
+      return stack;
+   }
+
+   /**
+    * Circular correlation c(d) = sum a(p + d) b(p) of the stacks zero padded
+    * to powers of 2, then for each slice of the correlation (with its
+    * quadrants swapped) the maximum of its central square, and 0 if that is
+    * negative
+    */
+   private static double[] directCentralMaxima(Object[] a, Object[] b, int width, int height,
+           int numSlices, boolean eightBit) {
+      int nx = powerOf2AtLeast(width), ny = powerOf2AtLeast(height), nz = powerOf2AtLeast(numSlices);
+      double[][][] pa = pad(a, width, height, nx, ny, nz, eightBit);
+      double[][][] pb = pad(b, width, height, nx, ny, nz, eightBit);
+      double[] maxima = new double[nz];
+      for (int dz = 0; dz < nz; dz++) {
+         double max = 0;
+         for (int sy = ny / 4; sy <= 3 * ny / 4; sy++) {
+            for (int sx = nx / 4; sx <= 3 * nx / 4; sx++) {
+               int dy = (sy + ny / 2) % ny;
+               int dx = (sx + nx / 2) % nx;
+               double sum = 0;
+               for (int z = 0; z < nz; z++) {
+                  for (int y = 0; y < ny; y++) {
+                     for (int x = 0; x < nx; x++) {
+                        sum += pa[(z + dz) % nz][(y + dy) % ny][(x + dx) % nx] * pb[z][y][x];
+                     }
+                  }
+               }
+               max = Math.max(max, sum);
+            }
+         }
+         maxima[(dz + nz / 2) % nz] = max;
+      }
+      return maxima;
+   }
+
+   private static double[][][] pad(Object[] stack, int width, int height, int nx, int ny, int nz,
+           boolean eightBit) {
+      double[][][] padded = new double[nz][ny][nx];
+      for (int z = 0; z < stack.length; z++) {
+         for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+               int i = y * width + x;
+               padded[z][y][x] = eightBit ? ((byte[]) stack[z])[i] & 0xff
+                       : ((short[]) stack[z])[i] & 0xffff;
+            }
+         }
+      }
+      return padded;
+   }
+
+   private static int powerOf2AtLeast(int n) {
+      int p = 1;
+      while (p < n) {
+         p *= 2;
+      }
+      return p;
+   }
+}
@@ -0,0 +1,175 @@
+package org.micromanager.plugins.magellan.surfacesandregions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Random;
+import org.junit.Test;
+import org.micromanager.plugins.magellan.surfacesandregions.IncrementalDelaunay.Triangle;
+import org.micromanager.plugins.magellan.surfacesandregions.IncrementalDelaunay.Vertex;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the triangulation after random inserts and removes: every triangle
+ * has an empty circumcircle, neighbors point back at each other, and the
+ * triangles between surface points exactly cover their convex hull
+ */
+public class IncrementalDelaunayTest {
+   private static final double EXTENT = 1000;
+
+   @Test
+   public void staysDelaunayUnderInsertsAndRemoves() {
+      Random random = new Random(3);
+      IncrementalDelaunay delaunay = new IncrementalDelaunay();
+      ArrayList<Vertex> points = new ArrayList<Vertex>();
+      for (int round = 0; round < 40; round++) {
+         for (int i = 0; i < 25; i++) {
+            boolean remove = !points.isEmpty() && random.nextInt(3) == 0;
+            if (remove) {
+               delaunay.remove(points.remove(random.nextInt(points.size())));
+            } else {
+               // now and then far outside, so that the super triangle is rebuilt
+               double scale = random.nextInt(50) == 0 ? 20 * EXTENT : EXTENT;
+               Vertex vertex = delaunay.insert(scale * random.nextDouble(),
+                       scale * random.nextDouble(), random.nextDouble());
+               if (vertex != null) {
+                  points.add(vertex);
+               }
+            }
+         }
+         assertEquals(points.size(), delaunay.size());
+         checkTriangulation(delaunay, points);
+      }
+   }
+
+   @Test
+   public void duplicatePointsAreIgnored() {
+      IncrementalDelaunay delaunay = new IncrementalDelaunay();
+      assertNotNull(delaunay.insert(1, 2, 0));
+      assertNotNull(delaunay.insert(5, 2, 0));
+      assertNull(delaunay.insert(1, 2, 7));
+      assertNotNull(delaunay.insert(3, 4, 0));
+      assertNull(delaunay.insert(3, 4, 1));
+      assertEquals(3, delaunay.size());
+   }
+
+   private static void checkTriangulation(IncrementalDelaunay delaunay, ArrayList<Vertex> points) {
+      ArrayList<Triangle> triangles = reachableTriangles(delaunay);
+      HashSet<Vertex> vertices = new HashSet<Vertex>();
+      double area = 0;
+      for (Triangle t : triangles) {
+         assertTrue(t.alive);
+         assertTrue(orient(t.v[0], t.v[1], t.v[2]) > 0);
+         for (int i = 0; i < 3; i++) {
+            vertices.add(t.v[i]);
+            Triangle neighbor = t.n[i];
+            if (neighbor == null) {
+               continue;
+            }
+            // the neighbor shares the edge in the other direction, and points back
+            Vertex from = t.v[(i + 1) % 3];
+            Vertex to = t.v[(i + 2) % 3];
+            int j = edgeIndex(neighbor, to, from);
+            assertTrue(j >= 0);
+            assertSame(t, neighbor.n[j]);
+         }
+         if (!t.hasSuperVertex()) {
+            area += orient(t.v[0], t.v[1], t.v[2]) / 2;
+            for (Vertex p : points) {
+               assertFalse(inCircumcircle(t, p));
+            }
+         }
+      }
+      // the three super vertices, and every point once
+      assertEquals(points.size() + 3, vertices.size());
+      assertTrue(vertices.containsAll(points));
+      // a triangulation of n points in a triangle has 2n + 1 triangles
+      assertEquals(2 * points.size() + 1, triangles.size());
+      // removing a point starts from its triangle
+      for (Vertex p : points) {
+         assertTrue(p.triangle.alive);
+         assertTrue(Arrays.asList(p.triangle.v).contains(p));
+      }
+      double hullArea = hullArea(points);
+      assertEquals(hullArea, area, 1e-9 * Math.max(1, hullArea));
+   }
+
+   private static ArrayList<Triangle> reachableTriangles(IncrementalDelaunay delaunay) {
+      ArrayList<Triangle> triangles = new ArrayList<Triangle>();
+      HashSet<Triangle> seen = new HashSet<Triangle>();
+      triangles.add(delaunay.anyTriangle());
+      seen.add(delaunay.anyTriangle());
+      for (int k = 0; k < triangles.size(); k++) {
+         for (Triangle neighbor : triangles.get(k).n) {
+            if (neighbor != null && seen.add(neighbor)) {
+               triangles.add(neighbor);
+            }
+         }
+      }
+      return triangles;
+   }
+
+   private static int edgeIndex(Triangle t, Vertex from, Vertex to) {
+      for (int i = 0; i < 3; i++) {
+         if (t.v[(i + 1) % 3] == from && t.v[(i + 2) % 3] == to) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   private static double orient(Vertex a, Vertex b, Vertex c) {
+      return (b.x - a.x) * (c.y - a.y) - (b.y - a.y) * (c.x - a.x);
+   }
+
+   /**
+    * Strictly inside, with a tolerance relative to the circle so that
+    * points on it (e.g. four corners of a rectangle) don't count
+    */
+   private static boolean inCircumcircle(Triangle t, Vertex p) {
+      Vertex a = t.v[0], b = t.v[1], c = t.v[2];
+      double d = 2 * orient(a, b, c);
+      double a2 = a.x * a.x + a.y * a.y, b2 = b.x * b.x + b.y * b.y, c2 = c.x * c.x + c.y * c.y;
+      double cx = (a2 * (b.y - c.y) + b2 * (c.y - a.y) + c2 * (a.y - b.y)) / d;
+      double cy = (a2 * (c.x - b.x) + b2 * (a.x - c.x) + c2 * (b.x - a.x)) / d;
+      double r2 = (a.x - cx) * (a.x - cx) + (a.y - cy) * (a.y - cy);
+      double p2 = (p.x - cx) * (p.x - cx) + (p.y - cy) * (p.y - cy);
+      return p2 < r2 * (1 - 1e-9);
+   }
+
+   /**
+    * Area of the convex hull, with Andrew's monotone chain
+    */
+   private static double hullArea(ArrayList<Vertex> points) {
+      if (points.size() < 3) {
+         return 0;
+      }
+      Vertex[] sorted = points.toArray(new Vertex[points.size()]);
+      Arrays.sort(sorted, new Comparator<Vertex>() {
+         @Override
+         public int compare(Vertex a, Vertex b) {
+            return a.x != b.x ? Double.compare(a.x, b.x) : Double.compare(a.y, b.y);
+         }
+      });
+      Vertex[] hull = new Vertex[2 * sorted.length];
+      int k = 0;
+      for (int i = 0; i < sorted.length; i++) {
+         while (k >= 2 && orient(hull[k - 2], hull[k - 1], sorted[i]) <= 0) {
+            k--;
+         }
+         hull[k++] = sorted[i];
+      }
+      for (int i = sorted.length - 2, lower = k + 1; i >= 0; i--) {
+         while (k >= lower && orient(hull[k - 2], hull[k - 1], sorted[i]) <= 0) {
+            k--;
+         }
+         hull[k++] = sorted[i];
+      }
+      double area = 0;
+      for (int i = 0; i < k - 1; i++) {
+         area += hull[i].x * hull[i + 1].y - hull[i + 1].x * hull[i].y;
+      }
+      return area / 2;
+   }
+}
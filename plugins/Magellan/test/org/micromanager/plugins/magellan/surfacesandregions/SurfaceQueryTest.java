@@ -0,0 +1,146 @@
+package org.micromanager.plugins.magellan.surfacesandregions;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.math3.geometry.euclidean.twod.Euclidean2D;
+import org.apache.commons.math3.geometry.euclidean.twod.PolygonsSet;
+import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
+import org.apache.commons.math3.geometry.euclidean.twod.hull.ConvexHull2D;
+import org.apache.commons.math3.geometry.euclidean.twod.hull.MonotoneChain;
+import org.apache.commons.math3.geometry.partitioning.Region;
+import org.apache.commons.math3.geometry.partitioning.RegionFactory;
+import org.junit.Test;
+import org.micromanager.plugins.magellan.coordinates.XYStagePosition;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the convex hull and the point index against the commons-math regions
+ * and the scan of all points that SurfaceInterpolator used before
+ */
+public class SurfaceQueryTest {
+   private static final int GRID_SIZE = 30;
+   private static final double TILE_SIZE_UM = 200;
+   private static final double PIXEL_SIZE_UM = 0.5;
+   private static final double EXTENT = GRID_SIZE * TILE_SIZE_UM;
+
+   /**
+    * Surface points in a disk in the middle of the tiles, so that some tiles
+    * are outside the hull
+    */
+   private static Point3d[] randomPoints(int numPoints) {
+      Random random = new Random(1);
+      Point3d[] points = new Point3d[numPoints];
+      for (int i = 0; i < numPoints; i++) {
+         double r = 0.4 * EXTENT * Math.sqrt(random.nextDouble());
+         double theta = 2 * Math.PI * random.nextDouble();
+         points[i] = new Point3d(EXTENT / 2 + r * Math.cos(theta),
+                 EXTENT / 2 + r * Math.sin(theta), random.nextDouble());
+      }
+      return points;
+   }
+
+   private static ConvexHull2D hull(Point3d[] points) {
+      ArrayList<Vector2D> xyPoints = new ArrayList<Vector2D>();
+      for (Point3d p : points) {
+         xyPoints.add(new Vector2D(p.x, p.y));
+      }
+      return new MonotoneChain(true).generate(xyPoints);
+   }
+
+   private static ArrayList<XYStagePosition> tiles(double rotation) {
+      ArrayList<XYStagePosition> positions = new ArrayList<XYStagePosition>();
+      int tilePixels = (int) (TILE_SIZE_UM / PIXEL_SIZE_UM);
+      for (int row = 0; row < GRID_SIZE; row++) {
+         for (int col = 0; col < GRID_SIZE; col++) {
+            Point2D.Double center = new Point2D.Double((col + 0.5) * TILE_SIZE_UM, (row + 0.5) * TILE_SIZE_UM);
+            AffineTransform transform = AffineTransform.getTranslateInstance(center.x, center.y);
+            transform.rotate(rotation);
+            transform.scale(PIXEL_SIZE_UM, PIXEL_SIZE_UM);
+            positions.add(new XYStagePosition(center, tilePixels, tilePixels, tilePixels, tilePixels,
+                    row, col, transform));
+         }
+      }
+      return positions;
+   }
+
+   /**
+    * The tile as a region, the way SurfaceInterpolator used to make it
+    */
+   private static Region<Euclidean2D> tileRegion(XYStagePosition pos, RegionFactory<Euclidean2D> factory) {
+      Point2D.Double[] corners = pos.getDisplayedTileCorners();
+      Region<Euclidean2D> square = new PolygonsSet(0.0001, new Vector2D[]{
+         new Vector2D(corners[0].x, corners[0].y),
+         new Vector2D(corners[1].x, corners[1].y),
+         new Vector2D(corners[2].x, corners[2].y),
+         new Vector2D(corners[3].x, corners[3].y)});
+      return square.checkPoint(new Vector2D(pos.getCenter().x, pos.getCenter().y)) == Region.Location.OUTSIDE
+              ? factory.getComplement(square) : square;
+   }
+
+   @Test
+   public void tilesInHullMatchRegions() {
+      ConvexHull2D hull = hull(randomPoints(300));
+      Region<Euclidean2D> region = hull.createRegion();
+      ConvexPolygon polygon = new ConvexPolygon(hull.getVertices());
+      RegionFactory<Euclidean2D> factory = new RegionFactory<Euclidean2D>();
+      for (double rotation : new double[]{0, Math.toRadians(10)}) {
+         int numInHull = 0;
+         for (XYStagePosition pos : tiles(rotation)) {
+            boolean inHull = !factory.intersection(tileRegion(pos, factory), region).isEmpty();
+            assertEquals(pos.getName(), inHull, polygon.intersects(pos.getDisplayedTileCorners()));
+            numInHull += inHull ? 1 : 0;
+         }
+         assertTrue(numInHull > 0 && numInHull < GRID_SIZE * GRID_SIZE);
+      }
+   }
+
+   @Test
+   public void pointsInHullMatchRegion() {
+      ConvexHull2D hull = hull(randomPoints(300));
+      Region<Euclidean2D> region = hull.createRegion();
+      ConvexPolygon polygon = new ConvexPolygon(hull.getVertices());
+      for (XYStagePosition pos : tiles(0)) {
+         Point2D.Double[] corners = pos.getDisplayedTileCorners();
+         double xSpan = corners[2].x - corners[0].x;
+         double ySpan = corners[2].y - corners[0].y;
+         for (int i = 0; i <= SurfaceInterpolator.NUM_XY_TEST_POINTS; i++) {
+            for (int j = 0; j <= SurfaceInterpolator.NUM_XY_TEST_POINTS; j++) {
+               double x = corners[0].x + xSpan * i / SurfaceInterpolator.NUM_XY_TEST_POINTS;
+               double y = corners[0].y + ySpan * j / SurfaceInterpolator.NUM_XY_TEST_POINTS;
+               assertEquals(x + ", " + y, region.checkPoint(new Vector2D(x, y)) != Region.Location.OUTSIDE,
+                       polygon.contains(x, y));
+            }
+         }
+      }
+      //the vertices themselves are on the hull
+      for (Vector2D v : hull.getVertices()) {
+         assertTrue(polygon.contains(v.getX(), v.getY()));
+      }
+   }
+
+   @Test
+   public void nearestPointsMatchScan() {
+      Point3d[] points = randomPoints(500);
+      SurfacePointIndex index = new SurfacePointIndex(points);
+      assertEquals(points.length, index.size());
+      Random random = new Random(2);
+      double[] distances = new double[points.length];
+      for (int query = 0; query < 1000; query++) {
+         double x = EXTENT * (1.2 * random.nextDouble() - 0.1);
+         double y = EXTENT * (1.2 * random.nextDouble() - 0.1);
+         for (int i = 0; i < points.length; i++) {
+            distances[i] = Math.hypot(points[i].x - x, points[i].y - y);
+         }
+         Arrays.sort(distances);
+         Point3d[] nearest = index.findNearest(x, y, 3);
+         assertEquals(3, nearest.length);
+         for (int i = 0; i < nearest.length; i++) {
+            assertEquals(distances[i], Math.hypot(nearest[i].x - x, nearest[i].y - y), 1e-9);
+         }
+      }
+      assertEquals(points.length, index.findNearest(0, 0, 2 * points.length).length);
+   }
+}
@@ -44,16 +44,20 @@ import org.micromanager.utils.ReportingUtils;
 public class ImageCollection {
    private final HashMap<String, ImagePlusInfo> background_;
    private final HashMap<String, HashMap<String, ImagePlusInfo>> flatFields_;
+   // Correction kernels by binning, ROI and preset, derived from the above
+   private final HashMap<String, ShadingKernel> kernels_;
    
    private final String BASEIMAGE = "base";
    
    public ImageCollection() {
       background_ = new HashMap<String, ImagePlusInfo>();
       flatFields_ = new HashMap<String, HashMap<String, ImagePlusInfo>>();
+      kernels_ = new HashMap<String, ShadingKernel>();
    }
    
-   public void setBackground(String file) throws MMException {
+   public synchronized void setBackground(String file) throws MMException {
       background_.clear();
+      kernels_.clear();
       if (!file.equals("")) {
          ij.io.Opener opener = new ij.io.Opener();
          ImagePlus ip = opener.openImage(file);
@@ -66,11 +70,11 @@ public class ImageCollection {
       }
    }
    
-   public ImagePlusInfo getBackground() {
+   public synchronized ImagePlusInfo getBackground() {
       return background_.get(BASEIMAGE);
    }
    
-   public ImagePlusInfo getBackground(int binning, Rectangle roi) 
+   public synchronized ImagePlusInfo getBackground(int binning, Rectangle roi) 
            throws MMException {
       String key = makeKey(binning, roi);
       if (background_.containsKey(key)) {
@@ -100,7 +104,8 @@ public class ImageCollection {
     * @param file
     * @throws MMException 
     */
-   public void addFlatField(String preset, String file) throws MMException {
+   public synchronized void addFlatField(String preset, String file) 
+           throws MMException {
       ij.io.Opener opener = new ij.io.Opener();
       ImagePlus ip = opener.openImage(file);
       if (ip == null) {
@@ -163,26 +168,29 @@ public class ImageCollection {
          newFlatField.put(BASEIMAGE, flatField);
          newFlatField.put(makeKey(1, fp.getRoi()), flatField);
          flatFields_.put(preset, newFlatField);
+         kernels_.clear();
       } catch (MMException ex) {
          ReportingUtils.logError("Shading plugin, addFlatField in ImageCollection: " + 
                  ex.getMessage());
       }
    }
 
-   public ImagePlusInfo getFlatField(String preset) {
+   public synchronized ImagePlusInfo getFlatField(String preset) {
       return flatFields_.get(preset).get(BASEIMAGE);
    }
 
-   public void clearFlatFields() {
+   public synchronized void clearFlatFields() {
       flatFields_.clear();
+      kernels_.clear();
    }
 
-   public void removeFlatField(String preset) {
+   public synchronized void removeFlatField(String preset) {
       flatFields_.remove(preset);
+      kernels_.clear();
    }
 
-   public ImagePlusInfo getFlatField(String preset, int binning, Rectangle roi)
-           throws MMException {
+   public synchronized ImagePlusInfo getFlatField(String preset, int binning, 
+           Rectangle roi) throws MMException {
       String key = makeKey(binning, roi);
       if (flatFields_.get(preset).containsKey(key)) {
          return flatFields_.get(preset).get(key);
@@ -199,6 +207,39 @@ public class ImageCollection {
       return derivedIp;
    }
 
+   /**
+    * Returns the kernel that corrects images of the given binning and ROI
+    * for the background and the flatfield of the given preset.  Kernels are
+    * made on first use and kept until the background or flatfields change.
+    * @param width width of the images
+    * @param height height of the images
+    * @param binning
+    * @param roi
+    * @param preset preset whose flatfield is used, or null for background
+    * subtraction only
+    * @return the kernel
+    * @throws MMException when the background or flatfield does not match
+    * the image size
+    */
+   public synchronized ShadingKernel getKernel(int width, int height, 
+           int binning, Rectangle roi, String preset) throws MMException {
+      String key = makeKey(binning, roi) + "-" + width + "x" + height + "-" 
+              + preset;
+      ShadingKernel kernel = kernels_.get(key);
+      if (kernel == null) {
+         ImagePlusInfo background = getBackground(binning, roi);
+         ImagePlusInfo flatField = null;
+         if (preset != null && flatFields_.containsKey(preset)) {
+            flatField = getFlatField(preset, binning, roi);
+         }
+         kernel = new ShadingKernel(width, height, 
+                 background == null ? null : background.getProcessor(),
+                 flatField == null ? null : flatField.getProcessor());
+         kernels_.put(key, kernel);
+      }
+      return kernel;
+   }
+
    private String makeKey(int binning, Rectangle roi) {
       if (binning == 1 && (roi == null || roi.width == 0)) {
          return BASEIMAGE;
@@ -0,0 +1,284 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ShadingKernel.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     MultiChannelShading plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.multichannelshading;
+
+import ij.process.ImageProcessor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.micromanager.utils.MMException;
+
+/**
+ * Background subtraction and flatfield correction for one combination of
+ * binning, ROI and channel, with the background and the flatfield already
+ * cut out and unpacked into plain arrays.
+ *
+ * Both corrections are done in a single pass over the pixels, which are
+ * overwritten with the result, and large images are split in bands of rows
+ * that are corrected in parallel.  Results are identical to subtracting the
+ * background with ImageUtils.subtractImageProcessors() and then multiplying
+ * with the flatfield.
+ *
+ * Instances are immutable and can be used from several threads at once.
+ */
+public class ShadingKernel {
+   // Below this, handing rows to other threads costs more than it gains
+   private static final int MIN_PIXELS_PER_BAND = 256 * 1024;
+
+   private static final int NUM_THREADS =
+           Runtime.getRuntime().availableProcessors();
+
+   private static final ExecutorService pool_ =
+           Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Shading correction");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   private final int width_;
+   private final int height_;
+   private final char[] background_;   // null when there is no background
+   private final float[] flatField_;  // null when there is no flatfield
+   private final int numThreads_;
+
+   /**
+    * @param width width of the images to be corrected
+    * @param height height of the images to be corrected
+    * @param background background image of the given size, or null
+    * @param flatField normalized (float) flatfield image of the given size,
+    * or null
+    * @param numThreads maximum number of threads used for one image,
+    * including the calling thread
+    * @throws MMException when the background or flatfield does not fit
+    */
+   public ShadingKernel(int width, int height, ImageProcessor background,
+           ImageProcessor flatField, int numThreads) throws MMException {
+      width_ = width;
+      height_ = height;
+      numThreads_ = Math.max(1, numThreads);
+      if (background != null) {
+         checkSize(background, "background");
+         background_ = unpackBackground(background.getPixels());
+      } else {
+         background_ = null;
+      }
+      if (flatField != null) {
+         checkSize(flatField, "flatfield");
+         if (!(flatField.getPixels() instanceof float[])) {
+            throw new MMException("Flatfield image is not normalized");
+         }
+         flatField_ = (float[]) flatField.getPixels();
+      } else {
+         flatField_ = null;
+      }
+   }
+
+   public ShadingKernel(int width, int height, ImageProcessor background,
+           ImageProcessor flatField) throws MMException {
+      this(width, height, background, flatField, NUM_THREADS);
+   }
+
+   private void checkSize(ImageProcessor proc, String name)
+           throws MMException {
+      if (proc.getWidth() != width_ || proc.getHeight() != height_) {
+         throw new MMException("Size of " + name + " image (" +
+                 proc.getWidth() + "x" + proc.getHeight() +
+                 ") does not match the image (" + width_ + "x" + height_ + ")");
+      }
+   }
+
+   /**
+    * Unsigned background values, converted the same way as
+    * ImageUtils.subtractPixelArrays() does
+    */
+   private static char[] unpackBackground(Object pixels) throws MMException {
+      char[] result;
+      if (pixels instanceof byte[]) {
+         byte[] pix = (byte[]) pixels;
+         result = new char[pix.length];
+         for (int i = 0; i < pix.length; i++) {
+            result[i] = (char) (pix[i] & 0xff);
+         }
+      } else if (pixels instanceof short[]) {
+         short[] pix = (short[]) pixels;
+         result = new char[pix.length];
+         for (int i = 0; i < pix.length; i++) {
+            result[i] = (char) pix[i];
+         }
+      } else if (pixels instanceof float[]) {
+         float[] pix = (float[]) pixels;
+         result = new char[pix.length];
+         for (int i = 0; i < pix.length; i++) {
+            result[i] = (char) (short) pix[i];
+         }
+      } else {
+         throw new MMException("Unsupported background image type");
+      }
+      return result;
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   public boolean hasBackground() {
+      return background_ != null;
+   }
+
+   public boolean hasFlatField() {
+      return flatField_ != null;
+   }
+
+   /**
+    * Corrects the pixels in place.
+    * @param pixels byte[] or short[] pixels of an image of this kernel's size
+    * @throws MMException when the pixels are of the wrong type or size
+    */
+   public void apply(final Object pixels) throws MMException {
+      if (!(pixels instanceof byte[] || pixels instanceof short[])) {
+         throw new MMException(
+                 "Cannot flatfield correct images other than 8 or 16 bit grayscale");
+      }
+      int length = pixels instanceof byte[] ?
+              ((byte[]) pixels).length : ((short[]) pixels).length;
+      if (length != width_ * height_) {
+         throw new MMException("Image size does not match the background " +
+                 "and flatfield images");
+      }
+      if (background_ == null && flatField_ == null) {
+         return;
+      }
+
+      int numBands = (int) Math.min(numThreads_,
+              Math.max(1, (long) length / MIN_PIXELS_PER_BAND));
+      numBands = Math.min(numBands, height_);
+      if (numBands == 1) {
+         applyToRows(pixels, 0, height_);
+         return;
+      }
+      Future<?>[] futures = new Future<?>[numBands];
+      for (int band = 1; band < numBands; band++) {
+         final int start = (int) ((long) height_ * band / numBands);
+         final int end = (int) ((long) height_ * (band + 1) / numBands);
+         futures[band] = pool_.submit(new Runnable() {
+            @Override
+            public void run() {
+               applyToRows(pixels, start, end);
+            }
+         });
+      }
+      applyToRows(pixels, 0, height_ / numBands);
+
+      // Wait for all bands, even when interrupted, so that the image is
+      // complete when we return
+      boolean interrupted = false;
+      MMException error = null;
+      for (int band = 1; band < numBands; band++) {
+         while (true) {
+            try {
+               futures[band].get();
+               break;
+            } catch (InterruptedException ex) {
+               interrupted = true;
+            } catch (ExecutionException ex) {
+               if (error == null) {
+                  error = new MMException("Shading correction failed: " +
+                          ex.getCause());
+               }
+               break;
+            }
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+      if (error != null) {
+         throw error;
+      }
+   }
+
+   private void applyToRows(Object pixels, int startRow, int endRow) {
+      int start = startRow * width_;
+      int end = endRow * width_;
+      if (pixels instanceof byte[]) {
+         applyBytes((byte[]) pixels, start, end);
+      } else {
+         applyShorts((short[]) pixels, start, end);
+      }
+   }
+
+   // The loops below are kept free of calls and of branches other than the
+   // clamps, so that the JIT can unroll them.  The casts and clamps are
+   // those of the original, separate, subtraction and multiplication.
+
+   private void applyBytes(byte[] pix, int start, int end) {
+      final char[] bg = background_;
+      final float[] ff = flatField_;
+      final float max = 2 * Byte.MAX_VALUE;
+      if (ff == null) {
+         for (int i = start; i < end; i++) {
+            pix[i] = (byte) Math.max(0, (pix[i] & 0xff) - bg[i]);
+         }
+      } else if (bg == null) {
+         for (int i = start; i < end; i++) {
+            float value = (pix[i] & 0xff) * ff[i];
+            pix[i] = (byte) (value > max ? max : value);
+         }
+      } else {
+         for (int i = start; i < end; i++) {
+            int diff = (pix[i] & 0xff) - bg[i];
+            float value = (diff > 0 ? diff : 0) * ff[i];
+            pix[i] = (byte) (value > max ? max : value);
+         }
+      }
+   }
+
+   private void applyShorts(short[] pix, int start, int end) {
+      final char[] bg = background_;
+      final float[] ff = flatField_;
+      final float max = 2 * Short.MAX_VALUE;
+      if (ff == null) {
+         for (int i = start; i < end; i++) {
+            pix[i] = (short) Math.max(0, (pix[i] & 0xffff) - bg[i]);
+         }
+      } else if (bg == null) {
+         for (int i = start; i < end; i++) {
+            float value = (pix[i] & 0xffff) * ff[i] + 0.5f;
+            pix[i] = (short) (value > max ? max : value);
+         }
+      } else {
+         for (int i = start; i < end; i++) {
+            int diff = (pix[i] & 0xffff) - bg[i];
+            float value = (diff > 0 ? diff : 0) * ff[i] + 0.5f;
+            pix[i] = (short) (value > max ? max : value);
+         }
+      }
+   }
+}
@@ -22,10 +22,7 @@
 
 package org.micromanager.multichannelshading;
 
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
 import java.awt.Rectangle;
-import java.util.Iterator;
 import mmcorej.Configuration;
 import mmcorej.PropertySetting;
 import mmcorej.TaggedImage;
@@ -33,8 +30,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.acquisition.TaggedImageQueue;
 import org.micromanager.api.DataProcessor;
-import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
@@ -46,6 +43,8 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
    private ShadingTableModel shadingTableModel_;
    private MultiChannelShadingMigForm myFrame_;
    private ImageCollection imageCollection_;
+   private String lastRoiTag_;
+   private Rectangle lastRoi_;
     
    
    @Override
@@ -84,10 +83,11 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
    }
 
    /**
-    * Executes flat-fielding
+    * Executes flat-fielding.  The pixels of the image are corrected in place:
+    * once polled, the image belongs to this processor.
 
     * @param nextImage - image to be processed
-    * @return - Transformed tagged image, otherwise a copy of the input
+    * @return - Transformed tagged image, otherwise the input
     * @throws JSONException
     * @throws MMScriptException 
     */
@@ -96,101 +96,63 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
       myFrame_.setStatus("Processing image...");
       int width = MDUtils.getWidth(nextImage.tags);
       int height = MDUtils.getHeight(nextImage.tags);
-      TaggedImage newImage;
       String type = MDUtils.getPixelType(nextImage.tags);
       
-      int ijType = ImagePlus.GRAY8;
-      if (type.equals("GRAY16")) {
-         ijType = ImagePlus.GRAY16;
-      }
-      
       // For now, this plugin only works with 8 or 16 bit grayscale images
-      if (! (ijType == ImagePlus.GRAY8 || ijType == ImagePlus.GRAY16) ) {
+      if (! (type.equals("GRAY8") || type.equals("GRAY16")) ) {
          String msg = "Cannot flatfield correct images other than 8 or 16 bit grayscale";
          myFrame_.setStatus(msg);
          ReportingUtils.logError(msg);
          return nextImage;
       }
       JSONObject newTags = nextImage.tags;
-      TaggedImage bgSubtracted = nextImage;
-      
-      // subtract background
-      int binning;
-      try {
-        binning = newTags.getInt("Binning");
-      } catch (JSONException ex) {
-          // some cameras store binning as 1x1, etc..
-          String binString = newTags.getString("Binning");
-          binning = Integer.parseInt(binString.substring(0, 1));
-      }
-      Rectangle rect = ImageCollection.TagToRectangle(newTags.getString("ROI"));
-      ImagePlusInfo background = imageCollection_.getBackground(binning, 
-              rect);
-      if (background != null) {
-         ImageProcessor imp = ImageUtils.makeProcessor(nextImage);
-         ImageProcessor impBackground = background.getProcessor();
-         imp = ImageUtils.subtractImageProcessors(imp, impBackground);
-         bgSubtracted = new TaggedImage(imp.getPixels(), newTags);
-      }
+      int binning = parseBinning(newTags);
+      Rectangle rect = parseRoi(newTags.getString("ROI"));
       
-      ImagePlusInfo flatFieldImage = getMatchingFlatFieldImage(newTags, binning, rect);       
+      String preset = getMatchingPreset(newTags);
+      ShadingKernel kernel = imageCollection_.getKernel(width, height, 
+              binning, rect, preset);
+      kernel.apply(nextImage.pix);
 
       //do not calculate flat field if we don't have a matching channel
-      if (flatFieldImage == null) {
+      if (!kernel.hasFlatField()) {
          String msg = "No matching flatfield image found";
          myFrame_.setStatus(msg);
-         return bgSubtracted;
+         return nextImage;
       }  
-      
-      if (ijType == ImagePlus.GRAY8) {
-         byte[] newPixels = new byte[width * height];
-         byte[] oldPixels = (byte[]) bgSubtracted.pix;
-         int length = oldPixels.length;
-         float[] flatFieldPixels = (float[]) flatFieldImage.getProcessor().getPixels();
-         for (int index = 0; index < length; index++){
-            float oldPixel = (float)((int)(oldPixels[index]) & 0x000000ff);
-            float newValue = oldPixel * flatFieldPixels[index];
-            if (newValue > 2 * Byte.MAX_VALUE) {
-               newValue = 2 * Byte.MAX_VALUE;
-            }
-            newPixels[index] = (byte) (newValue);
-         }
-         newImage = new TaggedImage(newPixels, newTags);
-         myFrame_.setStatus("Done");
-         return newImage;
-       
-      } else if (ijType == ImagePlus.GRAY16) {
-         short[] newPixels = new short[width * height];
-         short[] oldPixels = (short[]) bgSubtracted.pix;
-         int length = oldPixels.length;
-         for (int index = 0; index < length; index++){
-            // shorts are signed in java so have to do this conversion to get 
-            // the right value
-            float oldPixel = (float)((int)(oldPixels[index]) & 0x0000ffff);
-            float newValue = (oldPixel * 
-                    flatFieldImage.getProcessor().getf(index)) + 0.5f;
-            if (newValue > 2 * Short.MAX_VALUE) {
-               newValue = 2 * Short.MAX_VALUE;
-            }
-            newPixels[index] = (short) newValue;
-         }
-         newImage = new TaggedImage(newPixels, newTags);
-         myFrame_.setStatus("Done");
-         return newImage;         
-         
-      } 
-      
+      myFrame_.setStatus("Done");
       return nextImage;
-     
    }
+   
+   private int parseBinning(JSONObject tags) throws JSONException {
+      try {
+        return tags.getInt("Binning");
+      } catch (JSONException ex) {
+          // some cameras store binning as 1x1, etc..
+          String binString = tags.getString("Binning");
+          return Integer.parseInt(binString.substring(0, 1));
+      }
+   }
+   
+   /**
+    * The ROI rarely changes during an acquisition, so the last one parsed
+    * is kept
+    */
+   private Rectangle parseRoi(String roiTag) throws MMException {
+      if (!roiTag.equals(lastRoiTag_)) {
+         lastRoi_ = ImageCollection.TagToRectangle(roiTag);
+         lastRoiTag_ = roiTag;
+      }
+      return lastRoi_;
+   }
+   
    /**
     * Given the tags of the image currently being processed,
     * find a matching preset from the channelgroup used by the tablemodel
     * @param imgTags - image tags in JSON format
-    * @return matching flat field image
+    * @return matching preset, or null if none matches
     */
-   ImagePlusInfo getMatchingFlatFieldImage(JSONObject imgTags, int binning, 
-           Rectangle rect) {
+   String getMatchingPreset(JSONObject imgTags) {
       String channelGroup = shadingTableModel_.getChannelGroup();
       String[] presets = shadingTableModel_.getUsedPresets();
       for (String preset : presets) {
@@ -199,24 +161,16 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
                     channelGroup, preset);
             boolean presetMatch = true;
             for (int i = 0; i < config.size() && presetMatch; i++) {
-               boolean settingMatch = false;
                PropertySetting ps = config.getSetting(i);
                String key = ps.getKey();
                String value = ps.getPropertyValue();
-               Iterator<String> tagIterator = imgTags.keys();
-               while (tagIterator.hasNext() && !settingMatch) {
-                  String tagKey = tagIterator.next();
-                  String tagValue = imgTags.optString(tagKey);
-                  if (key.equals(tagKey) && value.equals(tagValue)) {
-                     settingMatch = true;
-                  }
-               }
                // if we do not have a settingMatch, this config can not match
                // so stop testing this config
-               presetMatch = settingMatch;
+               presetMatch = imgTags.has(key) && 
+                       value.equals(imgTags.optString(key));
             }
             if (presetMatch) {
-               return imageCollection_.getFlatField(preset, binning, rect);
+               return preset;
             }
          } catch (Exception ex) {
             ReportingUtils.logError(ex, "Exception in tag matching");
@@ -226,7 +180,6 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
       return null;
    }
    
-   
    @Override
    public void makeConfigurationGUI() {
       if (myFrame_ == null) {
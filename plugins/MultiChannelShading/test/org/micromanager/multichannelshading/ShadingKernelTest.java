@@ -0,0 +1,69 @@
+package org.micromanager.multichannelshading;
+
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Test;
+import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.MMException;
+import static org.junit.Assert.*;
+
+public class ShadingKernelTest {
+   // Large enough to be split in bands of rows
+   private static final int WIDTH = 1024;
+   private static final int HEIGHT = 768;
+
+   private final short[] image_ = new short[WIDTH * HEIGHT];
+   private final short[] background_ = new short[WIDTH * HEIGHT];
+   private final float[] flatField_ = new float[WIDTH * HEIGHT];
+
+   public ShadingKernelTest() {
+      Random random = new Random(1);
+      for (int i = 0; i < image_.length; i++) {
+         background_[i] = (short) (100 + random.nextInt(10));
+         image_[i] = (short) (background_[i] + random.nextInt(60000) - 50);
+         flatField_[i] = 0.8f + 0.4f * random.nextFloat();
+      }
+   }
+
+   /**
+    * What ShadingProcessor.processTaggedImage() used to do for 16 bit images
+    */
+   private short[] subtractThenMultiply() {
+      short[] oldPixels = ImageUtils.subtractPixelArrays(image_, background_);
+      short[] newPixels = new short[oldPixels.length];
+      for (int index = 0; index < oldPixels.length; index++) {
+         float oldPixel = (float) ((int) (oldPixels[index]) & 0x0000ffff);
+         float newValue = (oldPixel * flatField_[index]) + 0.5f;
+         if (newValue > 2 * Short.MAX_VALUE) {
+            newValue = 2 * Short.MAX_VALUE;
+         }
+         newPixels[index] = (short) newValue;
+      }
+      return newPixels;
+   }
+
+   private short[] apply(ShadingKernel kernel) throws MMException {
+      short[] pixels = image_.clone();
+      kernel.apply(pixels);
+      return pixels;
+   }
+
+   @Test
+   public void matchesSubtractThenMultiply() throws MMException {
+      ShortProcessor bgProc = new ShortProcessor(WIDTH, HEIGHT, background_, null);
+      FloatProcessor ffProc = new FloatProcessor(WIDTH, HEIGHT, flatField_, null);
+      short[] expected = subtractThenMultiply();
+      assertArrayEquals(expected,
+              apply(new ShadingKernel(WIDTH, HEIGHT, bgProc, ffProc, 1)));
+      assertArrayEquals(expected,
+              apply(new ShadingKernel(WIDTH, HEIGHT, bgProc, ffProc, 4)));
+   }
+
+   @Test
+   public void backgroundOnlyMatchesImageUtils() throws MMException {
+      ShortProcessor bgProc = new ShortProcessor(WIDTH, HEIGHT, background_, null);
+      assertArrayEquals(ImageUtils.subtractPixelArrays(image_, background_),
+              apply(new ShadingKernel(WIDTH, HEIGHT, bgProc, null, 4)));
+   }
+}
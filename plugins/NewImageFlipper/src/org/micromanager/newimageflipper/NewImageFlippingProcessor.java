@@ -44,6 +44,14 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
    Rotation rotation_;
    NewImageFlipperControls controls_;
 
+   /**
+    * Each image is flipped on its own, so images can be flipped in parallel
+    */
+   @Override
+   public boolean isStateless() {
+      return true;
+   }
+
    /**
     * Polls for tagged images, and processes them if they are from the selected 
     * camera.
@@ -0,0 +1,150 @@
+package org.micromanager.slideexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * A temporary file of fixed-size slots, each holding the pixels of one tile,
+ * that is memory-mapped so that storing or loading a tile is a plain copy.
+ *
+ * The file is mapped in segments of many slots (a single mapping can not
+ * exceed 2 GB), the first one when the file is created and further ones as
+ * slots run out. Freed slots are reused before the file grows.
+ */
+class MappedTileFile {
+
+    // Size of the mapped segments the file grows by
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private final File file_;
+    private final RandomAccessFile raf_;
+    private final FileChannel channel_;
+    private final int slotBytes_;
+    private final int slotsPerSegment_;
+    private final ArrayList<MappedByteBuffer> segments_ =
+            new ArrayList<MappedByteBuffer>();
+    private final ArrayDeque<Integer> freeSlots_ = new ArrayDeque<Integer>();
+    private int numSlots_ = 0;
+
+    /**
+     * Creates the file in the default temporary directory and maps the first
+     * segment.
+     *
+     * @param slotBytes the size of one tile, in bytes
+     */
+    MappedTileFile(int slotBytes) throws IOException {
+        slotBytes_ = slotBytes;
+        slotsPerSegment_ = (int) Math.max(1, SEGMENT_BYTES / slotBytes);
+        file_ = File.createTempFile("slideexplorer", ".tiles");
+        file_.deleteOnExit();
+        raf_ = new RandomAccessFile(file_, "rw");
+        channel_ = raf_.getChannel();
+        addSegment();
+    }
+
+    private void addSegment() throws IOException {
+        long position = (long) segments_.size() * slotsPerSegment_ * slotBytes_;
+        MappedByteBuffer segment = channel_.map(FileChannel.MapMode.READ_WRITE,
+                position, (long) slotsPerSegment_ * slotBytes_);
+        segment.order(ByteOrder.nativeOrder());
+        segments_.add(segment);
+        for (int i = 0; i < slotsPerSegment_; i++) {
+            freeSlots_.add(numSlots_ + i);
+        }
+        numSlots_ += slotsPerSegment_;
+    }
+
+    int getSlotBytes() {
+        return slotBytes_;
+    }
+
+    /**
+     * @return the number of slots in the file, used or not
+     */
+    synchronized int getNumSlots() {
+        return numSlots_;
+    }
+
+    synchronized int allocate() throws IOException {
+        if (freeSlots_.isEmpty()) {
+            addSegment();
+        }
+        return freeSlots_.poll();
+    }
+
+    synchronized void free(int slot) {
+        freeSlots_.add(slot);
+    }
+
+    /**
+     * @return a buffer of its own (so that threads do not share positions)
+     * spanning the given slot
+     */
+    private synchronized ByteBuffer slotBuffer(int slot) {
+        ByteBuffer buffer = segments_.get(slot / slotsPerSegment_).duplicate();
+        buffer.order(ByteOrder.nativeOrder());
+        int offset = (slot % slotsPerSegment_) * slotBytes_;
+        buffer.position(offset);
+        buffer.limit(offset + slotBytes_);
+        return buffer;
+    }
+
+    /**
+     * Copies pixels (byte[], short[], int[] or float[]) into a slot.
+     */
+    void write(int slot, Object pixels) {
+        ByteBuffer buffer = slotBuffer(slot);
+        if (pixels instanceof byte[]) {
+            buffer.put((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            buffer.asShortBuffer().put((short[]) pixels);
+        } else if (pixels instanceof int[]) {
+            buffer.asIntBuffer().put((int[]) pixels);
+        } else if (pixels instanceof float[]) {
+            buffer.asFloatBuffer().put((float[]) pixels);
+        } else {
+            throw new IllegalArgumentException("Unsupported pixel type");
+        }
+    }
+
+    /**
+     * Copies a slot into pixels (byte[], short[], int[] or float[]).
+     */
+    void read(int slot, Object pixels) {
+        ByteBuffer buffer = slotBuffer(slot);
+        if (pixels instanceof byte[]) {
+            buffer.get((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            buffer.asShortBuffer().get((short[]) pixels);
+        } else if (pixels instanceof int[]) {
+            buffer.asIntBuffer().get((int[]) pixels);
+        } else if (pixels instanceof float[]) {
+            buffer.asFloatBuffer().get((float[]) pixels);
+        } else {
+            throw new IllegalArgumentException("Unsupported pixel type");
+        }
+    }
+
+    /**
+     * Closes and deletes the file. The mappings stay valid until they are
+     * garbage collected, so on some systems the file only disappears on exit.
+     */
+    synchronized void close() {
+        segments_.clear();
+        freeSlots_.clear();
+        try {
+            channel_.close();
+            raf_.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+        file_.delete();
+    }
+}
@@ -1,14 +1,11 @@
 package org.micromanager.slideexplorer;
 
 import java.awt.Point;
-import java.io.File;
-import java.util.Random;
+import java.io.IOException;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
 public class MultiTile {
 
@@ -16,11 +13,14 @@ public class MultiTile {
     int type_;
     int width_;
     int height_;
-    String fileName_ = null;
+    // Where the tile goes when dropped from memory; null keeps it in memory
+    MappedTileFile tileFile_;
+    int slot_ = -1;
+    // True when the slot holds the current pixels
     boolean cached_ = false;
-    String tmpDirectory_ = "/tmp";
 
-    MultiTile(int type, int width, int height) {
+    MultiTile(MappedTileFile tileFile, int type, int width, int height) {
+        tileFile_ = tileFile;
         type_ = type;
         width_ = width;
         height_ = height;
@@ -45,6 +45,7 @@ public class MultiTile {
     public synchronized void setImage(ImageProcessor proc) {
         getImageReady();
         proc_.insert(proc, 0, 0);
+        cached_ = false;
     }
 
     private void createCleanImage() {
@@ -60,55 +61,49 @@ public class MultiTile {
         cached_ = false;
     }
 
+    public synchronized boolean isInMemory() {
+        return proc_ != null;
+    }
+
     public synchronized void dropFromMemory() {
+        if (proc_ == null || tileFile_ == null) {
+            return;
+        }
         if (!cached_) {
             cacheOnDisk();
         }
-
-        proc_ = null;
+        if (cached_) {
+            proc_ = null;
+        }
     }
 
     private void cacheOnDisk() {
-        if (proc_ != null) {
-            ImagePlus imgp = new ImagePlus("", proc_);
-            FileSaver fs = new FileSaver(imgp);
-            if (fileName_ == null) {
-                fileName_ = tmpDirectory_ + "/" + Math.abs(randLong()) + ".tif";
+        try {
+            if (slot_ < 0) {
+                slot_ = tileFile_.allocate();
             }
-            fs.saveAsTiff(fileName_);
+            tileFile_.write(slot_, proc_.getPixels());
             cached_ = true;
+        } catch (IOException e) {
+            // Keep the tile in memory instead
+            ReportingUtils.logError(e, "SlideExplorer: failed to cache tile");
         }
     }
 
     private void loadFromCache() {
-        ImagePlus imgp = IJ.openImage(fileName_);
-        if (imgp != null) {
-            proc_ = imgp.getProcessor();
-        } else { // Somehow the image got lost.
-            proc_ = null;
-            cached_ = false;
-            getImageReady();
-        }
+        createCleanImage();
+        tileFile_.read(slot_, proc_.getPixels());
     }
 
     public String toString() {
         return "Tile";
     }
-    private static Random rand = null;
 
-    public static long randLong() {
-        if (rand == null) {
-            rand = new Random();
-        }
-        return rand.nextLong();
-    }
-
-    public void wipeFromDisk() {
-        if (fileName_ != null) {
-            File file = new File(fileName_);
-            if (file.exists()) {
-                file.delete();
-            }
+    public synchronized void wipeFromDisk() {
+        if (slot_ >= 0) {
+            tileFile_.free(slot_);
+            slot_ = -1;
         }
+        cached_ = false;
     }
 }
@@ -1,32 +1,53 @@
 package org.micromanager.slideexplorer;
 
+import ij.ImagePlus;
 import ij.process.ImageProcessor;
 
 import java.awt.Dimension;
 import java.awt.Point;
-import java.io.File;
+import java.io.IOException;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
+/**
+ * Pyramid of MultiTiles. The most recently used tiles are kept in memory up
+ * to a byte budget; the others live in a single memory-mapped tile file.
+ */
 public class MultiTileCache {
 	
+	// Memory budget unless given, limited to a quarter of the heap
+	public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+	
 	protected int minZoomLevel_;
 	protected int width_ = 0;
 	protected int height_ = 0;
 	private int type_ = -1;
+	private final long memoryBudget_;
 	
 	protected Hashtable<Point3D,MultiTile> allTiles_ = new Hashtable<Point3D,MultiTile>();
-	protected Hashtable<Integer,Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
+	// Tiles in memory, least recently used first
+	protected LinkedHashMap<Point3D,MultiTile> residentTiles_ = 
+			new LinkedHashMap<Point3D,MultiTile>(16, 0.75f, true);
+	private MappedTileFile tileFile_ = null;
 	
 	public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
+		this(zoomLevels, tileDimensions, Math.min(DEFAULT_MEMORY_BUDGET, 
+				Runtime.getRuntime().maxMemory() / 4));
+	}
+	
+	/**
+	 * @param memoryBudget bytes of tile pixels to keep in memory
+	 */
+	public MultiTileCache(int zoomLevels, Dimension tileDimensions, 
+			long memoryBudget) {
 		minZoomLevel_ = -zoomLevels+1;
 		width_ = tileDimensions.width;
 		height_ = tileDimensions.height;
-
-        File tmpDir = new File("/tmp");
-        if(!tmpDir.exists())
-                tmpDir.mkdir();
+		memoryBudget_ = memoryBudget;
 	}
 	
 	public void addImage(Point idx, ImageProcessor proc) {
@@ -76,23 +97,53 @@ public class MultiTileCache {
 	}
 	
 	protected synchronized MultiTile getMultiTile(Point3D idx) {
-
-		if (currentTiles_.containsKey(idx.k)) {
-			Point3D currentTile = currentTiles_.get(idx.k);
-			if (!currentTile.equals(idx)) {
-				allTiles_.get(currentTile).dropFromMemory();
-				currentTiles_.remove(currentTile.k);
+		MultiTile tile = allTiles_.get(idx);
+		if (tile == null) {
+			tile = new MultiTile(getTileFile(), type_, width_, height_);
+			allTiles_.put(idx, tile);
+		}
+		// Callers are about to use the image, so count it as in memory
+		residentTiles_.put(idx, tile);
+		evictTiles();
+		return tile;
+	}
+	
+	/**
+	 * Drops the least recently used tiles from memory until the rest fits the
+	 * budget. The most recently used tile always stays.
+	 */
+	private void evictTiles() {
+		long tileBytes = (long) width_ * height_ * getBytesPerPixel();
+		Iterator<MultiTile> it = residentTiles_.values().iterator();
+		while (residentTiles_.size() * tileBytes > memoryBudget_) {
+			MultiTile tile = it.next();
+			if (!it.hasNext()) {
+				break;
+			}
+			tile.dropFromMemory();
+			if (!tile.isInMemory()) {
+				it.remove();
 			}
 		}
-
-		currentTiles_.put(idx.k, idx);
-		if (! allTiles_.containsKey(idx)) {
-			MultiTile tile = new MultiTile(type_, width_, height_);
-			allTiles_.put(idx, tile);
-			return tile;
-		} else {
-			return allTiles_.get(idx);
+	}
+	
+	private int getBytesPerPixel() {
+		return type_ == ImagePlus.GRAY8 ? 1 : type_ == ImagePlus.GRAY16 ? 2 : 4;
+	}
+	
+	/**
+	 * @return the tile file, created for the tile size and type on first 
+	 * use, or null if it can not be created (tiles then stay in memory)
+	 */
+	private MappedTileFile getTileFile() {
+		if (tileFile_ == null && type_ != -1) {
+			try {
+				tileFile_ = new MappedTileFile(width_ * height_ * getBytesPerPixel());
+			} catch (IOException e) {
+				ReportingUtils.logError(e, "SlideExplorer: failed to create tile file");
+			}
 		}
+		return tileFile_;
 	}
 		
 	protected Point3D getParentIndex(Point3D idx) {
@@ -107,12 +158,16 @@ public class MultiTileCache {
 		return new Point3D(i,j,k);
 	}
 
-	public void clear() {
+	public synchronized void clear() {
 		for (MultiTile multiTile:allTiles_.values()) {
 			multiTile.wipeFromDisk();
 		}
-        currentTiles_.clear();
-        allTiles_.clear();
+		residentTiles_.clear();
+		allTiles_.clear();
+		if (tileFile_ != null) {
+			tileFile_.close();
+			tileFile_ = null;
+		}
 	}
 	
 	
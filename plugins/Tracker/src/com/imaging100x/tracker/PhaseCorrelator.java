@@ -0,0 +1,270 @@
+/*
+ * FFT phase correlation for the Tracker plugin
+ * Copyright UCSF, 2015, BSD license
+ */
+package com.imaging100x.tracker;
+
+import java.awt.Rectangle;
+
+/**
+ * Finds the shift of a region of interest between two frames by phase
+ * correlation: the region of the previous frame is correlated with the
+ * region of the current frame grown by the search range on all sides, in
+ * the Fourier domain, and the peak of the correlation is refined to
+ * sub-pixel precision with a parabola through its neighbours.
+ *
+ * FFT tables and buffers are kept between frames and only rebuilt when the
+ * region or search range changes size. Not thread safe.
+ */
+public class PhaseCorrelator {
+   // Fraction of the mean magnitude added to each magnitude of the cross
+   // power spectrum before normalizing
+   private static final double REGULARIZATION = 0.1;
+
+   private int width_;
+   private int height_;
+   private Fft rowFft_;
+   private Fft columnFft_;
+   // Template (previous frame), then the correlation
+   private double[] re1_;
+   private double[] im1_;
+   // Search window (current frame)
+   private double[] re2_;
+   private double[] im2_;
+   private double[] columnRe_;
+   private double[] columnIm_;
+   private double peak_;
+
+   /**
+    * @param prev pixels of the previous frame
+    * @param cur pixels of the current frame
+    * @param imageWidth width of both frames
+    * @param imageHeight height of both frames
+    * @param roi region to track, in the previous frame
+    * @param maxOffset largest shift searched for, in pixels
+    * @return the shift {dx, dy} of the region from the previous to the
+    * current frame
+    */
+   public double[] correlate(float[] prev, float[] cur, int imageWidth,
+         int imageHeight, Rectangle roi, int maxOffset) {
+      allocate(nextPowerOfTwo(roi.width + 2 * maxOffset),
+            nextPowerOfTwo(roi.height + 2 * maxOffset));
+
+      // Both regions are placed so that the template sits at (0, 0); shifts
+      // then appear at their own (wrapped) coordinates
+      fill(prev, imageWidth, imageHeight, roi.x, roi.y, roi.width, roi.height,
+            0, 0, true, re1_, im1_);
+      fill(cur, imageWidth, imageHeight, roi.x - maxOffset, roi.y - maxOffset,
+            roi.width + 2 * maxOffset, roi.height + 2 * maxOffset,
+            -maxOffset, -maxOffset, false, re2_, im2_);
+      transform(re1_, im1_, false);
+      transform(re2_, im2_, false);
+
+      // Cross power spectrum of conj(template) * window, normalized to
+      // unit magnitude. Frequencies with little power would only contribute
+      // noise, so the magnitude is regularized with a fraction of the mean.
+      double sumOfMagnitudes = 0;
+      for (int i = 0; i < re1_.length; i++) {
+         double re = re1_[i] * re2_[i] + im1_[i] * im2_[i];
+         double im = re1_[i] * im2_[i] - im1_[i] * re2_[i];
+         re1_[i] = re;
+         im1_[i] = im;
+         sumOfMagnitudes += Math.sqrt(re * re + im * im);
+      }
+      double regularization = REGULARIZATION * sumOfMagnitudes / re1_.length + 1e-30;
+      for (int i = 0; i < re1_.length; i++) {
+         double magnitude = Math.sqrt(re1_[i] * re1_[i] + im1_[i] * im1_[i])
+               + regularization;
+         re1_[i] /= magnitude;
+         im1_[i] /= magnitude;
+      }
+      transform(re1_, im1_, true);
+
+      int bestX = 0;
+      int bestY = 0;
+      double best = Double.NEGATIVE_INFINITY;
+      for (int dy = -maxOffset; dy <= maxOffset; dy++) {
+         for (int dx = -maxOffset; dx <= maxOffset; dx++) {
+            double c = getCorrelation(dx, dy);
+            if (c > best) {
+               best = c;
+               bestX = dx;
+               bestY = dy;
+            }
+         }
+      }
+      peak_ = best;
+      return new double[] {
+         bestX + refine(getCorrelation(bestX - 1, bestY), best,
+               getCorrelation(bestX + 1, bestY)),
+         bestY + refine(getCorrelation(bestX, bestY - 1), best,
+               getCorrelation(bestX, bestY + 1))};
+   }
+
+   /**
+    * @return the correlation at the given shift, from the last call to
+    * correlate(), divided by the number of frequencies
+    */
+   public double getCorrelation(int dx, int dy) {
+      int x = ((dx % width_) + width_) % width_;
+      int y = ((dy % height_) + height_) % height_;
+      return re1_[y * width_ + x] / re1_.length;
+   }
+
+   /**
+    * @return the height of the correlation peak found by the last call to
+    * correlate()
+    */
+   public double getPeak() {
+      return peak_;
+   }
+
+   private static double refine(double left, double center, double right) {
+      double curvature = left - 2 * center + right;
+      if (curvature >= 0) {
+         return 0;
+      }
+      return Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / curvature));
+   }
+
+   private void allocate(int width, int height) {
+      if (width == width_ && height == height_) {
+         return;
+      }
+      width_ = width;
+      height_ = height;
+      rowFft_ = new Fft(width);
+      columnFft_ = height == width ? rowFft_ : new Fft(height);
+      re1_ = new double[width * height];
+      im1_ = new double[width * height];
+      re2_ = new double[width * height];
+      im2_ = new double[width * height];
+      columnRe_ = new double[height];
+      columnIm_ = new double[height];
+   }
+
+   /**
+    * Copies the part of the given region that lies within the image, minus
+    * its mean, to (x - x0 + shiftX, y - y0 + shiftY) of the buffer,
+    * wrapping around; everything else is zero. A tapered region fades to
+    * zero towards its edges (Hann window), so that the edges do not
+    * correlate with everything.
+    */
+   private void fill(float[] pixels, int imageWidth, int imageHeight,
+         int x0, int y0, int w, int h, int shiftX, int shiftY, boolean taper,
+         double[] re, double[] im) {
+      java.util.Arrays.fill(re, 0);
+      java.util.Arrays.fill(im, 0);
+      int xStart = Math.max(0, x0);
+      int xEnd = Math.min(imageWidth, x0 + w);
+      int yStart = Math.max(0, y0);
+      int yEnd = Math.min(imageHeight, y0 + h);
+      if (xEnd <= xStart || yEnd <= yStart) {
+         return;
+      }
+      double sum = 0;
+      for (int y = yStart; y < yEnd; y++) {
+         for (int x = xStart; x < xEnd; x++) {
+            sum += pixels[y * imageWidth + x];
+         }
+      }
+      double mean = sum / ((double) (xEnd - xStart) * (yEnd - yStart));
+      for (int y = yStart; y < yEnd; y++) {
+         int row = ((y - y0 + shiftY) % height_ + height_) % height_;
+         double rowWeight = taper ? hann(y - y0, h) : 1;
+         for (int x = xStart; x < xEnd; x++) {
+            int column = ((x - x0 + shiftX) % width_ + width_) % width_;
+            double weight = taper ? rowWeight * hann(x - x0, w) : 1;
+            re[row * width_ + column] = weight * (pixels[y * imageWidth + x] - mean);
+         }
+      }
+   }
+
+   private void transform(double[] re, double[] im, boolean inverse) {
+      for (int y = 0; y < height_; y++) {
+         rowFft_.transform(re, im, y * width_, inverse);
+      }
+      for (int x = 0; x < width_; x++) {
+         for (int y = 0; y < height_; y++) {
+            columnRe_[y] = re[y * width_ + x];
+            columnIm_[y] = im[y * width_ + x];
+         }
+         columnFft_.transform(columnRe_, columnIm_, 0, inverse);
+         for (int y = 0; y < height_; y++) {
+            re[y * width_ + x] = columnRe_[y];
+            im[y * width_ + x] = columnIm_[y];
+         }
+      }
+   }
+
+   private static double hann(int i, int n) {
+      return 0.5 - 0.5 * Math.cos(2 * Math.PI * (i + 0.5) / n);
+   }
+
+   private static int nextPowerOfTwo(int n) {
+      int size = 1;
+      while (size < n) {
+         size <<= 1;
+      }
+      return size;
+   }
+
+   /**
+    * In-place radix 2 complex FFT of one length, with its twiddle factors
+    * and bit reversal permutation computed once. The inverse is unscaled.
+    */
+   private static class Fft {
+      private final int n_;
+      private final double[] cos_;
+      private final double[] sin_;
+      private final int[] reversed_;
+
+      Fft(int n) {
+         n_ = n;
+         cos_ = new double[n / 2];
+         sin_ = new double[n / 2];
+         for (int i = 0; i < n / 2; i++) {
+            cos_[i] = Math.cos(2 * Math.PI * i / n);
+            sin_[i] = Math.sin(2 * Math.PI * i / n);
+         }
+         reversed_ = new int[n];
+         int bits = Integer.numberOfTrailingZeros(n);
+         for (int i = 0; i < n; i++) {
+            reversed_[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+         }
+      }
+
+      void transform(double[] re, double[] im, int offset, boolean inverse) {
+         for (int i = 0; i < n_; i++) {
+            int j = reversed_[i];
+            if (j > i) {
+               double t = re[offset + i];
+               re[offset + i] = re[offset + j];
+               re[offset + j] = t;
+               t = im[offset + i];
+               im[offset + i] = im[offset + j];
+               im[offset + j] = t;
+            }
+         }
+         double sign = inverse ? 1 : -1;
+         for (int size = 2; size <= n_; size <<= 1) {
+            int half = size / 2;
+            int step = n_ / size;
+            for (int start = 0; start < n_; start += size) {
+               for (int k = 0; k < half; k++) {
+                  double wr = cos_[k * step];
+                  double wi = sign * sin_[k * step];
+                  int a = offset + start + k;
+                  int b = a + half;
+                  double tr = re[b] * wr - im[b] * wi;
+                  double ti = re[b] * wi + im[b] * wr;
+                  re[b] = re[a] - tr;
+                  im[b] = im[a] - ti;
+                  re[a] += tr;
+                  im[a] += ti;
+               }
+            }
+         }
+      }
+   }
+}
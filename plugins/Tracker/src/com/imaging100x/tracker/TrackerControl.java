@@ -38,11 +38,14 @@ import java.awt.event.WindowEvent;
 import java.awt.Insets;
 import java.io.File;
 import java.util.GregorianCalendar;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
 
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JRadioButton;
 import javax.swing.JTextField;
@@ -99,11 +102,23 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private int imageCounter_;
    private String acqName_;
    private XYSeries xySeries_;
+   private final JComboBox methodCombo_;
+   private volatile boolean usePhaseCorrelation_ = true;
+   private final PhaseCorrelator phaseCorrelator_ = new PhaseCorrelator();
+   // Snapped frames waiting for the tracking thread; one at a time, as the
+   // stage has to move before the next frame is taken
+   private final BlockingQueue<TaggedImage> frameQueue_ =
+           new LinkedBlockingQueue<TaggedImage>(1);
+   private final AtomicBoolean frameInProgress_ = new AtomicBoolean(false);
+   private Thread trackingThread_;
 
    private static final String RESOLUTION_PIX = "resolution_pix";
    private static final String OFFSET_PIX = "offset_pix";
    private static final String INTERVAL_MS = "interval_pix";
    private static final String DISK_RECORDING = "disk_recording";
+   private static final String METHOD = "method";
+   private static final String PHASE_CORRELATION = "Phase correlation (FFT)";
+   private static final String BRUTE_FORCE = "Cross correlation (reference)";
    private static final String ROOT = "root";
    private static final String NAME = "name";
    private static final String TRACK_Y = "TRACK_X_UM";
@@ -194,6 +209,7 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             offsetPix_ = prefs_.getInt(OFFSET_PIX, offsetPix_);
             intervalMs_ = prefs_.getInt(INTERVAL_MS, intervalMs_);
             diskRadioButton_.setSelected(prefs_.getBoolean(DISK_RECORDING, diskRadioButton_.isSelected()));
+            methodCombo_.setSelectedItem(prefs_.get(METHOD, PHASE_CORRELATION));
             rootField_.setText(prefs_.get(ROOT, ""));
             nameField_.setText(prefs_.get(NAME, ""));
 
@@ -209,6 +225,7 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             prefs_.putInt(OFFSET_PIX, offsetPix_);
             prefs_.putInt(INTERVAL_MS, intervalMs_);
             prefs_.putBoolean(DISK_RECORDING, diskRadioButton_.isSelected());
+            prefs_.put(METHOD, (String) methodCombo_.getSelectedItem());
             prefs_.put(ROOT, rootField_.getText());
             prefs_.put(NAME, nameField_.getText());
          }
@@ -236,6 +253,7 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             pixelSizeUm_ = Double.parseDouble(pixelSizeField_.getText());
             offsetPix_ = Integer.parseInt(offsetField_.getText());
             resolutionPix_ = Integer.parseInt(resField_.getText());
+            usePhaseCorrelation_ = PHASE_CORRELATION.equals(methodCombo_.getSelectedItem());
             pixelsPrev_ = null;
             pixelsCur_ = null;
             timer_.setDelay(intervalMs_);
@@ -305,6 +323,18 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       labelBottomRight_.setBounds(140, 175, 93, 16);
       getContentPane().add(labelBottomRight_);
 
+      final JLabel methodLabel = new JLabel();
+      methodLabel.setText("Method:");
+      methodLabel.setBounds(240, 120, 156, 16);
+      getContentPane().add(methodLabel);
+
+      methodCombo_ = new JComboBox(new String[] {PHASE_CORRELATION, BRUTE_FORCE});
+      methodCombo_.setToolTipText("Phase correlation finds the shift to a fraction of a pixel " +
+              "and is fast for large ranges; cross correlation is the original, " +
+              "exhaustive search, for comparison");
+      methodCombo_.setBounds(240, 138, 156, 22);
+      getContentPane().add(methodCombo_);
+
       final JLabel trackingRegionLabel = new JLabel();
       trackingRegionLabel.setText("XY Stage Limits:");
       trackingRegionLabel.setBounds(10, 120, 217, 16);
@@ -380,24 +410,22 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       fileLocationsLabel.setBounds(10, 241, 143, 16);
       getContentPane().add(fileLocationsLabel);
 
-      // Setup timer
-      final AtomicBoolean taskRunning = new AtomicBoolean(false);
+      // Setup timer: snaps a frame, unless the previous one is still being
+      // tracked, and hands it to the tracking thread
       ActionListener timerHandler = new ActionListener() {
          @Override
          public void actionPerformed(ActionEvent evt) {
-            Runnable doTrack = new Runnable() {
+            Runnable doSnap = new Runnable() {
                @Override
                public void run() {
                   TaggedImage img = snapSingleImage();
-                  if (img != null) {
-                     processOneFrame(img, true);
+                  if (img == null || !frameQueue_.offer(img)) {
+                     frameInProgress_.set(false);
                   }
-                  taskRunning.set(false);
                }
             };
-            if (!taskRunning.get()) {
-               taskRunning.set(true);
-               (new Thread(doTrack)).start();
+            if (frameInProgress_.compareAndSet(false, true)) {
+               (new Thread(doSnap)).start();
             }
          }
        };
@@ -466,14 +494,49 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       xySeries_ = new XYSeries("Track",false);
       TrackerUtils.plotData("Cell Track: " + acqName_, xySeries_, "X (micron)", 
                "Y (micron)", 100, 100);
+      startTrackingThread();
       timer_.start();
    }
+
+   private synchronized void startTrackingThread() {
+      if (trackingThread_ != null) {
+         return;
+      }
+      frameQueue_.clear();
+      frameInProgress_.set(false);
+      trackingThread_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               while (!Thread.currentThread().isInterrupted()) {
+                  TaggedImage img = frameQueue_.take();
+                  try {
+                     processOneFrame(img, true);
+                  } finally {
+                     frameInProgress_.set(false);
+                  }
+               }
+            } catch (InterruptedException e) {
+               // Tracking stopped
+            }
+         }
+      }, "Live tracking");
+      trackingThread_.start();
+   }
+
+   private synchronized void stopTrackingThread() {
+      if (trackingThread_ != null) {
+         trackingThread_.interrupt();
+         trackingThread_ = null;
+      }
+   }
    
    
    public void stopTracking() {
 
       app_.logMessage("Tracking stopped at " + GregorianCalendar.getInstance().getTime());
       timer_.stop();
+      stopTrackingThread();
       roi_ = null;
    }
 
@@ -514,35 +577,38 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    }
    
 
-   private void processOneFrame(TaggedImage img, boolean moveStage) {
-      if (pixelsPrev_ == null) {
-         pixelsPrev_ = pixelsCur_;
-         dxUmPrev_ = 0.0;
-         dyUmPrev_ = 0.0;
-         return;
-      }
-
-      int kCount = 2 * offsetPix_ / resolutionPix_;
-      int lCount = 2 * offsetPix_ / resolutionPix_;
-      ImageProcessor corrImproc = new ij.process.FloatProcessor(lCount, kCount);
-      corrStack_.addSlice(corrImproc);
-
-      // position of correlation maximum
-      int kMax = 0;
-      int lMax = 0;
-
-      Rectangle r = roi_.getBounds();
-      try {
-         app_.getAcquisition(acqName_).getAcquisitionWindow().
-                 getImagePlus().setRoi(roi_, true);
-      } catch (MMScriptException mex) {
-         app_.showError("Failed to set new ROI", this);
+   /**
+    * Phase correlation of the ROI of the previous frame with the current
+    * frame, to a fraction of a pixel. The correlation around the shift is
+    * drawn in corrImproc at the resolution of the brute force search.
+    * @return shift {dx, dy} in pixels
+    */
+   private double[] phaseCorrelate(Rectangle r, ImageProcessor corrImproc, int lCount) {
+      int imHeight = pixelsCur_.length / imWidth_;
+      double[] shift = phaseCorrelator_.correlate(pixelsPrev_, pixelsCur_,
+              imWidth_, imHeight, r, offsetPix_);
+      for (int k=-offsetPix_; k<offsetPix_; k += resolutionPix_) {
+         for (int l=-offsetPix_; l<offsetPix_; l += resolutionPix_) {
+            int x = (l + offsetPix_) / resolutionPix_;
+            int y = (k + offsetPix_) / resolutionPix_;
+            corrImproc.setf(x + lCount * y,
+                    (float) phaseCorrelator_.getCorrelation(l, k));
+         }
       }
-      //IJ.write("ROI pos: " + r.x + "," + r.y);
+      return shift;
+   }
 
+   /**
+    * Exhaustive normalized cross correlation at every resolutionPix_ step
+    * within offsetPix_; kept as the reference for the phase correlation.
+    * @return shift {dx, dy} in pixels
+    */
+   private double[] crossCorrelate(Rectangle r, ImageProcessor corrImproc, int lCount) {
       int width = r.width, height = r.height;
       double corScale = width * height;
 
+      int kMax = 0;
+      int lMax = 0;
       double maxCor = 0;
       for (int k=-offsetPix_; k<offsetPix_; k += resolutionPix_) {
          for (int l=-offsetPix_; l<offsetPix_; l += resolutionPix_) {
@@ -579,6 +645,40 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             }
          }
       }
+      return new double[] {lMax, kMax};
+   }
+
+   private void processOneFrame(TaggedImage img, boolean moveStage) {
+      if (pixelsPrev_ == null) {
+         pixelsPrev_ = pixelsCur_;
+         dxUmPrev_ = 0.0;
+         dyUmPrev_ = 0.0;
+         return;
+      }
+
+      int kCount = 2 * offsetPix_ / resolutionPix_;
+      int lCount = 2 * offsetPix_ / resolutionPix_;
+      ImageProcessor corrImproc = new ij.process.FloatProcessor(lCount, kCount);
+      corrStack_.addSlice(corrImproc);
+
+      Rectangle r = roi_.getBounds();
+      try {
+         app_.getAcquisition(acqName_).getAcquisitionWindow().
+                 getImagePlus().setRoi(roi_, true);
+      } catch (MMScriptException mex) {
+         app_.showError("Failed to set new ROI", this);
+      }
+      //IJ.write("ROI pos: " + r.x + "," + r.y);
+
+      // position of correlation maximum
+      double[] shift;
+      if (usePhaseCorrelation_) {
+         shift = phaseCorrelate(r, corrImproc, lCount);
+      } else {
+         shift = crossCorrelate(r, corrImproc, lCount);
+      }
+      double lMax = shift[0];
+      double kMax = shift[1];
 
       if (corrImplus_ == null) {
          corrImplus_ = new ij.ImagePlus("Cross Correlation", corrStack_);
@@ -654,7 +754,7 @@ public class TrackerControl extends MMFrame implements MMPlugin {
          } // relative motion
       } else {
          // move the roi
-         roi_.setLocation(r.x + lMax, r.y + kMax);
+         roi_.setLocation((int) Math.round(r.x + lMax), (int) Math.round(r.y + kMax));
 
          try {
             app_.getAcquisition(acqName_).getAcquisitionWindow().
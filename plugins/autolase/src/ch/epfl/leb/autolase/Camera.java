@@ -14,6 +14,16 @@ public interface Camera {
      */
     public short[] getNewImage() throws Exception;
     
+    /**
+     * Waits for the camera to deliver an image that was not returned
+     * before, and returns it as an array of shorts.
+     * 
+     * @param timeoutMs longest time to wait, in milliseconds
+     * @return the image, or null if no new image arrived in time
+     * @throws Exception 
+     */
+    public short[] getNextImage(long timeoutMs) throws Exception;
+    
     /**
      * Get the image width.
      * 
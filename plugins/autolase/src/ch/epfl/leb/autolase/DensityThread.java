@@ -1,18 +1,17 @@
 package ch.epfl.leb.autolase;
 
-import java.util.ArrayDeque;
 import java.util.List;
-import java.util.Queue;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * This class estimates the density of activations by sampling a Camera at 
- * regular intervals (default 20ms). The density at a particular point relates 
- * to the maximum time a certain pixel is "on", or above a certain threshold. 
- * The density is calculated as a moving average (default 1s).
+ * This class estimates the density of activations from every new image of a
+ * Camera. The density at a particular point relates to the maximum time a 
+ * certain pixel is "on", or above a certain threshold. The density is 
+ * calculated as a moving average (default 50 images). The density map is 
+ * handed to the map monitors at most once per time interval (default 20ms).
  * 
  * The code only works for 2 bytes per pixel cameras for now. 
  * 
@@ -22,6 +21,8 @@ public class DensityThread implements Runnable {
     public static final int DEFAULT_THRESHOLD = 500;
     public static final int DEFAULT_WAIT_TIME = 20;
     public static final int NUM_ELEMS = 50;
+    // Longest wait for an image before checking the flags again, in ms
+    public static final long IMAGE_TIMEOUT = 100;
     
     boolean running = true;
     boolean stopping = false;
@@ -34,7 +35,19 @@ public class DensityThread implements Runnable {
     long timeInterval = DEFAULT_WAIT_TIME;
     int fifoNumElems = NUM_ELEMS;
 
-    Queue<Double> density_fifo = new ArrayDeque<Double>(fifoNumElems);
+    int mapDecimation = 1;
+
+    // Time each pixel has been above threshold, in ms
+    float[] accumulator = null;
+    // Density map handed to the map monitors
+    float[] map = null;
+    int mapWidth, mapHeight;
+
+    // Moving average of the density
+    double[] densityRing = new double[fifoNumElems];
+    int ringCount = 0;
+    int ringNext = 0;
+    double ringSum = 0;
 
     List <DensityMonitor>  monitors = 
             Collections.synchronizedList(new ArrayList <DensityMonitor> ());
@@ -103,88 +116,182 @@ public class DensityThread implements Runnable {
         return currentDensity;
     }
 
+    /**
+     * Sets the size of the blocks of pixels that are reduced to a single 
+     * pixel (their maximum) in the density map given to the map monitors.
+     * 1 (the default) gives a map of the size of the image.
+     * 
+     * @param mapDecimation 
+     */
+    public void setMapDecimation(int mapDecimation) {
+        this.mapDecimation = Math.max(1, mapDecimation);
+    }
+
+    public int getMapDecimation() {
+        return mapDecimation;
+    }
+
     @Override
     public void run() {
-        // Current image
-        float[] accumulator = null;
+        // Time at which the last image was processed
+        long lastFrameTime = 0;
+        // Time at which the density map was last handed out
+        long lastMapTime = 0;
 
-        // Start timer
-        long lastTime = System.currentTimeMillis();
-        
         while(!stopping) {            
             // Only works with 2 bpp
             if (camera.getBytesPerPixel()!=2)
                 throw new UnsupportedOperationException("Only works with 16-bit images");            
             
             // Check if we're in sequence acquisition
-            if (running && camera.isAcquiring())
-                // Get the current image
+            if (!running || !camera.isAcquiring()) {
+                lastFrameTime = 0;
                 try {
-                    short[] image = camera.getNewImage();
-
-                    // Reset accumulator if image size has changed
-                    if (image!=null && accumulator!=null && (image.length != accumulator.length))
-                        accumulator = null;
-                    
-                    // Threshold the image
-                    boolean[] curMask = new boolean[image.length];
-                    for (int i=0; i<curMask.length; i++)
-                        curMask[i]=image[i]>threshold;
-
-                    // Calculate accumulator
-                    if (accumulator == null) {
-                        // A_0 = I_0 > t; 
-                        accumulator = new float[image.length];
-                        for(int i=0; i<accumulator.length; i++)
-                            if (curMask[i])
-                                accumulator[i] = timeInterval;
-                    } else {
-                        // A_i = (I_i > t) (1 + A_i-1)
-                        for(int i=0; i<accumulator.length; i++)
-                            if (!curMask[i]) {
-                                accumulator[i] = 0;
-                            } else {
-                                accumulator[i]+=timeInterval;
-                            }
-                    }
-
-                    // Density measure: max(A_i)
-                    double curd = 0;
-                    for (int i=0; i<image.length; i++)
-                        if (accumulator[i]>curd)
-                            curd = accumulator[i];
-                    
-                    // Moving average estimate
-                    if (density_fifo.size() == fifoNumElems)
-                        density_fifo.remove();
-                    density_fifo.offer(curd);
-
-                    double mean_density = 0;
-                    for (Double d : density_fifo)
-                        mean_density+=d;
-                    mean_density /= density_fifo.size();
-
-                    currentDensity = mean_density;  
-                    
-                    for (DensityMonitor m : monitors)
-                        m.densityChanged(currentDensity);
+                    Thread.sleep(timeInterval);
+                } catch (InterruptedException ex) {
+                    stopping = true;
+                }
+                continue;
+            }
 
-                    for (DensityMapMonitor m : mapMonitors)
-                        m.densityMapChanged(camera.getWidth(),camera.getHeight(),accumulator);
+            try {
+                // Wait for the next image from the camera
+                short[] image = camera.getNextImage(IMAGE_TIMEOUT);
+                if (image == null) {
+                    lastFrameTime = 0;
+                    continue;
+                }
+                
+                // Time the pixels above threshold have been on, in ms
+                long now = System.nanoTime();
+                float elapsed = lastFrameTime == 0 ? timeInterval :
+                        (now - lastFrameTime) / 1e6f;
+                lastFrameTime = now;
+
+                boolean wantMap = !mapMonitors.isEmpty() && 
+                        now - lastMapTime >= timeInterval * 1000000L;
+                double curd = accumulate(image, camera.getWidth(), elapsed, 
+                        wantMap);
+
+                // Moving average estimate
+                currentDensity = addToAverage(curd);
 
-                } catch (Exception ex) {
-                    Logger.getLogger(DensityThread.class.getName()).log(Level.SEVERE, null, ex);
+                for (DensityMonitor m : monitors)
+                    m.densityChanged(currentDensity);
+
+                if (wantMap) {
+                    lastMapTime = now;
+                    for (DensityMapMonitor m : mapMonitors)
+                        m.densityMapChanged(mapWidth, mapHeight, map);
                 }
-            
-            try {
-                Thread.sleep(timeInterval);
+
             } catch (InterruptedException ex) {
+                stopping = true;
+            } catch (Exception ex) {
                 Logger.getLogger(DensityThread.class.getName()).log(Level.SEVERE, null, ex);
                 
-                stopping = true;
+                // Do not flood the log when the camera keeps failing
+                try {
+                    Thread.sleep(timeInterval);
+                } catch (InterruptedException e) {
+                    stopping = true;
+                }
             }
         }
         
         stopping = false;
     }
+    
+    /**
+     * Updates the accumulator with a new image: pixels above threshold have
+     * been on for elapsed more, the others are reset.  This is done in a 
+     * single pass, which also finds the maximum and, if asked for, fills the 
+     * decimated density map.
+     * 
+     * A_0 = (I_0 > t) dt, A_i = (I_i > t) (A_i-1 + dt)
+     * 
+     * @return the density measure, max(A_i)
+     */
+    double accumulate(short[] image, int width, float elapsed, boolean wantMap) {
+        // Reset accumulator if image size has changed
+        if (accumulator == null || accumulator.length != image.length)
+            accumulator = new float[image.length];
+        
+        if (width <= 0 || image.length % width != 0)
+            width = image.length;
+        int height = image.length / width;
+        int decimation = Math.min(mapDecimation, Math.max(width, height));
+        
+        float[] acc = accumulator;
+        int t = threshold;
+        float max = 0;
+        if (!wantMap || decimation == 1) {
+            for (int i=0; i<acc.length; i++) {
+                float a = (image[i] & 0xffff) > t ? acc[i] + elapsed : 0;
+                acc[i] = a;
+                if (a > max)
+                    max = a;
+            }
+            if (wantMap) {
+                // The map is the accumulator itself
+                mapWidth = width;
+                mapHeight = height;
+                map = acc;
+            }
+            return max;
+        }
+        
+        mapWidth = (width + decimation - 1) / decimation;
+        mapHeight = (height + decimation - 1) / decimation;
+        // A new array every time, as monitors may hold on to the last one
+        map = new float[mapWidth * mapHeight];
+        for (int y=0; y<height; y++) {
+            int row = y * width;
+            int mapRow = (y / decimation) * mapWidth;
+            for (int bx=0; bx<mapWidth; bx++) {
+                int end = row + Math.min(width, (bx + 1) * decimation);
+                float blockMax = map[mapRow + bx];
+                for (int i=row + bx * decimation; i<end; i++) {
+                    float a = (image[i] & 0xffff) > t ? acc[i] + elapsed : 0;
+                    acc[i] = a;
+                    if (a > blockMax)
+                        blockMax = a;
+                }
+                map[mapRow + bx] = blockMax;
+                if (blockMax > max)
+                    max = blockMax;
+            }
+        }
+        return max;
+    }
+    
+    /**
+     * Adds a value to the moving average, kept in a ring buffer of the last
+     * fifoNumElems values.
+     * 
+     * @return the new moving average
+     */
+    double addToAverage(double value) {
+        if (densityRing.length != fifoNumElems) {
+            densityRing = new double[fifoNumElems];
+            ringCount = 0;
+            ringNext = 0;
+            ringSum = 0;
+        }
+        if (ringCount == densityRing.length)
+            ringSum -= densityRing[ringNext];
+        else
+            ringCount++;
+        densityRing[ringNext] = value;
+        ringSum += value;
+        ringNext = (ringNext + 1) % densityRing.length;
+        
+        // Recompute the sum once per turn, so that rounding errors do not add up
+        if (ringNext == 0) {
+            ringSum = 0;
+            for (int i=0; i<ringCount; i++)
+                ringSum += densityRing[i];
+        }
+        return ringSum / ringCount;
+    }
 }
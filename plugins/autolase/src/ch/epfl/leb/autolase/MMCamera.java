@@ -1,6 +1,8 @@
 package ch.epfl.leb.autolase;
 
+import java.util.concurrent.locks.LockSupport;
 import mmcorej.CMMCore;
+import mmcorej.Metadata;
 
 /**
  * Implements a simple generic Camera (@see Camera) with MicroManager.
@@ -11,6 +13,12 @@ public class MMCamera implements Camera {
 
     CMMCore core;
     
+    // Image number (from the circular buffer) of the last image returned
+    long lastImageNumber = -1;
+    // Time of arrival of that image, and estimated time between images
+    long lastImageTime = 0;
+    long frameIntervalNs = 0;
+    
     /**
      * Creates a new camera which wraps around the default MicroManager class.
      * 
@@ -30,6 +38,77 @@ public class MMCamera implements Camera {
         return (short[]) core.getLastImage();
     }
 
+    /**
+     * Returns the latest image from the camera as soon as it differs from 
+     * the one returned last time.  Images are left in the circular buffer, so
+     * that the acquisition still receives all of them.
+     * 
+     * The core has no way to signal new images, and the image number only
+     * comes with a copy of the image, so this polls a few times per frame 
+     * interval, as estimated from the image numbers seen so far.
+     * 
+     * @param timeoutMs
+     * @return the image, or null if none arrived in time or the sequence
+     * acquisition is not running
+     * @throws Exception 
+     */
+    @Override
+    public short[] getNextImage(long timeoutMs) throws Exception {
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        Metadata md = new Metadata();
+        while (core.isSequenceRunning()) {
+            Object pixels = null;
+            try {
+                pixels = core.getLastImageMD(md);
+            } catch (Exception ex) {
+                // No image in the circular buffer yet
+            }
+            if (pixels != null) {
+                long imageNumber = getImageNumber(md);
+                long now = System.nanoTime();
+                // Without image numbers, assume a new image per exposure
+                boolean isNew = imageNumber < 0 ? 
+                        now - lastImageTime >= core.getExposure() * 1e6 :
+                        imageNumber != lastImageNumber;
+                if (isNew) {
+                    if (lastImageNumber >= 0 && imageNumber > lastImageNumber) {
+                        long interval = (now - lastImageTime) / 
+                                (imageNumber - lastImageNumber);
+                        frameIntervalNs = frameIntervalNs == 0 ? interval :
+                                (3 * frameIntervalNs + interval) / 4;
+                    }
+                    lastImageNumber = imageNumber;
+                    lastImageTime = now;
+                    if (pixels instanceof short[])
+                        return (short[]) pixels;
+                    return null;
+                }
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return null;
+            long interval = frameIntervalNs > 0 ? frameIntervalNs : 
+                    (long) (core.getExposure() * 1e6);
+            LockSupport.parkNanos(Math.min(remaining, 
+                    Math.max(100000, Math.min(5000000, interval / 4))));
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+        lastImageNumber = -1;
+        frameIntervalNs = 0;
+        return null;
+    }
+    
+    private static long getImageNumber(Metadata md) {
+        try {
+            if (md.HasTag("ImageNumber"))
+                return Long.parseLong(md.GetSingleTag("ImageNumber").GetValue().trim());
+        } catch (Exception ex) {
+            // Missing or not a number
+        }
+        return -1;
+    }
+
     @Override
     public int getWidth() {
         return (int)core.getImageWidth();
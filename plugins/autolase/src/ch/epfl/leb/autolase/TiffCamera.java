@@ -15,8 +15,11 @@ import java.io.IOException;
  */
 public class TiffCamera implements Camera {
     
+    public static final long FRAME_TIME = 20;
+    
     ImageStack stack;
     ImagePlus win;
+    long lastFrameTime = 0;
     
     public TiffCamera(java.io.File path) throws IOException {
         win = new Opener().openTiff(path.getParent(), path.getName());
@@ -35,6 +38,21 @@ public class TiffCamera implements Camera {
         return (short[]) stack.getPixels(win.getSlice());
     }
 
+    /**
+     * Plays the stack back at FRAME_TIME per slice.
+     */
+    @Override
+    public short[] getNextImage(long timeoutMs) throws Exception {
+        long wait = Math.min(timeoutMs, 
+                lastFrameTime + FRAME_TIME - System.currentTimeMillis());
+        if (wait > 0)
+            Thread.sleep(wait);
+        if (System.currentTimeMillis() < lastFrameTime + FRAME_TIME)
+            return null;
+        lastFrameTime = System.currentTimeMillis();
+        return getNewImage();
+    }
+
     @Override
     public int getWidth() {
         return stack.getWidth();